@@ -0,0 +1,283 @@
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Totais das faturas materializados por dia e por mês, indexados pelo dia (epoch-day) da data da fatura.
+ * São atualizados incrementalmente quando uma fatura é criada, editada ou importada e guardados juntamente
+ * com os dados do sistema, de modo que o total de qualquer período é obtido somando no máximo
+ * uns dias soltos no início e no fim e um balde por cada mês completo.
+ */
+public class AgregadosPeriodo implements Serializable {
+
+    /**
+     * Versão da serialização (fixada para continuar a ler os totais já gravados).
+     */
+    private static final long serialVersionUID = 130102740245103055L;
+
+    /**
+     * Totais por dia (índice: epoch-day).
+     */
+    private final Baldes dias = new Baldes();
+
+    /**
+     * Totais por mês (índice: ano * 12 + mês - 1).
+     */
+    private final Baldes meses = new Baldes();
+
+    /**
+     * Assinatura das tabelas de taxas usadas no cálculo dos totais com IVA.
+     */
+    private long assinaturaTaxas = RegistoTaxas.assinatura();
+
+    /**
+     * Converte uma data no epoch-day correspondente. Se a data for nula, usa a data atual.
+     *
+     * @param data A data.
+     * @return O número de dias desde 01/01/1970.
+     */
+    public static long diaDe(Date data) {
+        LocalDate dia = data != null ? data.toInstant().atZone(ZoneId.systemDefault()).toLocalDate() : LocalDate.now();
+        return dia.toEpochDay();
+    }
+
+    /**
+     * Obtém o índice do mês de um epoch-day.
+     */
+    private static long mesDoDia(long dia) {
+        LocalDate data = LocalDate.ofEpochDay(dia);
+        return data.getYear() * 12L + data.getMonthValue() - 1;
+    }
+
+    /**
+     * Acrescenta uma fatura aos totais do seu dia e do seu mês.
+     *
+     * @param fatura A fatura a acrescentar.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        acumular(fatura, 1);
+    }
+
+    /**
+     * Retira uma fatura dos totais do seu dia e do seu mês.
+     *
+     * @param fatura A fatura a retirar.
+     */
+    public synchronized void remover(Fatura fatura) {
+        acumular(fatura, -1);
+    }
+
+    private void acumular(Fatura fatura, int sinal) {
+        long dia = diaDe(fatura.getData());
+        double semIVA = sinal * fatura.calcularTotalSemIVA();
+        double comIVA = sinal * fatura.calcularTotalComIVA(fatura);
+        dias.acumular(dia, semIVA, comIVA, sinal);
+        meses.acumular(mesDoDia(dia), semIVA, comIVA, sinal);
+    }
+
+    /**
+     * Reconstrói todos os totais a partir das faturas.
+     *
+     * @param faturas As faturas do sistema.
+     */
+    public synchronized void recalcular(Collection<Fatura> faturas) {
+        dias.limpar();
+        meses.limpar();
+        assinaturaTaxas = RegistoTaxas.assinatura();
+        for (Fatura fatura : faturas) {
+            acumular(fatura, 1);
+        }
+    }
+
+    /**
+     * Indica se os totais podem ser usados com as faturas e taxas atuais
+     * (por exemplo, depois de serem lidos de um ficheiro).
+     *
+     * @param numeroFaturas O número de faturas do sistema.
+     * @return true se os totais estiverem atualizados.
+     */
+    public synchronized boolean valido(int numeroFaturas) {
+        return assinaturaTaxas == RegistoTaxas.assinatura() && dias.totalFaturas() == numeroFaturas;
+    }
+
+    /**
+     * Soma um dos valores (0: sem IVA, 1: com IVA, 2: número de faturas) entre dois dias, inclusive.
+     * Os dias soltos até ao início do primeiro mês completo e depois do fim do último mês completo
+     * vêm dos baldes diários; os meses completos vêm dos baldes mensais.
+     */
+    private double somar(long diaInicio, long diaFim, int valor) {
+        double soma = 0.0;
+        long dia = diaInicio;
+
+        // Dias soltos até ao início de um mês
+        while (dia <= diaFim && LocalDate.ofEpochDay(dia).getDayOfMonth() != 1) {
+            soma += dias.valor(dia++, valor);
+        }
+        // Meses completos
+        while (dia <= diaFim) {
+            LocalDate inicioMes = LocalDate.ofEpochDay(dia);
+            long fimMes = inicioMes.plusMonths(1).toEpochDay() - 1;
+            if (fimMes > diaFim) break;
+            soma += meses.valor(mesDoDia(dia), valor);
+            dia = fimMes + 1;
+        }
+        // Dias soltos depois do último mês completo
+        while (dia <= diaFim) {
+            soma += dias.valor(dia++, valor);
+        }
+        return soma;
+    }
+
+    /**
+     * Obtém o valor total sem IVA das faturas emitidas entre duas datas (inclusive).
+     *
+     * @param inicio A data inicial.
+     * @param fim    A data final.
+     * @return O total sem IVA.
+     */
+    public synchronized double totalSemIVA(Date inicio, Date fim) {
+        return somar(diaDe(inicio), diaDe(fim), 0);
+    }
+
+    /**
+     * Obtém o valor total com IVA das faturas emitidas entre duas datas (inclusive).
+     *
+     * @param inicio A data inicial.
+     * @param fim    A data final.
+     * @return O total com IVA.
+     */
+    public synchronized double totalComIVA(Date inicio, Date fim) {
+        return somar(diaDe(inicio), diaDe(fim), 1);
+    }
+
+    /**
+     * Obtém o número de faturas emitidas entre duas datas (inclusive).
+     *
+     * @param inicio A data inicial.
+     * @param fim    A data final.
+     * @return O número de faturas.
+     */
+    public synchronized long numeroFaturas(Date inicio, Date fim) {
+        return (long) somar(diaDe(inicio), diaDe(fim), 2);
+    }
+
+    /**
+     * Série de baldes com totais indexados por um inteiro (dia ou mês), guardados em arrays primitivos
+     * que crescem (para o dobro) conforme aparecem novos índices. Os arrays nunca ultrapassam MAXIMO_BALDES:
+     * os índices que ficariam fora desse intervalo (por exemplo, a data de uma fatura com o ano mal escrito)
+     * vão para um mapa à parte.
+     */
+    private static class Baldes implements Serializable {
+
+        /** Versão da serialização (fixada para continuar a ler os totais já gravados). */
+        private static final long serialVersionUID = 1313526972849107387L;
+
+        /** Número máximo de baldes nos arrays (cerca de 180 anos de dias). */
+        private static final int MAXIMO_BALDES = 1 << 16;
+
+        /** Número de baldes dos arrays quando são criados. */
+        private static final int BALDES_INICIAIS = 64;
+
+        /** Índice do primeiro balde. */
+        private long base;
+
+        /** Totais sem IVA por balde. */
+        private double[] semIVA = new double[0];
+
+        /** Totais com IVA por balde. */
+        private double[] comIVA = new double[0];
+
+        /** Número de faturas por balde. */
+        private long[] faturas = new long[0];
+
+        /** Totais (sem IVA, com IVA, número de faturas) dos índices fora dos arrays, ou null se não houver. */
+        private HashMap<Long, double[]> dispersos;
+
+        void limpar() {
+            semIVA = new double[0];
+            comIVA = new double[0];
+            faturas = new long[0];
+            dispersos = null;
+        }
+
+        void acumular(long indice, double valorSemIVA, double valorComIVA, int sinal) {
+            int posicao = posicao(indice);
+            if (posicao < 0) {
+                if (dispersos == null) {
+                    dispersos = new HashMap<>();
+                }
+                double[] totais = dispersos.computeIfAbsent(indice, i -> new double[3]);
+                totais[0] += valorSemIVA;
+                totais[1] += valorComIVA;
+                totais[2] += sinal;
+                return;
+            }
+            semIVA[posicao] += valorSemIVA;
+            comIVA[posicao] += valorComIVA;
+            faturas[posicao] += sinal;
+        }
+
+        double valor(long indice, int valor) {
+            long posicao = indice - base;
+            if (posicao < 0 || posicao >= faturas.length) {
+                double[] totais = dispersos != null ? dispersos.get(indice) : null;
+                return totais != null ? totais[valor] : 0.0;
+            }
+            int i = (int) posicao;
+            return valor == 0 ? semIVA[i] : valor == 1 ? comIVA[i] : faturas[i];
+        }
+
+        long totalFaturas() {
+            long total = 0;
+            for (long f : faturas) total += f;
+            if (dispersos != null) {
+                for (double[] totais : dispersos.values()) total += (long) totais[2];
+            }
+            return total;
+        }
+
+        /**
+         * Obtém a posição de um índice nos arrays, alargando-os se for preciso.
+         *
+         * @return A posição, ou -1 se os arrays teriam de passar MAXIMO_BALDES para incluir o índice.
+         */
+        private int posicao(long indice) {
+            if (faturas.length == 0) {
+                base = indice;
+                redimensionar(0, BALDES_INICIAIS);
+            } else if (indice < base) {
+                long necessarios = base + faturas.length - indice;
+                if (necessarios > MAXIMO_BALDES) {
+                    return -1;
+                }
+                // Os baldes novos ficam antes dos atuais
+                int tamanho = (int) Math.min(MAXIMO_BALDES, Math.max(necessarios, 2L * faturas.length));
+                int deslocamento = tamanho - faturas.length;
+                redimensionar(deslocamento, tamanho);
+                base -= deslocamento;
+            } else if (indice >= base + faturas.length) {
+                long necessarios = indice - base + 1;
+                if (necessarios > MAXIMO_BALDES) {
+                    return -1;
+                }
+                redimensionar(0, (int) Math.min(MAXIMO_BALDES, Math.max(necessarios, 2L * faturas.length)));
+            }
+            return (int) (indice - base);
+        }
+
+        private void redimensionar(int deslocamento, int tamanho) {
+            double[] novoSemIVA = new double[tamanho];
+            double[] novoComIVA = new double[tamanho];
+            long[] novasFaturas = new long[tamanho];
+            System.arraycopy(semIVA, 0, novoSemIVA, deslocamento, semIVA.length);
+            System.arraycopy(comIVA, 0, novoComIVA, deslocamento, comIVA.length);
+            System.arraycopy(faturas, 0, novasFaturas, deslocamento, faturas.length);
+            semIVA = novoSemIVA;
+            comIVA = novoComIVA;
+            faturas = novasFaturas;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmark do recálculo paralelo das estatísticas (EstatisticasFaturas.calcular).
+ * Gera um conjunto sintético de faturas e mede o tempo do recálculo com 1, 2, 4, ... até N threads,
+ * mostrando também os totais para confirmar que não dependem do número de threads.
+ *
+ * Utilização: java -Xmx4g BenchmarkEstatisticas [numeroLinhas] (por omissão 10 000 000 linhas).
+ */
+public class BenchmarkEstatisticas {
+
+    /**
+     * Número de linhas (produtos) por fatura sintética.
+     */
+    private static final int LINHAS_POR_FATURA = 4;
+
+    /**
+     * Número de repetições de cada medição (é apresentado o melhor tempo).
+     */
+    private static final int REPETICOES = 5;
+
+    public static void main(String[] args) throws Exception {
+        long numeroLinhas = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        ArrayList<Fatura> faturas = gerarFaturas(numeroLinhas);
+        System.out.println("Faturas geradas: " + faturas.size() + " (" + numeroLinhas + " linhas)");
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double tempoBase = 0;
+        for (int threads = 1; threads <= maxThreads; threads = proximo(threads, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                // Aquecimento
+                pool.submit(() -> EstatisticasFaturas.calcular(faturas)).get();
+
+                long melhor = Long.MAX_VALUE;
+                EstatisticasFaturas resultado = null;
+                for (int i = 0; i < REPETICOES; i++) {
+                    long inicio = System.nanoTime();
+                    resultado = pool.submit(() -> EstatisticasFaturas.calcular(faturas)).get();
+                    melhor = Math.min(melhor, System.nanoTime() - inicio);
+                }
+
+                double ms = melhor / 1e6;
+                if (threads == 1) tempoBase = ms;
+                System.out.printf("Threads: %3d  Tempo: %9.2f ms  Aceleração: %5.2fx  Linhas/s: %,.0f  Total Com IVA: %.6f%n",
+                        threads, ms, tempoBase / ms, numeroLinhas / (ms / 1000), resultado.getTotalComIVA());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Obtém o próximo número de threads a testar (potências de 2, terminando no máximo).
+     */
+    private static int proximo(int threads, int maxThreads) {
+        if (threads == maxThreads) return maxThreads + 1;
+        return Math.min(threads * 2, maxThreads);
+    }
+
+    /**
+     * Gera faturas sintéticas com os produtos do catálogo e clientes das três localizações.
+     *
+     * @param numeroLinhas Número total de linhas a gerar.
+     * @return As faturas geradas.
+     */
+    private static ArrayList<Fatura> gerarFaturas(long numeroLinhas) {
+        SistemaPOOFS sistema = new SistemaPOOFS();
+        sistema.criarCatalogoInicial();
+        ArrayList<Produto> catalogo = sistema.listaProdutos;
+        Cliente[] clientes = {
+                new Cliente("Cliente Continente", "100000001", "Continente"),
+                new Cliente("Cliente Madeira", "100000002", "Madeira"),
+                new Cliente("Cliente Acores", "100000003", "Açores")
+        };
+        Date data = new Date();
+
+        int numeroFaturas = (int) (numeroLinhas / LINHAS_POR_FATURA);
+        ArrayList<Fatura> faturas = new ArrayList<>(numeroFaturas);
+        for (int i = 0; i < numeroFaturas; i++) {
+            ArrayList<Produto> produtos = new ArrayList<>(LINHAS_POR_FATURA);
+            for (int j = 0; j < LINHAS_POR_FATURA; j++) {
+                produtos.add(catalogo.get((i + j) % catalogo.size()));
+            }
+            Fatura fatura = new Fatura();
+            fatura.setNumeroFatura(i + 1);
+            fatura.setCliente(clientes[i % clientes.length]);
+            fatura.setData(data);
+            fatura.setProdutos(produtos);
+            faturas.add(fatura);
+        }
+        return faturas;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Exceção lançada quando uma edição de uma fatura é confirmada depois de a fatura ter sido alterada
+ * por outra sessão (ver EdicaoFatura). As alterações da edição não são aplicadas.
+ */
+public class ConflitoVersaoException extends IllegalStateException {
+
+    /**
+     * Versão da serialização.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * O número da fatura.
+     */
+    private final int numeroFatura;
+
+    /**
+     * A versão a partir da qual a edição foi feita.
+     */
+    private final int versaoEsperada;
+
+    /**
+     * A versão atual da fatura.
+     */
+    private final int versaoAtual;
+
+    /**
+     * Construtor da exceção.
+     *
+     * @param numeroFatura   O número da fatura.
+     * @param versaoEsperada A versão a partir da qual a edição foi feita.
+     * @param versaoAtual    A versão atual da fatura.
+     */
+    public ConflitoVersaoException(int numeroFatura, int versaoEsperada, int versaoAtual) {
+        super("A fatura " + numeroFatura + " foi alterada por outra sessão (versão " + versaoAtual
+                + ", edição feita sobre a versão " + versaoEsperada + "). As alterações não foram guardadas.");
+        this.numeroFatura = numeroFatura;
+        this.versaoEsperada = versaoEsperada;
+        this.versaoAtual = versaoAtual;
+    }
+
+    public int getNumeroFatura() {
+        return numeroFatura;
+    }
+
+    public int getVersaoEsperada() {
+        return versaoEsperada;
+    }
+
+    public int getVersaoAtual() {
+        return versaoAtual;
+    }
+}
@@ -0,0 +1,215 @@
+import java.time.LocalDate;
+import java.util.Date;
+
+/**
+ * Consulta às faturas do sistema, construída encadeando filtros:
+ * <pre>
+ * new ConsultaFaturas().doCliente("123456789").entre(inicio, fim).comTipoProduto(TabelaTaxas.TAXA_NORMAL)
+ * </pre>
+ * Os filtros de tipo e de código de produto escolhem as linhas consideradas nos totais
+ * (e uma fatura só é incluída se tiver pelo menos uma dessas linhas); o intervalo de valores
+ * aplica-se ao total com IVA da fatura. A consulta é executada por SistemaPOOFS.consultar,
+ * que escolhe o índice ou agregado a usar (ver PlaneadorConsultas).
+ */
+public class ConsultaFaturas {
+
+    /**
+     * NIF do cliente, ou null para todos.
+     */
+    String nif;
+
+    /**
+     * Localização do cliente (0 Continente, 1 Madeira, 2 Açores), ou CuboIVA.TODOS.
+     */
+    int regiao = CuboIVA.TODOS;
+
+    /**
+     * Data inicial (inclusive), ou null para não limitar.
+     */
+    Date dataInicio;
+
+    /**
+     * Data final (inclusive), ou null para não limitar.
+     */
+    Date dataFim;
+
+    /**
+     * Tipo de taxa dos produtos (ver TabelaTaxas), ou CuboIVA.TODOS.
+     */
+    int tipoProduto = CuboIVA.TODOS;
+
+    /**
+     * Código do produto, ou null para todos.
+     */
+    Integer codigoProduto;
+
+    /**
+     * Valor mínimo do total com IVA da fatura.
+     */
+    double valorMinimo = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Valor máximo do total com IVA da fatura.
+     */
+    double valorMaximo = Double.POSITIVE_INFINITY;
+
+    /**
+     * Indica se só são pedidos os totais (permite responder a partir dos agregados, sem devolver faturas).
+     */
+    boolean apenasAgregados;
+
+    /**
+     * Filtra as faturas de um cliente.
+     *
+     * @param nif O NIF do cliente.
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas doCliente(String nif) {
+        this.nif = nif;
+        return this;
+    }
+
+    /**
+     * Filtra as faturas de clientes de uma localização.
+     *
+     * @param regiao A localização (0 Continente, 1 Madeira, 2 Açores).
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas naLocalizacao(int regiao) {
+        if (regiao < 0 || regiao >= TabelaTaxas.NUMERO_REGIOES) {
+            throw new IllegalArgumentException("Localização inválida: " + regiao);
+        }
+        this.regiao = regiao;
+        return this;
+    }
+
+    /**
+     * Filtra as faturas emitidas entre duas datas (inclusive). Qualquer uma das datas pode ser null.
+     *
+     * @param inicio A data inicial.
+     * @param fim    A data final.
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas entre(Date inicio, Date fim) {
+        this.dataInicio = inicio;
+        this.dataFim = fim;
+        return this;
+    }
+
+    /**
+     * Considera apenas as linhas de um tipo de produto.
+     *
+     * @param tipo O tipo de taxa (ver TabelaTaxas).
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas comTipoProduto(int tipo) {
+        if (tipo < 0 || tipo >= TabelaTaxas.NUMERO_TIPOS) {
+            throw new IllegalArgumentException("Tipo de produto inválido: " + tipo);
+        }
+        this.tipoProduto = tipo;
+        return this;
+    }
+
+    /**
+     * Considera apenas as linhas de um produto.
+     *
+     * @param codigo O código do produto.
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas comProduto(int codigo) {
+        this.codigoProduto = codigo;
+        return this;
+    }
+
+    /**
+     * Filtra as faturas cujo total com IVA está entre dois valores (inclusive).
+     *
+     * @param minimo O valor mínimo.
+     * @param maximo O valor máximo.
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas comValorEntre(double minimo, double maximo) {
+        this.valorMinimo = minimo;
+        this.valorMaximo = maximo;
+        return this;
+    }
+
+    /**
+     * Pede apenas os totais da consulta, sem a lista de faturas.
+     *
+     * @return Esta consulta.
+     */
+    public ConsultaFaturas apenasAgregados() {
+        this.apenasAgregados = true;
+        return this;
+    }
+
+    /**
+     * Indica se a consulta filtra linhas (por tipo ou código de produto).
+     *
+     * @return true se houver filtros sobre as linhas.
+     */
+    boolean filtraLinhas() {
+        return tipoProduto != CuboIVA.TODOS || codigoProduto != null;
+    }
+
+    /**
+     * Indica se o intervalo de datas cobre apenas meses completos (ou não está limitado).
+     *
+     * @return true se as datas coincidirem com o início e o fim de meses.
+     */
+    boolean mesesCompletos() {
+        if (dataInicio != null && LocalDate.ofEpochDay(AgregadosPeriodo.diaDe(dataInicio)).getDayOfMonth() != 1) {
+            return false;
+        }
+        return dataFim == null || LocalDate.ofEpochDay(AgregadosPeriodo.diaDe(dataFim) + 1).getDayOfMonth() == 1;
+    }
+
+    /**
+     * Obtém o primeiro dia (epoch-day) do intervalo de datas.
+     */
+    long diaInicio() {
+        return dataInicio == null ? Long.MIN_VALUE : AgregadosPeriodo.diaDe(dataInicio);
+    }
+
+    /**
+     * Obtém o último dia (epoch-day) do intervalo de datas.
+     */
+    long diaFim() {
+        return dataFim == null ? Long.MAX_VALUE : AgregadosPeriodo.diaDe(dataFim);
+    }
+
+    /**
+     * Indica se uma linha satisfaz os filtros de produto.
+     *
+     * @param produto O produto da linha.
+     * @return true se a linha for considerada.
+     */
+    boolean aceitaLinha(Produto produto) {
+        return (tipoProduto == CuboIVA.TODOS || produto.tipoTaxa() == tipoProduto)
+                && (codigoProduto == null || produto.getCodigo() == codigoProduto);
+    }
+
+    /**
+     * Indica se uma fatura satisfaz todos os filtros. Os filtros mais baratos são avaliados primeiro
+     * e o total com IVA só é calculado se existir um intervalo de valores.
+     *
+     * @param fatura A fatura.
+     * @return true se a fatura fizer parte do resultado.
+     */
+    boolean aceita(Fatura fatura) {
+        Cliente cliente = fatura.getCliente();
+        if (nif != null && !nif.equals(cliente.getNif())) return false;
+        if (regiao != CuboIVA.TODOS && cliente.localizacaoToIndex() != regiao) return false;
+        if (dataInicio != null || dataFim != null) {
+            long dia = AgregadosPeriodo.diaDe(fatura.getData());
+            if (dia < diaInicio() || dia > diaFim()) return false;
+        }
+        if (filtraLinhas() && fatura.getProdutos().stream().noneMatch(this::aceitaLinha)) return false;
+        if (valorMinimo != Double.NEGATIVE_INFINITY || valorMaximo != Double.POSITIVE_INFINITY) {
+            double total = fatura.calcularTotalComIVA(fatura);
+            return total >= valorMinimo && total <= valorMaximo;
+        }
+        return true;
+    }
+}
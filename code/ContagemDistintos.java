@@ -0,0 +1,113 @@
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Contagem aproximada de clientes e produtos distintos, com um par de sketches HyperLogLog
+ * por mês e por localização do cliente. Os sketches são atualizados quando uma fatura é criada
+ * ou importada e guardados juntamente com os dados do sistema; a contagem de distintos num período
+ * obtém-se juntando os sketches dos meses e localizações pedidos.
+ *
+ * Os sketches só acumulam: uma fatura editada depois de registada continua a contar com os dados originais.
+ */
+public class ContagemDistintos implements Serializable {
+
+    /**
+     * Versão da serialização (fixada para continuar a ler os sketches já gravados).
+     */
+    private static final long serialVersionUID = 1064150246177878791L;
+
+    /**
+     * Versão das chaves dos clientes nos sketches (1: o NIF como número, a mesma chave dos rankings).
+     */
+    private static final int VERSAO_CHAVES = 1;
+
+    /**
+     * Sketches por balde (mês * NUMERO_REGIOES + localização): posição 0 para clientes, 1 para produtos.
+     */
+    private final HashMap<Integer, HyperLogLog[]> baldes = new HashMap<>();
+
+    /**
+     * Número de faturas registadas.
+     */
+    private int numeroFaturas;
+
+    /**
+     * Versão das chaves com que os sketches foram preenchidos
+     * (0 nos sketches gravados antes de existir este campo, que têm de ser reconstruídos).
+     */
+    private int versaoChaves = VERSAO_CHAVES;
+
+    /**
+     * Regista os clientes e produtos de uma fatura.
+     *
+     * @param fatura A fatura criada ou importada.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        numeroFaturas++;
+        int regiao = fatura.getCliente().localizacaoToIndex();
+        if (regiao < 0) {
+            return;
+        }
+
+        int balde = CuboIVA.mes(fatura.getData()) * TabelaTaxas.NUMERO_REGIOES + regiao;
+        HyperLogLog[] sketches = baldes.computeIfAbsent(balde, b -> new HyperLogLog[]{new HyperLogLog(), new HyperLogLog()});
+        Long nif = SistemaPOOFS.nifComoNumero(fatura.getCliente());
+        if (nif != null) {
+            sketches[0].adicionar(nif);
+        }
+        for (Produto produto : fatura.getProdutos()) {
+            sketches[1].adicionar(produto.getCodigo());
+        }
+    }
+
+    /**
+     * Estima o número de clientes distintos num período e localização.
+     *
+     * @param regiao    A localização, ou CuboIVA.TODOS.
+     * @param mesInicio O primeiro mês (inclusive, ver CuboIVA.mes), ou CuboIVA.TODOS.
+     * @param mesFim    O último mês (inclusive), ou CuboIVA.TODOS.
+     * @return O número estimado de clientes distintos.
+     */
+    public synchronized long clientesDistintos(int regiao, int mesInicio, int mesFim) {
+        return juntar(0, regiao, mesInicio, mesFim).estimar();
+    }
+
+    /**
+     * Estima o número de produtos distintos vendidos num período e localização.
+     *
+     * @param regiao    A localização, ou CuboIVA.TODOS.
+     * @param mesInicio O primeiro mês (inclusive, ver CuboIVA.mes), ou CuboIVA.TODOS.
+     * @param mesFim    O último mês (inclusive), ou CuboIVA.TODOS.
+     * @return O número estimado de produtos distintos.
+     */
+    public synchronized long produtosDistintos(int regiao, int mesInicio, int mesFim) {
+        return juntar(1, regiao, mesInicio, mesFim).estimar();
+    }
+
+    /**
+     * Junta os sketches dos baldes que correspondem aos filtros.
+     */
+    private HyperLogLog juntar(int posicao, int regiao, int mesInicio, int mesFim) {
+        HyperLogLog uniao = new HyperLogLog();
+        for (var balde : baldes.entrySet()) {
+            int mes = balde.getKey() / TabelaTaxas.NUMERO_REGIOES;
+            int regiaoBalde = balde.getKey() % TabelaTaxas.NUMERO_REGIOES;
+            if ((regiao == CuboIVA.TODOS || regiao == regiaoBalde)
+                    && (mesInicio == CuboIVA.TODOS || mes >= mesInicio)
+                    && (mesFim == CuboIVA.TODOS || mes <= mesFim)) {
+                uniao.juntar(balde.getValue()[posicao]);
+            }
+        }
+        return uniao;
+    }
+
+    /**
+     * Indica se os sketches podem ser usados com as faturas atuais (por exemplo, depois de serem lidos de um ficheiro).
+     *
+     * @param numeroFaturas O número de faturas do sistema.
+     * @return true se os sketches tiverem todas as faturas e as chaves atuais.
+     */
+    public synchronized boolean valido(int numeroFaturas) {
+        return versaoChaves == VERSAO_CHAVES && this.numeroFaturas == numeroFaturas;
+    }
+}
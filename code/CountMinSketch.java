@@ -0,0 +1,107 @@
+/**
+ * Count-Min Sketch: estrutura probabilística de tamanho fixo que estima a soma dos pesos
+ * associados a cada chave de um fluxo, sem guardar as chaves.
+ * A estimativa nunca é inferior ao valor real e, com probabilidade 1 - delta,
+ * excede-o no máximo em epsilon * (soma de todos os pesos), com epsilon = e / largura e delta = e^(-profundidade).
+ * Os pesos devem ser não negativos.
+ */
+public class CountMinSketch {
+
+    /**
+     * Contadores: uma linha por função de dispersão.
+     */
+    private final double[][] contadores;
+
+    /**
+     * Sementes das funções de dispersão de cada linha.
+     */
+    private final long[] sementes;
+
+    /**
+     * Soma de todos os pesos adicionados.
+     */
+    private double pesoTotal;
+
+    /**
+     * Cria um sketch com a largura e profundidade indicadas.
+     *
+     * @param largura     Número de contadores por linha (determina epsilon).
+     * @param profundidade Número de linhas (determina delta).
+     */
+    public CountMinSketch(int largura, int profundidade) {
+        if (largura <= 0 || profundidade <= 0) {
+            throw new IllegalArgumentException("Largura e profundidade devem ser positivas.");
+        }
+        contadores = new double[profundidade][largura];
+        sementes = new long[profundidade];
+        for (int i = 0; i < profundidade; i++) {
+            sementes[i] = 0x9E3779B97F4A7C15L * (i + 1);
+        }
+    }
+
+    /**
+     * Calcula a posição de uma chave numa linha do sketch.
+     */
+    private int posicao(long chave, int linha) {
+        long h = chave ^ sementes[linha];
+        // Função de mistura de 64 bits (finalizador do MurmurHash3)
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return (int) ((h >>> 1) % contadores[linha].length);
+    }
+
+    /**
+     * Adiciona um peso a uma chave.
+     *
+     * @param chave A chave.
+     * @param peso  O peso a adicionar (não negativo).
+     */
+    public void adicionar(long chave, double peso) {
+        if (peso < 0) {
+            throw new IllegalArgumentException("O peso não pode ser negativo.");
+        }
+        for (int linha = 0; linha < contadores.length; linha++) {
+            contadores[linha][posicao(chave, linha)] += peso;
+        }
+        pesoTotal += peso;
+    }
+
+    /**
+     * Estima a soma dos pesos de uma chave.
+     *
+     * @param chave A chave.
+     * @return A estimativa (nunca inferior ao valor real).
+     */
+    public double estimar(long chave) {
+        double minimo = Double.MAX_VALUE;
+        for (int linha = 0; linha < contadores.length; linha++) {
+            minimo = Math.min(minimo, contadores[linha][posicao(chave, linha)]);
+        }
+        return minimo;
+    }
+
+    /**
+     * Obtém o erro máximo das estimativas (epsilon * peso total), garantido com probabilidade 1 - delta.
+     *
+     * @return O erro máximo.
+     */
+    public double erroMaximo() {
+        return Math.E / contadores[0].length * pesoTotal;
+    }
+
+    /**
+     * Obtém a probabilidade de uma estimativa exceder o erro máximo (delta).
+     *
+     * @return A probabilidade de falha.
+     */
+    public double probabilidadeFalha() {
+        return Math.exp(-contadores.length);
+    }
+
+    public double getPesoTotal() {
+        return pesoTotal;
+    }
+}
@@ -0,0 +1,285 @@
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * Cubo de agregação dos valores das faturas por localização do cliente, tipo de produto e mês.
+ * Os valores ficam guardados em arrays primitivos (uma célula por localização × tipo × mês),
+ * mantidos incrementalmente, e qualquer agregação destas dimensões é respondida sem percorrer as faturas.
+ *
+ * Nas consultas, o valor TODOS (-1) numa dimensão agrega todos os seus valores.
+ * Os meses são representados por ano * 12 + (mês - 1) (ver {@link #mes(int, int)}).
+ */
+public class CuboIVA {
+
+    /**
+     * Valor usado nas consultas para agregar todos os valores de uma dimensão.
+     */
+    public static final int TODOS = -1;
+
+    /**
+     * Número de células por mês (localizações × tipos de produto).
+     */
+    private static final int CELULAS_POR_MES = TabelaTaxas.NUMERO_REGIOES * TabelaTaxas.NUMERO_TIPOS;
+
+    /**
+     * Primeiro mês representado nos arrays.
+     */
+    private int mesBase;
+
+    /**
+     * Número de meses representados nos arrays.
+     */
+    private int numeroMeses;
+
+    /**
+     * Valores sem IVA por célula.
+     */
+    private double[] semIVA = new double[0];
+
+    /**
+     * Valores com IVA por célula.
+     */
+    private double[] comIVA = new double[0];
+
+    /**
+     * Número de linhas (produtos) por célula.
+     */
+    private long[] linhas = new long[0];
+
+    /**
+     * Converte um ano e um mês no índice de mês usado pelo cubo.
+     *
+     * @param ano O ano.
+     * @param mes O mês (1 a 12).
+     * @return O índice do mês.
+     */
+    public static int mes(int ano, int mes) {
+        return ano * 12 + (mes - 1);
+    }
+
+    /**
+     * Obtém o índice de mês de uma data. Se a data for nula, usa a data atual.
+     *
+     * @param data A data.
+     * @return O índice do mês.
+     */
+    public static int mes(Date data) {
+        LocalDate dia = data != null ? data.toInstant().atZone(ZoneId.systemDefault()).toLocalDate() : LocalDate.now();
+        return mes(dia.getYear(), dia.getMonthValue());
+    }
+
+    /**
+     * Acrescenta as linhas de uma fatura ao cubo.
+     *
+     * @param fatura A fatura a acrescentar.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        acumular(fatura, 1);
+    }
+
+    /**
+     * Retira as linhas de uma fatura do cubo.
+     *
+     * @param fatura A fatura a retirar.
+     */
+    public synchronized void remover(Fatura fatura) {
+        acumular(fatura, -1);
+    }
+
+    /**
+     * Reconstrói o cubo a partir de todas as faturas.
+     *
+     * @param faturas As faturas do sistema.
+     */
+    public synchronized void recalcular(Collection<Fatura> faturas) {
+        numeroMeses = 0;
+        semIVA = new double[0];
+        comIVA = new double[0];
+        linhas = new long[0];
+        for (Fatura fatura : faturas) {
+            acumular(fatura, 1);
+        }
+    }
+
+    /**
+     * Soma (sinal 1) ou subtrai (sinal -1) os valores das linhas de uma fatura às células correspondentes.
+     *
+     * @param fatura A fatura.
+     * @param sinal  1 para somar, -1 para subtrair.
+     */
+    private void acumular(Fatura fatura, int sinal) {
+        Cliente cliente = fatura.getCliente();
+        int regiao = cliente.localizacaoToIndex();
+        if (regiao < 0) {
+            return; // Localização inválida: a fatura não pode ser precificada
+        }
+
+        int base = celulaBase(mes(fatura.getData())) + regiao * TabelaTaxas.NUMERO_TIPOS;
+        for (Produto produto : fatura.getProdutos()) {
+            int celula = base + produto.tipoTaxa();
+            semIVA[celula] += sinal * produto.calcularValorSemIVA();
+            comIVA[celula] += sinal * produto.calcularValorComIVA(cliente, fatura.getData());
+            linhas[celula] += sinal;
+        }
+    }
+
+    /**
+     * Obtém a primeira célula de um mês, alargando os arrays se o mês ainda não estiver representado.
+     *
+     * @param mes O índice do mês.
+     * @return A posição da primeira célula do mês.
+     */
+    private int celulaBase(int mes) {
+        if (numeroMeses == 0) {
+            mesBase = mes;
+            numeroMeses = 1;
+            redimensionar(0, 1);
+        } else if (mes < mesBase) {
+            int novos = mesBase - mes;
+            redimensionar(novos, numeroMeses + novos);
+            mesBase = mes;
+            numeroMeses += novos;
+        } else if (mes >= mesBase + numeroMeses) {
+            int total = mes - mesBase + 1;
+            redimensionar(0, total);
+            numeroMeses = total;
+        }
+        return (mes - mesBase) * CELULAS_POR_MES;
+    }
+
+    /**
+     * Copia os arrays para arrays maiores.
+     *
+     * @param deslocamento Número de meses acrescentados no início.
+     * @param meses        Número total de meses depois de redimensionar.
+     */
+    private void redimensionar(int deslocamento, int meses) {
+        int tamanho = meses * CELULAS_POR_MES;
+        int destino = deslocamento * CELULAS_POR_MES;
+
+        double[] novoSemIVA = new double[tamanho];
+        double[] novoComIVA = new double[tamanho];
+        long[] novasLinhas = new long[tamanho];
+        System.arraycopy(semIVA, 0, novoSemIVA, destino, semIVA.length);
+        System.arraycopy(comIVA, 0, novoComIVA, destino, comIVA.length);
+        System.arraycopy(linhas, 0, novasLinhas, destino, linhas.length);
+        semIVA = novoSemIVA;
+        comIVA = novoComIVA;
+        linhas = novasLinhas;
+    }
+
+    /**
+     * Soma os valores das células que correspondem aos filtros.
+     *
+     * @param valores   O array de valores a somar.
+     * @param regiao    A localização, ou TODOS.
+     * @param tipo      O tipo de produto, ou TODOS.
+     * @param mesInicio O primeiro mês (inclusive), ou TODOS.
+     * @param mesFim    O último mês (inclusive), ou TODOS.
+     * @return A soma dos valores.
+     */
+    private double somar(double[] valores, int regiao, int tipo, int mesInicio, int mesFim) {
+        if (numeroMeses == 0) return 0.0;
+
+        int primeiro = mesInicio == TODOS ? 0 : Math.max(0, mesInicio - mesBase);
+        int ultimo = mesFim == TODOS ? numeroMeses - 1 : Math.min(numeroMeses - 1, mesFim - mesBase);
+        int regiaoInicio = regiao == TODOS ? 0 : regiao, regiaoFim = regiao == TODOS ? TabelaTaxas.NUMERO_REGIOES - 1 : regiao;
+        int tipoInicio = tipo == TODOS ? 0 : tipo, tipoFim = tipo == TODOS ? TabelaTaxas.NUMERO_TIPOS - 1 : tipo;
+
+        double soma = 0.0;
+        for (int m = primeiro; m <= ultimo; m++) {
+            for (int r = regiaoInicio; r <= regiaoFim; r++) {
+                int base = m * CELULAS_POR_MES + r * TabelaTaxas.NUMERO_TIPOS;
+                for (int t = tipoInicio; t <= tipoFim; t++) {
+                    soma += valores[base + t];
+                }
+            }
+        }
+        return soma;
+    }
+
+    /**
+     * Obtém o valor total sem IVA para uma combinação de localização, tipo de produto e meses.
+     *
+     * @param regiao    A localização, ou TODOS.
+     * @param tipo      O tipo de produto, ou TODOS.
+     * @param mesInicio O primeiro mês (inclusive), ou TODOS.
+     * @param mesFim    O último mês (inclusive), ou TODOS.
+     * @return O valor total sem IVA.
+     */
+    public synchronized double totalSemIVA(int regiao, int tipo, int mesInicio, int mesFim) {
+        return somar(semIVA, regiao, tipo, mesInicio, mesFim);
+    }
+
+    /**
+     * Obtém o valor total com IVA para uma combinação de localização, tipo de produto e meses.
+     *
+     * @param regiao    A localização, ou TODOS.
+     * @param tipo      O tipo de produto, ou TODOS.
+     * @param mesInicio O primeiro mês (inclusive), ou TODOS.
+     * @param mesFim    O último mês (inclusive), ou TODOS.
+     * @return O valor total com IVA.
+     */
+    public synchronized double totalComIVA(int regiao, int tipo, int mesInicio, int mesFim) {
+        return somar(comIVA, regiao, tipo, mesInicio, mesFim);
+    }
+
+    /**
+     * Obtém o valor do IVA para uma combinação de localização, tipo de produto e meses.
+     *
+     * @param regiao    A localização, ou TODOS.
+     * @param tipo      O tipo de produto, ou TODOS.
+     * @param mesInicio O primeiro mês (inclusive), ou TODOS.
+     * @param mesFim    O último mês (inclusive), ou TODOS.
+     * @return O valor do IVA.
+     */
+    public synchronized double totalIVA(int regiao, int tipo, int mesInicio, int mesFim) {
+        return somar(comIVA, regiao, tipo, mesInicio, mesFim) - somar(semIVA, regiao, tipo, mesInicio, mesFim);
+    }
+
+    /**
+     * Obtém o número de linhas (produtos) para uma combinação de localização, tipo de produto e meses.
+     *
+     * @param regiao    A localização, ou TODOS.
+     * @param tipo      O tipo de produto, ou TODOS.
+     * @param mesInicio O primeiro mês (inclusive), ou TODOS.
+     * @param mesFim    O último mês (inclusive), ou TODOS.
+     * @return O número de linhas.
+     */
+    public synchronized long numeroLinhas(int regiao, int tipo, int mesInicio, int mesFim) {
+        if (numeroMeses == 0) return 0;
+        long total = 0;
+        int primeiro = mesInicio == TODOS ? 0 : Math.max(0, mesInicio - mesBase);
+        int ultimo = mesFim == TODOS ? numeroMeses - 1 : Math.min(numeroMeses - 1, mesFim - mesBase);
+        for (int m = primeiro; m <= ultimo; m++) {
+            for (int r = 0; r < TabelaTaxas.NUMERO_REGIOES; r++) {
+                if (regiao != TODOS && r != regiao) continue;
+                for (int t = 0; t < TabelaTaxas.NUMERO_TIPOS; t++) {
+                    if (tipo != TODOS && t != tipo) continue;
+                    total += linhas[m * CELULAS_POR_MES + r * TabelaTaxas.NUMERO_TIPOS + t];
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Obtém o primeiro mês com valores registados.
+     *
+     * @return O índice do primeiro mês, ou TODOS se o cubo estiver vazio.
+     */
+    public synchronized int getPrimeiroMes() {
+        return numeroMeses == 0 ? TODOS : mesBase;
+    }
+
+    /**
+     * Obtém o último mês com valores registados.
+     *
+     * @return O índice do último mês, ou TODOS se o cubo estiver vazio.
+     */
+    public synchronized int getUltimoMes() {
+        return numeroMeses == 0 ? TODOS : mesBase + numeroMeses - 1;
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.function.Consumer;
+
+/**
+ * Diário (journal) das faturas criadas desde a última gravação dos dados, guardado num ficheiro
+ * ao lado do ficheiro de dados (ver ficheiroDe). Cada fatura é acrescentada ao fim do ficheiro
+ * e as escritas são sincronizadas com o disco por lotes (ver sincronizar), pelo que uma fatura
+ * confirmada não se perde se o processo terminar antes da próxima gravação dos dados.
+ *
+ * Cada registo é precedido do seu tamanho, para que um registo incompleto no fim do ficheiro
+ * (escrita interrompida) seja reconhecido e descartado.
+ *
+ * Ao carregar os dados, as faturas do diário que não estão no ficheiro de dados são registadas de novo
+ * (ver reproduzir). Depois de cada gravação, a parte do diário já incluída nos dados é descartada.
+ */
+public class DiarioAlteracoes implements AutoCloseable {
+
+    /**
+     * O ficheiro do diário.
+     */
+    private final File ficheiro;
+
+    /**
+     * Canal de escrita no fim do ficheiro.
+     */
+    private FileOutputStream saidaFicheiro;
+
+    /**
+     * Escrita dos registos (com buffer).
+     */
+    private DataOutputStream saida;
+
+    /**
+     * Tamanho do diário, em bytes (incluindo os registos ainda no buffer).
+     */
+    private long tamanho;
+
+    /**
+     * Buffer onde cada registo é montado antes de ser escrito com o seu tamanho.
+     */
+    private final ByteArrayOutputStream bufferRegisto = new ByteArrayOutputStream(256);
+
+    /**
+     * Escrita dos campos de um registo no buffer.
+     */
+    private final DataOutputStream registo = new DataOutputStream(bufferRegisto);
+
+    /**
+     * Registo de uma fatura no diário, com os dados necessários para a registar de novo.
+     */
+    public static class Registo {
+
+        /** O número da fatura. */
+        public final int numeroFatura;
+
+        /** O NIF do cliente. */
+        public final String nif;
+
+        /** O nome do cliente (para o criar, se ainda não existir). */
+        public final String nome;
+
+        /** A localização do cliente. */
+        public final String localizacao;
+
+        /** A data da fatura. */
+        public final Date data;
+
+        /** Os códigos dos produtos da fatura. */
+        public final int[] codigos;
+
+        /** O total com IVA calculado quando a fatura foi criada. */
+        public final double totalComIVA;
+
+        Registo(int numeroFatura, String nif, String nome, String localizacao, Date data, int[] codigos, double totalComIVA) {
+            this.numeroFatura = numeroFatura;
+            this.nif = nif;
+            this.nome = nome;
+            this.localizacao = localizacao;
+            this.data = data;
+            this.codigos = codigos;
+            this.totalComIVA = totalComIVA;
+        }
+    }
+
+    /**
+     * Abre (ou cria) o diário para acrescentar registos.
+     *
+     * @param ficheiro O ficheiro do diário.
+     * @throws IOException Se não for possível abrir o ficheiro.
+     */
+    public DiarioAlteracoes(File ficheiro) throws IOException {
+        this.ficheiro = ficheiro;
+        abrir();
+    }
+
+    /**
+     * Obtém o ficheiro do diário associado a um ficheiro de dados.
+     *
+     * @param arquivo O ficheiro de dados.
+     * @return O ficheiro do diário.
+     */
+    public static File ficheiroDe(File arquivo) {
+        return new File(arquivo.getPath() + ".diario");
+    }
+
+    private void abrir() throws IOException {
+        saidaFicheiro = new FileOutputStream(ficheiro, true);
+        saida = new DataOutputStream(new BufferedOutputStream(saidaFicheiro, 64 * 1024));
+        tamanho = ficheiro.length();
+    }
+
+    /**
+     * Acrescenta uma fatura ao diário. O registo só fica garantido no disco depois de sincronizar().
+     *
+     * @param fatura      A fatura.
+     * @param totalComIVA O total com IVA da fatura.
+     * @throws IOException Se ocorrer um erro de escrita.
+     */
+    public synchronized void registar(Fatura fatura, double totalComIVA) throws IOException {
+        Cliente cliente = fatura.getCliente();
+        bufferRegisto.reset();
+        registo.writeInt(fatura.getNumeroFatura());
+        registo.writeUTF(cliente.getNif());
+        registo.writeUTF(cliente.getNome());
+        registo.writeUTF(cliente.getLocalizacaoCliente());
+        registo.writeLong(fatura.getData().getTime());
+        registo.writeInt(fatura.getProdutos().size());
+        for (Produto produto : fatura.getProdutos()) {
+            registo.writeInt(produto.getCodigo());
+        }
+        registo.writeDouble(totalComIVA);
+
+        saida.writeInt(bufferRegisto.size());
+        bufferRegisto.writeTo(saida);
+        tamanho += Integer.BYTES + bufferRegisto.size();
+    }
+
+    /**
+     * Escreve os registos pendentes e espera que cheguem ao disco.
+     *
+     * @throws IOException Se ocorrer um erro de escrita.
+     */
+    public synchronized void sincronizar() throws IOException {
+        saida.flush();
+        saidaFicheiro.getChannel().force(false);
+    }
+
+    /**
+     * Obtém o tamanho do diário, usado como marca da posição atual (ver descartarAte).
+     *
+     * @return O tamanho, em bytes.
+     */
+    public synchronized long tamanho() {
+        return tamanho;
+    }
+
+    /**
+     * Descarta os registos anteriores a uma marca (já incluídos numa gravação dos dados),
+     * mantendo os registos acrescentados depois dela. Se o diário não puder ser reescrito, fica como estava
+     * (com os registos antigos, que são ignorados ao recuperar) e continua aberto para novos registos.
+     *
+     * @param marca A marca obtida com tamanho() antes da gravação.
+     * @throws IOException Se ocorrer um erro de escrita.
+     */
+    public synchronized void descartarAte(long marca) throws IOException {
+        try {
+            saida.close();
+            File temporario = new File(ficheiro.getPath() + ".tmp");
+            try (InputStream in = new BufferedInputStream(new FileInputStream(ficheiro));
+                 FileOutputStream out = new FileOutputStream(temporario)) {
+                in.skipNBytes(marca);
+                in.transferTo(out);
+                out.getChannel().force(false);
+            }
+            try {
+                Files.move(temporario.toPath(), ficheiro.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporario.toPath(), ficheiro.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            abrir();
+        }
+    }
+
+    /**
+     * Lê os registos de um diário. Um registo incompleto no fim (escrita interrompida) é ignorado
+     * e retirado do ficheiro, para que os registos seguintes fiquem legíveis.
+     *
+     * @param ficheiro O ficheiro do diário.
+     * @param destino  A função que recebe cada registo.
+     * @return O número de registos lidos.
+     * @throws IOException Se ocorrer um erro de leitura.
+     */
+    public static int reproduzir(File ficheiro, Consumer<Registo> destino) throws IOException {
+        if (!ficheiro.isFile()) {
+            return 0;
+        }
+        int lidos = 0;
+        long valido = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(ficheiro)))) {
+            while (true) {
+                byte[] bytes;
+                try {
+                    bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                destino.accept(lerRegisto(bytes));
+                valido += Integer.BYTES + bytes.length;
+                lidos++;
+            }
+        }
+        if (valido < ficheiro.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(ficheiro, "rw")) {
+                raf.setLength(valido);
+            }
+        }
+        return lidos;
+    }
+
+    /**
+     * Lê, só para leitura, os registos completos de um diário a partir de uma posição (usado para
+     * acompanhar o diário de outro processo, ver ReplicaLeitura). A parte nova do ficheiro é mapeada
+     * em memória; um registo incompleto no fim (ainda a ser escrito) fica para a leitura seguinte.
+     *
+     * @param ficheiro O ficheiro do diário.
+     * @param posicao  A posição do primeiro registo a ler (o valor devolvido pela leitura anterior, ou 0).
+     * @param destino  A função que recebe cada registo.
+     * @return A posição a seguir ao último registo completo lido.
+     * @throws IOException Se ocorrer um erro de leitura.
+     */
+    public static long lerDesde(File ficheiro, long posicao, Consumer<Registo> destino) throws IOException {
+        try (FileChannel canal = FileChannel.open(ficheiro.toPath(), StandardOpenOption.READ)) {
+            long tamanho = canal.size();
+            while (posicao + Integer.BYTES <= tamanho) {
+                MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, posicao, Math.min(tamanho - posicao, Integer.MAX_VALUE));
+                int lidos = 0;
+                while (mapa.remaining() >= Integer.BYTES) {
+                    int tamanhoRegisto = mapa.getInt(mapa.position());
+                    if (mapa.remaining() - Integer.BYTES < tamanhoRegisto) {
+                        break;
+                    }
+                    byte[] bytes = new byte[tamanhoRegisto];
+                    mapa.position(mapa.position() + Integer.BYTES);
+                    mapa.get(bytes);
+                    destino.accept(lerRegisto(bytes));
+                    lidos++;
+                }
+                posicao += mapa.position();
+                if (lidos == 0) {
+                    break;
+                }
+            }
+        }
+        return posicao;
+    }
+
+    /**
+     * Converte os bytes de um registo.
+     */
+    private static Registo lerRegisto(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int numero = in.readInt();
+        String nif = in.readUTF();
+        String nome = in.readUTF();
+        String localizacao = in.readUTF();
+        Date data = new Date(in.readLong());
+        int[] codigos = new int[in.readInt()];
+        for (int i = 0; i < codigos.length; i++) {
+            codigos[i] = in.readInt();
+        }
+        return new Registo(numero, nif, nome, localizacao, data, codigos, in.readDouble());
+    }
+
+    /**
+     * Obtém o ficheiro do diário.
+     *
+     * @return O ficheiro.
+     */
+    public File getFicheiro() {
+        return ficheiro;
+    }
+
+    /**
+     * Escreve os registos pendentes e fecha o diário.
+     *
+     * @throws IOException Se ocorrer um erro de escrita.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        sincronizar();
+        saida.close();
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Distribuição dos valores com IVA das faturas e das linhas (produtos), com um histograma
+ * por mês e por localização do cliente. Os histogramas são atualizados quando uma fatura é criada,
+ * importada ou editada, e os de vários meses e localizações são juntos para responder a percentis
+ * (p50/p95/p99) de qualquer período.
+ */
+public class DistribuicaoValores {
+
+    /**
+     * Índice dos histogramas dos totais das faturas.
+     */
+    public static final int FATURAS = 0;
+
+    /**
+     * Índice dos histogramas dos valores das linhas.
+     */
+    public static final int LINHAS = 1;
+
+    /**
+     * Histogramas por balde (mês * NUMERO_REGIOES + localização).
+     */
+    private final HashMap<Integer, HistogramaLog[]> baldes = new HashMap<>();
+
+    /**
+     * Regista os valores de uma fatura.
+     *
+     * @param fatura A fatura criada, importada ou editada.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        acumular(fatura, true);
+    }
+
+    /**
+     * Remove os valores de uma fatura (antes de ser editada).
+     *
+     * @param fatura A fatura.
+     */
+    public synchronized void remover(Fatura fatura) {
+        acumular(fatura, false);
+    }
+
+    /**
+     * Reconstrói os histogramas a partir de todas as faturas.
+     *
+     * @param faturas As faturas do sistema.
+     */
+    public synchronized void recalcular(Collection<Fatura> faturas) {
+        baldes.clear();
+        for (Fatura fatura : faturas) {
+            acumular(fatura, true);
+        }
+    }
+
+    private void acumular(Fatura fatura, boolean registar) {
+        Cliente cliente = fatura.getCliente();
+        int regiao = cliente.localizacaoToIndex();
+        if (regiao < 0) {
+            return;
+        }
+
+        int balde = CuboIVA.mes(fatura.getData()) * TabelaTaxas.NUMERO_REGIOES + regiao;
+        HistogramaLog[] histogramas = baldes.computeIfAbsent(balde, b -> new HistogramaLog[]{new HistogramaLog(), new HistogramaLog()});
+
+        double totalFatura = 0.0;
+        for (Produto produto : fatura.getProdutos()) {
+            double valorLinha = produto.calcularValorComIVA(cliente, fatura.getData());
+            totalFatura += valorLinha;
+            if (registar) histogramas[LINHAS].registar(valorLinha);
+            else histogramas[LINHAS].remover(valorLinha);
+        }
+        if (registar) histogramas[FATURAS].registar(totalFatura);
+        else histogramas[FATURAS].remover(totalFatura);
+    }
+
+    /**
+     * Obtém o histograma dos valores (de faturas ou de linhas) num período e localização,
+     * juntando os histogramas mensais correspondentes.
+     *
+     * @param tipo      FATURAS ou LINHAS.
+     * @param regiao    A localização, ou CuboIVA.TODOS.
+     * @param mesInicio O primeiro mês (inclusive, ver CuboIVA.mes), ou CuboIVA.TODOS.
+     * @param mesFim    O último mês (inclusive), ou CuboIVA.TODOS.
+     * @return O histograma junto.
+     */
+    public synchronized HistogramaLog histograma(int tipo, int regiao, int mesInicio, int mesFim) {
+        HistogramaLog uniao = new HistogramaLog();
+        for (var balde : baldes.entrySet()) {
+            int mes = balde.getKey() / TabelaTaxas.NUMERO_REGIOES;
+            int regiaoBalde = balde.getKey() % TabelaTaxas.NUMERO_REGIOES;
+            if ((regiao == CuboIVA.TODOS || regiao == regiaoBalde)
+                    && (mesInicio == CuboIVA.TODOS || mes >= mesInicio)
+                    && (mesFim == CuboIVA.TODOS || mes <= mesFim)) {
+                uniao.juntar(balde.getValue()[tipo]);
+            }
+        }
+        return uniao;
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Edição de uma fatura com controlo de concorrência otimista. A edição parte de uma cópia da fatura
+ * (cliente, data e produtos) e da sua versão; as alterações são validadas e aplicadas apenas à cópia,
+ * sem manter a fatura bloqueada durante a sessão de edição. Ao confirmar, todas as alterações são
+ * aplicadas de uma só vez se a fatura ainda estiver na mesma versão; caso contrário, nenhuma é aplicada
+ * e é lançada ConflitoVersaoException (ver ServicoPOOFS.confirmarEdicao).
+ *
+ * Uma edição é usada por uma única sessão (não é thread-safe).
+ */
+public class EdicaoFatura {
+
+    /**
+     * O serviço onde a edição é confirmada.
+     */
+    private final ServicoPOOFS servico;
+
+    /**
+     * O número da fatura.
+     */
+    private final int numeroFatura;
+
+    /**
+     * A versão da fatura quando a edição começou.
+     */
+    private final int versaoBase;
+
+    /**
+     * O cliente da fatura, com as alterações da edição.
+     */
+    private Cliente cliente;
+
+    /**
+     * A data da fatura, com as alterações da edição.
+     */
+    private Date data;
+
+    /**
+     * Os produtos da fatura, com as alterações da edição.
+     */
+    private final ArrayList<Produto> produtos;
+
+    /**
+     * Novas quantidades dos produtos, por código (aplicadas aos produtos do catálogo ao confirmar).
+     */
+    private final Map<Integer, Integer> quantidades = new LinkedHashMap<>();
+
+    /**
+     * Indica se a edição tem alterações por confirmar.
+     */
+    private boolean alterada;
+
+    /**
+     * Construtor da edição, a partir de uma cópia consistente da fatura (ver ServicoPOOFS.iniciarEdicao).
+     *
+     * @param servico      O serviço.
+     * @param numeroFatura O número da fatura.
+     * @param versaoBase   A versão da fatura copiada.
+     * @param cliente      O cliente da fatura.
+     * @param data         A data da fatura.
+     * @param produtos     Uma cópia da lista de produtos da fatura.
+     */
+    EdicaoFatura(ServicoPOOFS servico, int numeroFatura, int versaoBase, Cliente cliente, Date data, ArrayList<Produto> produtos) {
+        this.servico = servico;
+        this.numeroFatura = numeroFatura;
+        this.versaoBase = versaoBase;
+        this.cliente = cliente;
+        this.data = data;
+        this.produtos = produtos;
+    }
+
+    /**
+     * Altera o cliente da fatura.
+     *
+     * @param nif O NIF do novo cliente.
+     * @throws IllegalArgumentException Se o cliente não existir.
+     */
+    public void alterarCliente(String nif) {
+        cliente = servico.clienteExistente(nif);
+        alterada = true;
+    }
+
+    /**
+     * Altera a data da fatura.
+     *
+     * @param novaData A nova data.
+     * @throws IllegalArgumentException Se a data estiver fora do intervalo permitido.
+     */
+    public void alterarData(Date novaData) {
+        ServicoPOOFS.validarData(novaData);
+        data = novaData;
+        alterada = true;
+    }
+
+    /**
+     * Acrescenta um produto do catálogo à fatura.
+     *
+     * @param codigo O código do produto.
+     * @throws IllegalArgumentException Se o produto não existir ou já estiver na fatura.
+     */
+    public void adicionarProduto(int codigo) {
+        Produto produto = servico.produtoExistente(codigo);
+        if (produtos.contains(produto)) {
+            throw new IllegalArgumentException("Este produto já está na fatura.");
+        }
+        produtos.add(produto);
+        alterada = true;
+    }
+
+    /**
+     * Remove um produto da fatura.
+     *
+     * @param codigo O código do produto.
+     * @throws IllegalArgumentException Se a fatura não tiver o produto.
+     */
+    public void removerProduto(int codigo) {
+        produtos.remove(produtoNaEdicao(codigo));
+        quantidades.remove(codigo);
+        alterada = true;
+    }
+
+    /**
+     * Altera a quantidade de um produto da fatura. Como o produto é partilhado com outras faturas,
+     * os totais dessas faturas também são atualizados ao confirmar.
+     *
+     * @param codigo     O código do produto.
+     * @param quantidade A nova quantidade (maior que zero).
+     * @throws IllegalArgumentException Se a fatura não tiver o produto ou a quantidade for inválida.
+     */
+    public void alterarQuantidade(int codigo, int quantidade) {
+        if (quantidade <= 0) {
+            throw new IllegalArgumentException("A quantidade deve ser maior que zero.");
+        }
+        produtoNaEdicao(codigo);
+        quantidades.put(codigo, quantidade);
+        alterada = true;
+    }
+
+    /**
+     * Confirma a edição, aplicando todas as alterações à fatura.
+     *
+     * @throws ConflitoVersaoException  Se a fatura foi alterada por outra sessão desde o início da edição.
+     * @throws IllegalStateException    Se outras faturas com os produtos alterados estiverem a ser editadas
+     *                                  ou algum produto não tiver stock suficiente.
+     * @throws IllegalArgumentException Se a fatura deixou de existir.
+     */
+    public void confirmar() {
+        if (alterada) {
+            servico.confirmarEdicao(this);
+            alterada = false;
+        }
+    }
+
+    /**
+     * Obtém um produto da cópia da fatura pelo código.
+     */
+    private Produto produtoNaEdicao(int codigo) {
+        for (Produto produto : produtos) {
+            if (produto.getCodigo() == codigo) {
+                return produto;
+            }
+        }
+        throw new IllegalArgumentException("Produto com o código " + codigo + " não encontrado na fatura.");
+    }
+
+    public int getNumeroFatura() {
+        return numeroFatura;
+    }
+
+    public int getVersaoBase() {
+        return versaoBase;
+    }
+
+    public Cliente getCliente() {
+        return cliente;
+    }
+
+    public Date getData() {
+        return data;
+    }
+
+    /**
+     * Obtém os produtos da fatura, com as alterações da edição.
+     *
+     * @return Os produtos (só de leitura).
+     */
+    public List<Produto> getProdutos() {
+        return Collections.unmodifiableList(produtos);
+    }
+
+    /**
+     * Obtém as novas quantidades dos produtos, por código.
+     *
+     * @return As quantidades (só de leitura).
+     */
+    public Map<Integer, Integer> getQuantidades() {
+        return Collections.unmodifiableMap(quantidades);
+    }
+
+    /**
+     * Indica se a edição tem alterações por confirmar.
+     *
+     * @return true se houver alterações.
+     */
+    public boolean temAlteracoes() {
+        return alterada;
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.Collection;
+import java.util.stream.IntStream;
+
+/**
+ * Agregados das faturas do sistema (número de faturas, número de produtos e totais),
+ * mantidos de forma incremental sempre que uma fatura é criada, editada, importada ou carregada.
+ * Assim, mostrar as estatísticas não depende do número de faturas registadas.
+ * Os totais usam somas compensadas (ver SomaCompensada). Quando é preciso recalcular tudo,
+ * as faturas são divididas em blocos de tamanho fixo somados em paralelo e os resultados
+ * parciais são juntos sempre pela mesma ordem, pelo que o resultado não depende do número de threads.
+ */
+public class EstatisticasFaturas {
+
+    /**
+     * Diferença máxima admitida entre os totais incrementais e os recalculados.
+     */
+    private static final double TOLERANCIA = 0.005;
+
+    /**
+     * Número de faturas somadas por cada tarefa no recálculo paralelo.
+     */
+    static final int TAMANHO_BLOCO = 1024;
+
+    /**
+     * Número de faturas registadas.
+     */
+    private int numeroFaturas;
+
+    /**
+     * Número total de produtos (linhas) nas faturas.
+     */
+    private long numeroProdutos;
+
+    /**
+     * Valor total das faturas sem IVA.
+     */
+    private SomaCompensada totalSemIVA = new SomaCompensada();
+
+    /**
+     * Valor total das faturas com IVA.
+     */
+    private SomaCompensada totalComIVA = new SomaCompensada();
+
+    /**
+     * Assinatura das tabelas de taxas usadas no cálculo dos totais.
+     */
+    private long assinaturaTaxas = RegistoTaxas.assinatura();
+
+    /**
+     * Acrescenta uma fatura aos agregados.
+     *
+     * @param fatura A fatura a acrescentar.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        acumular(fatura, 1);
+    }
+
+    /**
+     * Retira uma fatura dos agregados (antes de ser editada ou removida).
+     *
+     * @param fatura A fatura a retirar.
+     */
+    public synchronized void remover(Fatura fatura) {
+        acumular(fatura, -1);
+    }
+
+    /**
+     * Soma (sinal 1) ou subtrai (sinal -1) os valores de uma fatura aos agregados.
+     *
+     * @param fatura A fatura.
+     * @param sinal  1 para somar, -1 para subtrair.
+     */
+    private void acumular(Fatura fatura, int sinal) {
+        numeroFaturas += sinal;
+        numeroProdutos += sinal * fatura.getProdutos().size();
+        totalSemIVA.adicionar(sinal * fatura.calcularTotalSemIVA());
+        totalComIVA.adicionar(sinal * fatura.calcularTotalComIVA(fatura));
+    }
+
+    /**
+     * Junta os agregados parciais de outro bloco de faturas a estes agregados.
+     *
+     * @param outras Os agregados parciais.
+     */
+    private void juntar(EstatisticasFaturas outras) {
+        numeroFaturas += outras.numeroFaturas;
+        numeroProdutos += outras.numeroProdutos;
+        totalSemIVA.adicionar(outras.totalSemIVA);
+        totalComIVA.adicionar(outras.totalComIVA);
+    }
+
+    /**
+     * Recalcula todos os agregados a partir das faturas indicadas.
+     *
+     * @param faturas As faturas do sistema.
+     */
+    public synchronized void recalcular(Collection<Fatura> faturas) {
+        EstatisticasFaturas novas = calcular(faturas);
+        numeroFaturas = novas.numeroFaturas;
+        numeroProdutos = novas.numeroProdutos;
+        totalSemIVA = novas.totalSemIVA;
+        totalComIVA = novas.totalComIVA;
+        assinaturaTaxas = novas.assinaturaTaxas;
+    }
+
+    /**
+     * Calcula os agregados de raiz, somando em paralelo blocos de TAMANHO_BLOCO faturas.
+     * Os blocos são sempre os mesmos e são juntos pela ordem original, qualquer que seja
+     * o número de threads usado.
+     *
+     * @param faturas As faturas.
+     * @return Os agregados calculados.
+     */
+    static EstatisticasFaturas calcular(Collection<Fatura> faturas) {
+        Fatura[] todas = faturas.toArray(new Fatura[0]);
+        int numeroBlocos = (todas.length + TAMANHO_BLOCO - 1) / TAMANHO_BLOCO;
+
+        EstatisticasFaturas[] parciais = IntStream.range(0, numeroBlocos)
+                .parallel()
+                .mapToObj(bloco -> {
+                    EstatisticasFaturas parcial = new EstatisticasFaturas();
+                    int fim = Math.min(todas.length, (bloco + 1) * TAMANHO_BLOCO);
+                    for (int i = bloco * TAMANHO_BLOCO; i < fim; i++) {
+                        parcial.acumular(todas[i], 1);
+                    }
+                    return parcial;
+                })
+                .toArray(EstatisticasFaturas[]::new);
+
+        EstatisticasFaturas estatisticas = new EstatisticasFaturas();
+        for (EstatisticasFaturas parcial : parciais) {
+            estatisticas.juntar(parcial);
+        }
+        return estatisticas;
+    }
+
+    /**
+     * Obtém uma cópia dos agregados, que não muda com as faturas criadas ou editadas depois.
+     *
+     * @return A cópia.
+     */
+    public synchronized EstatisticasFaturas copia() {
+        EstatisticasFaturas copia = new EstatisticasFaturas();
+        copia.juntar(this);
+        copia.assinaturaTaxas = assinaturaTaxas;
+        return copia;
+    }
+
+    /**
+     * Indica se as taxas de IVA mudaram desde o último cálculo, o que obriga a recalcular os totais com IVA.
+     *
+     * @return true se os totais com IVA estiverem desatualizados.
+     */
+    public synchronized boolean taxasAlteradas() {
+        return assinaturaTaxas != RegistoTaxas.assinatura();
+    }
+
+    /**
+     * Verifica se os agregados incrementais coincidem com um recálculo completo das faturas.
+     *
+     * @param faturas As faturas do sistema.
+     * @return true se os agregados estiverem consistentes.
+     */
+    public synchronized boolean verificar(Collection<Fatura> faturas) {
+        EstatisticasFaturas esperadas = calcular(faturas);
+        return numeroFaturas == esperadas.numeroFaturas
+                && numeroProdutos == esperadas.numeroProdutos
+                && Math.abs(getTotalSemIVA() - esperadas.getTotalSemIVA()) <= TOLERANCIA
+                && Math.abs(getTotalComIVA() - esperadas.getTotalComIVA()) <= TOLERANCIA;
+    }
+
+    public synchronized int getNumeroFaturas() {
+        return numeroFaturas;
+    }
+
+    public synchronized long getNumeroProdutos() {
+        return numeroProdutos;
+    }
+
+    public synchronized double getTotalSemIVA() {
+        return totalSemIVA.getValor();
+    }
+
+    public synchronized double getTotalComIVA() {
+        return totalComIVA.getValor();
+    }
+
+    public synchronized double getTotalIVA() {
+        return totalComIVA.getValor() - totalSemIVA.getValor();
+    }
+
+    /**
+     * Retorna uma representação textual dos agregados.
+     *
+     * @return Uma string com os agregados.
+     */
+    @Override
+    public synchronized String toString() {
+        return "Estatisticas: {" +
+                "numeroFaturas=" + numeroFaturas +
+                ", numeroProdutos=" + numeroProdutos +
+                ", totalSemIVA=" + totalSemIVA +
+                ", totalComIVA=" + totalComIVA +
+                '}';
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Evento publicado quando uma fatura é criada, editada ou importada (ver SistemaPOOFS.subscreverEventos).
+ * O evento guarda uma cópia dos dados da fatura no momento da alteração, pelo que pode ser tratado
+ * mais tarde sem consultar a fatura (que entretanto pode ter mudado).
+ */
+public class EventoFatura {
+
+    /**
+     * O tipo de alteração.
+     */
+    public enum Tipo {
+        CRIADA, EDITADA, IMPORTADA
+    }
+
+    /**
+     * O tipo de alteração.
+     */
+    private final Tipo tipo;
+
+    /**
+     * O número de sequência do evento (consecutivo entre os eventos do mesmo sistema, pela ordem
+     * em que são publicados; atribuído ao publicar, ver SistemaPOOFS.publicarEvento).
+     */
+    private long sequencia;
+
+    /**
+     * O número da fatura.
+     */
+    private final int numeroFatura;
+
+    /**
+     * A versão da fatura depois da alteração.
+     */
+    private final int versao;
+
+    /**
+     * O NIF do cliente.
+     */
+    private final String nif;
+
+    /**
+     * A data da fatura.
+     */
+    private final Date data;
+
+    /**
+     * Os códigos dos produtos da fatura.
+     */
+    private final List<Integer> codigos;
+
+    /**
+     * O total sem IVA da fatura.
+     */
+    private final double totalSemIVA;
+
+    /**
+     * O total com IVA da fatura.
+     */
+    private final double totalComIVA;
+
+    /**
+     * Instante (System.currentTimeMillis) da alteração.
+     */
+    private final long instante;
+
+    /**
+     * Construtor do evento, a partir do estado atual de uma fatura (deve ser chamado com a fatura bloqueada,
+     * ou antes de ser partilhada, para que a cópia seja coerente).
+     *
+     * @param tipo   O tipo de alteração.
+     * @param fatura A fatura.
+     */
+    EventoFatura(Tipo tipo, Fatura fatura) {
+        this.tipo = tipo;
+        this.numeroFatura = fatura.getNumeroFatura();
+        this.versao = fatura.getVersao();
+        this.nif = fatura.getCliente().getNif();
+        this.data = new Date(fatura.getData().getTime());
+        Integer[] codigosFatura = new Integer[fatura.getProdutos().size()];
+        for (int i = 0; i < codigosFatura.length; i++) {
+            codigosFatura[i] = fatura.getProdutos().get(i).getCodigo();
+        }
+        this.codigos = List.of(codigosFatura);
+        this.totalSemIVA = fatura.calcularTotalSemIVA();
+        this.totalComIVA = fatura.calcularTotalComIVA(fatura);
+        this.instante = System.currentTimeMillis();
+    }
+
+    /**
+     * Atribui o número de sequência ao evento, antes de ser publicado.
+     *
+     * @param sequencia O número de sequência.
+     */
+    void numerar(long sequencia) {
+        this.sequencia = sequencia;
+    }
+
+    public Tipo getTipo() {
+        return tipo;
+    }
+
+    public long getSequencia() {
+        return sequencia;
+    }
+
+    public int getNumeroFatura() {
+        return numeroFatura;
+    }
+
+    public int getVersao() {
+        return versao;
+    }
+
+    public String getNif() {
+        return nif;
+    }
+
+    public Date getData() {
+        return new Date(data.getTime());
+    }
+
+    /**
+     * Obtém os códigos dos produtos da fatura.
+     *
+     * @return Os códigos (só de leitura).
+     */
+    public List<Integer> getCodigos() {
+        return codigos;
+    }
+
+    public double getTotalSemIVA() {
+        return totalSemIVA;
+    }
+
+    public double getTotalComIVA() {
+        return totalComIVA;
+    }
+
+    public long getInstante() {
+        return instante;
+    }
+
+    /**
+     * Retorna uma representação textual do evento.
+     *
+     * @return Uma string com os dados do evento.
+     */
+    @Override
+    public String toString() {
+        return "EventoFatura: {" +
+                "sequencia=" + sequencia +
+                ", tipo=" + tipo +
+                ", numeroFatura=" + numeroFatura +
+                ", versao=" + versao +
+                ", nif=" + nif +
+                ", codigos=" + codigos +
+                ", totalComIVA=" + String.format("%.2f", totalComIVA) +
+                '}';
+    }
+}
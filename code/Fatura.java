@@ -1,6 +1,8 @@
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A classe Fatura representa uma fatura emitida para um cliente, contendo informações
@@ -9,10 +11,17 @@ import java.util.Date;
  */
 public class Fatura implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe, para que os ficheiros de dados já gravados continuem a ser lidos
+     * (os campos acrescentados depois ficam com o valor por omissão).
+     */
+    private static final long serialVersionUID = 1027622143778415049L;
+
     /**
      * Contador estático para gerar automaticamente os números das faturas.
+     * É atómico para que várias sessões possam criar faturas em paralelo sem repetir números.
      */
-    protected static int contador_numeroFatura = 1;
+    protected static final AtomicInteger contador_numeroFatura = new AtomicInteger(1);
 
     /**
      * Número único atribuído à fatura.
@@ -30,9 +39,24 @@ public class Fatura implements Serializable {
     protected Date data;    //modelo : DD/MM/YYYY
 
     /**
-     * Lista de produtos incluídos na fatura.
+     * Lista de produtos incluídos na fatura. Depois de a fatura ser registada, a lista não é alterada:
+     * cada edição substitui-a por uma nova (ver setProdutos), para que possa ser percorrida sem o lock da fatura.
+     */
+    protected volatile ArrayList<Produto> produtos;
+
+    /**
+     * Versão da fatura, incrementada sempre que a fatura é alterada depois de registada.
+     * Permite detetar edições concorrentes (ver EdicaoFatura).
      */
-    protected ArrayList<Produto> produtos;
+    protected int versao;
+
+    /**
+     * Códigos dos produtos cujas linhas têm a quantidade reservada no stock (ver StockProdutos).
+     * As linhas de faturas importadas, ou acrescentadas quando o stock do produto não era controlado,
+     * não reservaram nada e não libertam nada quando são removidas. É null nas faturas gravadas antes
+     * de existir este campo (nenhuma linha reservada).
+     */
+    protected HashSet<Integer> codigosReservados;
 
     /**
      * Construtor vazio para a classe Fatura.
@@ -40,14 +64,30 @@ public class Fatura implements Serializable {
     public Fatura(){}
 
     /**
-     * Construtor que inicializa os atributos da fatura.
+     * Construtor que inicializa os atributos da fatura, com um número obtido do contador estático.
+     * O sistema usa o construtor com o número, obtido da sua sequência de numeração (ver SequenciaNumeracao).
      *
      * @param cliente O cliente associado à fatura.
      * @param data A data de emissão da fatura.
      * @param produtos Lista de produtos incluídos na fatura.
      */
     public Fatura(Cliente cliente, Date data, ArrayList<Produto> produtos){
-        this.numeroFatura = contador_numeroFatura++;
+        this.numeroFatura = contador_numeroFatura.getAndIncrement();
+        this.cliente = cliente;
+        this.data = data;
+        this.produtos = produtos;
+    }
+
+    /**
+     * Construtor que inicializa os atributos da fatura com um número já atribuído.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param cliente O cliente associado à fatura.
+     * @param data A data de emissão da fatura.
+     * @param produtos Lista de produtos incluídos na fatura.
+     */
+    public Fatura(int numeroFatura, Cliente cliente, Date data, ArrayList<Produto> produtos){
+        this.numeroFatura = numeroFatura;
         this.cliente = cliente;
         this.data = data;
         this.produtos = produtos;
@@ -63,7 +103,8 @@ public class Fatura implements Serializable {
     }
 
     /**
-     * Calcula o valor total da fatura com IVA (Imposto sobre o Valor Acrescentado).
+     * Calcula o valor total da fatura com IVA (Imposto sobre o Valor Acrescentado),
+     * usando as taxas em vigor na data da fatura.
      *
      * @param fatura A fatura para a qual será calculado o total com IVA.
      * @return O valor total da fatura com IVA.
@@ -71,7 +112,7 @@ public class Fatura implements Serializable {
     protected double calcularTotalComIVA(Fatura fatura) {
         double totalComIVA = 0.0;
         for (Produto produto : fatura.getProdutos()) {
-            totalComIVA += produto.calcularValorComIVA(cliente);
+            totalComIVA += produto.calcularValorComIVA(cliente, data);
         }
         return totalComIVA;
     }
@@ -95,7 +136,50 @@ public class Fatura implements Serializable {
      * @param novoValor O novo valor inicial para o contador.
      */
     public static void setContadorNumeroFatura(int novoValor) {
-        contador_numeroFatura = novoValor;
+        contador_numeroFatura.set(novoValor);
+    }
+
+    /**
+     * Obtém a versão da fatura.
+     *
+     * @return A versão (0 para uma fatura nunca alterada).
+     */
+    public int getVersao() {
+        return versao;
+    }
+
+    /**
+     * Passa a fatura para a versão seguinte, depois de uma alteração.
+     */
+    void novaVersao() {
+        versao++;
+    }
+
+    /**
+     * Indica se a linha de um produto tem a quantidade reservada no stock.
+     *
+     * @param codigo O código do produto.
+     * @return true se a linha reservou stock.
+     */
+    boolean linhaReservada(int codigo) {
+        return codigosReservados != null && codigosReservados.contains(codigo);
+    }
+
+    /**
+     * Regista se a linha de um produto tem a quantidade reservada no stock.
+     *
+     * @param codigo    O código do produto.
+     * @param reservada true se a linha reservou stock, false se não reservou ou o libertou.
+     */
+    void marcarReservada(int codigo, boolean reservada) {
+        if (reservada) {
+            if (codigosReservados == null) {
+                codigosReservados = new HashSet<>();
+            }
+            codigosReservados.add(codigo);
+        } else if (codigosReservados != null) {
+            codigosReservados.remove(codigo);
+        }
     }
 
     /**
@@ -0,0 +1,33 @@
+/**
+ * Exceção com que o pipeline de faturas (ver PipelineFaturas) termina uma fatura que já foi registada
+ * no sistema, mas que não ficou registada no diário (por exemplo, por falta de espaço em disco).
+ * A fatura existe e não deve ser criada de novo: fica guardada apenas na próxima gravação dos dados.
+ */
+public class FaturaSemDiarioException extends IllegalStateException {
+
+    /**
+     * Versão da serialização.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A fatura criada.
+     */
+    private final Fatura fatura;
+
+    /**
+     * Construtor da exceção.
+     *
+     * @param fatura A fatura criada.
+     * @param causa  O erro que impediu o registo no diário.
+     */
+    public FaturaSemDiarioException(Fatura fatura, Throwable causa) {
+        super("A fatura " + fatura.getNumeroFatura() + " foi criada, mas não ficou registada no diário ("
+                + causa.getMessage() + "). Só ficará guardada na próxima gravação dos dados.", causa);
+        this.fatura = fatura;
+    }
+
+    public Fatura getFatura() {
+        return fatura;
+    }
+}
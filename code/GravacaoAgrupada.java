@@ -0,0 +1,370 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gravação agrupada (write-behind) dos dados do sistema: as operações apenas marcam os clientes e as
+ * faturas alterados e uma thread em segundo plano grava os dados de uma só vez quando passou o intervalo
+ * indicado desde a primeira alteração pendente ou quando há alterações suficientes para um lote.
+ * Assim, nenhuma operação espera pelo disco (no máximo, pela cópia dos dados para memória, ver
+ * SistemaPOOFS.gravarDados) e muitas alterações seguidas resultam numa única escrita.
+ *
+ * Os clientes e as faturas alterados são guardados em conjuntos, pelo que várias alterações à mesma
+ * fatura contam uma só vez para o lote. Como o ficheiro de dados é um único ficheiro de objetos,
+ * cada gravação escreve todos os dados (ver SistemaPOOFS.gravarDados).
+ *
+ * As alterações devem ser marcadas enquanto a operação tem o lock de leitura dos dados: assim, uma
+ * alteração marcada antes de a gravação começar fica sempre incluída nela. A janela de recuperação
+ * (a idade da alteração pendente mais antiga, ou seja, o que se perderia se o processo terminasse)
+ * fica limitada ao intervalo mais a duração de uma gravação e pode ser consultada nas métricas.
+ */
+public class GravacaoAgrupada implements AutoCloseable {
+
+    /**
+     * O sistema cujos dados são gravados.
+     */
+    private final SistemaPOOFS sistema;
+
+    /**
+     * O ficheiro de dados.
+     */
+    private final File arquivo;
+
+    /**
+     * Intervalo máximo entre a primeira alteração pendente e a gravação, em milissegundos.
+     */
+    private final long intervaloMs;
+
+    /**
+     * Número de alterações pendentes que obriga a gravar de imediato.
+     */
+    private final int tamanhoLote;
+
+    /**
+     * As alterações ainda não gravadas.
+     */
+    private final AtomicReference<Pendentes> pendentes = new AtomicReference<>(new Pendentes());
+
+    /**
+     * Número de gravações feitas.
+     */
+    private final AtomicLong numeroGravacoes = new AtomicLong();
+
+    /**
+     * Número de gravações que falharam.
+     */
+    private final AtomicLong numeroFalhas = new AtomicLong();
+
+    /**
+     * Duração da última gravação, em nanossegundos.
+     */
+    private volatile long duracaoUltimaGravacao;
+
+    /**
+     * Maior janela de recuperação observada no início de uma gravação, em nanossegundos.
+     */
+    private volatile long janelaMaxima;
+
+    /**
+     * Objeto usado para acordar a thread de gravação (separado do lock da gravação, para que
+     * marcar uma alteração nunca espere por uma escrita em curso).
+     */
+    private final Object sinal = new Object();
+
+    /**
+     * Thread que faz as gravações.
+     */
+    private final Thread thread;
+
+    /**
+     * Indica se a gravação foi terminada.
+     */
+    private volatile boolean terminada;
+
+    /**
+     * Alterações ainda não gravadas. É substituída por uma nova no início de cada gravação.
+     */
+    private static class Pendentes {
+
+        /** NIFs dos clientes alterados. */
+        final Set<String> clientes = ConcurrentHashMap.newKeySet();
+
+        /** Números das faturas alteradas. */
+        final Set<Integer> faturas = ConcurrentHashMap.newKeySet();
+
+        /** Número de alterações distintas (clientes, faturas e outras alterações). */
+        final AtomicInteger numero = new AtomicInteger();
+
+        /** Instante (System.nanoTime) da primeira alteração, ou 0 se não houver alterações. */
+        final AtomicLong primeira = new AtomicLong();
+
+        /**
+         * Conta uma alteração nova e devolve o número de alterações pendentes.
+         */
+        int contar() {
+            primeira.compareAndSet(0, Math.max(1, System.nanoTime()));
+            return numero.incrementAndGet();
+        }
+
+        /**
+         * Junta as alterações de outro conjunto (de uma gravação que falhou) a estas.
+         */
+        void juntar(Pendentes outras) {
+            for (String nif : outras.clientes) {
+                if (clientes.add(nif)) contar();
+            }
+            for (int numeroFatura : outras.faturas) {
+                if (faturas.add(numeroFatura)) contar();
+            }
+            int restantes = outras.numero.get() - outras.clientes.size() - outras.faturas.size();
+            for (int i = 0; i < restantes; i++) {
+                contar();
+            }
+            long inicioOutras = outras.primeira.get();
+            primeira.accumulateAndGet(inicioOutras, (atual, outra) -> atual == 0 ? outra : outra == 0 ? atual : Math.min(atual, outra));
+        }
+    }
+
+    /**
+     * Construtor que inicia a thread de gravação.
+     *
+     * @param sistema     O sistema.
+     * @param arquivo     O ficheiro de dados.
+     * @param intervaloMs O intervalo máximo entre a primeira alteração pendente e a gravação, em milissegundos.
+     * @param tamanhoLote O número de alterações que obriga a gravar de imediato.
+     */
+    public GravacaoAgrupada(SistemaPOOFS sistema, File arquivo, long intervaloMs, int tamanhoLote) {
+        if (intervaloMs <= 0 || tamanhoLote <= 0) {
+            throw new IllegalArgumentException("O intervalo e o tamanho do lote devem ser maiores que zero.");
+        }
+        this.sistema = sistema;
+        this.arquivo = arquivo;
+        this.intervaloMs = intervaloMs;
+        this.tamanhoLote = tamanhoLote;
+        this.thread = new Thread(this::executar, "gravacao-poofs");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Marca um cliente como alterado.
+     *
+     * @param nif O NIF do cliente.
+     */
+    public void clienteAlterado(String nif) {
+        Pendentes atuais = pendentes.get();
+        if (atuais.clientes.add(nif)) {
+            contar(atuais);
+        }
+    }
+
+    /**
+     * Marca uma fatura como alterada (ou criada).
+     *
+     * @param numeroFatura O número da fatura.
+     */
+    public void faturaAlterada(int numeroFatura) {
+        Pendentes atuais = pendentes.get();
+        if (atuais.faturas.add(numeroFatura)) {
+            contar(atuais);
+        }
+    }
+
+    /**
+     * Regista uma alteração aos dados que não corresponde a um cliente ou fatura (por exemplo, substituir
+     * uma lista inteira), a incluir na próxima gravação.
+     */
+    public void registarAlteracao() {
+        contar(pendentes.get());
+    }
+
+    private void contar(Pendentes atuais) {
+        if (atuais.contar() == tamanhoLote) {
+            synchronized (sinal) {
+                sinal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ciclo da thread de gravação: espera até haver um lote completo ou até a primeira alteração
+     * pendente ter a idade do intervalo, e grava.
+     */
+    private void executar() {
+        while (!terminada) {
+            synchronized (sinal) {
+                try {
+                    long espera = tempoAteGravar();
+                    if (espera > 0 && !terminada) {
+                        sinal.wait(espera);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (tempoAteGravar() == 0) {
+                gravarPendentes();
+            }
+        }
+    }
+
+    /**
+     * Obtém o tempo até à próxima gravação, em milissegundos (0 se for para gravar já).
+     */
+    private long tempoAteGravar() {
+        Pendentes atuais = pendentes.get();
+        long primeira = atuais.primeira.get();
+        if (primeira == 0) {
+            return intervaloMs;
+        }
+        if (atuais.numero.get() >= tamanhoLote) {
+            return 0;
+        }
+        long decorrido = (System.nanoTime() - primeira) / 1_000_000;
+        return Math.max(0, intervaloMs - decorrido);
+    }
+
+    /**
+     * Grava os dados se houver alterações ainda não gravadas. Se a gravação falhar, as alterações
+     * continuam pendentes (e a janela de recuperação continua a crescer).
+     */
+    private synchronized void gravarPendentes() {
+        Pendentes lote = pendentes.getAndSet(new Pendentes());
+        long primeira = lote.primeira.get();
+        if (primeira == 0) {
+            return;
+        }
+        long inicio = System.nanoTime();
+        janelaMaxima = Math.max(janelaMaxima, inicio - primeira);
+        try {
+            sistema.gravarDados(arquivo);
+            numeroGravacoes.incrementAndGet();
+        } catch (IOException e) {
+            numeroFalhas.incrementAndGet();
+            pendentes.get().juntar(lote);
+            System.out.println("Erro ao salvar dados: " + e.getMessage());
+        }
+        duracaoUltimaGravacao = System.nanoTime() - inicio;
+    }
+
+    /**
+     * Obtém o número de gravações feitas.
+     *
+     * @return O número de gravações.
+     */
+    public long getNumeroGravacoes() {
+        return numeroGravacoes.get();
+    }
+
+    /**
+     * Obtém o número de gravações que falharam.
+     *
+     * @return O número de falhas.
+     */
+    public long getNumeroFalhas() {
+        return numeroFalhas.get();
+    }
+
+    /**
+     * Obtém o número de alterações ainda não gravadas.
+     *
+     * @return O número de alterações pendentes.
+     */
+    public long getPendentes() {
+        return pendentes.get().numero.get();
+    }
+
+    /**
+     * Obtém o número de clientes alterados ainda não gravados.
+     *
+     * @return O número de clientes pendentes.
+     */
+    public int getClientesPendentes() {
+        return pendentes.get().clientes.size();
+    }
+
+    /**
+     * Obtém o número de faturas alteradas ainda não gravadas.
+     *
+     * @return O número de faturas pendentes.
+     */
+    public int getFaturasPendentes() {
+        return pendentes.get().faturas.size();
+    }
+
+    /**
+     * Obtém a janela de recuperação atual: a idade da alteração pendente mais antiga.
+     *
+     * @return A idade, em milissegundos (0 se não houver alterações pendentes).
+     */
+    public long getJanelaRecuperacaoMs() {
+        long primeira = pendentes.get().primeira.get();
+        return primeira == 0 ? 0 : (System.nanoTime() - primeira) / 1_000_000;
+    }
+
+    /**
+     * Obtém a maior janela de recuperação observada no início de uma gravação.
+     *
+     * @return A janela máxima, em milissegundos.
+     */
+    public long getJanelaMaximaMs() {
+        return janelaMaxima / 1_000_000;
+    }
+
+    /**
+     * Obtém a duração da última gravação.
+     *
+     * @return A duração, em milissegundos.
+     */
+    public double getDuracaoUltimaGravacaoMs() {
+        return duracaoUltimaGravacao / 1e6;
+    }
+
+    /**
+     * Retorna uma representação textual das métricas da gravação.
+     *
+     * @return Uma string com as métricas.
+     */
+    @Override
+    public String toString() {
+        return "Gravacao: {" +
+                "gravacoes=" + getNumeroGravacoes() +
+                ", falhas=" + getNumeroFalhas() +
+                ", pendentes=" + getPendentes() +
+                ", clientesPendentes=" + getClientesPendentes() +
+                ", faturasPendentes=" + getFaturasPendentes() +
+                ", janelaRecuperacaoMs=" + getJanelaRecuperacaoMs() +
+                ", janelaMaximaMs=" + getJanelaMaximaMs() +
+                ", ultimaGravacaoMs=" + String.format("%.1f", getDuracaoUltimaGravacaoMs()) +
+                '}';
+    }
+
+    /**
+     * Termina a thread de gravação sem gravar as alterações pendentes
+     * (por exemplo, quando os dados vão ser gravados de seguida de outra forma).
+     */
+    public void parar() {
+        terminada = true;
+        synchronized (sinal) {
+            sinal.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Termina a thread de gravação, gravando as alterações pendentes.
+     */
+    @Override
+    public void close() {
+        parar();
+        gravarPendentes();
+    }
+}
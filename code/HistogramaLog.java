@@ -0,0 +1,134 @@
+/**
+ * Histograma com baldes em escala logarítmica (ao estilo HDR), para valores monetários não negativos.
+ * Os valores são registados em cêntimos: abaixo de 32 cêntimos cada valor tem o seu balde; acima disso,
+ * cada potência de 2 é dividida em 32 baldes, pelo que qualquer percentil tem erro relativo inferior a 1,6%.
+ * O número de baldes é fixo, pelo que a memória é limitada e os percentis são calculados em tempo constante.
+ * Os histogramas podem ser juntos (por exemplo, de vários meses ou localizações).
+ */
+public class HistogramaLog {
+
+    /**
+     * Número de bits de precisão dentro de cada potência de 2.
+     */
+    private static final int BITS_PRECISAO = 5;
+
+    /**
+     * Número de baldes por potência de 2.
+     */
+    private static final int BALDES_POR_POTENCIA = 1 << BITS_PRECISAO;
+
+    /**
+     * Número total de baldes (suficiente para qualquer long não negativo).
+     */
+    private static final int NUMERO_BALDES = BALDES_POR_POTENCIA * (64 - BITS_PRECISAO);
+
+    /**
+     * Contagens por balde.
+     */
+    private final long[] contagens = new long[NUMERO_BALDES];
+
+    /**
+     * Número total de valores registados.
+     */
+    private long total;
+
+    /**
+     * Obtém o balde de um valor em cêntimos.
+     */
+    private static int balde(long centimos) {
+        if (centimos < BALDES_POR_POTENCIA) {
+            return (int) centimos;
+        }
+        int deslocamento = 63 - Long.numberOfLeadingZeros(centimos) - BITS_PRECISAO;
+        int mantissa = (int) (centimos >>> deslocamento);     // entre 32 e 63
+        return BALDES_POR_POTENCIA * (deslocamento + 1) + (mantissa - BALDES_POR_POTENCIA);
+    }
+
+    /**
+     * Obtém o valor (em cêntimos) que representa um balde: o ponto médio do intervalo do balde.
+     */
+    private static double valorDoBalde(int balde) {
+        if (balde < BALDES_POR_POTENCIA) {
+            return balde;
+        }
+        int deslocamento = balde / BALDES_POR_POTENCIA - 1;
+        long mantissa = BALDES_POR_POTENCIA + balde % BALDES_POR_POTENCIA;
+        long inicio = mantissa << deslocamento;
+        return inicio + ((1L << deslocamento) - 1) / 2.0;
+    }
+
+    /**
+     * Converte um valor em euros para cêntimos (valores negativos contam como 0).
+     */
+    private static long centimos(double valor) {
+        return Math.max(0L, Math.round(valor * 100));
+    }
+
+    /**
+     * Regista um valor.
+     *
+     * @param valor O valor, em euros.
+     */
+    public void registar(double valor) {
+        contagens[balde(centimos(valor))]++;
+        total++;
+    }
+
+    /**
+     * Remove um valor registado anteriormente.
+     *
+     * @param valor O valor, em euros.
+     */
+    public void remover(double valor) {
+        contagens[balde(centimos(valor))]--;
+        total--;
+    }
+
+    /**
+     * Junta as contagens de outro histograma a este.
+     *
+     * @param outro O histograma a juntar.
+     */
+    public void juntar(HistogramaLog outro) {
+        for (int i = 0; i < NUMERO_BALDES; i++) {
+            contagens[i] += outro.contagens[i];
+        }
+        total += outro.total;
+    }
+
+    /**
+     * Obtém o valor do percentil indicado.
+     *
+     * @param percentil O percentil (entre 0 e 100, ex.: 99 para p99).
+     * @return O valor do percentil, em euros, ou 0 se o histograma estiver vazio.
+     */
+    public double percentil(double percentil) {
+        if (total == 0) {
+            return 0.0;
+        }
+        long posicao = Math.max(1, (long) Math.ceil(percentil / 100.0 * total));
+        long acumulado = 0;
+        for (int i = 0; i < NUMERO_BALDES; i++) {
+            acumulado += contagens[i];
+            if (acumulado >= posicao) {
+                return valorDoBalde(i) / 100.0;
+            }
+        }
+        return valorDoBalde(NUMERO_BALDES - 1) / 100.0;
+    }
+
+    /**
+     * Obtém o número total de valores registados.
+     *
+     * @return O número de valores.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Histograma: {n=%d, p50=%.2f, p95=%.2f, p99=%.2f}",
+                total, percentil(50), percentil(95), percentil(99));
+    }
+}
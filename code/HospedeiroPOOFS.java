@@ -0,0 +1,471 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Alojamento de várias empresas (inquilinos) num só processo. Cada empresa tem o seu próprio
+ * SistemaPOOFS (um fragmento), com os dados num ficheiro próprio no diretório indicado
+ * (&lt;diretorio&gt;/&lt;inquilino&gt;.obj), e as operações são encaminhadas pelo identificador da empresa
+ * (ver executar). Os fragmentos são independentes: cada um tem os seus dados, locks, numeração e
+ * gravação em segundo plano. Apenas as tabelas de taxas (RegistoTaxas) são partilhadas.
+ *
+ * Os fragmentos são carregados apenas no primeiro pedido da empresa e são descarregados (gravando
+ * as alterações pendentes) quando ficam sem pedidos durante o tempo de inatividade indicado, ou,
+ * se houver mais fragmentos carregados do que o máximo, começando pelos usados há mais tempo.
+ * Um fragmento com operações em curso nunca é descarregado.
+ */
+public class HospedeiroPOOFS implements AutoCloseable {
+
+    /**
+     * Tempo de inatividade por omissão antes de descarregar um fragmento, em milissegundos.
+     */
+    public static final long INATIVIDADE_PADRAO_MS = 10 * 60 * 1000;
+
+    /**
+     * Número máximo de fragmentos carregados por omissão.
+     */
+    public static final int MAXIMO_ATIVOS_PADRAO = 64;
+
+    /**
+     * Intervalo máximo entre verificações dos fragmentos inativos, em milissegundos.
+     */
+    private static final long PERIODO_VERIFICACAO_MS = 1000;
+
+    /**
+     * Intervalo por omissão da gravação em segundo plano de cada fragmento, em milissegundos.
+     */
+    private static final long INTERVALO_GRAVACAO_MS = 5000;
+
+    /**
+     * Número de alterações por omissão que obriga um fragmento a gravar de imediato.
+     */
+    private static final int LOTE_GRAVACAO = 100;
+
+    /**
+     * Os identificadores de empresa aceites (usados como nome do ficheiro de dados).
+     */
+    private static final String FORMATO_INQUILINO = "[A-Za-z0-9_-]{1,64}";
+
+    /**
+     * Diretório dos ficheiros de dados das empresas.
+     */
+    private final File diretorio;
+
+    /**
+     * Tempo sem pedidos ao fim do qual um fragmento é descarregado, em nanossegundos.
+     */
+    private final long inatividade;
+
+    /**
+     * Número máximo de fragmentos carregados.
+     */
+    private final int maximoAtivos;
+
+    /**
+     * Intervalo da gravação em segundo plano de cada fragmento, em milissegundos.
+     */
+    private final long intervaloGravacaoMs;
+
+    /**
+     * Número de alterações que obriga cada fragmento a gravar de imediato.
+     */
+    private final int loteGravacao;
+
+    /**
+     * Os fragmentos, por identificador da empresa.
+     */
+    private final ConcurrentHashMap<String, Fragmento> fragmentos = new ConcurrentHashMap<>();
+
+    /**
+     * Número de fragmentos carregados.
+     */
+    private final AtomicInteger numeroAtivos = new AtomicInteger();
+
+    /**
+     * Número de carregamentos feitos.
+     */
+    private final AtomicLong numeroCarregamentos = new AtomicLong();
+
+    /**
+     * Número de fragmentos descarregados.
+     */
+    private final AtomicLong numeroDescarregamentos = new AtomicLong();
+
+    /**
+     * Objeto usado para acordar a thread de verificação.
+     */
+    private final Object sinal = new Object();
+
+    /**
+     * Thread que descarrega os fragmentos inativos.
+     */
+    private final Thread thread;
+
+    /**
+     * Indica se o alojamento foi terminado.
+     */
+    private volatile boolean terminado;
+
+    /**
+     * Fragmento de uma empresa: o seu sistema (carregado no primeiro pedido) e o estado de utilização.
+     * O carregamento e o descarregamento são feitos com o lock do fragmento; as operações apenas
+     * contam a utilização, pelo que não esperam umas pelas outras.
+     */
+    private class Fragmento {
+
+        /** O identificador da empresa. */
+        final String inquilino;
+
+        /** O ficheiro de dados da empresa. */
+        final File arquivo;
+
+        /** Número de operações em curso. */
+        final AtomicInteger emUso = new AtomicInteger();
+
+        /** O sistema, ou null se ainda não foi carregado. */
+        volatile SistemaPOOFS sistema;
+
+        /** Instante (System.nanoTime) do último pedido. */
+        volatile long ultimoAcesso = System.nanoTime();
+
+        /** Indica se o fragmento está a ser (ou foi) descarregado. */
+        volatile boolean descarregado;
+
+        Fragmento(String inquilino) {
+            this.inquilino = inquilino;
+            this.arquivo = new File(diretorio, inquilino + ".obj");
+        }
+
+        /**
+         * Começa uma operação no fragmento, carregando-o se for preciso.
+         *
+         * @return O sistema, ou null se o fragmento foi descarregado (deve ser obtido de novo).
+         */
+        SistemaPOOFS adquirir() {
+            emUso.incrementAndGet();
+            if (descarregado) {
+                libertar();
+                return null;
+            }
+            ultimoAcesso = System.nanoTime();
+            SistemaPOOFS atual = sistema;
+            if (atual == null && (atual = carregar()) == null) {
+                libertar();
+            }
+            return atual;
+        }
+
+        /**
+         * Termina uma operação no fragmento.
+         */
+        void libertar() {
+            ultimoAcesso = System.nanoTime();
+            emUso.decrementAndGet();
+        }
+
+        /**
+         * Carrega o sistema da empresa, se ainda não foi carregado.
+         *
+         * @return O sistema, ou null se o fragmento foi descarregado entretanto.
+         */
+        private synchronized SistemaPOOFS carregar() {
+            if (sistema == null && !descarregado) {
+                SistemaPOOFS novo = new SistemaPOOFS();
+                novo.carregarDadosObj(arquivo);
+                novo.iniciarGravacao(arquivo, intervaloGravacaoMs, loteGravacao);
+                sistema = novo;
+                numeroCarregamentos.incrementAndGet();
+                if (numeroAtivos.incrementAndGet() > maximoAtivos) {
+                    synchronized (sinal) {
+                        sinal.notifyAll();
+                    }
+                }
+            }
+            return sistema;
+        }
+
+        /**
+         * Descarrega o fragmento se não tiver operações em curso, gravando as alterações pendentes.
+         * Enquanto o descarregamento decorre, os novos pedidos esperam pelo lock do fragmento
+         * (ver esperarDescarregamento); se a gravação falhar, o fragmento continua carregado.
+         *
+         * @param forcar true para descarregar mesmo com operações em curso (ao terminar o alojamento).
+         * @return true se o fragmento foi descarregado.
+         */
+        synchronized boolean descarregar(boolean forcar) {
+            if (descarregado || (!forcar && emUso.get() > 0)) {
+                return false;
+            }
+            descarregado = true;
+            // Uma operação que começou entretanto viu descarregado == false e continua com o sistema
+            if (!forcar && emUso.get() > 0) {
+                descarregado = false;
+                return false;
+            }
+            SistemaPOOFS atual = sistema;
+            if (atual != null) {
+                GravacaoAgrupada gravacao = atual.gravacao;
+                atual.terminarGravacao(false);
+                if (gravacao != null && gravacao.getPendentes() > 0) {
+                    try {
+                        atual.gravarDados(arquivo);
+                    } catch (IOException e) {
+                        System.out.println("Erro ao salvar dados de " + inquilino + ": " + e.getMessage());
+                        atual.iniciarGravacao(arquivo, intervaloGravacaoMs, loteGravacao);
+                        atual.gravacao.registarAlteracao();
+                        descarregado = false;
+                        return false;
+                    }
+                }
+                atual.fecharEventos();
+                sistema = null;
+                numeroAtivos.decrementAndGet();
+                numeroDescarregamentos.incrementAndGet();
+            }
+            fragmentos.remove(inquilino, this);
+            return true;
+        }
+
+        /**
+         * Espera que termine o descarregamento em curso.
+         */
+        synchronized void esperarDescarregamento() {
+            // O lock do fragmento é mantido durante todo o descarregamento
+        }
+    }
+
+    /**
+     * Construtor com o tempo de inatividade, o número máximo de fragmentos e a gravação por omissão.
+     *
+     * @param diretorio O diretório dos ficheiros de dados das empresas.
+     */
+    public HospedeiroPOOFS(File diretorio) {
+        this(diretorio, INATIVIDADE_PADRAO_MS, MAXIMO_ATIVOS_PADRAO, INTERVALO_GRAVACAO_MS, LOTE_GRAVACAO);
+    }
+
+    /**
+     * Construtor que inicia a thread que descarrega os fragmentos inativos.
+     *
+     * @param diretorio           O diretório dos ficheiros de dados das empresas (é criado se não existir).
+     * @param inatividadeMs       O tempo sem pedidos ao fim do qual um fragmento é descarregado, em milissegundos.
+     * @param maximoAtivos        O número máximo de fragmentos carregados.
+     * @param intervaloGravacaoMs O intervalo da gravação em segundo plano de cada fragmento, em milissegundos.
+     * @param loteGravacao        O número de alterações que obriga um fragmento a gravar de imediato.
+     */
+    public HospedeiroPOOFS(File diretorio, long inatividadeMs, int maximoAtivos, long intervaloGravacaoMs, int loteGravacao) {
+        if (inatividadeMs <= 0 || maximoAtivos <= 0) {
+            throw new IllegalArgumentException("O tempo de inatividade e o número máximo de fragmentos devem ser maiores que zero.");
+        }
+        if (!diretorio.isDirectory() && !diretorio.mkdirs()) {
+            throw new IllegalArgumentException("Não foi possível criar o diretório " + diretorio);
+        }
+        this.diretorio = diretorio;
+        this.inatividade = inatividadeMs * 1_000_000;
+        this.maximoAtivos = maximoAtivos;
+        this.intervaloGravacaoMs = intervaloGravacaoMs;
+        this.loteGravacao = loteGravacao;
+        this.thread = new Thread(this::executarVerificacao, "hospedeiro-poofs");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Executa uma operação no sistema de uma empresa, carregando-o se for preciso.
+     * O fragmento não é descarregado enquanto a operação decorre.
+     *
+     * @param inquilino O identificador da empresa.
+     * @param operacao  A operação.
+     * @param <T>       O tipo do resultado.
+     * @return O resultado da operação.
+     * @throws IllegalArgumentException Se o identificador for inválido.
+     * @throws IllegalStateException    Se o alojamento já foi terminado.
+     */
+    public <T> T executar(String inquilino, Function<SistemaPOOFS, T> operacao) {
+        validarInquilino(inquilino);
+        while (true) {
+            if (terminado) {
+                throw new IllegalStateException("O alojamento foi terminado.");
+            }
+            Fragmento fragmento = fragmentos.computeIfAbsent(inquilino, Fragmento::new);
+            SistemaPOOFS sistema = fragmento.adquirir();
+            if (sistema == null) {
+                fragmento.esperarDescarregamento();
+                continue;
+            }
+            try {
+                return operacao.apply(sistema);
+            } finally {
+                fragmento.libertar();
+            }
+        }
+    }
+
+    /**
+     * Executa uma operação na camada de serviço de uma empresa (ver executar).
+     *
+     * @param inquilino O identificador da empresa.
+     * @param operacao  A operação.
+     * @param <T>       O tipo do resultado.
+     * @return O resultado da operação.
+     */
+    public <T> T executarServico(String inquilino, Function<ServicoPOOFS, T> operacao) {
+        return executar(inquilino, sistema -> operacao.apply(sistema.getServico()));
+    }
+
+    private static void validarInquilino(String inquilino) {
+        if (inquilino == null || !inquilino.matches(FORMATO_INQUILINO)) {
+            throw new IllegalArgumentException("Identificador de empresa inválido: " + inquilino);
+        }
+    }
+
+    /**
+     * Ciclo da thread de verificação: descarrega os fragmentos inativos periodicamente
+     * e sempre que há mais fragmentos carregados do que o máximo. Se uma verificação não descarregar
+     * nenhum fragmento (estão todos em uso ou a gravação falha), a seguinte espera pelo período,
+     * mesmo que continue a haver fragmentos a mais.
+     */
+    private void executarVerificacao() {
+        boolean descarregou = true;
+        while (!terminado) {
+            synchronized (sinal) {
+                try {
+                    if (!terminado && (numeroAtivos.get() <= maximoAtivos || !descarregou)) {
+                        sinal.wait(Math.min(PERIODO_VERIFICACAO_MS, Math.max(1, inatividade / 2_000_000)));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!terminado) {
+                descarregou = descarregarInativos() > 0;
+            }
+        }
+    }
+
+    /**
+     * Descarrega os fragmentos sem pedidos há mais do que o tempo de inatividade e, se continuar a haver
+     * mais fragmentos carregados do que o máximo, os usados há mais tempo que não tenham operações em curso.
+     *
+     * @return O número de fragmentos descarregados.
+     */
+    public int descarregarInativos() {
+        long agora = System.nanoTime();
+        int descarregados = 0;
+        List<Fragmento> carregados = new ArrayList<>();
+        for (Fragmento fragmento : fragmentos.values()) {
+            if (agora - fragmento.ultimoAcesso >= inatividade && fragmento.descarregar(false)) {
+                descarregados++;
+            } else if (fragmento.sistema != null) {
+                carregados.add(fragmento);
+            }
+        }
+        if (numeroAtivos.get() > maximoAtivos) {
+            carregados.sort(Comparator.comparingLong(fragmento -> fragmento.ultimoAcesso));
+            for (Fragmento fragmento : carregados) {
+                if (numeroAtivos.get() <= maximoAtivos) {
+                    break;
+                }
+                if (fragmento.descarregar(false)) {
+                    descarregados++;
+                }
+            }
+        }
+        return descarregados;
+    }
+
+    /**
+     * Descarrega o fragmento de uma empresa, se estiver carregado e sem operações em curso.
+     *
+     * @param inquilino O identificador da empresa.
+     * @return true se o fragmento foi descarregado.
+     */
+    public boolean descarregar(String inquilino) {
+        Fragmento fragmento = fragmentos.get(inquilino);
+        return fragmento != null && fragmento.descarregar(false);
+    }
+
+    /**
+     * Obtém os identificadores das empresas com o fragmento carregado.
+     *
+     * @return Os identificadores, por ordem alfabética.
+     */
+    public Set<String> getInquilinosAtivos() {
+        Set<String> ativos = new TreeSet<>();
+        for (Fragmento fragmento : fragmentos.values()) {
+            if (fragmento.sistema != null) {
+                ativos.add(fragmento.inquilino);
+            }
+        }
+        return ativos;
+    }
+
+    /**
+     * Obtém o número de fragmentos carregados.
+     *
+     * @return O número de fragmentos.
+     */
+    public int getNumeroAtivos() {
+        return numeroAtivos.get();
+    }
+
+    /**
+     * Obtém o número de carregamentos feitos.
+     *
+     * @return O número de carregamentos.
+     */
+    public long getNumeroCarregamentos() {
+        return numeroCarregamentos.get();
+    }
+
+    /**
+     * Obtém o número de fragmentos descarregados.
+     *
+     * @return O número de descarregamentos.
+     */
+    public long getNumeroDescarregamentos() {
+        return numeroDescarregamentos.get();
+    }
+
+    /**
+     * Retorna uma representação textual das métricas do alojamento.
+     *
+     * @return Uma string com as métricas.
+     */
+    @Override
+    public String toString() {
+        return "Hospedeiro: {" +
+                "ativos=" + getNumeroAtivos() +
+                ", maximoAtivos=" + maximoAtivos +
+                ", carregamentos=" + getNumeroCarregamentos() +
+                ", descarregamentos=" + getNumeroDescarregamentos() +
+                '}';
+    }
+
+    /**
+     * Termina a thread de verificação e descarrega todos os fragmentos, gravando as alterações pendentes.
+     * Deve ser chamado depois de terminarem os pedidos.
+     */
+    @Override
+    public void close() {
+        terminado = true;
+        synchronized (sinal) {
+            sinal.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Fragmento fragmento : fragmentos.values()) {
+            fragmento.descarregar(true);
+        }
+    }
+}
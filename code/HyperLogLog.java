@@ -0,0 +1,97 @@
+import java.io.Serializable;
+
+/**
+ * Sketch HyperLogLog para estimar o número de elementos distintos de um conjunto
+ * usando memória fixa (2^PRECISAO registos de um byte, 2 KB).
+ * Dois sketches podem ser juntos para obter a contagem de distintos da união dos conjuntos.
+ * O erro relativo típico é cerca de 1,04 / sqrt(2^PRECISAO), ou seja, 2,3%.
+ */
+public class HyperLogLog implements Serializable {
+
+    /**
+     * Versão da serialização (fixada para continuar a ler os sketches já gravados).
+     */
+    private static final long serialVersionUID = 6277068122692572316L;
+
+    /**
+     * Número de bits do hash usados para escolher o registo.
+     */
+    private static final int PRECISAO = 11;
+
+    /**
+     * Número de registos.
+     */
+    private static final int NUMERO_REGISTOS = 1 << PRECISAO;
+
+    /**
+     * Constante de correção do estimador para o número de registos usado.
+     */
+    private static final double ALFA = 0.7213 / (1 + 1.079 / NUMERO_REGISTOS);
+
+    /**
+     * Registos: o maior número de zeros iniciais (mais um) observado em cada registo.
+     */
+    private final byte[] registos = new byte[NUMERO_REGISTOS];
+
+    /**
+     * Adiciona um elemento ao conjunto.
+     *
+     * @param elemento O elemento (por exemplo, o NIF ou o código do produto).
+     */
+    public void adicionar(long elemento) {
+        long h = dispersar(elemento);
+        int registo = (int) (h >>> (64 - PRECISAO));
+        long resto = h << PRECISAO;
+        byte posicao = (byte) (resto == 0 ? 64 - PRECISAO + 1 : Long.numberOfLeadingZeros(resto) + 1);
+        if (posicao > registos[registo]) {
+            registos[registo] = posicao;
+        }
+    }
+
+    /**
+     * Junta outro sketch a este, que passa a representar a união dos dois conjuntos.
+     *
+     * @param outro O sketch a juntar.
+     */
+    public void juntar(HyperLogLog outro) {
+        for (int i = 0; i < NUMERO_REGISTOS; i++) {
+            if (outro.registos[i] > registos[i]) {
+                registos[i] = outro.registos[i];
+            }
+        }
+    }
+
+    /**
+     * Estima o número de elementos distintos.
+     *
+     * @return A estimativa do número de distintos.
+     */
+    public long estimar() {
+        double soma = 0.0;
+        int registosVazios = 0;
+        for (byte registo : registos) {
+            soma += Math.scalb(1.0, -registo);
+            if (registo == 0) registosVazios++;
+        }
+        double estimativa = ALFA * NUMERO_REGISTOS * NUMERO_REGISTOS / soma;
+
+        // Para conjuntos pequenos, a contagem linear dos registos vazios é mais precisa
+        if (estimativa <= 2.5 * NUMERO_REGISTOS && registosVazios > 0) {
+            estimativa = NUMERO_REGISTOS * Math.log((double) NUMERO_REGISTOS / registosVazios);
+        }
+        return Math.round(estimativa);
+    }
+
+    /**
+     * Função de mistura de 64 bits (finalizador do MurmurHash3).
+     */
+    private static long dispersar(long valor) {
+        long h = valor;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Importação de todos os ficheiros de faturas (.txt) de um diretório, por exemplo os ficheiros
+ * deixados pelas lojas ao longo do dia.
+ *
+ * Os ficheiros são lidos em paralelo, cada um numa thread virtual (ou, em JVMs sem threads virtuais,
+ * numa thread de um pool, ver ServidorHttpPOOFS.criarExecutor). A leitura não altera o sistema:
+ * as faturas de cada ficheiro só são registadas depois, de uma só vez (ver SistemaPOOFS.registarImportacao),
+ * pela ordem dos nomes dos ficheiros e à medida que a leitura de cada um termina. Assim, os números
+ * de fatura repetidos entre ficheiros (ou já existentes) são sempre resolvidos da mesma forma: fica
+ * a fatura do primeiro ficheiro e as seguintes são ignoradas.
+ */
+public class ImportacaoFaturas {
+
+    /**
+     * O sistema para onde as faturas são importadas.
+     */
+    private final SistemaPOOFS sistema;
+
+    /**
+     * Resultado da importação de um ficheiro: as faturas e os clientes novos lidos, as mensagens
+     * a mostrar e os tempos de leitura e de registo.
+     */
+    public static class Ficheiro {
+
+        /** O ficheiro. */
+        private final File ficheiro;
+
+        /** As faturas lidas. */
+        private final List<Fatura> faturas = new ArrayList<>();
+
+        /** Para cada fatura, o número de mensagens da leitura anteriores ao fim da fatura. */
+        private final List<Integer> posicoes = new ArrayList<>();
+
+        /** Os clientes que ainda não existiam no sistema, por NIF. */
+        private final Map<String, Cliente> novosClientes = new LinkedHashMap<>();
+
+        /** As mensagens da leitura. */
+        private final List<String> mensagens = new ArrayList<>();
+
+        /** As mensagens do registo, por fatura (null se a fatura foi registada). */
+        private String[] mensagensRegisto;
+
+        /** Erro que impediu a leitura do ficheiro, ou null. */
+        private String erro;
+
+        /** Tempo de leitura, em nanossegundos. */
+        private long tempoLeitura;
+
+        /** Tempo de registo, em nanossegundos. */
+        private long tempoRegisto;
+
+        /** Número de faturas registadas. */
+        private int importadas;
+
+        Ficheiro(File ficheiro) {
+            this.ficheiro = ficheiro;
+        }
+
+        void mensagem(String mensagem) {
+            mensagens.add(mensagem);
+        }
+
+        void adicionarFatura(Fatura fatura) {
+            faturas.add(fatura);
+            posicoes.add(mensagens.size());
+        }
+
+        Cliente novoCliente(String nif) {
+            return novosClientes.get(nif);
+        }
+
+        void adicionarCliente(Cliente cliente) {
+            novosClientes.put(cliente.getNif(), cliente);
+        }
+
+        Map<String, Cliente> getNovosClientes() {
+            return novosClientes;
+        }
+
+        List<Fatura> getFaturas() {
+            return faturas;
+        }
+
+        /**
+         * Substitui um cliente novo do ficheiro por um cliente com o mesmo NIF que já existe
+         * (criado entretanto por outra operação).
+         */
+        void substituirCliente(Cliente novo, Cliente existente) {
+            for (Fatura fatura : faturas) {
+                if (fatura.getCliente() == novo) {
+                    fatura.setCliente(existente);
+                }
+            }
+        }
+
+        void registada(int indice, String mensagem) {
+            if (mensagensRegisto == null) {
+                mensagensRegisto = new String[faturas.size()];
+            }
+            if (mensagem == null) {
+                importadas++;
+            } else {
+                mensagensRegisto[indice] = mensagem;
+            }
+        }
+
+        void setErro(String erro) {
+            this.erro = erro;
+        }
+
+        void setTempoLeitura(long tempoLeitura) {
+            this.tempoLeitura = tempoLeitura;
+        }
+
+        void setTempoRegisto(long tempoRegisto) {
+            this.tempoRegisto = tempoRegisto;
+        }
+
+        /**
+         * Obtém as mensagens da leitura e do registo, pela ordem das linhas do ficheiro.
+         *
+         * @return As mensagens.
+         */
+        public List<String> getMensagens() {
+            if (mensagensRegisto == null) {
+                return mensagens;
+            }
+            List<String> todas = new ArrayList<>(mensagens.size());
+            int fatura = 0;
+            for (int i = 0; i <= mensagens.size(); i++) {
+                while (fatura < faturas.size() && posicoes.get(fatura) == i) {
+                    if (mensagensRegisto[fatura] != null) {
+                        todas.add(mensagensRegisto[fatura]);
+                    }
+                    fatura++;
+                }
+                if (i < mensagens.size()) {
+                    todas.add(mensagens.get(i));
+                }
+            }
+            return todas;
+        }
+
+        public File getFicheiro() {
+            return ficheiro;
+        }
+
+        /**
+         * Obtém o erro que impediu a leitura do ficheiro (nesse caso, nenhuma fatura foi registada).
+         *
+         * @return O erro, ou null.
+         */
+        public String getErro() {
+            return erro;
+        }
+
+        public int getNumeroFaturas() {
+            return faturas.size();
+        }
+
+        public int getImportadas() {
+            return importadas;
+        }
+
+        public double getTempoLeituraMs() {
+            return tempoLeitura / 1e6;
+        }
+
+        public double getTempoRegistoMs() {
+            return tempoRegisto / 1e6;
+        }
+
+        /**
+         * Retorna o resumo da importação do ficheiro.
+         *
+         * @return Uma string com o resumo.
+         */
+        @Override
+        public String toString() {
+            if (erro != null) {
+                return ficheiro.getName() + ": erro ao ler o ficheiro (" + erro + "). Nenhuma fatura importada.";
+            }
+            return String.format("%s: %d faturas importadas, %d ignoradas (leitura %.1f ms, registo %.1f ms)",
+                    ficheiro.getName(), importadas, faturas.size() - importadas, getTempoLeituraMs(), getTempoRegistoMs());
+        }
+    }
+
+    /**
+     * Construtor da importação.
+     *
+     * @param sistema O sistema para onde as faturas são importadas.
+     */
+    public ImportacaoFaturas(SistemaPOOFS sistema) {
+        this.sistema = sistema;
+    }
+
+    /**
+     * Importa todos os ficheiros .txt de um diretório (sem subdiretórios), mostrando as mensagens
+     * e o resumo de cada ficheiro e o débito total.
+     *
+     * @param diretorio O diretório.
+     * @return Os resultados de cada ficheiro, pela ordem dos nomes.
+     * @throws IllegalArgumentException Se o diretório não existir.
+     */
+    public List<Ficheiro> importar(File diretorio) {
+        File[] ficheiros = diretorio.listFiles(f -> f.isFile() && f.getName().toLowerCase().endsWith(".txt"));
+        if (ficheiros == null) {
+            throw new IllegalArgumentException("Diretório não encontrado: " + diretorio);
+        }
+        Arrays.sort(ficheiros);
+
+        long inicio = System.nanoTime();
+        List<CompletableFuture<Ficheiro>> leituras = new ArrayList<>(ficheiros.length);
+        ExecutorService executor = ServidorHttpPOOFS.criarExecutor();
+        try {
+            for (File ficheiro : ficheiros) {
+                leituras.add(CompletableFuture.supplyAsync(() -> sistema.lerFicheiroFaturas(ficheiro), executor));
+            }
+            List<Ficheiro> resultados = new ArrayList<>(ficheiros.length);
+            int faturas = 0;
+            long bytes = 0;
+            for (int i = 0; i < ficheiros.length; i++) {
+                Ficheiro resultado;
+                try {
+                    resultado = leituras.get(i).join();
+                } catch (CompletionException e) {
+                    // Um erro inesperado num ficheiro não impede a importação dos restantes
+                    resultado = new Ficheiro(ficheiros[i]);
+                    resultado.setErro(String.valueOf(e.getCause()));
+                }
+                if (resultado.getErro() == null) {
+                    sistema.registarImportacao(resultado);
+                }
+                String nome = resultado.getFicheiro().getName();
+                resultado.getMensagens().forEach(mensagem -> System.out.println(nome + ": " + mensagem));
+                System.out.println(resultado);
+                resultados.add(resultado);
+                faturas += resultado.getImportadas();
+                bytes += resultado.getFicheiro().length();
+            }
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            System.out.printf("Total: %d ficheiros, %d faturas importadas em %.1f ms (%.0f faturas/s, %.2f MB/s)%n",
+                    ficheiros.length, faturas, segundos * 1000, faturas / segundos, bytes / 1e6 / segundos);
+            return resultados;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
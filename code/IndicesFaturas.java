@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Índices secundários das faturas: por NIF do cliente, por código de produto e por dia da data da fatura.
+ * São mantidos incrementalmente juntamente com os restantes agregados e usados pelas consultas
+ * (ver PlaneadorConsultas) para evitar percorrer todas as faturas.
+ */
+public class IndicesFaturas {
+
+    /**
+     * Faturas por NIF do cliente.
+     */
+    private final HashMap<String, Set<Fatura>> porCliente = new HashMap<>();
+
+    /**
+     * Faturas por código de produto.
+     */
+    private final HashMap<Integer, Set<Fatura>> porProduto = new HashMap<>();
+
+    /**
+     * Faturas por dia (epoch-day) da data da fatura.
+     */
+    private final TreeMap<Long, Set<Fatura>> porDia = new TreeMap<>();
+
+    /**
+     * Acrescenta uma fatura aos índices.
+     *
+     * @param fatura A fatura.
+     */
+    public synchronized void adicionar(Fatura fatura) {
+        porCliente.computeIfAbsent(fatura.getCliente().getNif(), k -> new LinkedHashSet<>()).add(fatura);
+        for (Produto produto : fatura.getProdutos()) {
+            porProduto.computeIfAbsent(produto.getCodigo(), k -> new LinkedHashSet<>()).add(fatura);
+        }
+        porDia.computeIfAbsent(AgregadosPeriodo.diaDe(fatura.getData()), k -> new LinkedHashSet<>()).add(fatura);
+    }
+
+    /**
+     * Retira uma fatura dos índices (antes de ser editada).
+     *
+     * @param fatura A fatura.
+     */
+    public synchronized void remover(Fatura fatura) {
+        retirar(porCliente, fatura.getCliente().getNif(), fatura);
+        for (Produto produto : fatura.getProdutos()) {
+            retirar(porProduto, produto.getCodigo(), fatura);
+        }
+        retirar(porDia, AgregadosPeriodo.diaDe(fatura.getData()), fatura);
+    }
+
+    private static <K> void retirar(Map<K, Set<Fatura>> indice, K chave, Fatura fatura) {
+        Set<Fatura> faturas = indice.get(chave);
+        if (faturas != null) {
+            faturas.remove(fatura);
+            if (faturas.isEmpty()) indice.remove(chave);
+        }
+    }
+
+    /**
+     * Reconstrói os índices a partir de todas as faturas.
+     *
+     * @param faturas As faturas do sistema.
+     */
+    public synchronized void recalcular(Collection<Fatura> faturas) {
+        porCliente.clear();
+        porProduto.clear();
+        porDia.clear();
+        faturas.forEach(this::adicionar);
+    }
+
+    /**
+     * Obtém as faturas de um cliente.
+     *
+     * @param nif O NIF do cliente.
+     * @return Uma cópia das faturas do cliente.
+     */
+    public synchronized List<Fatura> porCliente(String nif) {
+        return new ArrayList<>(porCliente.getOrDefault(nif, Collections.emptySet()));
+    }
+
+    /**
+     * Obtém o número de faturas de um cliente.
+     *
+     * @param nif O NIF do cliente.
+     * @return O número de faturas.
+     */
+    public synchronized int contarPorCliente(String nif) {
+        return porCliente.getOrDefault(nif, Collections.emptySet()).size();
+    }
+
+    /**
+     * Obtém as faturas que contêm um produto.
+     *
+     * @param codigo O código do produto.
+     * @return Uma cópia das faturas com o produto.
+     */
+    public synchronized List<Fatura> porProduto(int codigo) {
+        return new ArrayList<>(porProduto.getOrDefault(codigo, Collections.emptySet()));
+    }
+
+    /**
+     * Obtém o número de faturas que contêm um produto.
+     *
+     * @param codigo O código do produto.
+     * @return O número de faturas.
+     */
+    public synchronized int contarPorProduto(int codigo) {
+        return porProduto.getOrDefault(codigo, Collections.emptySet()).size();
+    }
+
+    /**
+     * Obtém o número de faturas emitidas entre dois dias (inclusive).
+     *
+     * @param diaInicio O primeiro dia (epoch-day).
+     * @param diaFim    O último dia (epoch-day).
+     * @return O número de faturas.
+     */
+    public synchronized int contarPorPeriodo(long diaInicio, long diaFim) {
+        if (diaInicio > diaFim) return 0;
+        int total = 0;
+        for (Set<Fatura> dia : porDia.subMap(diaInicio, true, diaFim, true).values()) {
+            total += dia.size();
+        }
+        return total;
+    }
+
+    /**
+     * Obtém as faturas emitidas entre dois dias (inclusive).
+     *
+     * @param diaInicio O primeiro dia (epoch-day).
+     * @param diaFim    O último dia (epoch-day).
+     * @return As faturas do período.
+     */
+    public synchronized List<Fatura> porPeriodo(long diaInicio, long diaFim) {
+        List<Fatura> faturas = new ArrayList<>();
+        if (diaInicio > diaFim) return faturas;
+        for (Set<Fatura> dia : porDia.subMap(diaInicio, true, diaFim, true).values()) {
+            faturas.addAll(dia);
+        }
+        return faturas;
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conjunto fixo de locks partilhados por muitas chaves (lock striping): cada chave usa o lock
+ * da posição dada pelo seu hash. Operações sobre chaves diferentes raramente esperam umas pelas outras
+ * e a memória usada não depende do número de faturas ou clientes.
+ *
+ * Para bloquear várias chaves de uma vez, os locks são sempre obtidos por ordem crescente de posição,
+ * o que evita deadlocks entre operações que bloqueiam conjuntos de chaves que se sobrepõem.
+ */
+public class LocksEstratificados {
+
+    /**
+     * Os locks.
+     */
+    private final ReentrantLock[] locks;
+
+    /**
+     * Construtor que cria o número de locks indicado.
+     *
+     * @param numeroLocks O número de locks (arredondado para a potência de 2 seguinte).
+     */
+    public LocksEstratificados(int numeroLocks) {
+        int tamanho = Integer.highestOneBit(Math.max(1, numeroLocks - 1)) << 1;
+        locks = new ReentrantLock[tamanho];
+        for (int i = 0; i < tamanho; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Obtém a posição do lock de uma chave.
+     *
+     * @param chave A chave.
+     * @return A posição do lock.
+     */
+    private int posicao(Object chave) {
+        int h = chave.hashCode();
+        h ^= (h >>> 16);
+        return h & (locks.length - 1);
+    }
+
+    /**
+     * Bloqueia o lock de uma chave.
+     *
+     * @param chave A chave.
+     * @return O bloqueio, a libertar com close() (try-with-resources).
+     */
+    public Bloqueio bloquear(Object chave) {
+        ReentrantLock lock = locks[posicao(chave)];
+        lock.lock();
+        return new Bloqueio(new ReentrantLock[]{lock});
+    }
+
+    /**
+     * Bloqueia os locks de várias chaves, por ordem crescente de posição.
+     *
+     * @param chaves As chaves.
+     * @return O bloqueio, a libertar com close() (try-with-resources).
+     */
+    public Bloqueio bloquear(Collection<?> chaves) {
+        ReentrantLock[] obtidos = locksDe(chaves);
+        for (ReentrantLock lock : obtidos) {
+            lock.lock();
+        }
+        return new Bloqueio(obtidos);
+    }
+
+    /**
+     * Tenta bloquear os locks de várias chaves dentro de um tempo limite.
+     * Deve ser usado quando a thread já tem outro lock deste conjunto, para não criar deadlocks.
+     *
+     * @param chaves As chaves.
+     * @param tempo  O tempo máximo de espera por cada lock.
+     * @param unidade A unidade do tempo.
+     * @return O bloqueio, ou null se algum lock não foi obtido a tempo (nenhum fica bloqueado).
+     * @throws InterruptedException Se a thread for interrompida durante a espera.
+     */
+    public Bloqueio tentarBloquear(Collection<?> chaves, long tempo, TimeUnit unidade) throws InterruptedException {
+        ReentrantLock[] obtidos = locksDe(chaves);
+        for (int i = 0; i < obtidos.length; i++) {
+            if (!obtidos[i].tryLock(tempo, unidade)) {
+                for (int j = i - 1; j >= 0; j--) {
+                    obtidos[j].unlock();
+                }
+                return null;
+            }
+        }
+        return new Bloqueio(obtidos);
+    }
+
+    /**
+     * Obtém os locks distintos de várias chaves, por ordem crescente de posição.
+     */
+    private ReentrantLock[] locksDe(Collection<?> chaves) {
+        TreeSet<Integer> posicoes = new TreeSet<>();
+        for (Object chave : chaves) {
+            posicoes.add(posicao(chave));
+        }
+        ReentrantLock[] obtidos = new ReentrantLock[posicoes.size()];
+        int i = 0;
+        for (int posicao : posicoes) {
+            obtidos[i++] = locks[posicao];
+        }
+        return obtidos;
+    }
+
+    /**
+     * Conjunto de locks obtidos, libertados por ordem inversa ao fechar.
+     */
+    public static class Bloqueio implements AutoCloseable {
+
+        /** Os locks obtidos. */
+        private final ReentrantLock[] locks;
+
+        private Bloqueio(ReentrantLock[] locks) {
+            this.locks = locks;
+        }
+
+        @Override
+        public void close() {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -8,21 +10,94 @@ import java.util.Scanner;
  * e exportação de dados.
  */
 public class Main {
-    public static void main(String[] args) {
-        // Instância do sistema principal
-        SistemaPOOFS sistemaPoofs = new SistemaPOOFS();
+    /**
+     * Intervalo por omissão da gravação em segundo plano, em milissegundos (propriedade poofs.gravacao.intervalo).
+     */
+    private static final long INTERVALO_GRAVACAO_MS = 5000;
 
-        // Scanner para entrada do utlizador
-        Scanner sc = new Scanner(System.in);
+    /**
+     * Número de alterações por omissão que obriga a gravar de imediato (propriedade poofs.gravacao.lote).
+     */
+    private static final int LOTE_GRAVACAO = 100;
+
+    /**
+     * Comandos executados sem o menu (ver executarComando).
+     */
+    private static final List<String> COMANDOS = List.of("import", "export", "stats", "compact");
+
+    /**
+     * Inicia o sistema: sem argumentos, mostra o menu interativo;
+     * com "servidor [porta]", inicia o servidor HTTP (ver ServidorHttpPOOFS);
+     * com "empresas <diretório> [porta]", inicia o servidor HTTP de várias empresas, cada uma com os dados
+     * em &lt;diretório&gt;/&lt;empresa&gt;.obj (ver ServidorEmpresasHttp e HospedeiroPOOFS);
+     * com "replica", mostra um menu de consultas sobre uma réplica só de leitura dos dados de outro processo
+     * (ver ReplicaLeitura), que não usa os ficheiros de sequência nem grava os dados;
+     * com "vigiar <diretório>", importa continuamente os ficheiros deixados no diretório (ver VigilanteEntrada);
+     * com "import <ficheiro|diretório>", "export <ficheiro>", "stats" ou "compact", executa só esse comando
+     * e termina (ver executarComando), sem menu nem gravação em segundo plano.
+     * No menu interativo, as alterações são gravadas em segundo plano (ver GravacaoAgrupada);
+     * o intervalo e o lote podem ser configurados com -Dpoofs.gravacao.intervalo=ms e -Dpoofs.gravacao.lote=n.
+     *
+     * @param args Os argumentos da linha de comandos.
+     */
+    public static void main(String[] args) {
+        // Tabelas de taxas de IVA (se o ficheiro não existir, usam-se as taxas padrão)
+        File arquivoTaxas = new File("taxas.cfg");
+        if (arquivoTaxas.exists()) {
+            try {
+                RegistoTaxas.carregar(arquivoTaxas);
+            } catch (IOException e) {
+                System.out.println("Erro ao carregar taxas: " + e.getMessage() + ". Usando taxas padrão.");
+            }
+        }
 
         // Arquivo para serialização de objetos
         String arquivoObj = "arquivo.obj";
         File arquivoObjFile = new File(arquivoObj);
+
+        if (args.length > 0 && COMANDOS.contains(args[0].toLowerCase())) {
+            System.exit(executarComando(args, arquivoObjFile));
+        }
+
+        // Scanner para entrada do utlizador
+        Scanner sc = new Scanner(System.in);
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("replica")) {
+            menuReplica(sc, arquivoObjFile);
+            sc.close();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("empresas")) {
+            iniciarServidorEmpresas(args);
+            sc.close();
+            return;
+        }
+
+        // Instância do sistema principal
+        SistemaPOOFS sistemaPoofs = new SistemaPOOFS();
         sistemaPoofs.carregarDadosObj(arquivoObjFile);
 
+        if (args.length > 0 && args[0].equalsIgnoreCase("servidor")) {
+            iniciarServidor(sistemaPoofs, args, arquivoObjFile);
+            return;
+        }
+
+        sistemaPoofs.iniciarGravacao(arquivoObjFile,
+                Long.getLong("poofs.gravacao.intervalo", INTERVALO_GRAVACAO_MS),
+                Integer.getInteger("poofs.gravacao.lote", LOTE_GRAVACAO));
+
+        if (args.length > 0 && args[0].equalsIgnoreCase("vigiar")) {
+            vigiarEntrada(sistemaPoofs, args);
+            return;
+        }
+
         int opcao = 0;
 
         while (opcao != 12) {
+            // Recarrega as taxas caso o ficheiro de configuração tenha sido alterado
+            RegistoTaxas.recarregarSeAlterado();
+
             // Menu principal
             System.out.println("""
                     === Sistema POOFS ===
@@ -94,7 +169,12 @@ public class Main {
                         System.out.println("Digite o caminho para importar faturas contidas num ficheiro de texto: ");
                         String importarFatura = sc.nextLine().trim();
                         File fileImportarFaturas = new File(importarFatura);
-                        sistemaPoofs.importarFatura(fileImportarFaturas);
+                        // Um diretório importa todos os seus ficheiros .txt em paralelo
+                        if (fileImportarFaturas.isDirectory()) {
+                            sistemaPoofs.importarDiretorio(fileImportarFaturas);
+                        } else {
+                            sistemaPoofs.importarFatura(fileImportarFaturas);
+                        }
                         break;
                     case 10:
                         System.out.println("Digite o caminho para exportar faturas para um ficheiro de texto:");
@@ -117,8 +197,217 @@ public class Main {
                 System.out.println("Entrada inválida! Insira um número entre 1 e 12.");
             }
         }
-        // Salvar os dados no arquivo .obj
+        // Salvar os dados no arquivo .obj (a gravação em segundo plano deixa de ser precisa)
+        sistemaPoofs.terminarGravacao(false);
         sistemaPoofs.salvarDadosObj(arquivoObjFile);
         sc.close();
     }
+
+    /**
+     * Executa um único comando, para uso em scripts: cada comando só carrega o que precisa. O export e as
+     * estatísticas leem os dados só para leitura (ver SistemaPOOFS.carregarLeitura), sem os ficheiros de
+     * sequência nem a gravação em segundo plano; o import e o compact carregam os dados para escrita e
+     * gravam-nos uma vez no fim (se os dados não puderem ser carregados, terminam sem gravar).
+     *
+     * @param args    Os argumentos da linha de comandos (o comando e o ficheiro, se for preciso).
+     * @param arquivo O ficheiro de dados.
+     * @return O código de saída: 0 se o comando terminou bem, 1 se falhou, 2 se os argumentos são inválidos.
+     */
+    private static int executarComando(String[] args, File arquivo) {
+        String comando = args[0].toLowerCase();
+        boolean precisaFicheiro = comando.equals("import") || comando.equals("export");
+        if (precisaFicheiro && args.length < 2) {
+            System.out.println("Uso: " + comando + " <ficheiro>");
+            return 2;
+        }
+        SistemaPOOFS sistemaPoofs = new SistemaPOOFS();
+        switch (comando) {
+            case "import": {
+                if (!sistemaPoofs.carregarDadosObj(arquivo)) {
+                    return 1;
+                }
+                File origem = new File(args[1]);
+                boolean importado = true;
+                if (origem.isDirectory()) {
+                    // As faturas dos ficheiros lidos são gravadas mesmo que algum ficheiro tenha falhado
+                    importado = sistemaPoofs.importarDiretorio(origem);
+                } else if (!sistemaPoofs.importarFatura(origem)) {
+                    return 1;
+                }
+                try {
+                    sistemaPoofs.gravarDados(arquivo);
+                    return importado ? 0 : 1;
+                } catch (IOException e) {
+                    System.out.println("Erro ao salvar dados: " + e.getMessage());
+                    return 1;
+                }
+            }
+            case "compact":
+                if (!sistemaPoofs.carregarDadosObj(arquivo)) {
+                    return 1;
+                }
+                return sistemaPoofs.compactarDados(arquivo) ? 0 : 1;
+            default:
+                try {
+                    sistemaPoofs.carregarLeitura(arquivo);
+                } catch (IOException | ClassNotFoundException e) {
+                    System.out.println("Erro ao carregar dados: " + e.getMessage());
+                    return 1;
+                }
+                if (comando.equals("stats")) {
+                    sistemaPoofs.mostrarEstatisticas();
+                    return 0;
+                }
+                return sistemaPoofs.exportarFatura(new File(args[1])) ? 0 : 1;
+        }
+    }
+
+    /**
+     * Menu de consultas sobre uma réplica só de leitura dos dados gravados por outro processo.
+     * Os dados são atualizados em segundo plano à medida que o outro processo cria faturas e grava os dados.
+     *
+     * @param sc      O scanner para entrada do utilizador.
+     * @param arquivo O ficheiro de dados do outro processo.
+     */
+    private static void menuReplica(Scanner sc, File arquivo) {
+        try (ReplicaLeitura replica = new ReplicaLeitura(arquivo, ReplicaLeitura.INTERVALO_PADRAO_MS)) {
+            int opcao = 0;
+            while (opcao != 5) {
+                System.out.println("""
+                        === Sistema POOFS (réplica só de leitura) ===
+                        1. Listar Faturas
+                        2. Visualizar fatura
+                        3. Estatísticas
+                        4. Estado da réplica
+                        5. Sair
+                        """);
+                System.out.print("Escolha uma opção: ");
+                String entrada = sc.nextLine().trim();
+                if (!entrada.matches("\\d+")) {
+                    System.out.println("Entrada inválida! Insira um número entre 1 e 5.");
+                    continue;
+                }
+                opcao = Integer.parseInt(entrada);
+                // O sistema é obtido em cada consulta, porque é substituído quando o outro processo grava os dados
+                SistemaPOOFS sistema = replica.getSistema();
+                switch (opcao) {
+                    case 1:
+                        sistema.listarFaturas();
+                        break;
+                    case 2:
+                        System.out.println("Digite o número da fatura para visualizar:");
+                        String numero = sc.nextLine().trim();
+                        Fatura fatura = numero.matches("\\d+") ? sistema.buscarFaturaPorNumero(Integer.parseInt(numero)) : null;
+                        if (fatura == null) {
+                            System.out.println("Fatura " + numero + " não encontrada.");
+                        } else {
+                            sistema.visualizarFatura(fatura);
+                        }
+                        break;
+                    case 3:
+                        System.out.println("Exibindo as Estatísticas: ");
+                        sistema.mostrarEstatisticas();
+                        break;
+                    case 4:
+                        System.out.println(replica);
+                        break;
+                    case 5:
+                        System.out.println("Saindo...");
+                        break;
+                    default:
+                        System.out.println("Número inválido!");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Erro ao carregar dados: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Importa continuamente os ficheiros de faturas deixados num diretório (ver VigilanteEntrada), até o processo
+     * terminar. Ao terminar (por exemplo, com Ctrl+C), a vigilância para e as alterações pendentes são gravadas.
+     *
+     * @param sistemaPoofs O sistema, com a gravação em segundo plano já iniciada.
+     * @param args         Os argumentos da linha de comandos (o segundo é o diretório de entrada).
+     */
+    private static void vigiarEntrada(SistemaPOOFS sistemaPoofs, String[] args) {
+        if (args.length < 2) {
+            System.out.println("Uso: vigiar <diretório de entrada>");
+            sistemaPoofs.terminarGravacao(true);
+            return;
+        }
+        try {
+            VigilanteEntrada vigilante = new VigilanteEntrada(sistemaPoofs, new File(args[1]),
+                    Long.getLong("poofs.entrada.estabilizacao", VigilanteEntrada.ESTABILIZACAO_PADRAO_MS));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                vigilante.close();
+                sistemaPoofs.terminarGravacao(true);
+                System.out.println(vigilante);
+            }));
+            System.out.println("A vigiar " + args[1] + " (Ctrl+C para terminar)");
+            vigilante.aguardar();
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Erro ao iniciar a vigilância: " + e.getMessage());
+            sistemaPoofs.terminarGravacao(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Inicia o servidor HTTP, que fica a receber pedidos até o processo terminar.
+     * Ao terminar (por exemplo, com Ctrl+C), as alterações pendentes são gravadas.
+     *
+     * @param sistemaPoofs O sistema.
+     * @param args         Os argumentos da linha de comandos (o segundo, opcional, é a porta).
+     * @param arquivo      O ficheiro de dados.
+     */
+    private static void iniciarServidor(SistemaPOOFS sistemaPoofs, String[] args, File arquivo) {
+        int porta = ServidorHttpPOOFS.PORTA_PADRAO;
+        if (args.length > 1) {
+            if (!args[1].matches("\\d+")) {
+                System.out.println("Porta inválida: " + args[1]);
+                return;
+            }
+            porta = Integer.parseInt(args[1]);
+        }
+        try {
+            ServidorHttpPOOFS servidor = new ServidorHttpPOOFS(sistemaPoofs, porta, arquivo);
+            Runtime.getRuntime().addShutdownHook(new Thread(servidor::close));
+            servidor.iniciar();
+            System.out.println("Servidor POOFS a escutar na porta " + servidor.getPorta());
+        } catch (IOException e) {
+            System.out.println("Erro ao iniciar o servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Inicia o servidor HTTP de várias empresas, que fica a receber pedidos até o processo terminar.
+     * Ao terminar (por exemplo, com Ctrl+C), as empresas carregadas são descarregadas e as alterações pendentes gravadas.
+     *
+     * @param args Os argumentos da linha de comandos (o segundo é o diretório dos dados; o terceiro, opcional, é a porta).
+     */
+    private static void iniciarServidorEmpresas(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Uso: empresas <diretório de dados> [porta]");
+            return;
+        }
+        int porta = ServidorHttpPOOFS.PORTA_PADRAO;
+        if (args.length > 2) {
+            if (!args[2].matches("\\d+")) {
+                System.out.println("Porta inválida: " + args[2]);
+                return;
+            }
+            porta = Integer.parseInt(args[2]);
+        }
+        try {
+            ServidorEmpresasHttp servidor = new ServidorEmpresasHttp(new File(args[1]), porta);
+            Runtime.getRuntime().addShutdownHook(new Thread(servidor::close));
+            servidor.iniciar();
+            System.out.println("Servidor POOFS de empresas (" + args[1] + ") a escutar na porta " + servidor.getPorta());
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Erro ao iniciar o servidor: " + e.getMessage());
+        }
+    }
 }
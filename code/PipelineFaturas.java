@@ -0,0 +1,399 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Pipeline de criação de faturas para picos de carga. Cada fatura submetida passa por cinco etapas:
+ * <pre>
+ * validar → resolver (cliente e produtos) → precificar (número e totais) → indexar (stock, listas e agregados) → diário
+ * </pre>
+ * Entre etapas há filas circulares limitadas (ArrayBlockingQueue) e cada etapa tem uma única thread,
+ * que retira um lote da sua fila, o processa e o passa à etapa seguinte. Quando uma etapa não acompanha
+ * o ritmo, a sua fila enche, a etapa anterior fica à espera e, por fim, quem submete também:
+ * a pressão chega até à entrada (ver submeter e tentarSubmeter).
+ *
+ * A etapa do diário acrescenta as faturas ao diário e sincroniza-o com o disco uma vez por lote;
+ * o resultado de cada fatura só fica disponível depois disso. Sem diário, termina na indexação.
+ * Como a fatura já está registada no sistema quando chega ao diário, uma falha a partir daí não a
+ * desfaz: o resultado termina com FaturaSemDiarioException, que indica a fatura criada.
+ * Para cada etapa são mantidas a profundidade da fila, a espera na fila e o tempo de processamento
+ * (ver getEtapas), para se perceber qual delas limita o débito.
+ */
+public class PipelineFaturas implements AutoCloseable {
+
+    /**
+     * Capacidade por omissão de cada fila.
+     */
+    public static final int CAPACIDADE_PADRAO = 1024;
+
+    /**
+     * Pedido que marca o fim do pipeline (ver close).
+     */
+    private static final Pedido FIM = new Pedido(null, null, null);
+
+    /**
+     * As etapas, pela ordem em que são percorridas.
+     */
+    private final Etapa[] etapas;
+
+    /**
+     * Indica se o pipeline foi terminado.
+     */
+    private volatile boolean terminado;
+
+    /**
+     * Pedido de criação de uma fatura, com os resultados de cada etapa.
+     */
+    private static class Pedido {
+        final String nif;
+        final Date data;
+        final Collection<Integer> codigos;
+        final CompletableFuture<Fatura> resultado = new CompletableFuture<>();
+        Cliente cliente;
+        ArrayList<Produto> produtos;
+        Fatura fatura;
+        double totalComIVA;
+        boolean registada;
+        long entradaFila;
+
+        Pedido(String nif, Date data, Collection<Integer> codigos) {
+            this.nif = nif;
+            this.data = data;
+            this.codigos = codigos;
+        }
+    }
+
+    /**
+     * Construtor que inicia as threads das etapas.
+     *
+     * @param sistema    O sistema.
+     * @param diario     O diário onde as faturas ficam registadas, ou null para não as registar.
+     * @param capacidade A capacidade de cada fila.
+     */
+    public PipelineFaturas(SistemaPOOFS sistema, DiarioAlteracoes diario, int capacidade) {
+        if (capacidade <= 0) {
+            throw new IllegalArgumentException("A capacidade deve ser maior que zero.");
+        }
+        ServicoPOOFS servico = sistema.getServico();
+
+        List<Etapa> lista = new ArrayList<>();
+        lista.add(new Etapa("validar", capacidade, pedido -> ServicoPOOFS.validarPedidoFatura(pedido.data, pedido.codigos), null));
+        lista.add(new Etapa("resolver", capacidade, pedido -> {
+            pedido.cliente = servico.clienteExistente(pedido.nif);
+            pedido.produtos = servico.produtosExistentes(pedido.codigos);
+        }, null));
+        lista.add(new Etapa("precificar", capacidade, pedido -> {
+            pedido.fatura = new Fatura(sistema.proximoNumeroFatura(), pedido.cliente,
+                    pedido.data != null ? pedido.data : new Date(), pedido.produtos);
+            pedido.totalComIVA = pedido.fatura.calcularTotalComIVA(pedido.fatura);
+        }, null));
+        lista.add(new Etapa("indexar", capacidade, pedido -> {
+            servico.registarFatura(pedido.fatura);
+            pedido.registada = true;
+        }, null));
+        if (diario != null) {
+            lista.add(new Etapa("diario", capacidade, pedido -> {
+                try {
+                    diario.registar(pedido.fatura, pedido.totalComIVA);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, () -> {
+                try {
+                    diario.sincronizar();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        etapas = lista.toArray(new Etapa[0]);
+        for (int i = 0; i < etapas.length; i++) {
+            etapas[i].seguinte = i + 1 < etapas.length ? etapas[i + 1] : null;
+            etapas[i].thread.start();
+        }
+    }
+
+    /**
+     * Submete uma fatura, esperando por espaço na primeira fila se estiver cheia.
+     *
+     * @param nif     O NIF do cliente.
+     * @param data    A data da fatura, ou null para a data atual.
+     * @param codigos Os códigos dos produtos.
+     * @return O resultado: a fatura criada, ou a exceção (IllegalArgumentException se os dados forem inválidos,
+     *         IllegalStateException se algum produto não tiver stock suficiente, FaturaSemDiarioException
+     *         se a fatura foi criada mas não ficou registada no diário).
+     * @throws InterruptedException Se a thread for interrompida enquanto espera.
+     */
+    public CompletableFuture<Fatura> submeter(String nif, Date data, Collection<Integer> codigos) throws InterruptedException {
+        Pedido pedido = novoPedido(nif, data, codigos);
+        etapas[0].fila.put(pedido);
+        return pedido.resultado;
+    }
+
+    /**
+     * Submete uma fatura, esperando no máximo o tempo indicado por espaço na primeira fila.
+     *
+     * @param nif     O NIF do cliente.
+     * @param data    A data da fatura, ou null para a data atual.
+     * @param codigos Os códigos dos produtos.
+     * @param tempo   O tempo máximo de espera.
+     * @param unidade A unidade do tempo.
+     * @return O resultado, ou null se a fila continuar cheia (o sistema não está a acompanhar a carga).
+     * @throws InterruptedException Se a thread for interrompida enquanto espera.
+     */
+    public CompletableFuture<Fatura> tentarSubmeter(String nif, Date data, Collection<Integer> codigos,
+                                                    long tempo, TimeUnit unidade) throws InterruptedException {
+        Pedido pedido = novoPedido(nif, data, codigos);
+        return etapas[0].fila.offer(pedido, tempo, unidade) ? pedido.resultado : null;
+    }
+
+    private Pedido novoPedido(String nif, Date data, Collection<Integer> codigos) {
+        if (terminado) {
+            throw new IllegalStateException("O pipeline foi terminado.");
+        }
+        Pedido pedido = new Pedido(nif, data, codigos);
+        pedido.entradaFila = System.nanoTime();
+        return pedido;
+    }
+
+    /**
+     * Obtém as etapas, com as suas métricas.
+     *
+     * @return As etapas, pela ordem em que são percorridas.
+     */
+    public Etapa[] getEtapas() {
+        return etapas.clone();
+    }
+
+    /**
+     * Retorna uma representação textual das métricas de todas as etapas.
+     *
+     * @return Uma linha por etapa.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Etapa etapa : etapas) {
+            sb.append(etapa).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Deixa de aceitar faturas e espera que as faturas já submetidas passem por todas as etapas.
+     */
+    @Override
+    public void close() {
+        terminado = true;
+        try {
+            etapas[0].fila.put(FIM);
+            for (Etapa etapa : etapas) {
+                etapa.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Etapa do pipeline: uma fila limitada e a thread única que a consome.
+     * As métricas são escritas apenas pela thread da etapa.
+     */
+    public static class Etapa {
+
+        /** Nome da etapa. */
+        private final String nome;
+
+        /** Fila de entrada da etapa. */
+        private final ArrayBlockingQueue<Pedido> fila;
+
+        /** Trabalho feito para cada pedido. */
+        private final Consumer<Pedido> trabalho;
+
+        /** Trabalho feito no fim de cada lote (antes de passar os pedidos à etapa seguinte), ou null. */
+        private final Runnable fimLote;
+
+        /** Thread da etapa. */
+        private final Thread thread;
+
+        /** Etapa seguinte, ou null se esta for a última. */
+        private Etapa seguinte;
+
+        /** Número de pedidos processados (incluindo os que falharam). */
+        private volatile long processados;
+
+        /** Número de lotes processados. */
+        private volatile long lotes;
+
+        /** Soma das esperas dos pedidos na fila, em nanossegundos. */
+        private volatile long esperaTotal;
+
+        /** Soma dos tempos de processamento, em nanossegundos. */
+        private volatile long tempoTotal;
+
+        /** Maior tempo de processamento de um lote, em nanossegundos. */
+        private volatile long tempoMaximoLote;
+
+        Etapa(String nome, int capacidade, Consumer<Pedido> trabalho, Runnable fimLote) {
+            this.nome = nome;
+            this.fila = new ArrayBlockingQueue<>(capacidade);
+            this.trabalho = trabalho;
+            this.fimLote = fimLote;
+            this.thread = new Thread(this::executar, "pipeline-faturas-" + nome);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Ciclo da thread da etapa: retira um lote da fila, processa-o e passa-o à etapa seguinte.
+         */
+        private void executar() {
+            ArrayList<Pedido> lote = new ArrayList<>();
+            try {
+                while (true) {
+                    lote.clear();
+                    lote.add(fila.take());
+                    fila.drainTo(lote);
+                    long inicio = System.nanoTime();
+                    boolean fim = false;
+                    long espera = 0;
+
+                    ArrayList<Pedido> validos = new ArrayList<>(lote.size());
+                    for (Pedido pedido : lote) {
+                        if (pedido == FIM) {
+                            fim = true;
+                            continue;
+                        }
+                        espera += inicio - pedido.entradaFila;
+                        try {
+                            trabalho.accept(pedido);
+                            validos.add(pedido);
+                        } catch (RuntimeException e) {
+                            falhar(pedido, e);
+                        }
+                    }
+                    if (fimLote != null && !validos.isEmpty()) {
+                        try {
+                            fimLote.run();
+                        } catch (RuntimeException e) {
+                            validos.forEach(pedido -> falhar(pedido, e));
+                            validos.clear();
+                        }
+                    }
+
+                    long fimProcessamento = System.nanoTime();
+                    long duracao = fimProcessamento - inicio;
+                    int numero = fim ? lote.size() - 1 : lote.size();
+                    processados += numero;
+                    lotes++;
+                    esperaTotal += espera;
+                    tempoTotal += duracao;
+                    tempoMaximoLote = Math.max(tempoMaximoLote, duracao);
+
+                    for (Pedido pedido : validos) {
+                        if (seguinte != null) {
+                            pedido.entradaFila = fimProcessamento;
+                            seguinte.fila.put(pedido);
+                        } else {
+                            pedido.resultado.complete(pedido.fatura);
+                        }
+                    }
+                    if (fim) {
+                        if (seguinte != null) {
+                            seguinte.fila.put(FIM);
+                        }
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Termina o resultado de um pedido com uma falha. Se a fatura já tiver sido registada, a falha
+         * não a desfaz e o resultado indica-a (ver FaturaSemDiarioException).
+         */
+        private static void falhar(Pedido pedido, RuntimeException e) {
+            pedido.resultado.completeExceptionally(pedido.registada ? new FaturaSemDiarioException(pedido.fatura, e) : e);
+        }
+
+        public String getNome() {
+            return nome;
+        }
+
+        /**
+         * Obtém o número de pedidos à espera na fila da etapa.
+         *
+         * @return A profundidade da fila.
+         */
+        public int getProfundidade() {
+            return fila.size();
+        }
+
+        public int getCapacidade() {
+            return fila.size() + fila.remainingCapacity();
+        }
+
+        public long getProcessados() {
+            return processados;
+        }
+
+        /**
+         * Obtém o tamanho médio dos lotes processados.
+         *
+         * @return O número médio de pedidos por lote.
+         */
+        public double getTamanhoMedioLote() {
+            long l = lotes;
+            return l == 0 ? 0.0 : (double) processados / l;
+        }
+
+        /**
+         * Obtém a espera média de um pedido na fila da etapa.
+         *
+         * @return A espera média, em microssegundos.
+         */
+        public double getEsperaMediaMicros() {
+            long p = processados;
+            return p == 0 ? 0.0 : esperaTotal / 1e3 / p;
+        }
+
+        /**
+         * Obtém o tempo médio de processamento de um pedido na etapa (incluindo a parte do fim do lote).
+         *
+         * @return O tempo médio, em microssegundos.
+         */
+        public double getTempoMedioMicros() {
+            long p = processados;
+            return p == 0 ? 0.0 : tempoTotal / 1e3 / p;
+        }
+
+        /**
+         * Obtém o maior tempo de processamento de um lote.
+         *
+         * @return O tempo máximo, em microssegundos.
+         */
+        public double getTempoMaximoLoteMicros() {
+            return tempoMaximoLote / 1e3;
+        }
+
+        /**
+         * Retorna uma representação textual das métricas da etapa.
+         *
+         * @return Uma string com as métricas.
+         */
+        @Override
+        public String toString() {
+            return String.format("%-10s fila: %5d/%-5d processados: %9d  lote médio: %7.1f  espera média: %9.1f µs  tempo médio: %7.1f µs  lote máx: %9.1f µs",
+                    nome, getProfundidade(), getCapacidade(), getProcessados(), getTamanhoMedioLote(),
+                    getEsperaMediaMicros(), getTempoMedioMicros(), getTempoMaximoLoteMicros());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Escolhe e executa o plano de uma consulta às faturas.
+ *
+ * Se só forem pedidos totais e os filtros existirem num agregado, a consulta é respondida sem olhar
+ * para as faturas: EstatisticasFaturas (sem filtros), AgregadosPeriodo (só datas) ou CuboIVA
+ * (localização, tipo de produto e meses completos). Caso contrário, entre os índices aplicáveis
+ * (cliente, produto, período) é usado o que tem menos faturas candidatas, e os restantes filtros
+ * são aplicados a essas faturas. Só quando nenhum índice se aplica é que as faturas são todas
+ * percorridas, em paralelo.
+ */
+final class PlaneadorConsultas {
+
+    private PlaneadorConsultas() {
+    }
+
+    /**
+     * Executa uma consulta sobre os dados de um sistema.
+     *
+     * @param sistema   O sistema com as faturas, índices e agregados.
+     * @param consulta  A consulta.
+     * @param projecao  A função que obtém o valor devolvido por cada fatura encontrada.
+     * @param <T>       O tipo dos valores projetados.
+     * @return O resultado da consulta.
+     */
+    static <T> ResultadoConsulta<T> executar(SistemaPOOFS sistema, ConsultaFaturas consulta, Function<Fatura, T> projecao) {
+        // Os agregados e os índices são lidos sem edições a meio (ver SistemaPOOFS.lockAgregados);
+        // as faturas candidatas são filtradas e somadas depois, já sem o lock
+        String plano = null;
+        int candidatas = Integer.MAX_VALUE;
+        List<Fatura> indice = null;
+        sistema.lockAgregados.writeLock().lock();
+        try {
+            ResultadoConsulta<T> agregado = porAgregados(sistema, consulta);
+            if (agregado != null) {
+                return agregado;
+            }
+
+            // Índice com menos faturas candidatas
+            if (consulta.nif != null) {
+                candidatas = sistema.indices.contarPorCliente(consulta.nif);
+                plano = "INDICE_CLIENTE";
+            }
+            if (consulta.codigoProduto != null) {
+                int porProduto = sistema.indices.contarPorProduto(consulta.codigoProduto);
+                if (porProduto < candidatas) {
+                    candidatas = porProduto;
+                    plano = "INDICE_PRODUTO";
+                }
+            }
+            if (consulta.dataInicio != null || consulta.dataFim != null) {
+                int porPeriodo = sistema.indices.contarPorPeriodo(consulta.diaInicio(), consulta.diaFim());
+                if (porPeriodo < candidatas) {
+                    candidatas = porPeriodo;
+                    plano = "INDICE_PERIODO";
+                }
+            }
+
+            if (plano != null) {
+                switch (plano) {
+                    case "INDICE_CLIENTE":
+                        indice = sistema.indices.porCliente(consulta.nif);
+                        break;
+                    case "INDICE_PRODUTO":
+                        indice = sistema.indices.porProduto(consulta.codigoProduto);
+                        break;
+                    default:
+                        indice = sistema.indices.porPeriodo(consulta.diaInicio(), consulta.diaFim());
+                }
+            }
+        } finally {
+            sistema.lockAgregados.writeLock().unlock();
+        }
+
+        List<Fatura> encontradas;
+        if (plano == null) {
+            List<Fatura> todas = sistema.copiaFaturas();
+            plano = "VARRIMENTO_PARALELO (" + todas.size() + " faturas)";
+            encontradas = todas.parallelStream()
+                    .filter(consulta::aceita)
+                    .collect(Collectors.toList());
+        } else {
+            plano += " (" + candidatas + " faturas candidatas)";
+            encontradas = new ArrayList<>();
+            for (Fatura fatura : indice) {
+                if (consulta.aceita(fatura)) {
+                    encontradas.add(fatura);
+                }
+            }
+            encontradas.sort(Comparator.comparingInt(Fatura::getNumeroFatura));
+        }
+
+        // Totais das linhas consideradas
+        SomaCompensada semIVA = new SomaCompensada();
+        SomaCompensada comIVA = new SomaCompensada();
+        long linhas = 0;
+        for (Fatura fatura : encontradas) {
+            for (Produto produto : fatura.getProdutos()) {
+                if (consulta.aceitaLinha(produto)) {
+                    semIVA.adicionar(produto.calcularValorSemIVA());
+                    comIVA.adicionar(produto.calcularValorComIVA(fatura.getCliente(), fatura.getData()));
+                    linhas++;
+                }
+            }
+        }
+
+        List<T> valores = consulta.apenasAgregados ? Collections.emptyList()
+                : encontradas.stream().map(projecao).collect(Collectors.toList());
+        return new ResultadoConsulta<>(valores, encontradas.size(), linhas, semIVA.getValor(), comIVA.getValor(), plano);
+    }
+
+    /**
+     * Responde à consulta a partir de um agregado, se só forem pedidos totais e os filtros o permitirem.
+     *
+     * @param sistema  O sistema.
+     * @param consulta A consulta.
+     * @param <T>      O tipo dos valores projetados.
+     * @return O resultado, ou null se nenhum agregado se aplicar.
+     */
+    private static <T> ResultadoConsulta<T> porAgregados(SistemaPOOFS sistema, ConsultaFaturas consulta) {
+        if (!consulta.apenasAgregados || consulta.nif != null || consulta.codigoProduto != null
+                || consulta.valorMinimo != Double.NEGATIVE_INFINITY || consulta.valorMaximo != Double.POSITIVE_INFINITY) {
+            return null;
+        }
+
+        boolean semDatas = consulta.dataInicio == null && consulta.dataFim == null;
+        boolean semDimensoes = consulta.regiao == CuboIVA.TODOS && consulta.tipoProduto == CuboIVA.TODOS;
+        if (semDimensoes && semDatas) {
+            EstatisticasFaturas estatisticas = sistema.estatisticas;
+            return new ResultadoConsulta<>(Collections.emptyList(), estatisticas.getNumeroFaturas(), estatisticas.getNumeroProdutos(),
+                    estatisticas.getTotalSemIVA(), estatisticas.getTotalComIVA(), "AGREGADOS_TOTAIS");
+        }
+        if (semDimensoes && consulta.dataInicio != null && consulta.dataFim != null) {
+            AgregadosPeriodo periodo = sistema.agregadosPeriodo;
+            return new ResultadoConsulta<>(Collections.emptyList(), periodo.numeroFaturas(consulta.dataInicio, consulta.dataFim), -1,
+                    periodo.totalSemIVA(consulta.dataInicio, consulta.dataFim),
+                    periodo.totalComIVA(consulta.dataInicio, consulta.dataFim), "AGREGADOS_PERIODO");
+        }
+        if (consulta.mesesCompletos()) {
+            CuboIVA cubo = sistema.cubo;
+            int mesInicio = consulta.dataInicio == null ? CuboIVA.TODOS : CuboIVA.mes(consulta.dataInicio);
+            int mesFim = consulta.dataFim == null ? CuboIVA.TODOS : CuboIVA.mes(consulta.dataFim);
+            return new ResultadoConsulta<>(Collections.emptyList(), -1,
+                    cubo.numeroLinhas(consulta.regiao, consulta.tipoProduto, mesInicio, mesFim),
+                    cubo.totalSemIVA(consulta.regiao, consulta.tipoProduto, mesInicio, mesFim),
+                    cubo.totalComIVA(consulta.regiao, consulta.tipoProduto, mesInicio, mesFim), "CUBO");
+        }
+        return null;
+    }
+}
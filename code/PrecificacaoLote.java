@@ -0,0 +1,107 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tarefa ForkJoin que calcula o total com IVA de um lote de faturas.
+ * O trabalho é dividido pelo número de linhas (produtos) e não pelo número de faturas,
+ * para que faturas com muitos produtos não desequilibrem a distribuição entre threads.
+ */
+class PrecificacaoLote extends RecursiveAction {
+
+    /**
+     * Versão da serialização (a tarefa nunca é serializada, mas RecursiveAction é Serializable).
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Número máximo de linhas processadas por uma tarefa sem voltar a dividir.
+     */
+    static final int LIMIAR_LINHAS = 4096;
+
+    /**
+     * Faturas a precificar.
+     */
+    private final Fatura[] faturas;
+
+    /**
+     * Soma acumulada do número de linhas: linhasAte[i] é o total de linhas das faturas 0..i-1.
+     */
+    private final long[] linhasAte;
+
+    /**
+     * Array onde são escritos os totais com IVA, na mesma ordem das faturas.
+     */
+    private final double[] totais;
+
+    /**
+     * Intervalo de faturas [inicio, fim) tratado por esta tarefa.
+     */
+    private final int inicio, fim;
+
+    /**
+     * Cria a tarefa raiz para um lote de faturas.
+     *
+     * @param faturas As faturas a precificar.
+     * @param totais  O array onde serão escritos os totais com IVA.
+     */
+    PrecificacaoLote(Fatura[] faturas, double[] totais) {
+        this(faturas, contarLinhas(faturas), totais, 0, faturas.length);
+    }
+
+    private PrecificacaoLote(Fatura[] faturas, long[] linhasAte, double[] totais, int inicio, int fim) {
+        this.faturas = faturas;
+        this.linhasAte = linhasAte;
+        this.totais = totais;
+        this.inicio = inicio;
+        this.fim = fim;
+    }
+
+    /**
+     * Calcula a soma acumulada do número de linhas das faturas.
+     *
+     * @param faturas As faturas.
+     * @return As linhas acumuladas (com faturas.length + 1 posições).
+     */
+    private static long[] contarLinhas(Fatura[] faturas) {
+        long[] linhasAte = new long[faturas.length + 1];
+        for (int i = 0; i < faturas.length; i++) {
+            linhasAte[i + 1] = linhasAte[i] + faturas[i].getProdutos().size();
+        }
+        return linhasAte;
+    }
+
+    @Override
+    protected void compute() {
+        long linhas = linhasAte[fim] - linhasAte[inicio];
+        if (linhas <= LIMIAR_LINHAS || fim - inicio < 2) {
+            for (int i = inicio; i < fim; i++) {
+                totais[i] = faturas[i].calcularTotalComIVA(faturas[i]);
+            }
+            return;
+        }
+
+        // Divide no ponto onde fica metade das linhas do intervalo
+        int meio = pontoDeDivisao(linhasAte[inicio] + linhas / 2);
+        invokeAll(new PrecificacaoLote(faturas, linhasAte, totais, inicio, meio),
+                new PrecificacaoLote(faturas, linhasAte, totais, meio, fim));
+    }
+
+    /**
+     * Procura a primeira fatura cujo total acumulado de linhas atinge o alvo,
+     * garantindo que as duas metades ficam com pelo menos uma fatura.
+     *
+     * @param alvo O número acumulado de linhas pretendido.
+     * @return O índice da fatura onde dividir.
+     */
+    private int pontoDeDivisao(long alvo) {
+        int esquerda = inicio + 1, direita = fim - 1;
+        while (esquerda < direita) {
+            int meio = (esquerda + direita) >>> 1;
+            if (linhasAte[meio] < alvo) {
+                esquerda = meio + 1;
+            } else {
+                direita = meio;
+            }
+        }
+        return esquerda;
+    }
+}
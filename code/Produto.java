@@ -1,4 +1,6 @@
 import java.io.Serializable;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Classe abstrata que representa um Produto genérico.
@@ -7,11 +9,18 @@ import java.io.Serializable;
  */
 public abstract class Produto implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe, para que os ficheiros de dados já gravados continuem a ser lidos
+     * (o mesmo nas subclasses).
+     */
+    private static final long serialVersionUID = -450899762273967531L;
+
     /**
      * Contador estático usado para gerar códigos únicos para os produtos.
-     * Incrementa automaticamente cada vez que um novo produto é criado.
+     * Incrementa automaticamente cada vez que um novo produto é criado (de forma atómica).
+     * O catálogo do sistema usa os códigos da sua própria sequência (ver SequenciaNumeracao).
      */
-    protected static int contador_codigo = 1;
+    protected static final AtomicInteger contador_codigo = new AtomicInteger(1);
 
     /**
      * Código único do produto.
@@ -72,7 +81,7 @@ public abstract class Produto implements Serializable {
      * @param valorUnitSemIVA Valor unitário sem IVA.
      */
     public Produto(String nome, String descricao, int quantidade, double valorUnitSemIVA){
-        this.codigo = contador_codigo++;
+        this.codigo = contador_codigo.getAndIncrement();
         this.nome = nome;
         this.descricao = descricao;
         this.quantidade = quantidade;
@@ -80,14 +89,46 @@ public abstract class Produto implements Serializable {
     }
 
     /**
-     * Método abstrato para calcular o valor do produto com IVA.
+     * Método abstrato para calcular o valor do produto com IVA, usando as taxas
+     * em vigor numa determinada data.
      * Deve ser implementado pelas subclasses de Produto.
      *
      * @param cliente Cliente para o qual o cálculo será feito,
      *                possibilitando considerar descontos ou taxas específicas.
+     * @param data    Data da fatura (ou null para usar as taxas atuais).
      * @return Valor total com IVA aplicado.
      */
-    protected abstract double calcularValorComIVA(Cliente cliente);
+    protected abstract double calcularValorComIVA(Cliente cliente, Date data);
+
+    /**
+     * Calcula o valor do produto com IVA, usando as taxas atualmente em vigor.
+     *
+     * @param cliente Cliente para o qual o cálculo será feito.
+     * @return Valor total com IVA aplicado.
+     */
+    protected double calcularValorComIVA(Cliente cliente) {
+        return calcularValorComIVA(cliente, null);
+    }
+
+    /**
+     * Método abstrato que indica o tipo de produto usado para procurar as taxas
+     * de IVA na TabelaTaxas (ex.: TabelaTaxas.TAXA_REDUZIDA).
+     *
+     * @return O índice do tipo de produto.
+     */
+    protected abstract int tipoTaxa();
+
+    /**
+     * Obtém a taxa de IVA base do produto para a localização do cliente,
+     * segundo a tabela de taxas em vigor na data indicada.
+     *
+     * @param cliente Cliente usado para determinar a localização.
+     * @param data    Data da fatura (ou null para usar as taxas atuais).
+     * @return A taxa de IVA base (%).
+     */
+    protected double taxaBase(Cliente cliente, Date data) {
+        return RegistoTaxas.tabelaEm(data).taxa(tipoTaxa(), cliente.localizacaoToIndex());
+    }
 
     /**
      * Calcula o valor total do produto sem IVA.
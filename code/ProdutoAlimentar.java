@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.Date;
 import java.util.Arrays;
 
 /**
@@ -8,6 +9,11 @@ import java.util.Arrays;
  */
 public abstract class ProdutoAlimentar extends Produto implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = 2957285987773646775L;
+
     /**
      * Indica se o produto é biológico (true para biológico, false caso contrário).
      */
@@ -70,9 +76,10 @@ public abstract class ProdutoAlimentar extends Produto implements Serializable {
      * Deve ser implementado pelas subclasses.
      *
      * @param cliente Cliente associado ao cálculo, permitindo personalizações.
+     * @param data    Data da fatura, que determina a tabela de taxas usada.
      * @return Valor total com IVA.
      */
-    protected abstract double calcularValorComIVA(Cliente cliente); //sera implementado nas subclassses
+    protected abstract double calcularValorComIVA(Cliente cliente, Date data); //sera implementado nas subclassses
 
     /**
      * Aplica o desconto para produtos biológicos, caso o produto seja marcado como "bio".
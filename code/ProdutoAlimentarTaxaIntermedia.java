@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Date;
 
 /**
  * Classe que representa um produto alimentar com taxa intermédia de IVA.
@@ -7,6 +8,11 @@ import java.util.Arrays;
  */
 public class ProdutoAlimentarTaxaIntermedia extends ProdutoAlimentar implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = 5220430112355233100L;
+
     /**
      * Categoria do produto alimentar.
      */
@@ -67,15 +73,13 @@ public class ProdutoAlimentarTaxaIntermedia extends ProdutoAlimentar implements
      * a categoria do produto e possíveis descontos para produtos biológicos.
      *
      * @param cliente Cliente associado ao cálculo, usado para determinar a localização.
+     * @param data    Data da fatura, que determina a tabela de taxas usada.
      * @return Valor total do produto com IVA.
      */
     @Override
-    protected double calcularValorComIVA(Cliente cliente) {
-        // Obtemos o índice da localização do cliente (ex.: 0 para Continente).
-        int indice = cliente.localizacaoToIndex();
-
-        // Carregamos a taxa correspondente à localização.
-        double taxa = listaTaxas[indice];
+    protected double calcularValorComIVA(Cliente cliente, Date data) {
+        // Carregamos a taxa correspondente à localização, em vigor na data da fatura.
+        double taxa = taxaBase(cliente, data);
 
         // Se a categoria for "vinho", adiciona 1% na taxa de IVA.
         if ("vinho".trim().equalsIgnoreCase(categoria))
@@ -88,6 +92,16 @@ public class ProdutoAlimentarTaxaIntermedia extends ProdutoAlimentar implements
         return calcularValorSemIVA() * (1 + taxa / 100);
     }
 
+    /**
+     * Indica o tipo de produto usado para procurar as taxas de IVA.
+     *
+     * @return TabelaTaxas.TAXA_INTERMEDIA
+     */
+    @Override
+    protected int tipoTaxa() {
+        return TabelaTaxas.TAXA_INTERMEDIA;
+    }
+
     /**
      * Retorna uma representação textual detalhada do produto, incluindo todas as informações relevantes.
      *
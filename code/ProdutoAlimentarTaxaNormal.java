@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Date;
 
 /**
  * Classe que representa um produto alimentar sujeito à taxa normal de IVA.
@@ -7,6 +8,11 @@ import java.util.Arrays;
  */
 public class ProdutoAlimentarTaxaNormal extends ProdutoAlimentar implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = 8300732380930047185L;
+
     /**
      * Lista de taxas de IVA aplicáveis em diferentes localizações (Continente, Madeira, Açores).
      */
@@ -70,14 +76,12 @@ public class ProdutoAlimentarTaxaNormal extends ProdutoAlimentar implements Seri
      * possíveis descontos para produtos biológicos.
      *
      * @param cliente Cliente associado ao cálculo, usado para determinar a localização.
+     * @param data    Data da fatura, que determina a tabela de taxas usada.
      * @return Valor total do produto com IVA.
      */
-    protected double calcularValorComIVA(Cliente cliente) {
-        // Obtemos o índice da localização do cliente (ex.: 0 para Continente).
-        int indice = cliente.localizacaoToIndex();
-
-        // Carregamos a taxa correspondente à localização.
-        double taxa = listaTaxas[indice];
+    protected double calcularValorComIVA(Cliente cliente, Date data) {
+        // Carregamos a taxa correspondente à localização, em vigor na data da fatura.
+        double taxa = taxaBase(cliente, data);
 
         // Aplica desconto para produtos biológicos, caso aplicável.
         taxa = descontoBio(taxa);
@@ -86,6 +90,16 @@ public class ProdutoAlimentarTaxaNormal extends ProdutoAlimentar implements Seri
         return calcularValorSemIVA() * (1 + taxa / 100);
     }
 
+    /**
+     * Indica o tipo de produto usado para procurar as taxas de IVA.
+     *
+     * @return TabelaTaxas.TAXA_NORMAL
+     */
+    @Override
+    protected int tipoTaxa() {
+        return TabelaTaxas.TAXA_NORMAL;
+    }
+
     // Métodos Getter e Setter
 
     public double[] getListaTaxas() {
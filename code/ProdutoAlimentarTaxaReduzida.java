@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Date;
 
 /**
  * Classe que representa um produto alimentar sujeito à taxa reduzida de IVA.
@@ -7,6 +8,11 @@ import java.util.Arrays;
  */
 public class ProdutoAlimentarTaxaReduzida extends ProdutoAlimentar implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = -7412700143519612713L;
+
     /**
      * Lista de certificações do produto
      */
@@ -62,14 +68,12 @@ public class ProdutoAlimentarTaxaReduzida extends ProdutoAlimentar implements Se
      * possíveis descontos para produtos biológicos e um ajuste de taxa baseado nas certificações.
      *
      * @param cliente Cliente associado ao cálculo, usado para determinar a localização.
+     * @param data    Data da fatura, que determina a tabela de taxas usada.
      * @return Valor total do produto com IVA.
      */
-    protected double calcularValorComIVA(Cliente cliente) {
-        // Obtemos o índice da localização do cliente (ex.: 0 para Continente).
-        int index = cliente.localizacaoToIndex();
-
-        //Carregamos a taxa correspondente à localização.
-        double taxa = listaTaxas[index];
+    protected double calcularValorComIVA(Cliente cliente, Date data) {
+        //Carregamos a taxa correspondente à localização, em vigor na data da fatura.
+        double taxa = taxaBase(cliente, data);
 
         // Se o produto tem exatamente 4 certificações, reduzimos a taxa de IVA em 1%.
         if (certificacoes != null && certificacoes.length == 4) {
@@ -83,6 +87,16 @@ public class ProdutoAlimentarTaxaReduzida extends ProdutoAlimentar implements Se
         return calcularValorSemIVA() * (1 + taxa / 100);
     }
 
+    /**
+     * Indica o tipo de produto usado para procurar as taxas de IVA.
+     *
+     * @return TabelaTaxas.TAXA_REDUZIDA
+     */
+    @Override
+    protected int tipoTaxa() {
+        return TabelaTaxas.TAXA_REDUZIDA;
+    }
+
     /**
      * Retorna uma representação textual detalhada do produto, incluindo todas as informações relevantes.
      *
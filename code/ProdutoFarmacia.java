@@ -1,4 +1,5 @@
 import java.io.Serializable;
+import java.util.Date;
 
 /**
  * Classe abstrata que representa um produto farmacêutico.
@@ -7,6 +8,11 @@ import java.io.Serializable;
  */
 public abstract class ProdutoFarmacia extends Produto implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = -7335976788915916647L;
+
     /**
      * Construtor padrão que inicializa o produto farmacêutico sem parâmetros.
      */
@@ -41,9 +47,10 @@ public abstract class ProdutoFarmacia extends Produto implements Serializable {
      * Este método deve ser implementado nas subclasses, fornecendo a lógica específica de cálculo de IVA.
      *
      * @param cliente O cliente para o qual o valor do produto com IVA será calculado.
+     * @param data A data da fatura, que determina a tabela de taxas usada.
      * @return O valor do produto com IVA aplicado.
      */
-    protected abstract double calcularValorComIVA(Cliente cliente);
+    protected abstract double calcularValorComIVA(Cliente cliente, Date data);
 
     /**
      * Método para calcular o valor do produto sem IVA.
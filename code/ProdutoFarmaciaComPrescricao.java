@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Date;
 
 /**
  * Representa um produto farmacêutico com prescrição médica.
@@ -8,6 +9,11 @@ import java.util.Arrays;
  */
 public class ProdutoFarmaciaComPrescricao extends ProdutoFarmacia implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = 7576067187581689030L;
+
     /**
      * O nome do médico que emitiu a prescrição para o produto.
      */
@@ -63,16 +69,25 @@ public class ProdutoFarmaciaComPrescricao extends ProdutoFarmacia implements Ser
      * Calcula o valor do produto, incluindo o IVA, com base na localização do cliente.
      *
      * @param cliente O objeto cliente, utilizado para determinar o índice da localização.
+     * @param data A data da fatura, que determina a tabela de taxas usada.
      * @return O valor do produto incluindo IVA.
      */
-    protected double calcularValorComIVA(Cliente cliente) {
-        //double[] taxas = {6, 5, 4}; // Index: 0 (Continente), 1 (Madeira), 2 (Açores e Acores)
-        int indice = cliente.localizacaoToIndex();
-        double taxa = listaTaxas[indice];
+    protected double calcularValorComIVA(Cliente cliente, Date data) {
+        double taxa = taxaBase(cliente, data);
 
         return calcularValorSemIVA() * (1 + taxa / 100);
     }
 
+    /**
+     * Indica o tipo de produto usado para procurar as taxas de IVA.
+     *
+     * @return TabelaTaxas.FARMACIA_COM_PRESCRICAO
+     */
+    @Override
+    protected int tipoTaxa() {
+        return TabelaTaxas.FARMACIA_COM_PRESCRICAO;
+    }
+
     /**
      * Retorna uma representação detalhada do produto, incluindo informações sobre a prescrição médica.
      *
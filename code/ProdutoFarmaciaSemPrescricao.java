@@ -1,5 +1,6 @@
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Date;
 
 /**
  * Representa um produto de farmácia que não requer prescrição médica.
@@ -7,6 +8,11 @@ import java.util.Arrays;
  */
 public class ProdutoFarmaciaSemPrescricao extends ProdutoFarmacia implements Serializable {
 
+    /**
+     * Fixado no valor da primeira versão da classe (ver Produto).
+     */
+    private static final long serialVersionUID = 41800603403197719L;
+
     /**
      * A categoria do produto (ex: "animais").
      */
@@ -64,12 +70,11 @@ public class ProdutoFarmaciaSemPrescricao extends ProdutoFarmacia implements Ser
      * Se o produto for da categoria "animais", aplica um desconto de 1% na taxa de IVA.
      *
      * @param cliente O objeto cliente, utilizado para determinar o índice da localização.
+     * @param data A data da fatura, que determina a tabela de taxas usada.
      * @return O valor do produto incluindo IVA.
      */
-    protected double calcularValorComIVA(Cliente cliente) {
-        //double[] taxas = {23, 23,23}; // Index: 0 (Continente), 1 (Madeira), 2 (Açores e Acores)
-        int indice = cliente.localizacaoToIndex();
-        double taxa = listaTaxas[indice];
+    protected double calcularValorComIVA(Cliente cliente, Date data) {
+        double taxa = taxaBase(cliente, data);
 
         if ("animais".trim().equalsIgnoreCase(categoria))
             taxa -= 1; // Diminui 1% para categoria "animais"
@@ -78,6 +83,16 @@ public class ProdutoFarmaciaSemPrescricao extends ProdutoFarmacia implements Ser
         return calcularValorSemIVA() * (1 + taxa / 100);
     }
 
+    /**
+     * Indica o tipo de produto usado para procurar as taxas de IVA.
+     *
+     * @return TabelaTaxas.FARMACIA_SEM_PRESCRICAO
+     */
+    @Override
+    protected int tipoTaxa() {
+        return TabelaTaxas.FARMACIA_SEM_PRESCRICAO;
+    }
+
     /**
      * Retorna uma representação detalhada do produto, incluindo informações sobre a categoria e as taxas aplicadas.
      *
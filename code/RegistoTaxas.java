@@ -0,0 +1,213 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registo global das tabelas de taxas de IVA, versionadas pela data de entrada em vigor.
+ * As tabelas são lidas de um ficheiro de configuração local e compiladas num array
+ * imutável ordenado por data, publicado através de uma referência atómica.
+ * O cálculo de preços apenas lê essa referência, sem qualquer bloqueio, e a configuração
+ * pode ser recarregada em tempo de execução.
+ *
+ * Formato do ficheiro (uma linha por tipo de produto e data):
+ * <pre>
+ * # data (DD/MM/YYYY); tipo; Continente; Madeira; Açores
+ * 01/01/2024; reduzida; 6; 5; 4
+ * </pre>
+ * Os tipos válidos são: reduzida, intermedia, normal, comPrescricao e semPrescricao.
+ * Os tipos omitidos numa data mantêm as taxas da versão anterior.
+ */
+public final class RegistoTaxas {
+
+    /**
+     * Versões das tabelas de taxas, ordenadas pela data de entrada em vigor.
+     */
+    private static final AtomicReference<TabelaTaxas[]> versoes =
+            new AtomicReference<>(new TabelaTaxas[]{TabelaTaxas.padrao()});
+
+    /**
+     * Ficheiro de configuração carregado mais recentemente.
+     */
+    private static volatile File ficheiro;
+
+    /**
+     * Data de modificação do ficheiro de configuração quando foi carregado.
+     */
+    private static volatile long ultimaModificacao;
+
+    private RegistoTaxas() {}
+
+    /**
+     * Obtém a tabela de taxas em vigor numa data. Se a data for nula, usa a data atual.
+     *
+     * @param data A data (normalmente a data da fatura).
+     * @return A tabela de taxas em vigor nessa data.
+     */
+    public static TabelaTaxas tabelaEm(Date data) {
+        TabelaTaxas[] tabelas = versoes.get();
+        long instante = data != null ? data.getTime() : System.currentTimeMillis();
+
+        // Pesquisa binária pela última tabela com início de vigor <= instante
+        int inicio = 0, fim = tabelas.length - 1, encontrada = 0;
+        while (inicio <= fim) {
+            int meio = (inicio + fim) >>> 1;
+            if (tabelas[meio].getInicioVigor() <= instante) {
+                encontrada = meio;
+                inicio = meio + 1;
+            } else {
+                fim = meio - 1;
+            }
+        }
+        return tabelas[encontrada];
+    }
+
+    /**
+     * Obtém a tabela de taxas em vigor neste momento.
+     *
+     * @return A tabela de taxas atual.
+     */
+    public static TabelaTaxas atual() {
+        return tabelaEm(null);
+    }
+
+    /**
+     * Calcula uma assinatura do conjunto de tabelas carregado, que muda sempre que
+     * alguma taxa ou data de vigor muda.
+     *
+     * @return A assinatura das tabelas de taxas.
+     */
+    public static long assinatura() {
+        long assinatura = 1;
+        for (TabelaTaxas tabela : versoes.get()) {
+            assinatura = 31 * assinatura + tabela.assinatura();
+        }
+        return assinatura;
+    }
+
+    /**
+     * Carrega as tabelas de taxas de um ficheiro de configuração e substitui as atuais.
+     * Se o ficheiro tiver erros, as tabelas atuais mantêm-se.
+     *
+     * @param arquivo O ficheiro de configuração.
+     * @throws IOException Se o ficheiro não puder ser lido ou estiver mal formatado.
+     */
+    public static synchronized void carregar(File arquivo) throws IOException {
+        long modificacao = arquivo.lastModified();
+        versoes.set(compilar(lerFicheiro(arquivo)));
+        ficheiro = arquivo;
+        ultimaModificacao = modificacao;
+    }
+
+    /**
+     * Recarrega o ficheiro de configuração se este tiver sido alterado desde o último carregamento.
+     *
+     * @return true se as tabelas foram recarregadas.
+     */
+    public static boolean recarregarSeAlterado() {
+        File arquivo = ficheiro;
+        if (arquivo == null || arquivo.lastModified() == ultimaModificacao) {
+            return false;
+        }
+        try {
+            carregar(arquivo);
+            System.out.println("Taxas de IVA recarregadas de " + arquivo);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Erro ao recarregar taxas: " + e.getMessage());
+            ultimaModificacao = arquivo.lastModified(); // Evita repetir o erro até nova alteração
+            return false;
+        }
+    }
+
+    /**
+     * Lê o ficheiro de configuração, agrupando as taxas por data de entrada em vigor.
+     *
+     * @param arquivo O ficheiro de configuração.
+     * @return As taxas lidas, por data e por tipo de produto.
+     * @throws IOException Se o ficheiro não puder ser lido ou estiver mal formatado.
+     */
+    private static TreeMap<Long, double[][]> lerFicheiro(File arquivo) throws IOException {
+        TreeMap<Long, double[][]> porData = new TreeMap<>();
+        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
+        sdf.setLenient(false);
+
+        try (BufferedReader br = new BufferedReader(new FileReader(arquivo))) {
+            String linha;
+            int linhaAtual = 0;
+            while ((linha = br.readLine()) != null) {
+                linhaAtual++;
+                linha = linha.trim();
+                if (linha.isEmpty() || linha.startsWith("#")) {
+                    continue;
+                }
+
+                String[] partes = linha.split(";");
+                if (partes.length != 2 + TabelaTaxas.NUMERO_REGIOES) {
+                    throw new IOException("Linha " + linhaAtual + ": formato inválido.");
+                }
+                try {
+                    long data = sdf.parse(partes[0].trim()).getTime();
+                    int tipo = tipoPorNome(partes[1].trim());
+                    double[] taxas = new double[TabelaTaxas.NUMERO_REGIOES];
+                    for (int regiao = 0; regiao < taxas.length; regiao++) {
+                        taxas[regiao] = Double.parseDouble(partes[2 + regiao].trim());
+                    }
+                    porData.computeIfAbsent(data, d -> new double[TabelaTaxas.NUMERO_TIPOS][])[tipo] = taxas;
+                } catch (ParseException | IllegalArgumentException e) {
+                    throw new IOException("Linha " + linhaAtual + ": " + e.getMessage());
+                }
+            }
+        }
+        return porData;
+    }
+
+    /**
+     * Compila as taxas lidas num array de tabelas imutáveis ordenado por data.
+     * Os tipos omitidos numa data herdam as taxas da versão anterior.
+     *
+     * @param porData As taxas lidas, por data.
+     * @return As tabelas compiladas.
+     */
+    private static TabelaTaxas[] compilar(TreeMap<Long, double[][]> porData) {
+        ArrayList<TabelaTaxas> tabelas = new ArrayList<>();
+        TabelaTaxas anterior = TabelaTaxas.padrao();
+        tabelas.add(anterior);
+
+        for (var entrada : porData.entrySet()) {
+            double[][] taxas = entrada.getValue();
+            for (int tipo = 0; tipo < TabelaTaxas.NUMERO_TIPOS; tipo++) {
+                if (taxas[tipo] == null) {
+                    taxas[tipo] = anterior.taxasPara(tipo);
+                }
+            }
+            TabelaTaxas tabela = new TabelaTaxas(entrada.getKey(), taxas);
+            if (!tabela.mesmasTaxas(anterior)) {
+                tabelas.add(tabela);
+                anterior = tabela;
+            }
+        }
+        return tabelas.toArray(new TabelaTaxas[0]);
+    }
+
+    /**
+     * Converte o nome de um tipo de produto no índice correspondente.
+     *
+     * @param nome O nome do tipo de produto.
+     * @return O índice do tipo.
+     */
+    private static int tipoPorNome(String nome) {
+        for (int tipo = 0; tipo < TabelaTaxas.NOMES_TIPOS.length; tipo++) {
+            if (TabelaTaxas.NOMES_TIPOS[tipo].equalsIgnoreCase(nome)) {
+                return tipo;
+            }
+        }
+        throw new IllegalArgumentException("Tipo de produto desconhecido: " + nome);
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Réplica só de leitura dos dados de outro processo (o principal), para correr consultas pesadas
+ * (estatísticas, listagens) sem usar a memória nem os locks do processo que cria as faturas.
+ *
+ * A réplica mapeia em memória o arquivo de dados gravado pelo principal e acompanha o seu diário
+ * (ver DiarioAlteracoes), registando as faturas novas à medida que são acrescentadas. Quando o principal
+ * grava os dados (e substitui o arquivo e o diário), a réplica lê o novo arquivo para um novo sistema,
+ * que passa a ser devolvido por getSistema; as consultas em curso continuam sobre o sistema anterior.
+ * A réplica nunca escreve nos ficheiros do principal.
+ *
+ * Só as faturas criadas pelo pipeline (ver PipelineFaturas) são registadas no diário: as restantes
+ * alterações chegam à réplica com a gravação seguinte do principal.
+ */
+public class ReplicaLeitura implements AutoCloseable {
+
+    /**
+     * Intervalo por omissão entre verificações dos ficheiros do principal, em milissegundos.
+     */
+    public static final long INTERVALO_PADRAO_MS = 200;
+
+    /**
+     * O arquivo de dados do principal.
+     */
+    private final File arquivo;
+
+    /**
+     * O diário do principal.
+     */
+    private final File ficheiroDiario;
+
+    /**
+     * Intervalo entre verificações, em milissegundos.
+     */
+    private final long intervaloMs;
+
+    /**
+     * O sistema com os dados replicados.
+     */
+    private volatile SistemaPOOFS sistema;
+
+    /**
+     * Identificação do arquivo de dados lido (ver identificacao), ou null se ainda não foi lido.
+     */
+    private Object arquivoLido;
+
+    /**
+     * Identificação do diário que está a ser acompanhado, ou null se ainda não existia.
+     */
+    private Object diarioLido;
+
+    /**
+     * Posição do diário até onde os registos já foram aplicados.
+     */
+    private volatile long posicaoDiario;
+
+    /**
+     * Tamanho do diário na última verificação.
+     */
+    private volatile long tamanhoDiario;
+
+    /**
+     * Instante (System.currentTimeMillis) da última verificação concluída, em que a réplica ficou
+     * com tudo o que o principal tinha escrito.
+     */
+    private volatile long ultimaSincronizacao;
+
+    /**
+     * Tempo entre a escrita da última alteração aplicada pelo principal e a sua aplicação na réplica,
+     * em milissegundos.
+     */
+    private volatile long atrasoUltimaAplicacao;
+
+    /**
+     * Maior tempo entre a escrita de uma alteração e a sua aplicação, em milissegundos.
+     */
+    private volatile long atrasoMaximo;
+
+    /**
+     * Instante da última modificação dos ficheiros do principal já aplicada.
+     */
+    private long ultimaModificacaoAplicada;
+
+    /**
+     * Número de vezes que o arquivo de dados foi lido.
+     */
+    private final AtomicLong numeroRecarregamentos = new AtomicLong();
+
+    /**
+     * Número de faturas do diário aplicadas.
+     */
+    private final AtomicLong faturasAplicadas = new AtomicLong();
+
+    /**
+     * Número de verificações que falharam.
+     */
+    private final AtomicLong numeroFalhas = new AtomicLong();
+
+    /**
+     * Objeto usado para acordar a thread de verificação ao terminar.
+     */
+    private final Object sinal = new Object();
+
+    /**
+     * Thread que acompanha os ficheiros do principal.
+     */
+    private final Thread thread;
+
+    /**
+     * Indica se a réplica foi terminada.
+     */
+    private volatile boolean terminada;
+
+    /**
+     * Construtor que lê os dados do principal e inicia a thread que acompanha as alterações.
+     *
+     * @param arquivo     O arquivo de dados do principal.
+     * @param intervaloMs O intervalo entre verificações, em milissegundos.
+     * @throws IOException Se não for possível ler os dados.
+     */
+    public ReplicaLeitura(File arquivo, long intervaloMs) throws IOException {
+        if (intervaloMs <= 0) {
+            throw new IllegalArgumentException("O intervalo deve ser maior que zero.");
+        }
+        this.arquivo = arquivo;
+        this.ficheiroDiario = DiarioAlteracoes.ficheiroDe(arquivo);
+        this.intervaloMs = intervaloMs;
+        this.sistema = new SistemaPOOFS();
+        this.sistema.criarCatalogoInicial();
+        sincronizar();
+        this.thread = new Thread(this::executar, "replica-poofs");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Ciclo da thread: verifica os ficheiros do principal a cada intervalo.
+     */
+    private void executar() {
+        while (!terminada) {
+            synchronized (sinal) {
+                try {
+                    if (!terminada) {
+                        sinal.wait(intervaloMs);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (terminada) {
+                return;
+            }
+            try {
+                sincronizar();
+            } catch (IOException | RuntimeException e) {
+                if (numeroFalhas.getAndIncrement() == 0) {
+                    System.out.println("Erro ao acompanhar os dados de " + arquivo + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Aplica as alterações escritas pelo principal desde a última verificação. Se o arquivo de dados
+     * ou o diário foram substituídos (o principal gravou os dados), o arquivo é lido de novo e o
+     * diário é aplicado desde o início (as faturas já incluídas no arquivo são ignoradas).
+     *
+     * @throws IOException Se ocorrer um erro de leitura.
+     */
+    synchronized void sincronizar() throws IOException {
+        long inicio = System.currentTimeMillis();
+        long modificacao = 0;
+        Object diario = identificacao(ficheiroDiario);
+        Object dados = identificacao(arquivo);
+        boolean diarioSubstituido = diarioLido != null && !diarioLido.equals(diario);
+        if (dados != null && (!dados.equals(arquivoLido) || diarioSubstituido)) {
+            SistemaPOOFS novo = new SistemaPOOFS();
+            try (InputStream in = new EntradaMapeada(arquivo)) {
+                novo.carregarCopia(in);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Formato de dados desconhecido: " + e.getMessage(), e);
+            }
+            sistema = novo;
+            arquivoLido = dados;
+            posicaoDiario = 0;
+            numeroRecarregamentos.incrementAndGet();
+            modificacao = arquivo.lastModified();
+        } else if (diarioSubstituido) {
+            posicaoDiario = 0;
+        }
+        diarioLido = diario;
+
+        if (diario != null) {
+            SistemaPOOFS atual = sistema;
+            try {
+                long anterior = posicaoDiario;
+                posicaoDiario = DiarioAlteracoes.lerDesde(ficheiroDiario, posicaoDiario, registo -> {
+                    if (atual.aplicarRegisto(registo)) {
+                        faturasAplicadas.incrementAndGet();
+                    }
+                });
+                if (posicaoDiario != anterior) {
+                    modificacao = Math.max(modificacao, ficheiroDiario.lastModified());
+                }
+                tamanhoDiario = ficheiroDiario.length();
+            } catch (NoSuchFileException e) {
+                // Diário substituído durante a leitura: é lido de novo na próxima verificação
+                diarioLido = null;
+            }
+        } else {
+            tamanhoDiario = 0;
+        }
+
+        if (modificacao > ultimaModificacaoAplicada) {
+            ultimaModificacaoAplicada = modificacao;
+            atrasoUltimaAplicacao = Math.max(0, System.currentTimeMillis() - modificacao);
+            atrasoMaximo = Math.max(atrasoMaximo, atrasoUltimaAplicacao);
+        }
+        ultimaSincronizacao = inicio;
+    }
+
+    /**
+     * Obtém a identificação de um ficheiro (o i-node, quando o sistema de ficheiros a fornece, ou a data
+     * de modificação e o tamanho), que muda quando o principal o substitui.
+     *
+     * @return A identificação, ou null se o ficheiro não existir.
+     */
+    private static Object identificacao(File ficheiro) throws IOException {
+        try {
+            BasicFileAttributes atributos = Files.readAttributes(ficheiro.toPath(), BasicFileAttributes.class);
+            Object chave = atributos.fileKey();
+            return chave != null ? chave : atributos.lastModifiedTime() + ":" + atributos.size();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Leitura de um ficheiro mapeado em memória (só para leitura).
+     */
+    private static class EntradaMapeada extends InputStream {
+
+        private final ByteBuffer mapa;
+
+        EntradaMapeada(File ficheiro) throws IOException {
+            try (FileChannel canal = FileChannel.open(ficheiro.toPath(), StandardOpenOption.READ)) {
+                mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            }
+        }
+
+        @Override
+        public int read() {
+            return mapa.hasRemaining() ? mapa.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] destino, int inicio, int tamanho) {
+            Objects.checkFromIndexSize(inicio, tamanho, destino.length);
+            if (tamanho == 0) {
+                return 0;
+            }
+            if (!mapa.hasRemaining()) {
+                return -1;
+            }
+            int lidos = Math.min(tamanho, mapa.remaining());
+            mapa.get(destino, inicio, lidos);
+            return lidos;
+        }
+
+        @Override
+        public int available() {
+            return mapa.remaining();
+        }
+    }
+
+    /**
+     * Obtém o sistema com os dados replicados, para consultas. O sistema não deve ser alterado
+     * (as alterações não chegam ao principal) e pode ser substituído por um novo quando o principal
+     * grava os dados, pelo que deve ser obtido de novo para cada consulta.
+     *
+     * @return O sistema.
+     */
+    public SistemaPOOFS getSistema() {
+        return sistema;
+    }
+
+    /**
+     * Obtém o atraso da réplica: o tempo desde a última verificação em que a réplica ficou com tudo
+     * o que o principal tinha escrito. Alterações feitas pelo principal há menos tempo podem ainda
+     * não estar na réplica.
+     *
+     * @return O atraso, em milissegundos.
+     */
+    public long getAtrasoMs() {
+        return Math.max(0, System.currentTimeMillis() - ultimaSincronizacao);
+    }
+
+    /**
+     * Obtém o tempo entre a escrita da última alteração aplicada e a sua aplicação na réplica.
+     *
+     * @return O tempo, em milissegundos.
+     */
+    public long getAtrasoUltimaAplicacaoMs() {
+        return atrasoUltimaAplicacao;
+    }
+
+    /**
+     * Obtém o maior tempo observado entre a escrita de uma alteração e a sua aplicação na réplica.
+     *
+     * @return O tempo, em milissegundos.
+     */
+    public long getAtrasoMaximoMs() {
+        return atrasoMaximo;
+    }
+
+    /**
+     * Obtém o número de bytes do diário ainda não aplicados na última verificação.
+     *
+     * @return O número de bytes.
+     */
+    public long getBytesPendentes() {
+        return Math.max(0, tamanhoDiario - posicaoDiario);
+    }
+
+    /**
+     * Obtém o número de vezes que o arquivo de dados do principal foi lido.
+     *
+     * @return O número de leituras.
+     */
+    public long getNumeroRecarregamentos() {
+        return numeroRecarregamentos.get();
+    }
+
+    /**
+     * Obtém o número de faturas do diário aplicadas.
+     *
+     * @return O número de faturas.
+     */
+    public long getFaturasAplicadas() {
+        return faturasAplicadas.get();
+    }
+
+    /**
+     * Obtém o número de verificações que falharam.
+     *
+     * @return O número de falhas.
+     */
+    public long getNumeroFalhas() {
+        return numeroFalhas.get();
+    }
+
+    /**
+     * Retorna uma representação textual das métricas da réplica.
+     *
+     * @return Uma string com as métricas.
+     */
+    @Override
+    public String toString() {
+        return "Replica: {" +
+                "atrasoMs=" + getAtrasoMs() +
+                ", atrasoUltimaAplicacaoMs=" + getAtrasoUltimaAplicacaoMs() +
+                ", atrasoMaximoMs=" + getAtrasoMaximoMs() +
+                ", bytesPendentes=" + getBytesPendentes() +
+                ", recarregamentos=" + getNumeroRecarregamentos() +
+                ", faturasAplicadas=" + getFaturasAplicadas() +
+                ", falhas=" + getNumeroFalhas() +
+                '}';
+    }
+
+    /**
+     * Termina a thread que acompanha os ficheiros do principal.
+     */
+    @Override
+    public void close() {
+        terminada = true;
+        synchronized (sinal) {
+            sinal.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.List;
+
+/**
+ * Resultado de uma consulta às faturas: os valores projetados de cada fatura, os totais
+ * das linhas consideradas e o plano usado para responder.
+ * Quando a consulta é respondida por um agregado, os valores que esse agregado não guarda valem -1.
+ *
+ * @param <T> O tipo dos valores projetados.
+ */
+public class ResultadoConsulta<T> {
+
+    /**
+     * Valores projetados das faturas encontradas, por ordem de número de fatura.
+     */
+    private final List<T> valores;
+
+    /**
+     * Número de faturas encontradas.
+     */
+    private final long numeroFaturas;
+
+    /**
+     * Número de linhas consideradas.
+     */
+    private final long numeroLinhas;
+
+    /**
+     * Total sem IVA das linhas consideradas.
+     */
+    private final double totalSemIVA;
+
+    /**
+     * Total com IVA das linhas consideradas.
+     */
+    private final double totalComIVA;
+
+    /**
+     * Descrição do plano usado.
+     */
+    private final String plano;
+
+    /**
+     * Construtor do resultado.
+     *
+     * @param valores       Os valores projetados.
+     * @param numeroFaturas O número de faturas, ou -1.
+     * @param numeroLinhas  O número de linhas, ou -1.
+     * @param totalSemIVA   O total sem IVA.
+     * @param totalComIVA   O total com IVA.
+     * @param plano         A descrição do plano.
+     */
+    public ResultadoConsulta(List<T> valores, long numeroFaturas, long numeroLinhas,
+                             double totalSemIVA, double totalComIVA, String plano) {
+        this.valores = valores;
+        this.numeroFaturas = numeroFaturas;
+        this.numeroLinhas = numeroLinhas;
+        this.totalSemIVA = totalSemIVA;
+        this.totalComIVA = totalComIVA;
+        this.plano = plano;
+    }
+
+    public List<T> getValores() {
+        return valores;
+    }
+
+    public long getNumeroFaturas() {
+        return numeroFaturas;
+    }
+
+    public long getNumeroLinhas() {
+        return numeroLinhas;
+    }
+
+    public double getTotalSemIVA() {
+        return totalSemIVA;
+    }
+
+    public double getTotalComIVA() {
+        return totalComIVA;
+    }
+
+    public double getTotalIVA() {
+        return totalComIVA - totalSemIVA;
+    }
+
+    public String getPlano() {
+        return plano;
+    }
+
+    /**
+     * Retorna uma representação textual do resultado.
+     *
+     * @return Uma string com os totais e o plano.
+     */
+    @Override
+    public String toString() {
+        return "Resultado: {" +
+                "numeroFaturas=" + numeroFaturas +
+                ", numeroLinhas=" + numeroLinhas +
+                ", totalSemIVA=" + totalSemIVA +
+                ", totalComIVA=" + totalComIVA +
+                ", plano=" + plano +
+                '}';
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sequência de números (por exemplo, números de fatura) atribuídos por blocos.
+ *
+ * Cada bloco é reservado no ficheiro da sequência, que guarda o primeiro número ainda não reservado
+ * (a marca de água), com um lock do sistema operativo sobre o ficheiro. Assim, vários processos que
+ * usem o mesmo ficheiro nunca recebem números repetidos. Dentro de um bloco, os números são obtidos
+ * sem locks, com um contador atómico.
+ *
+ * Os números de um bloco que não chegaram a ser usados quando o processo termina ficam por usar
+ * (a sequência pode ter falhas, mas nunca repetições). Sem ficheiro, a sequência existe apenas em memória.
+ */
+public class SequenciaNumeracao {
+
+    /**
+     * Número de números reservados por omissão em cada bloco.
+     */
+    public static final int TAMANHO_BLOCO_PADRAO = 1000;
+
+    /**
+     * O ficheiro da sequência, ou null se a sequência existir apenas em memória.
+     */
+    private final File ficheiro;
+
+    /**
+     * Número de números reservados em cada bloco.
+     */
+    private final int tamanhoBloco;
+
+    /**
+     * O bloco atual.
+     */
+    private volatile Bloco bloco;
+
+    /**
+     * Primeiro número que o próximo bloco pode usar (marca de água em memória).
+     */
+    private long minimoProximoBloco;
+
+    /**
+     * Construtor da sequência.
+     *
+     * @param ficheiro     O ficheiro da sequência, ou null para uma sequência só em memória.
+     * @param tamanhoBloco O número de números reservados em cada bloco.
+     * @param primeiro     O primeiro número da sequência, se o ficheiro ainda não existir.
+     */
+    public SequenciaNumeracao(File ficheiro, int tamanhoBloco, long primeiro) {
+        if (tamanhoBloco <= 0) {
+            throw new IllegalArgumentException("O tamanho do bloco deve ser maior que zero.");
+        }
+        this.ficheiro = ficheiro;
+        this.tamanhoBloco = tamanhoBloco;
+        this.minimoProximoBloco = primeiro;
+        this.bloco = new Bloco(primeiro, primeiro);    // vazio: o primeiro pedido reserva um bloco
+    }
+
+    /**
+     * Indica se o ficheiro de uma sequência existe.
+     *
+     * @param ficheiro O ficheiro da sequência.
+     * @return true se o ficheiro existir.
+     */
+    public static boolean existe(File ficheiro) {
+        return ficheiro.isFile() && ficheiro.length() >= Long.BYTES;
+    }
+
+    /**
+     * Obtém o próximo número da sequência.
+     *
+     * @return O número.
+     * @throws UncheckedIOException Se não for possível reservar um novo bloco no ficheiro.
+     */
+    public long proximo() {
+        while (true) {
+            Bloco atual = bloco;
+            long numero = atual.cursor.getAndIncrement();
+            if (numero < atual.fim) {
+                return numero;
+            }
+            reservarBloco(atual);
+        }
+    }
+
+    /**
+     * Obtém o próximo número da sequência como int.
+     *
+     * @return O número.
+     * @throws IllegalStateException Se a sequência ultrapassou o maior int.
+     */
+    public int proximoInt() {
+        long numero = proximo();
+        if (numero > Integer.MAX_VALUE) {
+            throw new IllegalStateException("A sequência ultrapassou o número máximo: " + numero);
+        }
+        return (int) numero;
+    }
+
+    /**
+     * Garante que a sequência nunca atribui um número menor ou igual ao indicado
+     * (por exemplo, depois de importar uma fatura com um número já definido).
+     * No caso comum, em que o número já foi ultrapassado pela sequência, não usa locks.
+     *
+     * @param numero O número já usado.
+     */
+    public void reservarAte(long numero) {
+        Bloco atual = bloco;
+        if (numero < Math.min(atual.cursor.get(), atual.fim)) {
+            return;
+        }
+        synchronized (this) {
+            atual = bloco;
+            if (numero < Math.min(atual.cursor.get(), atual.fim)) {
+                return;
+            }
+            minimoProximoBloco = Math.max(minimoProximoBloco, numero + 1);
+            if (numero >= atual.cursor.get()) {
+                // O resto do bloco atual deixa de servir: o próximo pedido reserva um bloco acima do número
+                bloco = new Bloco(numero + 1, numero + 1);
+            }
+            try {
+                atualizarFicheiro(0);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Erro ao atualizar a sequência " + ficheiro, e);
+            }
+        }
+    }
+
+    /**
+     * Reserva um novo bloco, se o bloco indicado ainda for o atual.
+     *
+     * @param esgotado O bloco que se esgotou.
+     */
+    private synchronized void reservarBloco(Bloco esgotado) {
+        if (bloco != esgotado) {
+            return;     // Outra thread já reservou um bloco novo
+        }
+        try {
+            long inicio = atualizarFicheiro(tamanhoBloco);
+            bloco = new Bloco(inicio, inicio + tamanhoBloco);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Erro ao reservar números na sequência " + ficheiro, e);
+        }
+    }
+
+    /**
+     * Lê a marca de água do ficheiro (com o ficheiro bloqueado), avança-a e grava-a.
+     *
+     * @param quantidade O número de números a reservar.
+     * @return O primeiro número reservado.
+     * @throws IOException Se ocorrer um erro de leitura ou escrita.
+     */
+    // O lock do ficheiro do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    private long atualizarFicheiro(int quantidade) throws IOException {
+        if (ficheiro == null) {
+            long inicio = minimoProximoBloco;
+            minimoProximoBloco += quantidade;
+            return inicio;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(ficheiro, "rw");
+             FileChannel canal = raf.getChannel();
+             FileLock lock = canal.lock()) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            long marca = 0;
+            if (canal.size() >= Long.BYTES) {
+                canal.read(buffer, 0);
+                marca = buffer.flip().getLong();
+            }
+            long inicio = Math.max(marca, minimoProximoBloco);
+            minimoProximoBloco = inicio + quantidade;
+
+            buffer.clear();
+            buffer.putLong(minimoProximoBloco).flip();
+            canal.write(buffer, 0);
+            canal.force(false);
+            return inicio;
+        }
+    }
+
+    /**
+     * Obtém o primeiro número ainda não reservado por este processo.
+     *
+     * @return A marca de água em memória.
+     */
+    public synchronized long getMarcaAgua() {
+        return minimoProximoBloco;
+    }
+
+    /**
+     * Intervalo de números reservado, atribuído com um contador atómico.
+     */
+    private static class Bloco {
+
+        /** Próximo número a atribuir (pode ultrapassar o fim quando o bloco se esgota). */
+        final AtomicLong cursor;
+
+        /** Fim do bloco (exclusivo). */
+        final long fim;
+
+        Bloco(long inicio, long fim) {
+            this.cursor = new AtomicLong(inicio);
+            this.fim = fim;
+        }
+    }
+}
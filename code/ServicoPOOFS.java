@@ -0,0 +1,780 @@
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Camada de serviço do sistema, sem interação com a consola: cada operação recebe os dados já lidos,
+ * valida-os e lança IllegalArgumentException se forem inválidos (ou IllegalStateException se a operação
+ * não puder ser feita naquele momento). Pode ser usada diretamente a partir de código ou de outros
+ * clientes (por exemplo, um servidor HTTP); os menus de SistemaPOOFS limitam-se a ler os dados e
+ * a chamar estas operações.
+ *
+ * Todas as operações podem ser chamadas por várias threads ao mesmo tempo (ver os locks de SistemaPOOFS).
+ */
+public class ServicoPOOFS {
+
+    /**
+     * Ano mínimo admitido nas datas das faturas.
+     */
+    private static final int ANO_MINIMO = 1900;
+
+    /**
+     * O sistema com os dados.
+     */
+    private final SistemaPOOFS sistema;
+
+    /**
+     * Construtor do serviço.
+     *
+     * @param sistema O sistema sobre o qual o serviço opera.
+     */
+    public ServicoPOOFS(SistemaPOOFS sistema) {
+        this.sistema = sistema;
+    }
+
+    //************************ VALIDAÇÕES ************************
+
+    /**
+     * Verifica se o nome contém apenas letras e espaços (e pelo menos 2 caracteres).
+     *
+     * @param nome O nome do cliente.
+     * @return true se o nome for válido, caso contrário, false.
+     */
+    public static boolean nomeValido(String nome) {
+        int tamanho_nome = 2;
+        if (nome == null || nome.length() < tamanho_nome) return false;
+        for (char c : nome.toCharArray()) {
+            if (!Character.isLetter(c) && c != ' ') {
+                return false;       //Nome inválido
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifica se o NIF contém exatamente 9 dígitos.
+     *
+     * @param nif O número de contribuinte a ser validado.
+     * @return true se o NIF for válido, caso contrário, false.
+     */
+    public static boolean nifValido(String nif) {
+        int tamanho = 9;
+        // Caso o nif inserido nao tenha comprimento 9
+        if (nif == null || nif.length() != tamanho) {
+            return false;
+        }
+
+        // Verifica se todos os caracteres são dígitos
+        for (char c : nif.toCharArray()) {
+            if (!Character.isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Verifica se a localização é uma das opções válidas (Continente, Madeira ou Açores).
+     *
+     * @param localizacao A localização a ser validada.
+     * @return true se a localização for válida, caso contrário, false.
+     */
+    public static boolean localizacaoValida(String localizacao) {
+        if (localizacao == null) return false;
+        return localizacao.trim().equalsIgnoreCase("Continente")
+                || localizacao.trim().equalsIgnoreCase("Madeira")
+                || localizacao.trim().equalsIgnoreCase("Açores")
+                || localizacao.trim().equalsIgnoreCase("Acores");
+    }
+
+    //************************ CLIENTES ************************
+
+    /**
+     * Cria e regista um cliente.
+     *
+     * @param nome        O nome do cliente.
+     * @param nif         O número de contribuinte.
+     * @param localizacao A localização (Continente, Madeira ou Açores).
+     * @return O cliente criado.
+     * @throws IllegalArgumentException Se algum dado for inválido ou o NIF já existir.
+     */
+    public Cliente criarCliente(String nome, String nif, String localizacao) {
+        if (!nomeValido(nome)) {
+            throw new IllegalArgumentException("Nome inválido! Usar apenas letras e espaços.");
+        }
+        if (!nifValido(nif)) {
+            throw new IllegalArgumentException("Numero de contribuinte inválido! Deve conter 9 digitos.");
+        }
+        if (!localizacaoValida(localizacao)) {
+            throw new IllegalArgumentException("Localização inválida! Escolha entre Continente,Madeira e Açores");
+        }
+        Cliente cliente = new Cliente(nome, nif, localizacao);
+        sistema.adicionarCliente(cliente);
+        return cliente;
+    }
+
+    /**
+     * Altera o nome e a localização de um cliente. Se a localização mudar, as faturas do cliente
+     * são atualizadas nos agregados.
+     *
+     * @param nif         O NIF do cliente.
+     * @param nome        O novo nome, ou null/vazio para manter.
+     * @param localizacao A nova localização, ou null/vazio para manter.
+     * @return O cliente alterado.
+     * @throws IllegalArgumentException Se o cliente não existir ou algum dado for inválido.
+     */
+    // Os bloqueios dos try-with-resources só são usados para serem libertados no fim do bloco
+    @SuppressWarnings("try")
+    public Cliente editarCliente(String nif, String nome, String localizacao) {
+        Cliente cliente = clienteExistente(nif);
+        boolean alterarNome = nome != null && !nome.isEmpty();
+        boolean alterarLocalizacao = localizacao != null && !localizacao.isEmpty();
+        if (alterarNome && !nomeValido(nome)) {
+            throw new IllegalArgumentException("Nome inválido! Usar apenas letras e espaços.");
+        }
+        if (alterarLocalizacao && !localizacaoValida(localizacao)) {
+            throw new IllegalArgumentException("Localização inválida! Escolha entre Continente,Madeira e Açores");
+        }
+
+        sistema.lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueioCliente = sistema.locksClientes.bloquear(nif)) {
+            if (alterarNome) {
+                cliente.setNome(nome);
+            }
+            sistema.clienteAlterado(cliente);
+            if (alterarLocalizacao) {
+                // A localização altera o IVA de todas as faturas do cliente
+                ArrayList<Fatura> faturasCliente = new ArrayList<>(sistema.indices.porCliente(nif));
+                try (LocksEstratificados.Bloqueio bloqueioFaturas = sistema.locksFaturas.bloquear(numerosDe(faturasCliente))) {
+                    sistema.lockAgregados.readLock().lock();
+                    try {
+                        faturasCliente.forEach(sistema::retirarDosAgregados);
+                        cliente.setLocalizacaoCliente(localizacao);
+                        faturasCliente.forEach(sistema::incluirNosAgregados);
+                    } finally {
+                        sistema.lockAgregados.readLock().unlock();
+                    }
+                }
+            }
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+        return cliente;
+    }
+
+    /**
+     * Obtém um cliente pelo NIF.
+     *
+     * @param nif O NIF do cliente.
+     * @return O cliente, ou null se não existir.
+     */
+    public Cliente obterCliente(String nif) {
+        return nif == null ? null : sistema.clientesPorNif.get(nif);
+    }
+
+    Cliente clienteExistente(String nif) {
+        Cliente cliente = obterCliente(nif);
+        if (cliente == null) {
+            throw new IllegalArgumentException("Cliente com NIF " + nif + " não encontrado.");
+        }
+        return cliente;
+    }
+
+    //************************ FATURAS ************************
+
+    /**
+     * Cria e regista uma fatura com os produtos do catálogo indicados.
+     *
+     * @param nif     O NIF do cliente.
+     * @param data    A data da fatura, ou null para a data atual.
+     * @param codigos Os códigos dos produtos (pelo menos um, sem repetições).
+     * @return A fatura criada.
+     * @throws IllegalArgumentException Se o cliente ou algum produto não existir, ou se não houver produtos.
+     * @throws IllegalStateException    Se algum produto não tiver stock suficiente.
+     */
+    public Fatura criarFatura(String nif, Date data, Collection<Integer> codigos) {
+        Cliente cliente = clienteExistente(nif);
+        validarPedidoFatura(data, codigos);
+        ArrayList<Produto> produtos = produtosExistentes(codigos);
+
+        Fatura fatura = new Fatura(sistema.proximoNumeroFatura(), cliente, data != null ? data : new Date(), produtos);
+        registarFatura(fatura);
+        return fatura;
+    }
+
+    /**
+     * Regista uma fatura nova, reservando o stock das suas linhas (usado também por PipelineFaturas).
+     * A reserva e o registo são feitos com o lock de leitura dos dados, para que uma gravação inclua
+     * sempre as duas ou nenhuma.
+     *
+     * @param fatura A fatura.
+     * @throws IllegalStateException    Se algum produto não tiver stock suficiente.
+     * @throws IllegalArgumentException Se já existir uma fatura com o mesmo número.
+     */
+    void registarFatura(Fatura fatura) {
+        EventoFatura evento;
+        sistema.lockDados.readLock().lock();
+        try {
+            reservarStock(fatura);
+            try {
+                sistema.adicionarFatura(fatura);
+                evento = sistema.criarEvento(EventoFatura.Tipo.CRIADA, fatura);
+            } catch (RuntimeException e) {
+                libertarStock(fatura);
+                throw e;
+            }
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+        sistema.publicarEvento(evento);
+    }
+
+    /**
+     * Valida os dados de uma nova fatura que não dependem do sistema (usado também por PipelineFaturas).
+     *
+     * @param data    A data da fatura, ou null para a data atual.
+     * @param codigos Os códigos dos produtos.
+     * @throws IllegalArgumentException Se não houver produtos, algum estiver repetido ou a data for inválida.
+     */
+    static void validarPedidoFatura(Date data, Collection<Integer> codigos) {
+        if (codigos == null || codigos.isEmpty()) {
+            throw new IllegalArgumentException("A fatura deve ter pelo menos 1 produto.");
+        }
+        HashSet<Integer> vistos = new HashSet<>();
+        for (int codigo : codigos) {
+            if (!vistos.add(codigo)) {
+                throw new IllegalArgumentException("O produto " + codigo + " está repetido na fatura.");
+            }
+        }
+        if (data != null) {
+            validarData(data);
+        }
+    }
+
+    /**
+     * Obtém uma fatura pelo número.
+     *
+     * @param numeroFatura O número da fatura.
+     * @return A fatura, ou null se não existir.
+     */
+    public Fatura obterFatura(int numeroFatura) {
+        return sistema.faturasPorNumero.get(numeroFatura);
+    }
+
+    /**
+     * Altera o cliente de uma fatura.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param nif          O NIF do novo cliente.
+     * @throws IllegalArgumentException Se a fatura ou o cliente não existirem.
+     */
+    public void alterarClienteFatura(int numeroFatura, String nif) {
+        Cliente novoCliente = clienteExistente(nif);
+        editarFatura(numeroFatura, fatura -> fatura.setCliente(novoCliente));
+    }
+
+    /**
+     * Altera a data de uma fatura.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param data         A nova data.
+     * @throws IllegalArgumentException Se a fatura não existir ou a data estiver fora do intervalo permitido.
+     */
+    public void alterarDataFatura(int numeroFatura, Date data) {
+        validarData(data);
+        editarFatura(numeroFatura, fatura -> fatura.setData(data));
+    }
+
+    /**
+     * Acrescenta um produto do catálogo a uma fatura.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param codigo       O código do produto.
+     * @throws IllegalArgumentException Se a fatura ou o produto não existirem, ou se o produto já estiver na fatura.
+     * @throws IllegalStateException    Se o produto não tiver stock suficiente.
+     */
+    public void adicionarProdutoFatura(int numeroFatura, int codigo) {
+        Produto produto = produtoExistente(codigo);
+        editarFatura(numeroFatura, fatura -> {
+            if (fatura.getProdutos().contains(produto)) {
+                throw new IllegalArgumentException("Este produto já está na fatura.");
+            }
+            boolean controlado = sistema.stock.controlado(codigo);
+            if (!sistema.stock.reservar(codigo, produto.getQuantidade())) {
+                throw new IllegalStateException(semStock(codigo));
+            }
+            // Nova lista em vez de alterar a atual, que pode estar a ser percorrida sem o lock da fatura
+            ArrayList<Produto> produtos = new ArrayList<>(fatura.getProdutos());
+            produtos.add(produto);
+            fatura.setProdutos(produtos);
+            fatura.marcarReservada(codigo, controlado);
+        });
+    }
+
+    /**
+     * Remove um produto de uma fatura.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param codigo       O código do produto.
+     * @throws IllegalArgumentException Se a fatura não existir ou não tiver o produto.
+     */
+    public void removerProdutoFatura(int numeroFatura, int codigo) {
+        editarFatura(numeroFatura, fatura -> {
+            Produto produto = produtoNaFatura(fatura, codigo);
+            ArrayList<Produto> produtos = new ArrayList<>(fatura.getProdutos());
+            produtos.remove(produto);
+            fatura.setProdutos(produtos);
+            if (fatura.linhaReservada(codigo)) {
+                sistema.stock.ajustar(codigo, produto.getQuantidade());
+                fatura.marcarReservada(codigo, false);
+            }
+        });
+    }
+
+    /**
+     * Altera a quantidade de um produto de uma fatura. Como o produto é partilhado com outras faturas,
+     * os totais dessas faturas também são atualizados e a diferença é reservada (ou libertada) no stock
+     * para todas as faturas em que a linha do produto reservou stock.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param codigo       O código do produto.
+     * @param quantidade   A nova quantidade (maior que zero).
+     * @throws IllegalArgumentException Se a fatura não existir, não tiver o produto ou a quantidade for inválida.
+     * @throws IllegalStateException    Se as outras faturas com o produto estiverem a ser editadas ou não houver stock suficiente.
+     */
+    // O bloqueio do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    public void alterarQuantidadeProduto(int numeroFatura, int codigo, int quantidade) {
+        if (quantidade <= 0) {
+            throw new IllegalArgumentException("A quantidade deve ser maior que zero.");
+        }
+        Fatura fatura = obterFatura(numeroFatura);
+        if (fatura == null) {
+            throw new IllegalArgumentException("Fatura não encontrada.");
+        }
+        ArrayList<EventoFatura> eventos = new ArrayList<>();
+        sistema.lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueio = sistema.locksFaturas.bloquear(numeroFatura)) {
+            Produto produto = produtoNaFatura(fatura, codigo);
+            ArrayList<Fatura> afetadas = new ArrayList<>();
+            for (Fatura outra : sistema.indices.porProduto(codigo)) {
+                if (outra != fatura && outra.getProdutos().contains(produto)) {
+                    afetadas.add(outra);
+                }
+            }
+            // Esta fatura já está bloqueada: as outras só são bloqueadas se estiverem livres
+            // (antes do lock dos agregados, para não o ter enquanto espera)
+            try (LocksEstratificados.Bloqueio bloqueioOutras = sistema.locksFaturas.tentarBloquear(numerosDe(afetadas), 1, TimeUnit.SECONDS)) {
+                if (bloqueioOutras == null) {
+                    throw new IllegalStateException("Há outras faturas com este produto em edição. Tente novamente.");
+                }
+                int reservadas = fatura.linhaReservada(codigo) ? 1 : 0;
+                for (Fatura outra : afetadas) {
+                    if (outra.linhaReservada(codigo)) reservadas++;
+                }
+                long diferenca = (long) (quantidade - produto.getQuantidade()) * reservadas;
+                if (diferenca > 0 && !sistema.stock.reservar(codigo, diferenca)) {
+                    throw new IllegalStateException(semStock(codigo));
+                }
+                if (diferenca < 0) {
+                    sistema.stock.ajustar(codigo, -diferenca);
+                }
+                afetadas.add(0, fatura);
+                sistema.lockAgregados.readLock().lock();
+                try {
+                    afetadas.forEach(sistema::retirarDosAgregados);
+                    produto.setQuantidade(quantidade);
+                    afetadas.forEach(sistema::incluirNosAgregados);
+                } finally {
+                    sistema.lockAgregados.readLock().unlock();
+                }
+                afetadas.forEach(Fatura::novaVersao);
+                afetadas.forEach(sistema::faturaAlterada);
+                afetadas.forEach(alterada -> eventos.add(sistema.criarEvento(EventoFatura.Tipo.EDITADA, alterada)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Edição interrompida.");
+            }
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+        eventos.forEach(sistema::publicarEvento);
+    }
+
+    /**
+     * Inicia uma edição otimista de uma fatura (ver EdicaoFatura): copia o cliente, a data, os produtos
+     * e a versão da fatura, que só fica bloqueada durante a cópia.
+     *
+     * @param numeroFatura O número da fatura.
+     * @return A edição.
+     * @throws IllegalArgumentException Se a fatura não existir.
+     */
+    // O bloqueio do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    public EdicaoFatura iniciarEdicao(int numeroFatura) {
+        Fatura fatura = obterFatura(numeroFatura);
+        if (fatura == null) {
+            throw new IllegalArgumentException("Fatura não encontrada.");
+        }
+        sistema.lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueio = sistema.locksFaturas.bloquear(numeroFatura)) {
+            return new EdicaoFatura(this, numeroFatura, fatura.getVersao(), fatura.getCliente(), fatura.getData(),
+                    new ArrayList<>(fatura.getProdutos()));
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+    }
+
+    /**
+     * Confirma uma edição otimista: se a fatura ainda estiver na versão em que a edição começou,
+     * aplica todas as alterações e passa a fatura para a versão seguinte (compare-and-set);
+     * caso contrário, não aplica nenhuma. A fatura só fica bloqueada durante a confirmação.
+     *
+     * @param edicao A edição.
+     * @throws ConflitoVersaoException  Se a fatura foi alterada desde o início da edição.
+     * @throws IllegalStateException    Se outras faturas com os produtos alterados estiverem a ser editadas
+     *                                  ou algum produto não tiver stock suficiente.
+     * @throws IllegalArgumentException Se a fatura deixou de existir.
+     */
+    // O bloqueio do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    public void confirmarEdicao(EdicaoFatura edicao) {
+        int numeroFatura = edicao.getNumeroFatura();
+        Fatura fatura = obterFatura(numeroFatura);
+        if (fatura == null) {
+            throw new IllegalArgumentException("Fatura não encontrada.");
+        }
+        ArrayList<EventoFatura> eventosEdicao = new ArrayList<>();
+        sistema.lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueio = sistema.locksFaturas.bloquear(numeroFatura)) {
+            if (fatura.getVersao() != edicao.getVersaoBase()) {
+                throw new ConflitoVersaoException(numeroFatura, edicao.getVersaoBase(), fatura.getVersao());
+            }
+
+            // Outras faturas com os produtos cuja quantidade muda (os produtos são partilhados)
+            // e diferenças no stock de cada produto: linhas removidas, acrescentadas e quantidades alteradas
+            // (só contam as linhas que reservaram stock e as acrescentadas a produtos com stock controlado)
+            LinkedHashSet<Fatura> afetadas = new LinkedHashSet<>();
+            Map<Integer, Long> diferencas = new LinkedHashMap<>();
+            List<Produto> removidos = new ArrayList<>();
+            Map<Integer, Boolean> acrescentados = new LinkedHashMap<>();
+            for (Produto produto : fatura.getProdutos()) {
+                if (!edicao.getProdutos().contains(produto)) {
+                    removidos.add(produto);
+                    if (fatura.linhaReservada(produto.getCodigo())) {
+                        diferencas.merge(produto.getCodigo(), (long) -produto.getQuantidade(), Long::sum);
+                    }
+                }
+            }
+            for (Produto produto : edicao.getProdutos()) {
+                Integer quantidade = edicao.getQuantidades().get(produto.getCodigo());
+                int novaQuantidade = quantidade != null ? quantidade : produto.getQuantidade();
+                if (!fatura.getProdutos().contains(produto)) {
+                    boolean controlado = sistema.stock.controlado(produto.getCodigo());
+                    acrescentados.put(produto.getCodigo(), controlado);
+                    if (controlado) {
+                        diferencas.merge(produto.getCodigo(), (long) novaQuantidade, Long::sum);
+                    }
+                }
+                if (quantidade == null) continue;
+                int comProduto = fatura.getProdutos().contains(produto) && fatura.linhaReservada(produto.getCodigo()) ? 1 : 0;
+                for (Fatura outra : sistema.indices.porProduto(produto.getCodigo())) {
+                    if (outra != fatura && outra.getProdutos().contains(produto)) {
+                        afetadas.add(outra);
+                        if (outra.linhaReservada(produto.getCodigo())) comProduto++;
+                    }
+                }
+                diferencas.merge(produto.getCodigo(), (long) (quantidade - produto.getQuantidade()) * comProduto, Long::sum);
+            }
+            try (LocksEstratificados.Bloqueio bloqueioOutras = sistema.locksFaturas.tentarBloquear(numerosDe(afetadas), 1, TimeUnit.SECONDS)) {
+                if (bloqueioOutras == null) {
+                    throw new IllegalStateException("Há outras faturas com estes produtos em edição. Tente novamente.");
+                }
+                reservarDiferencas(diferencas);
+                sistema.lockAgregados.readLock().lock();
+                try {
+                    sistema.retirarDosAgregados(fatura);
+                    afetadas.forEach(sistema::retirarDosAgregados);
+                    try {
+                        fatura.setCliente(edicao.getCliente());
+                        fatura.setData(edicao.getData());
+                        fatura.setProdutos(new ArrayList<>(edicao.getProdutos()));
+                        removidos.forEach(produto -> fatura.marcarReservada(produto.getCodigo(), false));
+                        acrescentados.forEach(fatura::marcarReservada);
+                        for (Produto produto : edicao.getProdutos()) {
+                            Integer quantidade = edicao.getQuantidades().get(produto.getCodigo());
+                            if (quantidade != null) {
+                                produto.setQuantidade(quantidade);
+                            }
+                        }
+                    } finally {
+                        sistema.incluirNosAgregados(fatura);
+                        afetadas.forEach(sistema::incluirNosAgregados);
+                    }
+                } finally {
+                    sistema.lockAgregados.readLock().unlock();
+                }
+                fatura.novaVersao();
+                afetadas.forEach(Fatura::novaVersao);
+                sistema.faturaAlterada(fatura);
+                afetadas.forEach(sistema::faturaAlterada);
+                eventosEdicao.add(sistema.criarEvento(EventoFatura.Tipo.EDITADA, fatura));
+                afetadas.forEach(outra -> eventosEdicao.add(sistema.criarEvento(EventoFatura.Tipo.EDITADA, outra)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Edição interrompida.");
+            }
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+        eventosEdicao.forEach(sistema::publicarEvento);
+    }
+
+    /**
+     * Reserva o stock das linhas de uma fatura nova, de uma só vez, e regista na fatura as linhas
+     * que reservaram (as dos produtos com stock controlado).
+     *
+     * @param fatura A fatura (a quantidade de cada linha é a do produto).
+     * @throws IllegalStateException Se algum produto não tiver stock suficiente (nada fica reservado).
+     */
+    private void reservarStock(Fatura fatura) {
+        List<Produto> produtos = fatura.getProdutos();
+        int[] codigos = new int[produtos.size()];
+        long[] quantidades = new long[produtos.size()];
+        boolean[] controlados = new boolean[produtos.size()];
+        for (int i = 0; i < codigos.length; i++) {
+            codigos[i] = produtos.get(i).getCodigo();
+            quantidades[i] = produtos.get(i).getQuantidade();
+            controlados[i] = sistema.stock.controlado(codigos[i]);
+        }
+        int semStock = sistema.stock.reservarTodos(codigos, quantidades);
+        if (semStock >= 0) {
+            throw new IllegalStateException(semStock(codigos[semStock]));
+        }
+        for (int i = 0; i < codigos.length; i++) {
+            fatura.marcarReservada(codigos[i], controlados[i]);
+        }
+    }
+
+    /**
+     * Liberta o stock das linhas de uma fatura que o reservaram.
+     *
+     * @param fatura A fatura.
+     */
+    private void libertarStock(Fatura fatura) {
+        for (Produto produto : fatura.getProdutos()) {
+            if (fatura.linhaReservada(produto.getCodigo())) {
+                sistema.stock.ajustar(produto.getCodigo(), produto.getQuantidade());
+                fatura.marcarReservada(produto.getCodigo(), false);
+            }
+        }
+    }
+
+    /**
+     * Aplica diferenças às quantidades reservadas: as positivas são reservadas de uma só vez e só depois
+     * são libertadas as negativas.
+     *
+     * @param diferencas As diferenças das quantidades reservadas, por código de produto.
+     * @throws IllegalStateException Se algum produto não tiver stock suficiente (nada é alterado).
+     */
+    private void reservarDiferencas(Map<Integer, Long> diferencas) {
+        List<Map.Entry<Integer, Long>> reservas = new ArrayList<>();
+        for (Map.Entry<Integer, Long> diferenca : diferencas.entrySet()) {
+            if (diferenca.getValue() > 0) reservas.add(diferenca);
+        }
+        int[] codigos = new int[reservas.size()];
+        long[] quantidades = new long[reservas.size()];
+        for (int i = 0; i < codigos.length; i++) {
+            codigos[i] = reservas.get(i).getKey();
+            quantidades[i] = reservas.get(i).getValue();
+        }
+        int semStock = sistema.stock.reservarTodos(codigos, quantidades);
+        if (semStock >= 0) {
+            throw new IllegalStateException(semStock(codigos[semStock]));
+        }
+        for (Map.Entry<Integer, Long> diferenca : diferencas.entrySet()) {
+            if (diferenca.getValue() < 0) sistema.stock.ajustar(diferenca.getKey(), -diferenca.getValue());
+        }
+    }
+
+    private static String semStock(int codigo) {
+        return "Stock insuficiente do produto " + codigo + ".";
+    }
+
+    /**
+     * Aplica uma alteração a uma fatura com a fatura bloqueada, retirando-a dos agregados antes
+     * e voltando a incluí-la depois (mesmo que a alteração falhe), com o lock de leitura dos agregados
+     * (ver SistemaPOOFS.lockAgregados) para que ninguém os leia a meio. A fatura passa para a versão seguinte
+     * e o evento da edição é publicado depois de a fatura ser libertada.
+     *
+     * @param numeroFatura O número da fatura.
+     * @param alteracao    A alteração.
+     */
+    // O bloqueio do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    private void editarFatura(int numeroFatura, Consumer<Fatura> alteracao) {
+        Fatura fatura = obterFatura(numeroFatura);
+        if (fatura == null) {
+            throw new IllegalArgumentException("Fatura não encontrada.");
+        }
+        EventoFatura evento;
+        sistema.lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueio = sistema.locksFaturas.bloquear(numeroFatura)) {
+            sistema.lockAgregados.readLock().lock();
+            try {
+                sistema.retirarDosAgregados(fatura);
+                try {
+                    alteracao.accept(fatura);
+                    fatura.novaVersao();
+                } finally {
+                    sistema.incluirNosAgregados(fatura);
+                }
+            } finally {
+                sistema.lockAgregados.readLock().unlock();
+                sistema.faturaAlterada(fatura);
+            }
+            evento = sistema.criarEvento(EventoFatura.Tipo.EDITADA, fatura);
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+        sistema.publicarEvento(evento);
+    }
+
+    /**
+     * Verifica se o ano de uma data está no intervalo permitido (de ANO_MINIMO até ao ano atual).
+     */
+    static void validarData(Date data) {
+        Calendar calendario = Calendar.getInstance();
+        int anoAtual = calendario.get(Calendar.YEAR);
+        calendario.setTime(data);
+        int ano = calendario.get(Calendar.YEAR);
+        if (ano < ANO_MINIMO || ano > anoAtual)
+            throw new IllegalArgumentException("Ano fora do intervalo permitido.");
+    }
+
+    //************************ PRODUTOS ************************
+
+    /**
+     * Obtém um produto do catálogo pelo código.
+     *
+     * @param codigo O código do produto.
+     * @return O produto, ou null se não existir.
+     */
+    public Produto obterProduto(int codigo) {
+        for (Produto produto : sistema.listaProdutos) {
+            if (produto.getCodigo() == codigo)
+                return produto;
+        }
+        return null;
+    }
+
+    /**
+     * Define o stock disponível de um produto, que passa a ser controlado (ver StockProdutos).
+     *
+     * @param codigo     O código do produto.
+     * @param quantidade A quantidade disponível.
+     * @throws IllegalArgumentException Se o produto não existir ou a quantidade for negativa.
+     */
+    public void definirStock(int codigo, long quantidade) {
+        produtoExistente(codigo);
+        sistema.lockDados.readLock().lock();
+        try {
+            sistema.stock.definir(codigo, quantidade);
+            sistema.dadosAlterados();
+        } finally {
+            sistema.lockDados.readLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém o stock disponível de um produto.
+     *
+     * @param codigo O código do produto.
+     * @return A quantidade disponível, ou StockProdutos.SEM_CONTROLO se o stock do produto não é controlado.
+     */
+    public long obterStock(int codigo) {
+        return sistema.stock.disponivel(codigo);
+    }
+
+    Produto produtoExistente(int codigo) {
+        Produto produto = obterProduto(codigo);
+        if (produto == null) {
+            throw new IllegalArgumentException("Produto com o código " + codigo + " não encontrado.");
+        }
+        return produto;
+    }
+
+    /**
+     * Obtém os produtos do catálogo com os códigos indicados.
+     *
+     * @param codigos Os códigos dos produtos.
+     * @return Os produtos, pela mesma ordem.
+     * @throws IllegalArgumentException Se algum produto não existir.
+     */
+    ArrayList<Produto> produtosExistentes(Collection<Integer> codigos) {
+        ArrayList<Produto> produtos = new ArrayList<>(codigos.size());
+        for (int codigo : codigos) {
+            produtos.add(produtoExistente(codigo));
+        }
+        return produtos;
+    }
+
+    private static Produto produtoNaFatura(Fatura fatura, int codigo) {
+        for (Produto produto : fatura.getProdutos()) {
+            if (produto.getCodigo() == codigo) {
+                return produto;
+            }
+        }
+        throw new IllegalArgumentException("Produto com o código " + codigo + " não encontrado na fatura.");
+    }
+
+    private static ArrayList<Integer> numerosDe(Collection<Fatura> faturas) {
+        ArrayList<Integer> numeros = new ArrayList<>(faturas.size());
+        for (Fatura fatura : faturas) {
+            numeros.add(fatura.getNumeroFatura());
+        }
+        return numeros;
+    }
+
+    //************************ CONSULTAS ************************
+
+    /**
+     * Executa uma consulta às faturas (ver SistemaPOOFS.consultar).
+     *
+     * @param consulta A consulta.
+     * @return O resultado, com as faturas, os totais e o plano usado.
+     */
+    public ResultadoConsulta<Fatura> consultar(ConsultaFaturas consulta) {
+        return sistema.consultar(consulta);
+    }
+
+    /**
+     * Executa uma consulta às faturas com uma projeção (ver SistemaPOOFS.consultar).
+     *
+     * @param consulta A consulta.
+     * @param projecao A função que obtém o valor devolvido por cada fatura.
+     * @param <T>      O tipo dos valores devolvidos.
+     * @return O resultado, com os valores, os totais e o plano usado.
+     */
+    public <T> ResultadoConsulta<T> consultar(ConsultaFaturas consulta, Function<Fatura, T> projecao) {
+        return sistema.consultar(consulta, projecao);
+    }
+
+    /**
+     * Obtém as estatísticas das faturas (número de faturas, de produtos e totais).
+     *
+     * @return As estatísticas atualizadas.
+     */
+    public EstatisticasFaturas estatisticas() {
+        return sistema.getEstatisticas();
+    }
+}
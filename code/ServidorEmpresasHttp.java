@@ -0,0 +1,252 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servidor HTTP de várias empresas num só processo (ver HospedeiroPOOFS). Os pedidos são encaminhados
+ * pelo identificador da empresa, o primeiro segmento do caminho depois de /empresas, e o sistema
+ * da empresa é carregado no primeiro pedido e descarregado quando fica inativo.
+ *
+ * Pedidos (corpo em application/x-www-form-urlencoded, respostas em JSON, como em ServidorHttpPOOFS):
+ * <pre>
+ * GET  /empresas                                empresas carregadas e métricas do alojamento
+ * POST /empresas/{empresa}/clientes             nome=...&nif=...&localizacao=...
+ * POST /empresas/{empresa}/faturas              nif=...&produtos=1,2,3[&data=dd/MM/yyyy]
+ * GET  /empresas/{empresa}/faturas/{numero}
+ * POST /empresas/{empresa}/stock                codigo=...&quantidade=...
+ * GET  /empresas/{empresa}/stock/{codigo}
+ * GET  /empresas/{empresa}/estatisticas
+ * </pre>
+ * As faturas são criadas diretamente pela camada de serviço (sem pipeline nem diário): os dados de cada
+ * empresa são gravados pela gravação em segundo plano do seu fragmento.
+ */
+public class ServidorEmpresasHttp implements AutoCloseable {
+
+    /**
+     * O alojamento das empresas.
+     */
+    private final HospedeiroPOOFS hospedeiro;
+
+    /**
+     * O servidor HTTP.
+     */
+    private final HttpServer servidor;
+
+    /**
+     * Executor dos pedidos.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Construtor do servidor (que só começa a aceitar pedidos depois de iniciar()).
+     *
+     * @param diretorio O diretório dos ficheiros de dados das empresas.
+     * @param porta     A porta (0 para uma porta livre qualquer).
+     * @throws IOException Se não for possível abrir a porta.
+     */
+    public ServidorEmpresasHttp(File diretorio, int porta) throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.servidor = HttpServer.create(new InetSocketAddress(porta), 0);
+        this.hospedeiro = new HospedeiroPOOFS(diretorio);
+        this.executor = ServidorHttpPOOFS.criarExecutor();
+        servidor.setExecutor(executor);
+        servidor.createContext("/empresas", this::tratar);
+    }
+
+    /**
+     * Começa a aceitar pedidos.
+     */
+    public void iniciar() {
+        servidor.start();
+    }
+
+    /**
+     * Obtém a porta em que o servidor está a escutar.
+     *
+     * @return A porta.
+     */
+    public int getPorta() {
+        return servidor.getAddress().getPort();
+    }
+
+    /**
+     * Obtém o alojamento das empresas.
+     *
+     * @return O alojamento.
+     */
+    public HospedeiroPOOFS getHospedeiro() {
+        return hospedeiro;
+    }
+
+    /**
+     * Para o servidor, esperando pelos pedidos em curso, e descarrega todas as empresas,
+     * gravando as alterações pendentes.
+     */
+    @Override
+    public void close() {
+        servidor.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hospedeiro.close();
+    }
+
+    //************************ PEDIDOS ************************
+
+    /**
+     * Encaminha um pedido para a empresa e o recurso indicados no caminho.
+     */
+    private void tratar(HttpExchange troca) throws IOException {
+        String[] partes = troca.getRequestURI().getPath().split("/");
+        // partes[0] é vazio e partes[1] é "empresas"
+        if (partes.length <= 2 && partes[partes.length - 1].equals("empresas")) {
+            tratarAlojamento(troca);
+            return;
+        }
+        if (partes.length < 4 || !partes[1].equals("empresas")) {
+            ServidorHttpPOOFS.responder(troca, 404, ServidorHttpPOOFS.erro("Recurso não encontrado."));
+            return;
+        }
+        String empresa = partes[2];
+        String recurso = partes[3];
+        String identificador = partes.length > 4 ? partes[4] : null;
+        String metodo = troca.getRequestMethod();
+        try {
+            if ("POST".equals(metodo) && identificador == null) {
+                Map<String, String> campos = ServidorHttpPOOFS.lerFormulario(troca);
+                switch (recurso) {
+                    case "clientes":
+                        criarCliente(troca, empresa, campos);
+                        return;
+                    case "faturas":
+                        criarFatura(troca, empresa, campos);
+                        return;
+                    case "stock":
+                        definirStock(troca, empresa, campos);
+                        return;
+                    default:
+                        break;
+                }
+            } else if ("GET".equals(metodo)) {
+                if (recurso.equals("faturas") && identificador != null) {
+                    obterFatura(troca, empresa, identificador);
+                    return;
+                }
+                if (recurso.equals("stock") && identificador != null) {
+                    obterStock(troca, empresa, identificador);
+                    return;
+                }
+                if (recurso.equals("estatisticas") && identificador == null) {
+                    obterEstatisticas(troca, empresa);
+                    return;
+                }
+            }
+            ServidorHttpPOOFS.responder(troca, 405, ServidorHttpPOOFS.erro("Método não permitido."));
+        } catch (IllegalArgumentException e) {
+            ServidorHttpPOOFS.responder(troca, 400, ServidorHttpPOOFS.erro(e.getMessage()));
+        } catch (IllegalStateException e) {
+            ServidorHttpPOOFS.responder(troca, 409, ServidorHttpPOOFS.erro(e.getMessage()));
+        }
+    }
+
+    /**
+     * GET /empresas: obtém as empresas carregadas e as métricas do alojamento.
+     */
+    private void tratarAlojamento(HttpExchange troca) throws IOException {
+        if (!"GET".equals(troca.getRequestMethod())) {
+            ServidorHttpPOOFS.responder(troca, 405, ServidorHttpPOOFS.erro("Método não permitido."));
+            return;
+        }
+        StringBuilder sb = new StringBuilder("{\"ativas\":[");
+        for (String empresa : hospedeiro.getInquilinosAtivos()) {
+            if (sb.charAt(sb.length() - 1) != '[') sb.append(',');
+            sb.append(ServidorHttpPOOFS.texto(empresa));
+        }
+        sb.append("],\"carregamentos\":").append(hospedeiro.getNumeroCarregamentos())
+                .append(",\"descarregamentos\":").append(hospedeiro.getNumeroDescarregamentos()).append('}');
+        ServidorHttpPOOFS.responder(troca, 200, sb.toString());
+    }
+
+    private void criarCliente(HttpExchange troca, String empresa, Map<String, String> campos) throws IOException {
+        String json = hospedeiro.executarServico(empresa, servico -> {
+            if (servico.obterCliente(campos.get("nif")) != null) {
+                return null;
+            }
+            return ServidorHttpPOOFS.json(servico.criarCliente(campos.get("nome"), campos.get("nif"), campos.get("localizacao")));
+        });
+        if (json == null) {
+            ServidorHttpPOOFS.responder(troca, 409, ServidorHttpPOOFS.erro("Já existe um cliente com o NIF " + campos.get("nif") + "."));
+        } else {
+            ServidorHttpPOOFS.responder(troca, 201, json);
+        }
+    }
+
+    private void criarFatura(HttpExchange troca, String empresa, Map<String, String> campos) throws IOException {
+        String json = hospedeiro.executarServico(empresa, servico -> ServidorHttpPOOFS.json(servico.criarFatura(campos.get("nif"),
+                ServidorHttpPOOFS.lerData(campos.get("data")), ServidorHttpPOOFS.lerCodigos(campos.get("produtos")))));
+        ServidorHttpPOOFS.responder(troca, 201, json);
+    }
+
+    private void obterFatura(HttpExchange troca, String empresa, String numero) throws IOException {
+        if (!numero.matches("\\d{1,9}")) {
+            ServidorHttpPOOFS.responder(troca, 404, ServidorHttpPOOFS.erro("Fatura não encontrada."));
+            return;
+        }
+        String json = hospedeiro.executarServico(empresa, servico -> {
+            Fatura fatura = servico.obterFatura(Integer.parseInt(numero));
+            return fatura == null ? null : ServidorHttpPOOFS.json(fatura);
+        });
+        if (json == null) {
+            ServidorHttpPOOFS.responder(troca, 404, ServidorHttpPOOFS.erro("Fatura não encontrada."));
+        } else {
+            ServidorHttpPOOFS.responder(troca, 200, json);
+        }
+    }
+
+    private void definirStock(HttpExchange troca, String empresa, Map<String, String> campos) throws IOException {
+        String codigo = campos.get("codigo");
+        String quantidade = campos.get("quantidade");
+        if (codigo == null || !codigo.matches("\\d{1,9}") || quantidade == null || !quantidade.matches("\\d{1,18}")) {
+            ServidorHttpPOOFS.responder(troca, 400, ServidorHttpPOOFS.erro("Código ou quantidade inválidos."));
+            return;
+        }
+        String json = hospedeiro.executarServico(empresa, servico -> {
+            servico.definirStock(Integer.parseInt(codigo), Long.parseLong(quantidade));
+            return ServidorHttpPOOFS.jsonStock(servico, Integer.parseInt(codigo));
+        });
+        ServidorHttpPOOFS.responder(troca, 200, json);
+    }
+
+    private void obterStock(HttpExchange troca, String empresa, String codigo) throws IOException {
+        String json = !codigo.matches("\\d{1,9}") ? null : hospedeiro.executarServico(empresa, servico ->
+                servico.obterProduto(Integer.parseInt(codigo)) == null ? null : ServidorHttpPOOFS.jsonStock(servico, Integer.parseInt(codigo)));
+        if (json == null) {
+            ServidorHttpPOOFS.responder(troca, 404, ServidorHttpPOOFS.erro("Produto não encontrado."));
+        } else {
+            ServidorHttpPOOFS.responder(troca, 200, json);
+        }
+    }
+
+    private void obterEstatisticas(HttpExchange troca, String empresa) throws IOException {
+        String json = hospedeiro.executarServico(empresa, servico -> {
+            EstatisticasFaturas estatisticas = servico.estatisticas();
+            return "{\"numeroFaturas\":" + estatisticas.getNumeroFaturas()
+                    + ",\"numeroProdutos\":" + estatisticas.getNumeroProdutos()
+                    + ",\"totalSemIVA\":" + ServidorHttpPOOFS.valor(estatisticas.getTotalSemIVA())
+                    + ",\"totalComIVA\":" + ServidorHttpPOOFS.valor(estatisticas.getTotalComIVA())
+                    + ",\"totalIVA\":" + ServidorHttpPOOFS.valor(estatisticas.getTotalIVA()) + "}";
+        });
+        ServidorHttpPOOFS.responder(troca, 200, json);
+    }
+}
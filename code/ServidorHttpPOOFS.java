@@ -0,0 +1,610 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servidor HTTP embebido (com.sun.net.httpserver) para os terminais de venda submeterem clientes
+ * e faturas diretamente ao sistema, através de ServicoPOOFS.
+ *
+ * Pedidos (corpo em application/x-www-form-urlencoded, respostas em JSON):
+ * <pre>
+ * POST /clientes        nome=...&nif=...&localizacao=...
+ * POST /faturas         nif=...&produtos=1,2,3[&data=dd/MM/yyyy]
+ * GET  /faturas/{numero}
+ * POST /stock           codigo=...&quantidade=...
+ * GET  /stock/{codigo}
+ * GET  /estatisticas
+ * GET  /pipeline        métricas das etapas do pipeline de faturas
+ * GET  /gravacao        métricas da gravação em segundo plano
+ * GET  /eventos         eventos das faturas criadas, editadas e importadas (text/event-stream)
+ * </pre>
+ * Cada pedido é tratado numa thread virtual (ou, em JVMs sem threads virtuais, numa thread de um
+ * pool que cresce conforme a necessidade). As faturas são criadas pelo pipeline (ver PipelineFaturas),
+ * que as regista no diário; se o pipeline estiver cheio, o pedido recebe 503. Se a fatura for criada mas
+ * não ficar registada no diário, a resposta é 201 com um campo "aviso" (a fatura não deve ser criada de novo).
+ * Os dados não são gravados pedido a pedido: são agrupados e gravados em segundo plano (ver GravacaoAgrupada).
+ */
+public class ServidorHttpPOOFS implements AutoCloseable {
+
+    /**
+     * Porta usada por omissão.
+     */
+    public static final int PORTA_PADRAO = 8080;
+
+    /**
+     * Intervalo máximo entre gravações dos dados, em milissegundos.
+     */
+    private static final long INTERVALO_GRAVACAO_MS = 1000;
+
+    /**
+     * Número de alterações que obriga a gravar de imediato.
+     */
+    private static final int LOTE_GRAVACAO = 10_000;
+
+    /**
+     * Tempo máximo de espera por espaço no pipeline antes de responder 503, em milissegundos.
+     */
+    private static final long ESPERA_PIPELINE_MS = 2000;
+
+    /**
+     * A camada de serviço usada pelos pedidos.
+     */
+    private final ServicoPOOFS servico;
+
+    /**
+     * O servidor HTTP.
+     */
+    private final HttpServer servidor;
+
+    /**
+     * Executor dos pedidos.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * O sistema.
+     */
+    private final SistemaPOOFS sistema;
+
+    /**
+     * Diário das faturas criadas, ou null se os dados não forem gravados.
+     */
+    private final DiarioAlteracoes diario;
+
+    /**
+     * Pipeline de criação de faturas.
+     */
+    private final PipelineFaturas pipeline;
+
+    /**
+     * Envios de eventos em curso (pedidos GET /eventos), terminados ao parar o servidor.
+     */
+    private final Set<EnvioEventos> envios = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Construtor do servidor (que só começa a aceitar pedidos depois de iniciar()).
+     *
+     * @param sistema O sistema.
+     * @param porta   A porta (0 para uma porta livre qualquer).
+     * @param arquivo O ficheiro onde os dados são gravados, ou null para não gravar.
+     * @throws IOException Se não for possível abrir a porta.
+     */
+    public ServidorHttpPOOFS(SistemaPOOFS sistema, int porta, File arquivo) throws IOException {
+        // Sem TCP_NODELAY, o corpo de cada resposta espera pelo ACK (atrasado) do cabeçalho: ~40 ms por pedido
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.sistema = sistema;
+        this.servico = sistema.getServico();
+        this.servidor = HttpServer.create(new InetSocketAddress(porta), 0);
+        this.executor = criarExecutor();
+        if (arquivo != null) {
+            sistema.iniciarGravacao(arquivo, INTERVALO_GRAVACAO_MS, LOTE_GRAVACAO);
+        }
+        this.diario = arquivo != null ? sistema.abrirDiario(arquivo) : null;
+        this.pipeline = new PipelineFaturas(sistema, diario, PipelineFaturas.CAPACIDADE_PADRAO);
+
+        servidor.setExecutor(executor);
+        servidor.createContext("/clientes", this::tratarClientes);
+        servidor.createContext("/faturas", this::tratarFaturas);
+        servidor.createContext("/stock", this::tratarStock);
+        servidor.createContext("/estatisticas", this::tratarEstatisticas);
+        servidor.createContext("/pipeline", this::tratarPipeline);
+        servidor.createContext("/gravacao", this::tratarGravacao);
+        servidor.createContext("/eventos", this::tratarEventos);
+    }
+
+    /**
+     * Cria o executor dos pedidos: uma thread virtual por pedido se a JVM as suportar (Java 21 ou superior),
+     * caso contrário um pool de threads que cresce conforme a necessidade.
+     * O método é obtido por reflexão para que o código continue a compilar em versões anteriores do Java.
+     *
+     * @return O executor.
+     */
+    static ExecutorService criarExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Começa a aceitar pedidos.
+     */
+    public void iniciar() {
+        servidor.start();
+    }
+
+    /**
+     * Obtém a porta em que o servidor está a escutar.
+     *
+     * @return A porta.
+     */
+    public int getPorta() {
+        return servidor.getAddress().getPort();
+    }
+
+    /**
+     * Obtém o pipeline de criação de faturas (por exemplo, para consultar as métricas das etapas).
+     *
+     * @return O pipeline.
+     */
+    public PipelineFaturas getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Para o servidor, esperando pelos pedidos em curso e pelas faturas no pipeline, e grava as alterações pendentes.
+     */
+    @Override
+    public void close() {
+        envios.forEach(EnvioEventos::terminar);
+        servidor.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline.close();
+        sistema.terminarGravacao(true);
+        if (diario != null) {
+            try {
+                diario.close();
+            } catch (IOException e) {
+                System.out.println("Erro ao fechar o diário: " + e.getMessage());
+            }
+        }
+    }
+
+    //************************ PEDIDOS ************************
+
+    /**
+     * POST /clientes: cria um cliente.
+     */
+    private void tratarClientes(HttpExchange troca) throws IOException {
+        if (!"POST".equals(troca.getRequestMethod())) {
+            responder(troca, 405, erro("Método não permitido."));
+            return;
+        }
+        try {
+            Map<String, String> campos = lerFormulario(troca);
+            if (servico.obterCliente(campos.get("nif")) != null) {
+                responder(troca, 409, erro("Já existe um cliente com o NIF " + campos.get("nif") + "."));
+                return;
+            }
+            Cliente cliente = servico.criarCliente(campos.get("nome"), campos.get("nif"), campos.get("localizacao"));
+            responder(troca, 201, json(cliente));
+        } catch (IllegalArgumentException e) {
+            responder(troca, 400, erro(e.getMessage()));
+        }
+    }
+
+    /**
+     * POST /faturas: cria uma fatura; GET /faturas/{numero}: obtém uma fatura.
+     */
+    private void tratarFaturas(HttpExchange troca) throws IOException {
+        String caminho = troca.getRequestURI().getPath();
+        try {
+            if ("POST".equals(troca.getRequestMethod()) && caminho.equals("/faturas")) {
+                Map<String, String> campos = lerFormulario(troca);
+                CompletableFuture<Fatura> resultado = pipeline.tentarSubmeter(campos.get("nif"), lerData(campos.get("data")),
+                        lerCodigos(campos.get("produtos")), ESPERA_PIPELINE_MS, TimeUnit.MILLISECONDS);
+                if (resultado == null) {
+                    responder(troca, 503, erro("Sistema sobrecarregado. Tente novamente."));
+                    return;
+                }
+                Fatura fatura = resultado.get();
+                responder(troca, 201, json(fatura));
+            } else if ("GET".equals(troca.getRequestMethod()) && caminho.startsWith("/faturas/")) {
+                String numero = caminho.substring("/faturas/".length());
+                Fatura fatura = numero.matches("\\d{1,9}") ? servico.obterFatura(Integer.parseInt(numero)) : null;
+                if (fatura == null) {
+                    responder(troca, 404, erro("Fatura não encontrada."));
+                } else {
+                    responder(troca, 200, json(fatura));
+                }
+            } else {
+                responder(troca, 405, erro("Método não permitido."));
+            }
+        } catch (IllegalArgumentException e) {
+            responder(troca, 400, erro(e.getMessage()));
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof FaturaSemDiarioException) {
+                String fatura = json(((FaturaSemDiarioException) causa).getFatura());
+                responder(troca, 201, fatura.substring(0, fatura.length() - 1) + ",\"aviso\":" + texto(causa.getMessage()) + "}");
+                return;
+            }
+            int estado = causa instanceof IllegalArgumentException ? 400 : causa instanceof IllegalStateException ? 409 : 500;
+            responder(troca, estado, erro(causa.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            responder(troca, 503, erro("Pedido interrompido."));
+        }
+    }
+
+    /**
+     * POST /stock: define o stock de um produto; GET /stock/{codigo}: obtém o stock de um produto.
+     */
+    private void tratarStock(HttpExchange troca) throws IOException {
+        String caminho = troca.getRequestURI().getPath();
+        try {
+            if ("POST".equals(troca.getRequestMethod()) && caminho.equals("/stock")) {
+                Map<String, String> campos = lerFormulario(troca);
+                String codigo = campos.get("codigo");
+                String quantidade = campos.get("quantidade");
+                if (codigo == null || !codigo.matches("\\d{1,9}") || quantidade == null || !quantidade.matches("\\d{1,18}")) {
+                    responder(troca, 400, erro("Código ou quantidade inválidos."));
+                    return;
+                }
+                servico.definirStock(Integer.parseInt(codigo), Long.parseLong(quantidade));
+                responder(troca, 200, jsonStock(servico, Integer.parseInt(codigo)));
+            } else if ("GET".equals(troca.getRequestMethod()) && caminho.startsWith("/stock/")) {
+                String codigo = caminho.substring("/stock/".length());
+                if (!codigo.matches("\\d{1,9}") || servico.obterProduto(Integer.parseInt(codigo)) == null) {
+                    responder(troca, 404, erro("Produto não encontrado."));
+                } else {
+                    responder(troca, 200, jsonStock(servico, Integer.parseInt(codigo)));
+                }
+            } else {
+                responder(troca, 405, erro("Método não permitido."));
+            }
+        } catch (IllegalArgumentException e) {
+            responder(troca, 400, erro(e.getMessage()));
+        }
+    }
+
+    /**
+     * GET /estatisticas: obtém as estatísticas das faturas.
+     */
+    private void tratarEstatisticas(HttpExchange troca) throws IOException {
+        if (!"GET".equals(troca.getRequestMethod())) {
+            responder(troca, 405, erro("Método não permitido."));
+            return;
+        }
+        EstatisticasFaturas estatisticas = servico.estatisticas();
+        responder(troca, 200, "{\"numeroFaturas\":" + estatisticas.getNumeroFaturas()
+                + ",\"numeroProdutos\":" + estatisticas.getNumeroProdutos()
+                + ",\"totalSemIVA\":" + valor(estatisticas.getTotalSemIVA())
+                + ",\"totalComIVA\":" + valor(estatisticas.getTotalComIVA())
+                + ",\"totalIVA\":" + valor(estatisticas.getTotalIVA()) + "}");
+    }
+
+    /**
+     * GET /pipeline: obtém as métricas das etapas do pipeline de faturas.
+     */
+    private void tratarPipeline(HttpExchange troca) throws IOException {
+        if (!"GET".equals(troca.getRequestMethod())) {
+            responder(troca, 405, erro("Método não permitido."));
+            return;
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (PipelineFaturas.Etapa etapa : pipeline.getEtapas()) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"etapa\":").append(texto(etapa.getNome()))
+                    .append(",\"profundidade\":").append(etapa.getProfundidade())
+                    .append(",\"capacidade\":").append(etapa.getCapacidade())
+                    .append(",\"processados\":").append(etapa.getProcessados())
+                    .append(",\"loteMedio\":").append(valor(etapa.getTamanhoMedioLote()))
+                    .append(",\"esperaMediaMicros\":").append(valor(etapa.getEsperaMediaMicros()))
+                    .append(",\"tempoMedioMicros\":").append(valor(etapa.getTempoMedioMicros()))
+                    .append(",\"tempoMaximoLoteMicros\":").append(valor(etapa.getTempoMaximoLoteMicros())).append('}');
+        }
+        responder(troca, 200, sb.append(']').toString());
+    }
+
+    /**
+     * GET /gravacao: obtém as métricas da gravação em segundo plano (alterações pendentes e janela de recuperação).
+     */
+    private void tratarGravacao(HttpExchange troca) throws IOException {
+        if (!"GET".equals(troca.getRequestMethod())) {
+            responder(troca, 405, erro("Método não permitido."));
+            return;
+        }
+        GravacaoAgrupada gravacao = sistema.gravacao;
+        if (gravacao == null) {
+            responder(troca, 404, erro("Os dados não são gravados por este servidor."));
+            return;
+        }
+        responder(troca, 200, "{\"gravacoes\":" + gravacao.getNumeroGravacoes()
+                + ",\"falhas\":" + gravacao.getNumeroFalhas()
+                + ",\"pendentes\":" + gravacao.getPendentes()
+                + ",\"clientesPendentes\":" + gravacao.getClientesPendentes()
+                + ",\"faturasPendentes\":" + gravacao.getFaturasPendentes()
+                + ",\"janelaRecuperacaoMs\":" + gravacao.getJanelaRecuperacaoMs()
+                + ",\"janelaMaximaMs\":" + gravacao.getJanelaMaximaMs()
+                + ",\"ultimaGravacaoMs\":" + valor(gravacao.getDuracaoUltimaGravacaoMs()) + "}");
+    }
+
+    /**
+     * GET /eventos: envia os eventos das faturas à medida que acontecem (Server-Sent Events), até o cliente
+     * fechar a ligação. Cada evento só é pedido ao sistema depois de o anterior ter sido escrito, pelo que
+     * os eventos de um cliente lento ficam no seu buffer (ver SistemaPOOFS.subscreverEventos).
+     */
+    private void tratarEventos(HttpExchange troca) throws IOException {
+        if (!"GET".equals(troca.getRequestMethod())) {
+            responder(troca, 405, erro("Método não permitido."));
+            return;
+        }
+        troca.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        troca.getResponseHeaders().set("Cache-Control", "no-cache");
+        troca.sendResponseHeaders(200, 0);
+        EnvioEventos envio = new EnvioEventos(troca.getResponseBody());
+        envios.add(envio);
+        try {
+            sistema.subscreverEventos(envio);
+            envio.fim.join();
+        } finally {
+            envios.remove(envio);
+            troca.close();
+        }
+    }
+
+    /**
+     * Subscritor dos eventos de um pedido GET /eventos, que escreve cada evento na resposta.
+     */
+    private static class EnvioEventos implements Flow.Subscriber<EventoFatura> {
+
+        /** A resposta. */
+        private final OutputStream out;
+
+        /** Completado quando o envio termina. */
+        final CompletableFuture<Void> fim = new CompletableFuture<>();
+
+        /** A subscrição. */
+        private volatile Flow.Subscription subscricao;
+
+        EnvioEventos(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscricao) {
+            this.subscricao = subscricao;
+            if (fim.isDone()) {
+                subscricao.cancel();
+            } else {
+                subscricao.request(1);
+            }
+        }
+
+        @Override
+        public void onNext(EventoFatura evento) {
+            try {
+                out.write(("id: " + evento.getSequencia() + "\nevent: " + evento.getTipo().name().toLowerCase(Locale.ROOT) + "\ndata: " + json(evento) + "\n\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                subscricao.request(1);
+            } catch (IOException e) {
+                // O cliente fechou a ligação
+                terminar();
+            }
+        }
+
+        @Override
+        public void onError(Throwable erro) {
+            fim.complete(null);
+        }
+
+        @Override
+        public void onComplete() {
+            fim.complete(null);
+        }
+
+        /**
+         * Cancela a subscrição e termina o envio.
+         */
+        void terminar() {
+            Flow.Subscription atual = subscricao;
+            if (atual != null) {
+                atual.cancel();
+            }
+            fim.complete(null);
+        }
+    }
+
+    //************************ FORMATOS ************************
+
+    /**
+     * Lê o corpo de um pedido no formato application/x-www-form-urlencoded.
+     */
+    static Map<String, String> lerFormulario(HttpExchange troca) throws IOException {
+        Map<String, String> campos = new HashMap<>();
+        String corpo;
+        try (InputStream in = troca.getRequestBody()) {
+            corpo = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        for (String par : corpo.split("&")) {
+            if (par.isEmpty()) continue;
+            int igual = par.indexOf('=');
+            String chave = URLDecoder.decode(igual < 0 ? par : par.substring(0, igual), StandardCharsets.UTF_8);
+            String valor = igual < 0 ? "" : URLDecoder.decode(par.substring(igual + 1), StandardCharsets.UTF_8);
+            campos.put(chave, valor.trim());
+        }
+        return campos;
+    }
+
+    /**
+     * Converte a data de um pedido (dd/MM/yyyy), ou null se não foi indicada.
+     */
+    static Date lerData(String data) {
+        if (data == null || data.isEmpty()) {
+            return null;
+        }
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
+            sdf.setLenient(false);
+            return sdf.parse(data);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Data inválida (formato DD/MM/YYYY).");
+        }
+    }
+
+    /**
+     * Converte a lista de códigos de produtos de um pedido (separados por vírgulas).
+     */
+    static ArrayList<Integer> lerCodigos(String produtos) {
+        ArrayList<Integer> codigos = new ArrayList<>();
+        if (produtos == null) {
+            return codigos;
+        }
+        for (String codigo : produtos.split(",")) {
+            if (!codigo.trim().matches("\\d{1,9}")) {
+                throw new IllegalArgumentException("Código de produto inválido: " + codigo.trim());
+            }
+            codigos.add(Integer.parseInt(codigo.trim()));
+        }
+        return codigos;
+    }
+
+    /**
+     * Envia uma resposta JSON.
+     */
+    static void responder(HttpExchange troca, int estado, String json) throws IOException {
+        byte[] corpo = json.getBytes(StandardCharsets.UTF_8);
+        troca.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        troca.sendResponseHeaders(estado, corpo.length);
+        try (OutputStream out = troca.getResponseBody()) {
+            out.write(corpo);
+        }
+    }
+
+    static String erro(String mensagem) {
+        return "{\"erro\":" + texto(mensagem) + "}";
+    }
+
+    static String json(Cliente cliente) {
+        return "{\"nome\":" + texto(cliente.getNome())
+                + ",\"nif\":" + texto(cliente.getNif())
+                + ",\"localizacao\":" + texto(cliente.getLocalizacaoCliente()) + "}";
+    }
+
+    /**
+     * Stock de um produto (null se o stock do produto não for controlado).
+     */
+    static String jsonStock(ServicoPOOFS servico, int codigo) {
+        long disponivel = servico.obterStock(codigo);
+        return "{\"codigo\":" + codigo + ",\"stock\":" + (disponivel == StockProdutos.SEM_CONTROLO ? "null" : disponivel) + "}";
+    }
+
+    static String json(Fatura fatura) {
+        Cliente cliente = fatura.getCliente();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"numeroFatura\":").append(fatura.getNumeroFatura())
+                .append(",\"versao\":").append(fatura.getVersao())
+                .append(",\"data\":").append(texto(new SimpleDateFormat("dd/MM/yyyy").format(fatura.getData())))
+                .append(",\"cliente\":").append(json(cliente))
+                .append(",\"produtos\":[");
+        double totalSemIVA = 0.0, totalComIVA = 0.0;
+        for (int i = 0; i < fatura.getProdutos().size(); i++) {
+            Produto produto = fatura.getProdutos().get(i);
+            double semIVA = produto.calcularValorSemIVA();
+            double comIVA = produto.calcularValorComIVA(cliente, fatura.getData());
+            totalSemIVA += semIVA;
+            totalComIVA += comIVA;
+            if (i > 0) sb.append(',');
+            sb.append("{\"codigo\":").append(produto.getCodigo())
+                    .append(",\"nome\":").append(texto(produto.getNome()))
+                    .append(",\"quantidade\":").append(produto.getQuantidade())
+                    .append(",\"valorSemIVA\":").append(valor(semIVA))
+                    .append(",\"valorComIVA\":").append(valor(comIVA)).append('}');
+        }
+        sb.append("],\"totalSemIVA\":").append(valor(totalSemIVA))
+                .append(",\"totalComIVA\":").append(valor(totalComIVA)).append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Converte um evento de fatura em JSON (enviado no fluxo GET /eventos).
+     */
+    private static String json(EventoFatura evento) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"sequencia\":").append(evento.getSequencia())
+                .append(",\"tipo\":").append(texto(evento.getTipo().name()))
+                .append(",\"numeroFatura\":").append(evento.getNumeroFatura())
+                .append(",\"versao\":").append(evento.getVersao())
+                .append(",\"nif\":").append(texto(evento.getNif()))
+                .append(",\"data\":").append(texto(new SimpleDateFormat("dd/MM/yyyy").format(evento.getData())))
+                .append(",\"produtos\":").append(evento.getCodigos().toString().replace(" ", ""))
+                .append(",\"totalSemIVA\":").append(valor(evento.getTotalSemIVA()))
+                .append(",\"totalComIVA\":").append(valor(evento.getTotalComIVA())).append('}');
+        return sb.toString();
+    }
+
+    /**
+     * Formata um valor monetário com 2 casas decimais (sempre com ponto decimal).
+     */
+    static String valor(double valor) {
+        return String.format(Locale.ROOT, "%.2f", valor);
+    }
+
+    /**
+     * Formata um texto como string JSON.
+     */
+    static String texto(String texto) {
+        if (texto == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : texto.toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -1,9 +1,24 @@
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Sistema que gere clientes, faturas e produtos.
@@ -25,39 +40,221 @@ public class SistemaPOOFS implements Serializable {
      */
     protected ArrayList<Produto> listaProdutos;
 
+    /**
+     * Agregados das faturas (contagens e totais), mantidos incrementalmente para as estatísticas.
+     */
+    protected transient EstatisticasFaturas estatisticas;
+
+    /**
+     * Cubo com os valores das faturas por localização, tipo de produto e mês.
+     */
+    protected transient CuboIVA cubo;
+
+    /**
+     * Totais das faturas por dia e por mês, guardados juntamente com os dados.
+     */
+    protected transient AgregadosPeriodo agregadosPeriodo;
+
+    /**
+     * Histogramas dos valores das faturas e das linhas, por mês e localização.
+     */
+    protected transient DistribuicaoValores distribuicao;
+
+    /**
+     * Número de entradas dos rankings de produtos e clientes.
+     */
+    public static final int TOP_K = 20;
+
+    /**
+     * Ranking aproximado (em fluxo) dos produtos com maior receita sem IVA.
+     */
+    protected transient TopK topProdutosFluxo;
+
+    /**
+     * Ranking aproximado (em fluxo) dos clientes com mais IVA pago.
+     */
+    protected transient TopK topClientesFluxo;
+
+    /**
+     * Contagem aproximada de clientes e produtos distintos por mês e localização, guardada com os dados.
+     */
+    protected transient ContagemDistintos distintos;
+
+    /**
+     * Stock dos produtos do catálogo, guardado com os dados (ver StockProdutos).
+     */
+    protected transient StockProdutos stock;
+
+    /**
+     * Índices das faturas por cliente, produto e dia, usados nas consultas.
+     */
+    protected transient IndicesFaturas indices;
+
+    /**
+     * Número de locks usados por faturas e por clientes (ver LocksEstratificados).
+     */
+    private static final int NUMERO_LOCKS = 64;
+
+    /**
+     * Lock dos dados do sistema. As operações sobre uma fatura ou um cliente (criar, editar) usam o lock
+     * de leitura, partilhado, e os locks da fatura ou do cliente; as operações sobre todos os dados
+     * (carregar, gravar, recalcular os agregados) usam o lock de escrita, exclusivo.
+     * Quando é preciso bloquear um cliente e faturas, o cliente é bloqueado primeiro.
+     */
+    protected transient ReentrantReadWriteLock lockDados;
+
+    /**
+     * Lock da coerência dos agregados (estatísticas, cubo, agregados por período, distribuição e índices).
+     * Ao contrário do lock dos dados, as alterações aos agregados (incluir uma fatura nova, ou retirar
+     * uma fatura e voltar a incluí-la numa edição) usam o lock de leitura, partilhado, e as leituras
+     * que precisam de agregados coerentes usam o lock de escrita, exclusivo: assim, esperam que as
+     * edições em curso terminem e nunca veem uma fatura retirada a meio de uma edição.
+     * É obtido depois do lock dos dados e dos locks das faturas, e quem o tem em exclusivo não obtém mais nenhum.
+     */
+    protected transient ReentrantReadWriteLock lockAgregados;
+
+    /**
+     * Lock das gravações do arquivo de dados (ver gravarDados), para que duas gravações não escrevam
+     * o ficheiro temporário ao mesmo tempo nem uma cópia mais antiga substitua uma mais recente.
+     * Quando é preciso, é obtido antes do lock dos dados.
+     */
+    protected transient Object lockGravacaoArquivo;
+
+    /**
+     * Locks das faturas, por número de fatura.
+     */
+    protected transient LocksEstratificados locksFaturas;
+
+    /**
+     * Locks dos clientes, por NIF.
+     */
+    protected transient LocksEstratificados locksClientes;
+
+    /**
+     * Faturas por número.
+     */
+    protected transient ConcurrentHashMap<Integer, Fatura> faturasPorNumero;
+
+    /**
+     * Clientes por NIF.
+     */
+    protected transient ConcurrentHashMap<String, Cliente> clientesPorNif;
+
+    /**
+     * Camada de serviço (sem consola) usada pelos menus.
+     */
+    protected transient ServicoPOOFS servico;
+
+    /**
+     * Sequência dos números das faturas. Depois de carregar os dados, a marca de água fica guardada
+     * no ficheiro de sequência ao lado do ficheiro de dados (ver ficheiroSequenciaFaturas).
+     */
+    protected transient SequenciaNumeracao numeracaoFaturas;
+
+    /**
+     * Sequência dos códigos dos produtos, guardada como a das faturas (ver ficheiroSequenciaProdutos).
+     * A marca de água é o primeiro código ainda não usado no catálogo nem nas faturas.
+     */
+    protected transient SequenciaNumeracao numeracaoProdutos;
+
+    /**
+     * Diário das faturas criadas desde a última gravação, ou null se não estiver aberto (ver abrirDiario).
+     */
+    protected transient DiarioAlteracoes diario;
+
+    /**
+     * Gravação em segundo plano dos dados alterados, ou null se não estiver iniciada (ver iniciarGravacao).
+     */
+    protected transient volatile GravacaoAgrupada gravacao;
+
+    /**
+     * Número máximo de eventos em espera por subscritor (ver subscreverEventos).
+     */
+    public static final int BUFFER_EVENTOS = 1024;
+
+    /**
+     * Publicação dos eventos das faturas criadas, editadas e importadas (ver subscreverEventos).
+     */
+    protected transient SubmissionPublisher<EventoFatura> eventos;
+
+    /**
+     * Número de eventos descartados por subscritores sem espaço no buffer.
+     */
+    protected transient AtomicLong eventosDescartados;
+
+    /**
+     * Número de sequência do último evento publicado (também usado como lock da publicação).
+     */
+    protected transient AtomicLong sequenciaEventos;
+
     /**
      * Construtor do sistema, inicializando as listas de clientes, faturas e produtos.
-     * Também inicializa as taxas padrão para produtos alimentares e produtos de farmácia.
+     * O catálogo começa vazio: é lido com os dados (ver carregarDadosObj) ou criado com criarCatalogoInicial.
      */
     public SistemaPOOFS() {
         listaClientes = new ArrayList<>();
         listaFaturas = new ArrayList<>();
         listaProdutos = new ArrayList<>();
+        estatisticas = new EstatisticasFaturas();
+        cubo = new CuboIVA();
+        agregadosPeriodo = new AgregadosPeriodo();
+        distribuicao = new DistribuicaoValores();
+        topProdutosFluxo = new TopK(TOP_K);
+        topClientesFluxo = new TopK(TOP_K);
+        distintos = new ContagemDistintos();
+        stock = new StockProdutos();
+        indices = new IndicesFaturas();
+        lockDados = new ReentrantReadWriteLock();
+        lockAgregados = new ReentrantReadWriteLock();
+        lockGravacaoArquivo = new Object();
+        locksFaturas = new LocksEstratificados(NUMERO_LOCKS);
+        locksClientes = new LocksEstratificados(NUMERO_LOCKS);
+        faturasPorNumero = new ConcurrentHashMap<>();
+        clientesPorNif = new ConcurrentHashMap<>();
+        servico = new ServicoPOOFS(this);
+        eventos = new SubmissionPublisher<>(Executors.newCachedThreadPool(tarefa -> {
+            Thread thread = new Thread(tarefa, "eventos-poofs");
+            thread.setDaemon(true);
+            return thread;
+        }), BUFFER_EVENTOS);
+        eventosDescartados = new AtomicLong();
+        sequenciaEventos = new AtomicLong();
+        numeracaoFaturas = new SequenciaNumeracao(null, SequenciaNumeracao.TAMANHO_BLOCO_PADRAO, 1);
+        numeracaoProdutos = new SequenciaNumeracao(null, SequenciaNumeracao.TAMANHO_BLOCO_PADRAO, 1);
+    }
 
-        // Definição das taxas padrão para as localizações
-        double[] taxasNormal = {23, 22, 16};        // Index: 0 (Continente), 1 (Madeira), 2 (Açores e Acores)
-        double[] taxasIntermedia = {13, 12, 9};     // Index: 0 (Continente), 1 (Madeira), 2 (Açores e Acores)
-        double[] taxasReduzida = {6,5,4};           // Index: 0 (Continente), 1 (Madeira), 2 (Açores e Acores)
+    /**
+     * Cria o catálogo de produtos de teste, usado quando ainda não existe um catálogo gravado.
+     * Os códigos são fixos (1 a 5), como nos dados gravados por versões anteriores, e ficam reservados na sequência.
+     * Os produtos de teste partilham as taxas da tabela atualmente em vigor.
+     */
+    protected void criarCatalogoInicial() {
+        // Taxas em vigor, partilhadas por todos os produtos (ver RegistoTaxas)
+        TabelaTaxas tabela = RegistoTaxas.atual();
+        double[] taxasNormal = tabela.taxasPara(TabelaTaxas.TAXA_NORMAL);
+        double[] taxasIntermedia = tabela.taxasPara(TabelaTaxas.TAXA_INTERMEDIA);
+        double[] taxasReduzida = tabela.taxasPara(TabelaTaxas.TAXA_REDUZIDA);
 
-        // Definição das taxas para produtos de farmácia
-        double[] taxasComPrescricao = {6, 5, 4};
-        double[] taxasSemPrescricao = {23, 23,23};
+        // Taxas para produtos de farmácia
+        double[] taxasComPrescricao = tabela.taxasPara(TabelaTaxas.FARMACIA_COM_PRESCRICAO);
+        double[] taxasSemPrescricao = tabela.taxasPara(TabelaTaxas.FARMACIA_SEM_PRESCRICAO);
 
 
         // Criar produtos para teste
-        Produto p1 = new ProdutoAlimentarTaxaReduzida("Maça","eh bio!",10,1.20,true,new String[]{"ISO22000", "HACCP"},taxasReduzida);
-        Produto p2 = new ProdutoAlimentarTaxaIntermedia("Vinho Tinto","Caixa de 5 litros", 5, 10.00,false,"vinho",taxasIntermedia);
-        Produto p3 = new ProdutoAlimentarTaxaNormal("Refrigerante","Lata de refri",30,1.00,false,taxasNormal);
+        Produto p1 = new ProdutoAlimentarTaxaReduzida(1,"Maça","eh bio!",10,1.20,true,new String[]{"ISO22000", "HACCP"},taxasReduzida);
+        Produto p2 = new ProdutoAlimentarTaxaIntermedia(2,"Vinho Tinto","Caixa de 5 litros", 5, 10.00,false,"vinho",taxasIntermedia);
+        Produto p3 = new ProdutoAlimentarTaxaNormal(3,"Refrigerante","Lata de refri",30,1.00,false,taxasNormal);
 
         // Criar produtos de farmácia para teste
-        Produto p4 = new ProdutoFarmaciaComPrescricao("Brufen","5mg",10,2.00,"Rita",taxasComPrescricao);
-        Produto p5 = new ProdutoFarmaciaSemPrescricao("Mucus","50g",5,1.50,"animais",taxasSemPrescricao);
+        Produto p4 = new ProdutoFarmaciaComPrescricao(4,"Brufen","5mg",10,2.00,"Rita",taxasComPrescricao);
+        Produto p5 = new ProdutoFarmaciaSemPrescricao(5,"Mucus","50g",5,1.50,"animais",taxasSemPrescricao);
 
         listaProdutos.add(p1);
         listaProdutos.add(p2);
         listaProdutos.add(p3);
         listaProdutos.add(p4);
         listaProdutos.add(p5);
+        numeracaoProdutos.reservarAte(p5.getCodigo());
     }
 
     /**
@@ -76,8 +273,13 @@ public class SistemaPOOFS implements Serializable {
         String localizacao = lerLocalizacaoValida(scanner);
 
         //Após todas as validações, cria o Cliente
-        Cliente cliente = new Cliente(nome,nif,localizacao);
-        adicionarCliente(cliente);
+        try {
+            servico.criarCliente(nome, nif, localizacao);
+        } catch (IllegalArgumentException e) {
+            // Outra sessão registou o mesmo NIF entretanto
+            System.out.println("Erro: " + e.getMessage());
+            return;
+        }
 
         System.out.println("Cliente criado com sucesso!");
     }
@@ -92,7 +294,7 @@ public class SistemaPOOFS implements Serializable {
         System.out.println("Digite o nome do cliente (apenas letras e espaços): ");
         String nome = scanner.nextLine().trim();
 
-        while(!nomeValido(nome)){
+        while(!ServicoPOOFS.nomeValido(nome)){
             System.out.println("Nome inválido! Usar apenas letras e espaços.");
             System.out.println("Digite o nome do cliente novamente:");
             nome = scanner.nextLine().trim();
@@ -100,23 +302,6 @@ public class SistemaPOOFS implements Serializable {
         return nome;
     }
 
-    /**
-     * Verifica se o nome contém apenas letras e espaços.
-     *
-     * @param nome O nome do cliente.
-     * @return true se o nome for válido, caso contrário, false.
-     */
-    private boolean nomeValido(String nome){
-        int tamanho_nome =2;
-        if (nome.length() < tamanho_nome) return false;
-        for(char c: nome.toCharArray()){
-            if(!Character.isLetter(c) && c != ' '){
-                return false;       //Nome inválido
-            }
-        }
-        return true;
-    }
-
     /**
      * Lê e valida o número de contribuinte (NIF) do cliente.
      *
@@ -127,8 +312,8 @@ public class SistemaPOOFS implements Serializable {
         System.out.println("Digite o nif (9 digitos): ");
         String nif = scanner.nextLine();
 
-        while(!nifValido(nif) || existeNif(nif)){
-            if(!nifValido(nif)){
+        while(!ServicoPOOFS.nifValido(nif) || existeNif(nif)){
+            if(!ServicoPOOFS.nifValido(nif)){
                 System.out.println("Numero de contribuinte inválido! Deve conter 9 digitos.");
             }
             else{
@@ -141,28 +326,6 @@ public class SistemaPOOFS implements Serializable {
         return nif;
     }
 
-    /**
-     * Verifica se o NIF contém exatamente 9 dígitos.
-     *
-     * @param nif O número de contribuinte a ser validado.
-     * @return true se o NIF for válido, caso contrário, false.
-     */
-    private boolean nifValido(String nif){
-        int tamanho = 9;
-        // Caso o nif inserido nao tenha comprimento 9
-        if(nif.length() != tamanho){
-            return false;
-        }
-
-        // Verifica se todos os caracteres são dígitos
-        for(char c : nif.toCharArray()){
-            if(!Character.isDigit(c)){
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Verifica se o NIF já existe na lista de clientes.
      *
@@ -170,12 +333,7 @@ public class SistemaPOOFS implements Serializable {
      * @return true se o NIF já existir, caso contrário, false.
      */
     private boolean existeNif(String nif){
-        for(Cliente cliente : listaClientes){
-            if (cliente.getNif().equals(nif)) {
-                return true;
-            }
-        }
-        return false;
+        return clientesPorNif.containsKey(nif);
     }
 
     /**
@@ -189,7 +347,7 @@ public class SistemaPOOFS implements Serializable {
         System.out.println("Digite a localização do Cliente (Continente,Madeira,Açores):");
         String localizacao = scanner.nextLine();
 
-        while(!localizacaoValida(localizacao)){
+        while(!ServicoPOOFS.localizacaoValida(localizacao)){
             System.out.println("Localização inválida! Escolha entre Continente,Madeira e Açores");
             System.out.println("Digite a localização novamente:");
             localizacao = scanner.nextLine();
@@ -197,19 +355,6 @@ public class SistemaPOOFS implements Serializable {
         return localizacao;
     }
 
-    /**
-     * Verifica se a localização é uma das opções válidas.
-     *
-     * @param localizacao A localização a ser validada.
-     * @return true se a localização for válida, caso contrário, false.
-     */
-    private boolean localizacaoValida(String localizacao){
-        return localizacao.trim().equalsIgnoreCase("Continente")
-                || localizacao.trim().equalsIgnoreCase("Madeira")
-                || localizacao.trim().equalsIgnoreCase("Açores")
-                || localizacao.trim().equalsIgnoreCase("Acores");
-    }
-
     /**
      * Edita as informações de um cliente existente. O cliente é encontrado
      * através do número de contribuinte (NIF).
@@ -220,24 +365,16 @@ public class SistemaPOOFS implements Serializable {
         System.out.println("Digite o numero de contribuinte do cliente a editar: ");
         String nif = scanner.nextLine();
 
-        Cliente cliente = buscarClientePorContribuinte(nif);
+        Cliente cliente = servico.obterCliente(nif);
 
         if(cliente != null){
             System.out.println("Editar nome (atual: " + cliente.getNome() +"):" );
             String nome = lerNomeValido(scanner);
-            if(!nome.isEmpty()){
-                cliente.setNome(nome);
-            }else{
-                cliente.setNome(cliente.getNome());
-            }
 
             System.out.println("Editar localização (atual: " + cliente.getLocalizacaoCliente() +"):" );
             String localizacao = lerLocalizacaoValida(scanner);
-            if(!localizacao.isEmpty()){
-                cliente.setLocalizacaoCliente(localizacao);
-            }else{
-                cliente.setLocalizacaoCliente(cliente.getLocalizacaoCliente());
-            }
+
+            servico.editarCliente(nif, nome, localizacao);
 
             //Mensagem para conclusao da operacao com sucesso!
             System.out.println("Cliente atualizado com sucesso!");
@@ -247,32 +384,18 @@ public class SistemaPOOFS implements Serializable {
         }
     }
 
-    /**
-     * Procura um cliente na lista de clientes pelo número de contribuinte (NIF).
-     *
-     * @param nif O número de contribuinte do cliente.
-     * @return O cliente correspondente ao NIF ou null se não encontrado.
-     */
-    private Cliente buscarClientePorContribuinte(String nif) {
-        for (Cliente cliente : listaClientes) {
-            if (cliente.getNif().equals(nif)) {
-                return cliente;
-            }
-        }
-        return null;
-    }
-
     /**
      * Lista todos os clientes registados no sistema.
      * Se não houver clientes, exibe uma mensagem com essa informação.
      */
     protected void listarClientes(){
-        if(listaClientes.isEmpty()){
+        ArrayList<Cliente> clientes = copiaClientes();
+        if(clientes.isEmpty()){
             System.out.println("Nenhum cliente registado.");
         }
         else{
             System.out.println("Lista de Clientes:");
-            for(Cliente cliente : listaClientes){
+            for(Cliente cliente : clientes){
                 System.out.println(cliente);
                 System.out.println("----------------------------");
             }
@@ -285,7 +408,332 @@ public class SistemaPOOFS implements Serializable {
      * @param cliente O cliente a ser adicionado.
      */
     public void adicionarCliente(Cliente cliente){
-        listaClientes.add(cliente);
+        lockDados.readLock().lock();
+        try {
+            if (clientesPorNif.putIfAbsent(cliente.getNif(), cliente) != null) {
+                throw new IllegalArgumentException("Já existe um cliente com o NIF " + cliente.getNif() + ".");
+            }
+            synchronized (listaClientes) {
+                listaClientes.add(cliente);
+            }
+            clienteAlterado(cliente);
+        } finally {
+            lockDados.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adiciona uma fatura à lista de faturas e atualiza os agregados.
+     *
+     * @param fatura A fatura a ser adicionada.
+     * @throws IllegalArgumentException Se já existir uma fatura com o mesmo número.
+     */
+    public void adicionarFatura(Fatura fatura){
+        if (!registarFatura(fatura)) {
+            throw new IllegalArgumentException("Já existe uma fatura com o número " + fatura.getNumeroFatura() + ".");
+        }
+    }
+
+    /**
+     * Regista uma fatura nova, se o seu número ainda não existir, e atualiza os agregados.
+     * O cliente da fatura fica bloqueado enquanto a fatura é precificada nos agregados.
+     *
+     * @param fatura A fatura a registar.
+     * @return false se já existir uma fatura com o mesmo número.
+     */
+    // O bloqueio do try-with-resources só é usado para ser libertado no fim do bloco
+    @SuppressWarnings("try")
+    private boolean registarFatura(Fatura fatura){
+        lockDados.readLock().lock();
+        try (LocksEstratificados.Bloqueio bloqueio = locksClientes.bloquear(fatura.getCliente().getNif())) {
+            if (faturasPorNumero.putIfAbsent(fatura.getNumeroFatura(), fatura) != null) {
+                return false;
+            }
+            numeracaoFaturas.reservarAte(fatura.getNumeroFatura());
+            for (Produto produto : fatura.getProdutos()) {
+                numeracaoProdutos.reservarAte(produto.getCodigo());
+            }
+            synchronized (listaFaturas) {
+                listaFaturas.add(fatura);
+            }
+            lockAgregados.readLock().lock();
+            try {
+                incluirNosAgregados(fatura);
+            } finally {
+                lockAgregados.readLock().unlock();
+            }
+            registarNosRankings(fatura);
+            distintos.adicionar(fatura);
+            faturaAlterada(fatura);
+            return true;
+        } finally {
+            lockDados.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inicia a gravação em segundo plano dos dados num arquivo (ver GravacaoAgrupada).
+     * A partir daí, as alterações a clientes e faturas são marcadas e gravadas em lotes.
+     *
+     * @param arquivo     O arquivo de dados.
+     * @param intervaloMs O intervalo máximo entre a primeira alteração pendente e a gravação, em milissegundos.
+     * @param tamanhoLote O número de alterações que obriga a gravar de imediato.
+     * @return A gravação iniciada.
+     * @throws IllegalStateException Se já houver uma gravação em segundo plano.
+     */
+    synchronized GravacaoAgrupada iniciarGravacao(File arquivo, long intervaloMs, int tamanhoLote) {
+        if (gravacao != null) {
+            throw new IllegalStateException("A gravação em segundo plano já foi iniciada.");
+        }
+        gravacao = new GravacaoAgrupada(this, arquivo, intervaloMs, tamanhoLote);
+        return gravacao;
+    }
+
+    /**
+     * Termina a gravação em segundo plano, se tiver sido iniciada.
+     *
+     * @param gravarPendentes true para gravar as alterações pendentes, false se os dados vão ser gravados de outra forma.
+     */
+    synchronized void terminarGravacao(boolean gravarPendentes) {
+        if (gravacao == null) {
+            return;
+        }
+        if (gravarPendentes) {
+            gravacao.close();
+        } else {
+            gravacao.parar();
+        }
+        gravacao = null;
+    }
+
+    /**
+     * Marca um cliente para a próxima gravação em segundo plano (deve ser chamado com o lock de leitura dos dados).
+     *
+     * @param cliente O cliente alterado.
+     */
+    void clienteAlterado(Cliente cliente) {
+        GravacaoAgrupada atual = gravacao;
+        if (atual != null) {
+            atual.clienteAlterado(cliente.getNif());
+        }
+    }
+
+    /**
+     * Marca uma fatura para a próxima gravação em segundo plano (deve ser chamado com o lock de leitura dos dados).
+     *
+     * @param fatura A fatura alterada.
+     */
+    void faturaAlterada(Fatura fatura) {
+        GravacaoAgrupada atual = gravacao;
+        if (atual != null) {
+            atual.faturaAlterada(fatura.getNumeroFatura());
+        }
+    }
+
+    /**
+     * Marca uma alteração que não é de um cliente ou fatura para a próxima gravação em segundo plano
+     * (deve ser chamado com o lock de leitura dos dados).
+     */
+    void dadosAlterados() {
+        GravacaoAgrupada atual = gravacao;
+        if (atual != null) {
+            atual.registarAlteracao();
+        }
+    }
+
+    /**
+     * Obtém o próximo número de fatura da sequência do sistema.
+     *
+     * @return O número da nova fatura.
+     */
+    int proximoNumeroFatura(){
+        return numeracaoFaturas.proximoInt();
+    }
+
+    /**
+     * Obtém o ficheiro da sequência dos números das faturas associado a um ficheiro de dados.
+     *
+     * @param arquivo O ficheiro de dados.
+     * @return O ficheiro da sequência.
+     */
+    static File ficheiroSequenciaFaturas(File arquivo){
+        return new File(arquivo.getPath() + ".faturas.seq");
+    }
+
+    /**
+     * Obtém o ficheiro da sequência dos códigos dos produtos associado a um ficheiro de dados.
+     *
+     * @param arquivo O ficheiro de dados.
+     * @return O ficheiro da sequência.
+     */
+    static File ficheiroSequenciaProdutos(File arquivo){
+        return new File(arquivo.getPath() + ".produtos.seq");
+    }
+
+    /**
+     * Garante que a sequência dos códigos dos produtos fica acima do maior código do catálogo e das faturas.
+     * Só é preciso quando ainda não existe o ficheiro de sequência (dados de versões anteriores).
+     */
+    private void reservarCodigosExistentes(){
+        int maiorCodigo = 0;
+        for (Produto produto : listaProdutos) {
+            maiorCodigo = Math.max(maiorCodigo, produto.getCodigo());
+        }
+        for (Fatura fatura : listaFaturas) {
+            for (Produto produto : fatura.getProdutos()) {
+                maiorCodigo = Math.max(maiorCodigo, produto.getCodigo());
+            }
+        }
+        numeracaoProdutos.reservarAte(maiorCodigo);
+    }
+
+    /**
+     * Garante que a sequência dos números das faturas fica acima do maior número das faturas existentes.
+     * Só é preciso quando as faturas não foram criadas com a sequência (dados antigos ou substituídos).
+     */
+    private void reservarNumerosExistentes(){
+        int maiorNumeroFatura = 0;
+        for (Fatura fatura : listaFaturas) {
+            maiorNumeroFatura = Math.max(maiorNumeroFatura, fatura.getNumeroFatura());
+        }
+        numeracaoFaturas.reservarAte(maiorNumeroFatura);
+    }
+
+    /**
+     * Obtém uma cópia da lista de clientes, que pode ser percorrida enquanto outras sessões acrescentam clientes.
+     *
+     * @return A cópia da lista de clientes.
+     */
+    private ArrayList<Cliente> copiaClientes(){
+        synchronized (listaClientes) {
+            return new ArrayList<>(listaClientes);
+        }
+    }
+
+    /**
+     * Obtém uma cópia da lista de faturas, que pode ser percorrida enquanto outras sessões acrescentam faturas.
+     *
+     * @return A cópia da lista de faturas.
+     */
+    ArrayList<Fatura> copiaFaturas(){
+        synchronized (listaFaturas) {
+            return new ArrayList<>(listaFaturas);
+        }
+    }
+
+    /**
+     * Reconstrói os mapas de faturas por número e de clientes por NIF a partir das listas.
+     */
+    private void reconstruirMapas(){
+        ConcurrentHashMap<Integer, Fatura> faturas = new ConcurrentHashMap<>();
+        for (Fatura fatura : listaFaturas) {
+            faturas.putIfAbsent(fatura.getNumeroFatura(), fatura);
+        }
+        ConcurrentHashMap<String, Cliente> clientes = new ConcurrentHashMap<>();
+        for (Cliente cliente : listaClientes) {
+            clientes.putIfAbsent(cliente.getNif(), cliente);
+        }
+        faturasPorNumero = faturas;
+        clientesPorNif = clientes;
+    }
+
+    /**
+     * Regista uma fatura nova nos rankings aproximados de produtos e clientes.
+     * Os rankings em fluxo só acumulam: edições posteriores não são refletidas até serem reconstruídos.
+     *
+     * @param fatura A fatura criada ou importada.
+     */
+    private void registarNosRankings(Fatura fatura){
+        double ivaFatura = 0.0;
+        for (Produto produto : fatura.getProdutos()) {
+            double valorSemIVA = produto.calcularValorSemIVA();
+            topProdutosFluxo.adicionar(produto.getCodigo(), Math.max(0.0, valorSemIVA));
+            ivaFatura += produto.calcularValorComIVA(fatura.getCliente(), fatura.getData()) - valorSemIVA;
+        }
+        Long nif = nifComoNumero(fatura.getCliente());
+        if (nif != null) {
+            topClientesFluxo.adicionar(nif, Math.max(0.0, ivaFatura));
+        }
+    }
+
+    /**
+     * Converte o NIF de um cliente num número, para ser usado como chave nos rankings
+     * e na contagem de clientes distintos.
+     *
+     * @param cliente O cliente.
+     * @return O NIF como número, ou null se não for numérico.
+     */
+    static Long nifComoNumero(Cliente cliente){
+        try {
+            return Long.parseLong(cliente.getNif());
+        } catch (NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Inclui uma fatura nos agregados mantidos pelo sistema
+     * (depois de ser criada, importada ou editada).
+     *
+     * @param fatura A fatura a incluir.
+     */
+    void incluirNosAgregados(Fatura fatura){
+        estatisticas.adicionar(fatura);
+        cubo.adicionar(fatura);
+        agregadosPeriodo.adicionar(fatura);
+        distribuicao.adicionar(fatura);
+        indices.adicionar(fatura);
+    }
+
+    /**
+     * Retira uma fatura dos agregados mantidos pelo sistema (antes de ser editada).
+     *
+     * @param fatura A fatura a retirar.
+     */
+    void retirarDosAgregados(Fatura fatura){
+        estatisticas.remover(fatura);
+        cubo.remover(fatura);
+        agregadosPeriodo.remover(fatura);
+        distribuicao.remover(fatura);
+        indices.remover(fatura);
+    }
+
+    /**
+     * Recalcula de raiz todos os agregados mantidos pelo sistema
+     * (depois de carregar dados ou de mudarem as taxas de IVA).
+     */
+    private void recalcularAgregados(){
+        lockDados.writeLock().lock();
+        try {
+            estatisticas.recalcular(listaFaturas);
+            cubo.recalcular(listaFaturas);
+            agregadosPeriodo.recalcular(listaFaturas);
+            distribuicao.recalcular(listaFaturas);
+            indices.recalcular(listaFaturas);
+            topProdutosFluxo.limpar();
+            topClientesFluxo.limpar();
+            listaFaturas.forEach(this::registarNosRankings);
+        } finally {
+            lockDados.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reconstrói a contagem de clientes e produtos distintos a partir de todas as faturas.
+     */
+    private void reconstruirDistintos(){
+        ContagemDistintos novos = new ContagemDistintos();
+        listaFaturas.forEach(novos::adicionar);
+        distintos = novos;
+    }
+
+    /**
+     * Recalcula os agregados se as taxas de IVA tiverem mudado desde o último cálculo.
+     */
+    private void atualizarSeTaxasAlteradas(){
+        if (estatisticas.taxasAlteradas()) {
+            recalcularAgregados();
+        }
     }
 
     //************************ FATURA PRODUTOS ************************
@@ -299,30 +747,36 @@ public class SistemaPOOFS implements Serializable {
         // Associar a fatura a um cliente
         System.out.println("Digite o número de contribuinte do cliente:");
         String numContribuinte = scanner.nextLine();
-        Cliente cliente = buscarClientePorContribuinte(numContribuinte);
+        Cliente cliente = servico.obterCliente(numContribuinte);
 
         if (cliente == null) {
             System.out.println("Cliente não encontrado. Não é possível criar a fatura.");
             return;
         }
 
-        Date data = new Date();
-
-        // Criar a fatura
-        Fatura fatura = new Fatura(cliente, data, new ArrayList<>());
-
-        // Adicionar produtos à fatura (pelo menos 1!)
-        while(fatura.getProdutos().isEmpty()) {
+        // Escolher os produtos da fatura (pelo menos 1!)
+        ArrayList<Produto> produtos = new ArrayList<>();
+        while(produtos.isEmpty()) {
             System.out.println("Adicione produtos!");
-            adicionarProdutosFatura(fatura);
+            adicionarProdutosFatura(produtos, produtos::add);
 
-            if (fatura.getProdutos().isEmpty()) {
+            if (produtos.isEmpty()) {
                 System.out.println("Nenhum produto foi adicionado. Por favor, adicione ao menos 1 produto.");
             }
         }
 
-        // Salvar a fatura no sistema
-        listaFaturas.add(fatura);
+        // Criar e salvar a fatura no sistema
+        ArrayList<Integer> codigos = new ArrayList<>();
+        for (Produto produto : produtos) {
+            codigos.add(produto.getCodigo());
+        }
+        Fatura fatura;
+        try {
+            fatura = servico.criarFatura(numContribuinte, null, codigos);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println("Erro: " + e.getMessage());
+            return;
+        }
         System.out.println("Fatura criada com sucesso!");
         System.out.println("Detalhes da fatura: "+fatura);
     }
@@ -330,6 +784,8 @@ public class SistemaPOOFS implements Serializable {
     /**
      * Edita uma fatura existente com base no número da fatura inserido pelo utilizador.
      * Permite modificar informações como cliente, data e produtos na fatura.
+     * As alterações são feitas sobre uma cópia da fatura (ver EdicaoFatura) e só são aplicadas ao guardar,
+     * se entretanto a fatura não tiver sido alterada por outra sessão.
      */
     protected void editarFatura() {
         Scanner scanner = new Scanner(System.in);
@@ -349,16 +805,28 @@ public class SistemaPOOFS implements Serializable {
             }
         }
 
-        Fatura fatura = buscarFaturaPorNumero(numeroFatura);
-
-        if (fatura == null) {
-            System.out.println("Fatura não encontrada.");
+        EdicaoFatura edicao;
+        try {
+            edicao = servico.iniciarEdicao(numeroFatura);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             return;
         }
 
+        // As alterações escolhidas no menu ficam na edição até serem guardadas
+        menuEdicaoFatura(scanner, edicao);
+    }
+
+    /**
+     * Mostra o menu de edição de uma fatura até o utilizador escolher sair.
+     *
+     * @param scanner O objeto Scanner para ler as entradas do usuário.
+     * @param edicao  A edição da fatura.
+     */
+    private void menuEdicaoFatura(Scanner scanner, EdicaoFatura edicao) {
         // Menu de edição da fatura
         int opcao = 0;
-        while (opcao != 6) {
+        while (opcao != 6 && opcao != 7) {
             System.out.println("""
                     === Editar Fatura ===
                     1. Alterar Cliente
@@ -366,7 +834,8 @@ public class SistemaPOOFS implements Serializable {
                     3. Adicionar Produtos
                     4. Remover Produtos
                     5. Editar Produtos
-                    6. Sair
+                    6. Guardar e sair
+                    7. Sair sem guardar
                     """);
             System.out.print("Escolha uma opção: ");
 
@@ -376,23 +845,32 @@ public class SistemaPOOFS implements Serializable {
                 opcao = Integer.parseInt(entrada);
                 switch (opcao) {
                     case 1:
-                        alterarClienteFatura(fatura);
+                        alterarClienteFatura(edicao);
                         break;
                     case 2:
-                        alterarDataFatura(fatura);
+                        alterarDataFatura(edicao);
                         break;
                     case 3:
-                        adicionarProdutosFatura(fatura);
+                        adicionarProdutosFatura(edicao.getProdutos(), produto -> edicao.adicionarProduto(produto.getCodigo()));
                         break;
                     case 4:
-                        removerProdutosFatura(fatura);
+                        removerProdutosFatura(edicao);
                         break;
                     case 5:
-                        editarProdutosFatura(fatura);
+                        editarProdutosFatura(edicao);
                         break;
                     case 6:
+                        try {
+                            edicao.confirmar();
+                            System.out.println("Alterações guardadas.");
+                        } catch (IllegalArgumentException | IllegalStateException e) {
+                            System.out.println("Erro: " + e.getMessage());
+                        }
                         System.out.println("Voltando...");
                         break;
+                    case 7:
+                        System.out.println("Alterações descartadas. Voltando...");
+                        break;
 
                     default:
                         System.out.println("Opção inválida.");
@@ -412,9 +890,9 @@ public class SistemaPOOFS implements Serializable {
      * A data é validada para garantir que está no formato correto (DD/MM/YYYY)
      * e dentro de um intervalo aceitável de anos.
      *
-     * @param fatura A fatura a ser alterada.
+     * @param edicao A edição da fatura a ser alterada.
      */
-    private void alterarDataFatura(Fatura fatura) {
+    private void alterarDataFatura(EdicaoFatura edicao) {
         Scanner scanner = new Scanner(System.in);
         boolean dataValida = false;
 
@@ -428,15 +906,9 @@ public class SistemaPOOFS implements Serializable {
                 sdf.setLenient(false);//Ativa validação estrita, o que rejeita qualquer entrada de dia e mes invalidos!
                 Date novaData = sdf.parse(novaDataStr);
 
-                //Validação para anos num intervalo aceitável
-                String[] partes = novaDataStr.split("/");
-                int ano = Integer.parseInt(partes[2]);
-                int min_ano = 1900, max_ano= 2024;
-                if (ano < min_ano || ano > max_ano)
-                    throw new IllegalArgumentException("Ano fora do intervalo permitido.");
-
+                //O ano tem de estar num intervalo aceitável (validado pela edição)
                 //Se tudo estiver válido, altera a data da fatura
-                fatura.setData(novaData);
+                edicao.alterarData(novaData);
                 System.out.println("Data alterada com sucesso!");
                 dataValida = true;
 
@@ -451,19 +923,18 @@ public class SistemaPOOFS implements Serializable {
     /**
      * Altera o cliente associado à fatura para um novo cliente identificado pelo NIF.
      *
-     * @param fatura A fatura a ser alterada.
+     * @param edicao A edição da fatura a ser alterada.
      */
-    private void alterarClienteFatura(Fatura fatura) {
+    private void alterarClienteFatura(EdicaoFatura edicao) {
         Scanner scanner = new Scanner(System.in);
         System.out.println("Digite o NIF do novo cliente:");
         String nif = scanner.nextLine().trim();
-        Cliente novoCliente = buscarClientePorContribuinte(nif);
 
-        if (novoCliente != null) {
-            fatura.setCliente(novoCliente);
+        try {
+            edicao.alterarCliente(nif);
             System.out.println("Cliente alterado com sucesso!");
-        } else {
-            System.out.println("Cliente com NIF " + nif + " não encontrado.");
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         }
     }
 
@@ -471,18 +942,18 @@ public class SistemaPOOFS implements Serializable {
      * Permite editar os produtos da fatura, alterando a quantidade de um produto existente.
      * O utilizador deve informar o código do produto para edição.
      *
-     * @param fatura A fatura que contém os produtos a serem editados.
+     * @param edicao A edição da fatura que contém os produtos a serem editados.
      */
-    private void editarProdutosFatura(Fatura fatura) {
+    private void editarProdutosFatura(EdicaoFatura edicao) {
         Scanner scanner = new Scanner(System.in);
 
-        if (fatura.getProdutos().isEmpty()) {
+        if (edicao.getProdutos().isEmpty()) {
             System.out.println("Nenhum produto na fatura para editar.");
             return;
         }
 
         System.out.println("Produtos na fatura:");
-        for (Produto produto : fatura.getProdutos()) {
+        for (Produto produto : edicao.getProdutos()) {
             System.out.println(produto);
         }
 
@@ -495,7 +966,7 @@ public class SistemaPOOFS implements Serializable {
 
         try {
             int codigo = Integer.parseInt(entrada);
-            Produto produto = buscarProdutoNaFatura(fatura, codigo);
+            Produto produto = buscarProdutoNaFatura(edicao.getProdutos(), codigo);
 
             if (produto != null) {
                 System.out.println("Produto selecionado: " + produto);
@@ -503,7 +974,8 @@ public class SistemaPOOFS implements Serializable {
                 int novaQuantidade = Integer.parseInt(scanner.nextLine().trim());
 
                 if (novaQuantidade > 0) {
-                    produto.setQuantidade(novaQuantidade);
+                    // O produto é partilhado com outras faturas, cujos totais também são atualizados ao guardar
+                    edicao.alterarQuantidade(codigo, novaQuantidade);
                     System.out.println("Quantidade alterada com sucesso!");
                 } else {
                     System.out.println("A quantidade deve ser maior que zero.");
@@ -513,18 +985,20 @@ public class SistemaPOOFS implements Serializable {
             }
         } catch (NumberFormatException e) {
             System.out.println("Entrada inválida! Certifique-se de digitar um número.");
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println("Erro: " + e.getMessage());
         }
     }
 
     /**
      * Busca um produto dentro de uma fatura com base no código do produto.
      *
-     * @param fatura A fatura onde o produto será procurado.
+     * @param produtosFatura Os produtos da fatura onde o produto será procurado.
      * @param codigo O código do produto a ser procurado.
      * @return O produto correspondente ao código, ou null se não encontrado.
      */
-    private Produto buscarProdutoNaFatura(Fatura fatura, int codigo) {
-        for (Produto produto : fatura.getProdutos()) {
+    private Produto buscarProdutoNaFatura(List<Produto> produtosFatura, int codigo) {
+        for (Produto produto : produtosFatura) {
             if (produto.getCodigo() == codigo) {
                 return produto;
             }
@@ -536,18 +1010,18 @@ public class SistemaPOOFS implements Serializable {
      * Remove um produto da fatura com base no código do produto inserido pelo utilizador.
      * Se o produto não for encontrado na fatura, uma mensagem de erro será exibida.
      *
-     * @param fatura A fatura de onde o produto será removido.
+     * @param edicao A edição da fatura de onde o produto será removido.
      */
-    private void removerProdutosFatura(Fatura fatura) {
+    private void removerProdutosFatura(EdicaoFatura edicao) {
         Scanner scanner = new Scanner(System.in);
 
-        if (fatura.getProdutos().isEmpty()) {
+        if (edicao.getProdutos().isEmpty()) {
             System.out.println("Nenhum produto na fatura para remover.");
             return;
         }
 
         System.out.println("Produtos na fatura:");
-        for (Produto produto : fatura.getProdutos()) {
+        for (Produto produto : edicao.getProdutos()) {
             System.out.println(produto);
         }
         int codigo = 0;
@@ -566,16 +1040,10 @@ public class SistemaPOOFS implements Serializable {
             }
         }
 
-        Produto produtoARemover = null;
-        for (Produto produto : fatura.getProdutos()) {
-            if (produto.getCodigo() == codigo) {
-                produtoARemover = produto;
-                break;
-            }
-        }
+        Produto produtoARemover = buscarProdutoNaFatura(edicao.getProdutos(), codigo);
 
         if (produtoARemover != null) {
-            fatura.getProdutos().remove(produtoARemover);
+            edicao.removerProduto(codigo);
             System.out.println("Produto removido com sucesso.");
         } else {
             System.out.println("Produto não encontrado na fatura.");
@@ -586,9 +1054,10 @@ public class SistemaPOOFS implements Serializable {
      * Adiciona produtos a uma fatura com base no código do produto fornecido pelo utilizador.
      * O utilizador pode adicionar múltiplos produtos até inserir "sair".
      *
-     * @param fatura A fatura onde os produtos serão adicionados.
+     * @param produtosFatura Os produtos que a fatura já tem.
+     * @param adicionar      A operação que acrescenta um produto à fatura.
      */
-    private void adicionarProdutosFatura(Fatura fatura) {
+    private void adicionarProdutosFatura(List<Produto> produtosFatura, Consumer<Produto> adicionar) {
         Scanner scanner = new Scanner(System.in);
         String opcao;
 
@@ -608,13 +1077,13 @@ public class SistemaPOOFS implements Serializable {
                 // Tenta converter a entrada para um número inteiro
                 int codigo = Integer.parseInt(opcao);
 
-                Produto produto = buscarProdutoPorCodigo(codigo);
+                Produto produto = servico.obterProduto(codigo);
 
                 if (produto != null) {
-                    if(fatura.getProdutos().contains(produto)){
+                    if(produtosFatura.contains(produto)){
                         System.out.println("Este produto já está na fatura.");
                     } else{
-                        fatura.addProduto(produto);
+                        adicionar.accept(produto);
                         System.out.println("Produto adicionado com sucesso.");
                     }
                 } else {
@@ -627,20 +1096,6 @@ public class SistemaPOOFS implements Serializable {
         } while(true);
     }
 
-    /**
-     * Procura um produto na lista de produtos disponíveis com base no código do produto.
-     *
-     * @param codigo O código do produto a ser procurado.
-     * @return O produto correspondente ao código, ou null se não encontrado.
-     */
-    private Produto buscarProdutoPorCodigo(int codigo) {
-        for (Produto produto : listaProdutos) {
-            if (produto.getCodigo() == codigo)
-                return produto;
-        }
-        return null;
-    }
-
     /**
      * Lista todos os produtos disponíveis na aplicação.
      * Caso não haja produtos registados, uma mensagem será exibida com essa informação.
@@ -654,6 +1109,10 @@ public class SistemaPOOFS implements Serializable {
         System.out.println("Listar produtos:");
         for (Produto produto : listaProdutos) {
             System.out.println(produto);
+            long disponivel = stock.disponivel(produto.getCodigo());
+            if (disponivel != StockProdutos.SEM_CONTROLO) {
+                System.out.println("Stock disponível: " + disponivel);
+            }
         }
     }
 
@@ -664,12 +1123,7 @@ public class SistemaPOOFS implements Serializable {
      * @return A fatura correspondente ao número, ou null se não encontrada.
      */
     protected Fatura buscarFaturaPorNumero(int numeroFatura) {
-        for (Fatura fatura : listaFaturas) {
-            if (fatura.getNumeroFatura() == numeroFatura) {
-                return fatura;
-            }
-        }
-        return null;
+        return faturasPorNumero.get(numeroFatura);
     }
 
     /**
@@ -678,13 +1132,14 @@ public class SistemaPOOFS implements Serializable {
      * Caso não haja faturas registadas, uma mensagem será exibida com essa informação.
      */
     protected void listarFaturas(){
-        if(listaFaturas.isEmpty()){
+        ArrayList<Fatura> faturas = copiaFaturas();
+        if(faturas.isEmpty()){
             System.out.println("Nenhum fatura encontrada");
             return;
         }
 
         System.out.println(" === Listando as Faturas ===");
-        for (Fatura fatura : listaFaturas) {
+        for (Fatura fatura : faturas) {
             int numProdutos = fatura.getProdutos().size();
             double totalSemIVA = fatura.calcularTotalSemIVA();
             double totalComIVA = fatura.calcularTotalComIVA(fatura);
@@ -731,79 +1186,387 @@ public class SistemaPOOFS implements Serializable {
             double valorSemIVA = produto.calcularValorSemIVA();
             System.out.printf("Valor Total Sem IVA: %.2f \n" ,  valorSemIVA);
 
-            // Valor com IVA
-            double valorComIVA = produto.calcularValorComIVA(cliente);
+            // Valor com IVA (taxas em vigor na data da fatura)
+            double valorComIVA = produto.calcularValorComIVA(cliente, fatura.getData());
             double valorIVA = valorComIVA - valorSemIVA;        //valor do IVA
             double taxaIVA = (valorIVA / valorSemIVA) * 100;    //taxa do IVA (%)
 
-            System.out.printf("Taxa do IVA: %.2f%%\n", taxaIVA);
-            System.out.printf("Valor do IVA: %.2f\n", valorIVA);
-            System.out.printf("Valor Total Com IVA: %.2f\n", valorComIVA);
-            System.out.println("-------------------------");
+            System.out.printf("Taxa do IVA: %.2f%%\n", taxaIVA);
+            System.out.printf("Valor do IVA: %.2f\n", valorIVA);
+            System.out.printf("Valor Total Com IVA: %.2f\n", valorComIVA);
+            System.out.println("-------------------------");
+
+            // Acumula nos totais
+            totalSemIVA += valorSemIVA;
+            totalIVA += valorIVA;
+            totalComIVA += valorComIVA;
+        }
+
+        // Totais da fatura: totalSemIVA, valorTotal do IVA e valorTotal com IVA
+        System.out.println("\n---- Totais da Fatura ----");
+        System.out.println("Valor total sem IVA: " + String.format("%.2f", totalSemIVA));
+        System.out.println("Valor total do IVA: " + String.format("%.2f", totalIVA));
+        System.out.println("Valor total com IVA: " + String.format("%.2f", totalComIVA) + "\n");
+    }
+
+    /**
+     * Salva os dados dos clientes e faturas num arquivo de objetos,
+     * juntamente com os totais por dia e por mês.
+     *
+     * @param arquivo O arquivo onde os dados serão salvos.
+     */
+    protected void salvarDadosObj(File arquivo){
+        try {
+            gravarDados(arquivo);
+            System.out.println("Dados salvos em "+ arquivo +"\n");
+        } catch (Exception e) {
+            System.out.println("Erro ao salvar dados: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Grava os dados num arquivo de objetos, sem mensagens na consola (usado também pelas gravações
+     * em segundo plano). Os dados são serializados para memória com o lock exclusivo dos dados e só
+     * depois de o libertar são escritos no disco, pelo que as outras operações não esperam pela escrita.
+     * São escritos num ficheiro temporário que depois substitui o arquivo, para que uma gravação
+     * interrompida não estrague os dados anteriores.
+     * Se o diário deste arquivo estiver aberto, os registos já incluídos na gravação são descartados.
+     *
+     * @param arquivo O arquivo onde os dados serão salvos.
+     * @throws IOException Se ocorrer um erro de escrita.
+     */
+    void gravarDados(File arquivo) throws IOException {
+        File temporario = new File(arquivo.getPath() + ".tmp");
+        synchronized (lockGravacaoArquivo) {
+            long marcaDiario = -1;
+            ByteArrayOutputStream dados = new ByteArrayOutputStream(64 * 1024);
+            // Os dados são serializados com o lock exclusivo, para as listas e os totais ficarem coerentes
+            lockDados.writeLock().lock();
+            try (ObjectOutputStream oos = new ObjectOutputStream(dados)) {
+                // As faturas registadas no diário até aqui já foram indexadas, pelo que estão incluídas nesta gravação
+                if (diario != null && diario.getFicheiro().equals(DiarioAlteracoes.ficheiroDe(arquivo))) {
+                    marcaDiario = diario.tamanho();
+                }
+                oos.writeObject(listaClientes);
+                oos.writeObject(listaFaturas);
+                oos.writeObject(listaProdutos);
+                oos.writeObject(agregadosPeriodo);
+                oos.writeObject(distintos);
+                oos.writeObject(stock);
+            } finally {
+                lockDados.writeLock().unlock();
+            }
+            try (FileOutputStream out = new FileOutputStream(temporario)) {
+                dados.writeTo(out);
+            }
+            try {
+                Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (marcaDiario >= 0) {
+                diario.descartarAte(marcaDiario);
+            }
+        }
+    }
+
+    /**
+     * Abre o diário das faturas associado a um arquivo de dados (ver PipelineFaturas).
+     * As faturas registadas no diário são recuperadas da próxima vez que o arquivo for carregado.
+     *
+     * @param arquivo O arquivo de dados.
+     * @return O diário aberto.
+     * @throws IOException Se não for possível abrir o diário.
+     */
+    DiarioAlteracoes abrirDiario(File arquivo) throws IOException {
+        diario = new DiarioAlteracoes(DiarioAlteracoes.ficheiroDe(arquivo));
+        return diario;
+    }
+
+    /**
+     * Regista de novo as faturas do diário de um arquivo que ainda não estão nos dados carregados
+     * (criadas depois da última gravação). Os clientes que não existirem são criados.
+     *
+     * @param arquivo O arquivo de dados.
+     */
+    private void recuperarDiario(File arquivo) {
+        int[] recuperadas = {0};
+        try {
+            DiarioAlteracoes.reproduzir(DiarioAlteracoes.ficheiroDe(arquivo), registo -> {
+                if (aplicarRegisto(registo)) {
+                    recuperadas[0]++;
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Erro ao ler o diário: " + e.getMessage());
+        }
+        if (recuperadas[0] > 0) {
+            System.out.println(recuperadas[0] + " faturas recuperadas do diário.");
+        }
+    }
+
+    /**
+     * Regista a fatura de um registo do diário, se ainda não estiver nos dados (já incluída numa gravação).
+     * O cliente é criado se não existir e o stock das linhas é retirado de novo.
+     *
+     * @param registo O registo do diário.
+     * @return true se a fatura foi registada.
+     */
+    boolean aplicarRegisto(DiarioAlteracoes.Registo registo) {
+        if (faturasPorNumero.containsKey(registo.numeroFatura)) {
+            return false;
+        }
+        Cliente cliente = clientesPorNif.get(registo.nif);
+        if (cliente == null) {
+            cliente = new Cliente(registo.nome, registo.nif, registo.localizacao);
+            adicionarCliente(cliente);
+        }
+        ArrayList<Produto> produtos = new ArrayList<>(registo.codigos.length);
+        for (int codigo : registo.codigos) {
+            Produto produto = servico.obterProduto(codigo);
+            if (produto == null) {
+                System.out.println("Erro: Fatura " + registo.numeroFatura + " do diário com o produto " + codigo + " inexistente. Ignorada.");
+                return false;
+            }
+            produtos.add(produto);
+        }
+        Fatura fatura = new Fatura(registo.numeroFatura, cliente, registo.data, produtos);
+        if (!registarFatura(fatura)) {
+            return false;
+        }
+        // A reserva já foi aceite quando a fatura foi criada, mas não está no stock gravado
+        for (Produto produto : produtos) {
+            if (stock.controlado(produto.getCodigo())) {
+                stock.ajustar(produto.getCodigo(), -produto.getQuantidade());
+                fatura.marcarReservada(produto.getCodigo(), true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Carrega os dados de clientes, faturas e produtos de um arquivo de objetos.
+     * Se o arquivo não tiver o catálogo de produtos (dados de versões anteriores), é criado o catálogo de teste.
+     * Depois, são recuperadas as faturas do diário criadas depois da última gravação.
+     * Os números das faturas e os códigos dos produtos passam a ser reservados no ficheiro de sequência ao lado do arquivo;
+     * se este ainda não existir (dados de versões anteriores), é criado a partir do maior número carregado.
+     * Os totais por dia e por mês guardados são reutilizados se ainda forem válidos.
+     * Se o arquivo existir mas não puder ser lido, o sistema fica com as listas vazias.
+     *
+     * @param arquivo O arquivo de onde os dados serão carregados.
+     * @return false se o arquivo existe mas não pôde ser lido (nesse caso, os dados não devem ser gravados por cima dele).
+     */
+    protected boolean carregarDadosObj(File arquivo) {
+        boolean carregado = true;
+        lockDados.writeLock().lock();
+        try {
+            File ficheiroSequencia = ficheiroSequenciaFaturas(arquivo);
+            boolean sequenciaExiste = SequenciaNumeracao.existe(ficheiroSequencia);
+            numeracaoFaturas = new SequenciaNumeracao(ficheiroSequencia, SequenciaNumeracao.TAMANHO_BLOCO_PADRAO, 1);
+            File ficheiroCodigos = ficheiroSequenciaProdutos(arquivo);
+            boolean codigosExistem = SequenciaNumeracao.existe(ficheiroCodigos);
+            numeracaoProdutos = new SequenciaNumeracao(ficheiroCodigos, SequenciaNumeracao.TAMANHO_BLOCO_PADRAO, 1);
+            listaProdutos = new ArrayList<>();
+            if(arquivo.exists()){
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(arquivo))) {
+                    lerDados(ois);
+
+                    // Ficheiro de sequência em falta: ajustar a sequência ao maior número carregado
+                    if (!sequenciaExiste) {
+                        reservarNumerosExistentes();
+                    }
+                    if (!codigosExistem) {
+                        reservarCodigosExistentes();
+                    }
+
+                    System.out.println("Dados carregados com sucesso de " + arquivo);
+                } catch (FileNotFoundException e) {
+                    System.out.println("Ficheiro não encontrado. Iniciando com listas vazias.");
+                    listaClientes = new ArrayList<>();
+                    listaFaturas = new ArrayList<>();
+                    recalcularAgregados();
+                    reconstruirDistintos();
+                } catch (IOException | ClassNotFoundException e) {
+                    System.out.println("Erro ao carregar dados: " + e.getMessage());
+                    listaClientes = new ArrayList<>();
+                    listaFaturas = new ArrayList<>();
+                    recalcularAgregados();
+                    reconstruirDistintos();
+                    carregado = false;
+                }
+            }
+            if (listaProdutos.isEmpty()) {
+                criarCatalogoInicial();
+            }
+            reconstruirMapas();
+            recuperarDiario(arquivo);
+            return carregado;
+        } finally {
+            lockDados.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Carrega os dados de uma cópia do arquivo de dados só para leitura (ver ReplicaLeitura): ao contrário
+     * de carregarDadosObj, não usa os ficheiros de sequência nem o diário do arquivo, que pertencem
+     * ao processo que grava os dados.
+     *
+     * @param in O conteúdo do arquivo de dados.
+     * @throws IOException Se ocorrer um erro de leitura.
+     * @throws ClassNotFoundException Se a classe de um objeto não existir.
+     */
+    void carregarCopia(InputStream in) throws IOException, ClassNotFoundException {
+        lockDados.writeLock().lock();
+        try {
+            listaProdutos = new ArrayList<>();
+            lerDados(new ObjectInputStream(in));
+            if (listaProdutos.isEmpty()) {
+                criarCatalogoInicial();
+            }
+            reconstruirMapas();
+        } finally {
+            lockDados.writeLock().unlock();
+        }
+    }
 
-            // Acumula nos totais
-            totalSemIVA += valorSemIVA;
-            totalIVA += valorIVA;
-            totalComIVA += valorComIVA;
+    /**
+     * Carrega os dados de um arquivo e as faturas do seu diário só para leitura (usado pelos comandos
+     * que não alteram os dados, ver Main). Tal como carregarCopia, não usa os ficheiros de sequência
+     * e não altera o diário, pelo que pode ser usado enquanto outro processo grava os dados.
+     *
+     * @param arquivo O arquivo de dados.
+     * @throws IOException Se ocorrer um erro de leitura.
+     * @throws ClassNotFoundException Se a classe de um objeto não existir.
+     */
+    void carregarLeitura(File arquivo) throws IOException, ClassNotFoundException {
+        if (arquivo.exists()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(arquivo), 64 * 1024)) {
+                carregarCopia(in);
+            }
+        } else {
+            criarCatalogoInicial();
+            reconstruirMapas();
         }
+        File ficheiroDiario = DiarioAlteracoes.ficheiroDe(arquivo);
+        if (ficheiroDiario.isFile()) {
+            DiarioAlteracoes.lerDesde(ficheiroDiario, 0, registo -> aplicarRegisto(registo));
+        }
+    }
 
-        // Totais da fatura: totalSemIVA, valorTotal do IVA e valorTotal com IVA
-        System.out.println("\n---- Totais da Fatura ----");
-        System.out.println("Valor total sem IVA: " + String.format("%.2f", totalSemIVA));
-        System.out.println("Valor total do IVA: " + String.format("%.2f", totalIVA));
-        System.out.println("Valor total com IVA: " + String.format("%.2f", totalComIVA) + "\n");
+    /**
+     * Compacta os dados de um arquivo (que devem estar carregados com carregarDadosObj): grava-os de novo,
+     * com as faturas recuperadas do diário, e descarta o diário, que fica vazio. Não deve ser usado
+     * enquanto outro processo grava o mesmo arquivo.
+     *
+     * @param arquivo O arquivo de dados.
+     * @return true se os dados foram compactados.
+     */
+    protected boolean compactarDados(File arquivo) {
+        long tamanhoDiario = DiarioAlteracoes.ficheiroDe(arquivo).length();
+        try {
+            DiarioAlteracoes aberto = abrirDiario(arquivo);
+            try {
+                gravarDados(arquivo);
+            } finally {
+                diario = null;
+                aberto.close();
+            }
+            System.out.println("Dados compactados em " + arquivo + ": " + listaFaturas.size() + " faturas, "
+                    + tamanhoDiario + " bytes do diário incluídos nos dados.");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Erro ao compactar dados: " + e.getMessage());
+            return false;
+        }
     }
 
     /**
-     * Salva os dados dos clientes e faturas num arquivo de objetos.
+     * Lê os dados gravados por gravarDados (clientes, faturas e, se existirem, os produtos e os agregados)
+     * e recalcula os agregados que não foram gravados ou já não são válidos.
+     * Deve ser chamado com o lock exclusivo (ou antes de o sistema ser partilhado); os mapas por número
+     * e por NIF não são reconstruídos (ver reconstruirMapas).
      *
-     * @param arquivo O arquivo onde os dados serão salvos.
+     * @param ois O stream de onde ler.
+     * @throws IOException Se ocorrer um erro de leitura.
+     * @throws ClassNotFoundException Se a classe de um objeto não existir.
      */
-    protected void salvarDadosObj(File arquivo){
-        try(ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(arquivo))){
-            oos.writeObject(listaClientes);
-            oos.writeObject(listaFaturas);
-            //oos.writeObject(listaProdutos);
-            System.out.println("Dados salvos em "+ arquivo +"\n");
-        } catch (Exception e) {
-            System.out.println("Erro ao salvar dados: "+e.getMessage());
+    void lerDados(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        listaClientes = (ArrayList<Cliente>) ois.readObject();
+        listaFaturas = (ArrayList<Fatura>) ois.readObject();
+        stock = new StockProdutos();
+
+        // Objetos adicionais (não existem em ficheiros gravados por versões anteriores)
+        AgregadosPeriodo agregadosLidos = null;
+        ContagemDistintos distintosLidos = null;
+        Object adicional;
+        while ((adicional = lerObjetoOpcional(ois)) != null) {
+            if (adicional instanceof AgregadosPeriodo) {
+                agregadosLidos = (AgregadosPeriodo) adicional;
+            } else if (adicional instanceof ContagemDistintos) {
+                distintosLidos = (ContagemDistintos) adicional;
+            } else if (adicional instanceof StockProdutos) {
+                stock = (StockProdutos) adicional;
+            } else if (adicional instanceof ArrayList) {
+                listaProdutos = listaDe((ArrayList<?>) adicional, Produto.class);
+            }
+        }
+
+        if (agregadosLidos != null && agregadosLidos.valido(listaFaturas.size())) {
+            agregadosPeriodo = agregadosLidos;
+            estatisticas.recalcular(listaFaturas);
+            cubo.recalcular(listaFaturas);
+            distribuicao.recalcular(listaFaturas);
+            indices.recalcular(listaFaturas);
+            topProdutosFluxo.limpar();
+            topClientesFluxo.limpar();
+            listaFaturas.forEach(this::registarNosRankings);
+        } else {
+            recalcularAgregados();
+        }
+
+        if (distintosLidos != null && distintosLidos.valido(listaFaturas.size())) {
+            distintos = distintosLidos;
+        } else {
+            reconstruirDistintos();
         }
     }
 
     /**
-     * Carrega os dados de clientes e faturas de um arquivo de objetos.
-     * Atualiza o contador do número das faturas com base nos dados carregados.
+     * Copia uma lista lida do ficheiro, verificando o tipo de cada elemento.
      *
-     * @param arquivo O arquivo de onde os dados serão carregados.
+     * @param lista A lista lida.
+     * @param tipo  O tipo dos elementos.
+     * @return A lista com o tipo dos elementos.
+     * @throws InvalidObjectException Se algum elemento não for do tipo indicado.
      */
-    protected void carregarDadosObj(File arquivo) {
-        if(arquivo.exists()){
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(arquivo))) {
-                listaClientes = (ArrayList<Cliente>) ois.readObject();
-                listaFaturas = (ArrayList<Fatura>) ois.readObject();
-
-                // Atualiza o contador de número de faturas
-                int maiorNumeroFatura = 0;
-                for (Fatura fatura : listaFaturas) {
-                    if (fatura.getNumeroFatura() > maiorNumeroFatura) {
-                        maiorNumeroFatura = fatura.getNumeroFatura();
-                    }
-                }
-                Fatura.setContadorNumeroFatura(maiorNumeroFatura + 1); //Ajustar o contador para o próximo número
-
-
-                System.out.println("Dados carregados com sucesso de " + arquivo);
-            } catch (FileNotFoundException e) {
-                System.out.println("Ficheiro não encontrado. Iniciando com listas vazias.");
-                listaClientes = new ArrayList<>();
-                listaFaturas = new ArrayList<>();
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Erro ao carregar dados: " + e.getMessage());
-                listaClientes = new ArrayList<>();
-                listaFaturas = new ArrayList<>();
+    private static <T> ArrayList<T> listaDe(ArrayList<?> lista, Class<T> tipo) throws InvalidObjectException {
+        ArrayList<T> resultado = new ArrayList<>(lista.size());
+        for (Object elemento : lista) {
+            if (!tipo.isInstance(elemento)) {
+                throw new InvalidObjectException("Elemento inesperado numa lista de " + tipo.getSimpleName() + ": " + elemento);
             }
+            resultado.add(tipo.cast(elemento));
         }
+        return resultado;
+    }
 
+    /**
+     * Lê o próximo objeto do ficheiro, se existir.
+     *
+     * @param ois O stream de onde ler.
+     * @return O objeto lido, ou null se o ficheiro terminou.
+     * @throws IOException Se ocorrer um erro de leitura.
+     * @throws ClassNotFoundException Se a classe do objeto não existir.
+     */
+    private Object lerObjetoOpcional(ObjectInputStream ois) throws IOException, ClassNotFoundException {
+        try {
+            return ois.readObject();
+        } catch (EOFException e) {
+            return null;
+        } catch (OptionalDataException e) {
+            if (e.eof) return null;
+            throw e;
+        }
     }
 
     /**
@@ -811,13 +1574,57 @@ public class SistemaPOOFS implements Serializable {
      * Se o arquivo não estiver no formato correto ou se algum erro ocorrer, a fatura será ignorada.
      *
      * @param arquivo O arquivo de onde as faturas serão importadas.
+     * @return false se o arquivo não pôde ser lido (nesse caso, nenhuma fatura foi importada).
      */
-    protected void importarFatura(File arquivo) {
+    protected boolean importarFatura(File arquivo) {
         if (!arquivo.getName().toLowerCase().endsWith(".txt")) {
             System.out.println("Erro: Apenas ficheiros com extensão .txt são permitidos.");
-            return;
+            return false;
+        }
+
+        ImportacaoFaturas.Ficheiro ficheiro = lerFicheiroFaturas(arquivo);
+        if (ficheiro.getErro() == null) {
+            registarImportacao(ficheiro);
+        }
+        ficheiro.getMensagens().forEach(System.out::println);
+        if (ficheiro.getErro() != null) {
+            System.out.println("Erro ao importar faturas: " + ficheiro.getErro());
+            return false;
+        }
+        System.out.println("Processo finalizado!");
+        return true;
+    }
+
+    /**
+     * Importa faturas de todos os arquivos de texto de um diretório, lidos em paralelo (ver ImportacaoFaturas).
+     *
+     * @param diretorio O diretório de onde as faturas serão importadas.
+     * @return true se o diretório existe e todos os ficheiros foram lidos (mesmo que algumas faturas tenham sido ignoradas).
+     */
+    protected boolean importarDiretorio(File diretorio) {
+        try {
+            boolean lidos = true;
+            for (ImportacaoFaturas.Ficheiro ficheiro : new ImportacaoFaturas(this).importar(diretorio)) {
+                lidos &= ficheiro.getErro() == null;
+            }
+            return lidos;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Erro: " + e.getMessage());
+            return false;
         }
+    }
 
+    /**
+     * Lê as faturas de um arquivo de texto sem alterar o sistema: os clientes novos e as faturas ficam
+     * no resultado, para serem registados de uma só vez por registarImportacao. Pode ser chamado por
+     * várias threads ao mesmo tempo.
+     *
+     * @param arquivo O arquivo de onde as faturas serão lidas.
+     * @return O resultado da leitura (com o erro, se o arquivo não puder ser lido).
+     */
+    ImportacaoFaturas.Ficheiro lerFicheiroFaturas(File arquivo) {
+        ImportacaoFaturas.Ficheiro ficheiro = new ImportacaoFaturas.Ficheiro(arquivo);
+        long inicio = System.nanoTime();
         try (BufferedReader br = new BufferedReader(new FileReader(arquivo))) {
             String linha;
             Cliente clienteAtual = null;
@@ -833,12 +1640,8 @@ public class SistemaPOOFS implements Serializable {
                     // Processa o número da fatura
                     if (linha.startsWith("Número da Fatura:")) {
                         if (faturaAtual != null) {
-                            if (!faturaJaExiste(faturaAtual.getNumeroFatura())) {
-                                faturaAtual.setProdutos(produtosFatura);
-                                listaFaturas.add(faturaAtual);
-                            } else {
-                                System.out.println("Fatura com número " + faturaAtual.getNumeroFatura() + " já existe. Ignorada.");
-                            }
+                            faturaAtual.setProdutos(produtosFatura);
+                            ficheiro.adicionarFatura(faturaAtual);
                             produtosFatura = new ArrayList<>();
                         }
 
@@ -858,9 +1661,11 @@ public class SistemaPOOFS implements Serializable {
                         String dataStr = linha.split(":")[1].trim();
                         try {
                             Date data = new SimpleDateFormat("dd/MM/yyyy").parse(dataStr);
+                            // O ano tem de estar no intervalo permitido (um ano mal escrito não pode criar totais sem fim)
+                            ServicoPOOFS.validarData(data);
                             faturaAtual.setData(data);
-                        } catch (ParseException e) {
-                            System.out.println("Linha " + linhaAtual + ": Data inválida. Usando data atual.");
+                        } catch (ParseException | IllegalArgumentException e) {
+                            ficheiro.mensagem("Linha " + linhaAtual + ": Data inválida. Usando data atual.");
                             faturaAtual.setData(new Date());
                         }
                     }
@@ -880,12 +1685,20 @@ public class SistemaPOOFS implements Serializable {
                             throw new IllegalArgumentException("Linha " + linhaAtual + ": NIF inválido.");
                         }
 
-                        clienteAtual = buscarClientePorContribuinte(nif);
+                        clienteAtual = servico.obterCliente(nif);
                         if (clienteAtual == null) {
-                            clienteAtual = new Cliente(nome, nif, localizacao);
-                            adicionarCliente(clienteAtual);
+                            clienteAtual = ficheiro.novoCliente(nif);
+                            if (clienteAtual == null) {
+                                clienteAtual = new Cliente(nome, nif, localizacao);
+                                if (clienteAtual.localizacaoToIndex() < 0) {
+                                    throw new IllegalArgumentException("Linha " + linhaAtual + ": Localização inválida.");
+                                }
+                                ficheiro.adicionarCliente(clienteAtual);
+                            } else {
+                                ficheiro.mensagem("Linha " + linhaAtual + ": Cliente com NIF " + nif + " já existe. Ignorado.");
+                            }
                         } else {
-                            System.out.println("Linha " + linhaAtual + ": Cliente com NIF " + nif + " já existe. Ignorado.");
+                            ficheiro.mensagem("Linha " + linhaAtual + ": Cliente com NIF " + nif + " já existe. Ignorado.");
                         }
                         faturaAtual.setCliente(clienteAtual);
                     }
@@ -898,28 +1711,127 @@ public class SistemaPOOFS implements Serializable {
                                 produtosFatura.add(produto);
                             }
                         } catch (Exception e) {
-                            System.out.println("Linha " + linhaAtual + ": Produto mal formatado. Ignorado.");
+                            ficheiro.mensagem("Linha " + linhaAtual + ": Produto mal formatado. Ignorado.");
                         }
                     }
                 } catch (Exception e) {
-                    System.out.println("Erro na linha " + linhaAtual + ": " + e.getMessage());
+                    ficheiro.mensagem("Erro na linha " + linhaAtual + ": " + e.getMessage());
                 }
             }
 
-            // Salva a última fatura no final
+            // Guarda a última fatura no final
             if (faturaAtual != null) {
-                if (!faturaJaExiste(faturaAtual.getNumeroFatura())) {
-                    faturaAtual.setProdutos(produtosFatura);
-                    listaFaturas.add(faturaAtual);
+                faturaAtual.setProdutos(produtosFatura);
+                ficheiro.adicionarFatura(faturaAtual);
+            }
+        } catch (IOException e) {
+            ficheiro.setErro(e.getMessage());
+        }
+        ficheiro.setTempoLeitura(System.nanoTime() - inicio);
+        return ficheiro;
+    }
+
+    /**
+     * Regista os clientes novos e as faturas lidas de um arquivo (ver lerFicheiroFaturas) e publica os
+     * eventos das faturas. O registo é feito com o lock de escrita dos dados, pelo que as outras operações
+     * veem as faturas do arquivo todas ou nenhuma. Todas as faturas são validadas antes de alguma ser
+     * registada; as inválidas e as que têm um número que já existe são ignoradas, com uma mensagem.
+     *
+     * @param ficheiro O resultado da leitura do arquivo.
+     */
+    void registarImportacao(ImportacaoFaturas.Ficheiro ficheiro) {
+        long inicio = System.nanoTime();
+        List<EventoFatura> eventosImportadas = new ArrayList<>();
+        lockDados.writeLock().lock();
+        try {
+            List<Fatura> faturas = ficheiro.getFaturas();
+            boolean[] validas = new boolean[faturas.size()];
+            for (int i = 0; i < faturas.size(); i++) {
+                String erro = validarImportada(faturas.get(i));
+                if (erro != null) {
+                    ficheiro.registada(i, erro);
                 } else {
-                    System.out.println("Fatura com número " + faturaAtual.getNumeroFatura() + " já existe. Ignorada.");
+                    validas[i] = true;
                 }
             }
-            System.out.println("Processo finalizado!");
 
-        } catch (IOException e) {
-            System.out.println("Erro ao importar faturas: " + e.getMessage());
+            // As sequências sobem uma só vez pelo ficheiro inteiro: cada subida da marca de água grava e
+            // sincroniza o ficheiro da sequência, e assim registarFatura já não precisa de o fazer
+            int maiorNumero = 0;
+            int maiorCodigo = 0;
+            for (int i = 0; i < faturas.size(); i++) {
+                if (validas[i]) {
+                    maiorNumero = Math.max(maiorNumero, faturas.get(i).getNumeroFatura());
+                    for (Produto produto : faturas.get(i).getProdutos()) {
+                        maiorCodigo = Math.max(maiorCodigo, produto.getCodigo());
+                    }
+                }
+            }
+            try {
+                numeracaoFaturas.reservarAte(maiorNumero);
+                numeracaoProdutos.reservarAte(maiorCodigo);
+            } catch (UncheckedIOException e) {
+                for (int i = 0; i < faturas.size(); i++) {
+                    if (validas[i]) {
+                        ficheiro.registada(i, "Fatura com número " + faturas.get(i).getNumeroFatura() + " não importada: " + e.getMessage());
+                        validas[i] = false;
+                    }
+                }
+            }
+
+            for (Cliente novo : ficheiro.getNovosClientes().values()) {
+                Cliente existente = clientesPorNif.putIfAbsent(novo.getNif(), novo);
+                if (existente != null) {
+                    ficheiro.substituirCliente(novo, existente);
+                    continue;
+                }
+                synchronized (listaClientes) {
+                    listaClientes.add(novo);
+                }
+                clienteAlterado(novo);
+            }
+            for (int i = 0; i < faturas.size(); i++) {
+                if (!validas[i]) {
+                    continue;
+                }
+                Fatura fatura = faturas.get(i);
+                try {
+                    if (!registarFatura(fatura)) {
+                        ficheiro.registada(i, "Fatura com número " + fatura.getNumeroFatura() + " já existe. Ignorada.");
+                    } else {
+                        ficheiro.registada(i, null);
+                        eventosImportadas.add(criarEvento(EventoFatura.Tipo.IMPORTADA, fatura));
+                    }
+                } catch (RuntimeException e) {
+                    ficheiro.registada(i, "Fatura com número " + fatura.getNumeroFatura() + " não importada: " + e.getMessage());
+                }
+            }
+        } finally {
+            lockDados.writeLock().unlock();
+        }
+        eventosImportadas.forEach(this::publicarEvento);
+        ficheiro.setTempoRegisto(System.nanoTime() - inicio);
+    }
+
+    /**
+     * Verifica se uma fatura lida de um arquivo pode ser registada.
+     *
+     * @param fatura A fatura lida.
+     * @return A mensagem a mostrar se a fatura não puder ser registada, ou null se for válida.
+     */
+    private static String validarImportada(Fatura fatura) {
+        if (fatura.getCliente() == null || fatura.getData() == null) {
+            return "Fatura com número " + fatura.getNumeroFatura() + " sem cliente ou data. Ignorada.";
+        }
+        if (fatura.getCliente().localizacaoToIndex() < 0) {
+            return "Fatura com número " + fatura.getNumeroFatura() + " com a localização do cliente inválida. Ignorada.";
+        }
+        for (Produto produto : fatura.getProdutos()) {
+            if (produto.getQuantidade() < 0 || produto.getCodigo() < 0) {
+                return "Fatura com número " + fatura.getNumeroFatura() + " com o produto " + produto.getCodigo() + " inválido. Ignorada.";
+            }
         }
+        return null;
     }
 
     /**
@@ -936,6 +1848,9 @@ public class SistemaPOOFS implements Serializable {
         String tipo = linha.split(",")[0].split(":")[1].trim();
         String[] atributos = linha.split(",");
 
+        // As taxas são partilhadas a partir da tabela em vigor (o preço usa sempre a data da fatura)
+        TabelaTaxas tabela = RegistoTaxas.atual();
+
         // Processa Produto de Taxa Reduzida
         if (tipo.equalsIgnoreCase("Taxa Reduzida")) {
             int codigo = Integer.parseInt(atributos[1].split(":")[1].trim());
@@ -946,7 +1861,7 @@ public class SistemaPOOFS implements Serializable {
             boolean bio = Boolean.parseBoolean(atributos[6].split(":")[1].trim());
             String[] certificacoes = atributos[7].split(":")[1].trim().split(",");
 
-            return new ProdutoAlimentarTaxaReduzida(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, certificacoes, new double[]{6, 5, 4});
+            return new ProdutoAlimentarTaxaReduzida(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, certificacoes, tabela.taxasPara(TabelaTaxas.TAXA_REDUZIDA));
         }
 
         // Processa Produto de Taxa Intermediária
@@ -959,7 +1874,7 @@ public class SistemaPOOFS implements Serializable {
             boolean bio = Boolean.parseBoolean(atributos[6].split(":")[1].trim());
             String categoria = atributos[7].split(":")[1].trim();
 
-            return new ProdutoAlimentarTaxaIntermedia(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, categoria, new double[]{13, 12, 9});
+            return new ProdutoAlimentarTaxaIntermedia(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, categoria, tabela.taxasPara(TabelaTaxas.TAXA_INTERMEDIA));
         }
 
         // Processa Produto de Taxa Normal
@@ -971,7 +1886,7 @@ public class SistemaPOOFS implements Serializable {
             double valorUnitSemIVA = Double.parseDouble(atributos[5].split(":")[1].trim());
             boolean bio = Boolean.parseBoolean(atributos[6].split(":")[1].trim());
 
-            return new ProdutoAlimentarTaxaNormal(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, new double[]{23, 22, 16});
+            return new ProdutoAlimentarTaxaNormal(codigo, nome, descricao, quantidade, valorUnitSemIVA, bio, tabela.taxasPara(TabelaTaxas.TAXA_NORMAL));
         }
 
         // Processa Produto de Farmácia Com Prescrição
@@ -983,7 +1898,7 @@ public class SistemaPOOFS implements Serializable {
             double valorUnitSemIVA = Double.parseDouble(atributos[5].split(":")[1].trim());
             String nomeMedico = atributos[6].split(":")[1].trim();
 
-            return new ProdutoFarmaciaComPrescricao(codigo, nome, descricao, quantidade, valorUnitSemIVA, nomeMedico, new double[]{6, 5, 4});
+            return new ProdutoFarmaciaComPrescricao(codigo, nome, descricao, quantidade, valorUnitSemIVA, nomeMedico, tabela.taxasPara(TabelaTaxas.FARMACIA_COM_PRESCRICAO));
         }
 
         // Processa Produto de Farmácia Sem Prescrição
@@ -995,46 +1910,33 @@ public class SistemaPOOFS implements Serializable {
             double valorUnitSemIVA = Double.parseDouble(atributos[5].split(":")[1].trim());
             String categoria = atributos[6].split(":")[1].trim();
 
-            return new ProdutoFarmaciaSemPrescricao(codigo, nome, descricao, quantidade, valorUnitSemIVA, categoria, new double[]{23, 23, 23});
+            return new ProdutoFarmaciaSemPrescricao(codigo, nome, descricao, quantidade, valorUnitSemIVA, categoria, tabela.taxasPara(TabelaTaxas.FARMACIA_SEM_PRESCRICAO));
         }
 
         // Se o tipo não for reconhecido, lança uma exceção
         throw new IllegalArgumentException("Tipo de produto desconhecido: " + tipo);
     }
 
-    /**
-     * Verifica se uma fatura com o número fornecido já existe na lista de faturas.
-     *
-     * @param numeroFatura O número da fatura a ser verificado.
-     * @return true se a fatura já existir, false caso contrário.
-     */
-    private boolean faturaJaExiste(int numeroFatura) {
-        for (Fatura fatura : listaFaturas) {
-            if (fatura.getNumeroFatura() == numeroFatura) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Exporta as faturas registadas para um ficheiro de texto. O ficheiro deve ter a extensão .txt.
      *
      * @param arquivo O ficheiro onde as faturas serão salvas.
+     * @return false se o ficheiro não pôde ser escrito.
      */
-    protected void exportarFatura(File arquivo) {
+    protected boolean exportarFatura(File arquivo) {
         if (!arquivo.getName().toLowerCase().endsWith(".txt")) {
             System.out.println("Erro: Apenas ficheiros com extensão .txt são permitidos.");
-            return;
+            return false;
         }
 
-        if (listaFaturas.isEmpty()) {
+        ArrayList<Fatura> faturas = copiaFaturas();
+        if (faturas.isEmpty()) {
             System.out.println("Nenhuma fatura para exportar.");
-            return;
+            return true;
         }
 
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(arquivo))) {
-            for (Fatura fatura : listaFaturas) {
+            for (Fatura fatura : faturas) {
                 //Escreve os detalhes da fatura
                 bw.write("Número da Fatura: " + fatura.getNumeroFatura());
                 bw.newLine();
@@ -1056,14 +1958,29 @@ public class SistemaPOOFS implements Serializable {
                 bw.newLine();
             }
             System.out.println("Faturas salvas com sucesso em " + arquivo);
+            return true;
         } catch (IOException e) {
             System.out.println("Erro ao salvar faturas: " + e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Nomes das localizações, pela ordem de Cliente.localizacaoToIndex().
+     */
+    private static final String[] NOMES_REGIOES = {"Continente", "Madeira", "Açores"};
+
+    /**
+     * Nomes dos tipos de produto, pela ordem dos índices de TabelaTaxas.
+     */
+    private static final String[] NOMES_TIPOS_PRODUTO = {"Taxa Reduzida", "Taxa Intermédia", "Taxa Normal",
+            "Farmácia Com Prescrição", "Farmácia Sem Prescrição"};
+
     /**
      * Exibe estatísticas sobre as faturas registadas no sistema, incluindo o número de faturas,
-     * número de produtos, valores totais com e sem IVA.
+     * número de produtos, valores totais com e sem IVA, o IVA por localização, tipo de produto e mês,
+     * e o número aproximado de clientes e produtos distintos por localização e por mês.
+     * Os valores vêm dos agregados incrementais; só são recalculados se as taxas de IVA mudaram.
      */
     protected void mostrarEstatisticas() {
         if (listaFaturas.isEmpty()) {
@@ -1071,31 +1988,308 @@ public class SistemaPOOFS implements Serializable {
             return;
         }
 
-        int numeroFaturas = listaFaturas.size();
-        int numeroProdutos = 0;
-        double valorTotalSemIVA = 0.0;
-        double valorTotalIVA = 0.0;
-        double valorTotalComIVA = 0.0;
+        atualizarSeTaxasAlteradas();
 
-        for (Fatura fatura : listaFaturas) {
-            numeroProdutos += fatura.getProdutos().size();
+        // Os agregados são lidos sem edições a meio (ver lockAgregados)
+        lockAgregados.writeLock().lock();
+        try {
+            int numeroFaturas = estatisticas.getNumeroFaturas();
+            long numeroProdutos = estatisticas.getNumeroProdutos();
+            double valorTotalSemIVA = estatisticas.getTotalSemIVA();
+            double valorTotalIVA = estatisticas.getTotalIVA();
+            double valorTotalComIVA = estatisticas.getTotalComIVA();
+
+            //Exibindo as estatisticas
+            System.out.println("=== Estatísticas ===");
+            System.out.println("Número de Faturas: " + numeroFaturas);
+            System.out.println("Número de Produtos: " + numeroProdutos);
+            System.out.printf("Valor Total Sem IVA: %.2f\n", valorTotalSemIVA);
+            System.out.printf("Valor Total do IVA: %.2f\n", valorTotalIVA);
+            System.out.printf("Valor Total Com IVA: %.2f\n\n", valorTotalComIVA);
+
+            //IVA por localização, por tipo de produto e por mês (a partir do cubo)
+            System.out.println("--- IVA por Localização ---");
+            for (int regiao = 0; regiao < NOMES_REGIOES.length; regiao++) {
+                System.out.printf("%s: %.2f\n", NOMES_REGIOES[regiao],
+                        cubo.totalIVA(regiao, CuboIVA.TODOS, CuboIVA.TODOS, CuboIVA.TODOS));
+            }
+            System.out.println("--- IVA por Tipo de Produto ---");
+            for (int tipo = 0; tipo < NOMES_TIPOS_PRODUTO.length; tipo++) {
+                System.out.printf("%s: %.2f\n", NOMES_TIPOS_PRODUTO[tipo],
+                        cubo.totalIVA(CuboIVA.TODOS, tipo, CuboIVA.TODOS, CuboIVA.TODOS));
+            }
+            System.out.println("--- Distribuição dos Totais das Faturas (p50 / p95 / p99) ---");
+            for (int regiao = 0; regiao < NOMES_REGIOES.length; regiao++) {
+                HistogramaLog histograma = distribuicao.histograma(DistribuicaoValores.FATURAS, regiao, CuboIVA.TODOS, CuboIVA.TODOS);
+                if (histograma.getTotal() > 0) {
+                    System.out.printf("%s: %.2f / %.2f / %.2f\n", NOMES_REGIOES[regiao],
+                            histograma.percentil(50), histograma.percentil(95), histograma.percentil(99));
+                }
+            }
+            System.out.println("--- IVA por Mês ---");
+            for (int mes = cubo.getPrimeiroMes(); mes != CuboIVA.TODOS && mes <= cubo.getUltimoMes(); mes++) {
+                if (cubo.numeroLinhas(CuboIVA.TODOS, CuboIVA.TODOS, mes, mes) > 0) {
+                    System.out.printf("%02d/%d: %.2f\n", mes % 12 + 1, mes / 12,
+                            cubo.totalIVA(CuboIVA.TODOS, CuboIVA.TODOS, mes, mes));
+                }
+            }
+
+            //Clientes e produtos distintos (estimativas, ver ContagemDistintos)
+            System.out.println("--- Clientes / Produtos Distintos por Localização (aprox.) ---");
+            for (int regiao = 0; regiao < NOMES_REGIOES.length; regiao++) {
+                System.out.printf("%s: %d / %d\n", NOMES_REGIOES[regiao],
+                        distintos.clientesDistintos(regiao, CuboIVA.TODOS, CuboIVA.TODOS),
+                        distintos.produtosDistintos(regiao, CuboIVA.TODOS, CuboIVA.TODOS));
+            }
+            System.out.println("--- Clientes / Produtos Distintos por Mês (aprox.) ---");
+            for (int mes = cubo.getPrimeiroMes(); mes != CuboIVA.TODOS && mes <= cubo.getUltimoMes(); mes++) {
+                if (cubo.numeroLinhas(CuboIVA.TODOS, CuboIVA.TODOS, mes, mes) > 0) {
+                    System.out.printf("%02d/%d: %d / %d\n", mes % 12 + 1, mes / 12,
+                            distintos.clientesDistintos(CuboIVA.TODOS, mes, mes),
+                            distintos.produtosDistintos(CuboIVA.TODOS, mes, mes));
+                }
+            }
+        } finally {
+            lockAgregados.writeLock().unlock();
+        }
+        System.out.println();
+    }
+
+    /**
+     * Obtém a camada de serviço do sistema, para criar e editar clientes e faturas a partir de código.
+     *
+     * @return O serviço.
+     */
+    public ServicoPOOFS getServico() {
+        return servico;
+    }
+
+    /**
+     * Subscreve os eventos das faturas criadas, editadas e importadas a partir de agora.
+     * Cada subscritor tem um buffer próprio de BUFFER_EVENTOS eventos e recebe-os à medida que os pede
+     * (Flow.Subscription.request), numa thread própria. As operações nunca esperam pelos subscritores:
+     * se o buffer de um subscritor estiver cheio, o evento é descartado para esse subscritor
+     * (ver getEventosDescartados). Os eventos têm números de sequência consecutivos, pelo que um
+     * subscritor pode detetar os que perdeu e voltar a ler as faturas afetadas.
+     *
+     * @param subscritor O subscritor.
+     */
+    public void subscreverEventos(Flow.Subscriber<? super EventoFatura> subscritor) {
+        eventos.subscribe(subscritor);
+    }
+
+    /**
+     * Obtém o número de eventos descartados por subscritores sem espaço no buffer.
+     *
+     * @return O número de eventos.
+     */
+    public long getEventosDescartados() {
+        return eventosDescartados.get();
+    }
+
+    /**
+     * Cria o evento de uma alteração a uma fatura, se houver subscritores (deve ser chamado com a fatura
+     * bloqueada, para que o evento tenha uma cópia coerente da fatura). O número de sequência só é
+     * atribuído ao publicar.
+     *
+     * @param tipo   O tipo de alteração.
+     * @param fatura A fatura.
+     * @return O evento, ou null se não houver subscritores.
+     */
+    EventoFatura criarEvento(EventoFatura.Tipo tipo, Fatura fatura) {
+        return eventos.hasSubscribers() ? new EventoFatura(tipo, fatura) : null;
+    }
+
+    /**
+     * Publica um evento, sem esperar pelos subscritores (deve ser chamado depois de libertar a fatura).
+     * O número de sequência é atribuído e o evento entregue ao publicador com o mesmo lock, para que
+     * os subscritores recebam os eventos pela ordem dos números (os de uma mesma fatura podem, ainda
+     * assim, chegar fora da ordem das versões, ver EventoFatura.getVersao).
+     *
+     * @param evento O evento, ou null se não houver subscritores.
+     */
+    void publicarEvento(EventoFatura evento) {
+        if (evento != null && !eventos.isClosed()) {
+            synchronized (sequenciaEventos) {
+                evento.numerar(sequenciaEventos.incrementAndGet());
+                eventos.offer(evento, (subscritor, descartado) -> {
+                    eventosDescartados.incrementAndGet();
+                    return false;
+                });
+            }
+        }
+    }
+
+    /**
+     * Termina a publicação de eventos: os subscritores recebem onComplete depois dos eventos em espera.
+     */
+    void fecharEventos() {
+        eventos.close();
+    }
+
+    /**
+     * Obtém uma cópia das estatísticas das faturas, recalculadas se as taxas de IVA tiverem mudado.
+     * A cópia é feita sem edições a meio (ver lockAgregados) e não muda com as operações seguintes.
+     *
+     * @return As estatísticas.
+     */
+    public EstatisticasFaturas getEstatisticas() {
+        atualizarSeTaxasAlteradas();
+        lockAgregados.writeLock().lock();
+        try {
+            return estatisticas.copia();
+        } finally {
+            lockAgregados.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Obtém o cubo com os valores das faturas por localização, tipo de produto e mês,
+     * para consultar qualquer agregação destas dimensões.
+     *
+     * @return O cubo de agregação.
+     */
+    public CuboIVA getCubo() {
+        atualizarSeTaxasAlteradas();
+        return cubo;
+    }
+
+    /**
+     * Obtém o ranking exato dos produtos com maior receita sem IVA.
+     * Agrega a receita por código de produto e usa um heap limitado a k elementos.
+     *
+     * @param k Número de produtos do ranking.
+     * @return Os produtos (código e receita), por ordem decrescente de receita.
+     */
+    public List<TopK.Entrada> topProdutos(int k) {
+        HashMap<Long, Double> receitas = new HashMap<>();
+        for (Fatura fatura : copiaFaturas()) {
+            for (Produto produto : fatura.getProdutos()) {
+                receitas.merge((long) produto.getCodigo(), produto.calcularValorSemIVA(), Double::sum);
+            }
+        }
+        return TopK.exatos(receitas, k);
+    }
+
+    /**
+     * Obtém o ranking exato dos clientes que pagaram mais IVA.
+     *
+     * @param k Número de clientes do ranking.
+     * @return Os clientes (NIF e IVA pago), por ordem decrescente de IVA.
+     */
+    public List<TopK.Entrada> topClientes(int k) {
+        HashMap<Long, Double> ivaPago = new HashMap<>();
+        for (Fatura fatura : copiaFaturas()) {
+            Long nif = nifComoNumero(fatura.getCliente());
+            if (nif != null) {
+                ivaPago.merge(nif, fatura.calcularTotalComIVA(fatura) - fatura.calcularTotalSemIVA(), Double::sum);
+            }
+        }
+        return TopK.exatos(ivaPago, k);
+    }
+
+    /**
+     * Obtém o ranking aproximado dos produtos com maior receita, mantido em fluxo com memória fixa
+     * à medida que as faturas são criadas e importadas. Cada entrada indica o erro máximo.
+     *
+     * @return Os produtos, por ordem decrescente de receita estimada.
+     */
+    public List<TopK.Entrada> topProdutosAproximado() {
+        return topProdutosFluxo.resultado();
+    }
+
+    /**
+     * Obtém o ranking aproximado dos clientes que pagaram mais IVA, mantido em fluxo com memória fixa.
+     * Cada entrada indica o erro máximo.
+     *
+     * @return Os clientes, por ordem decrescente de IVA estimado.
+     */
+    public List<TopK.Entrada> topClientesAproximado() {
+        return topClientesFluxo.resultado();
+    }
+
+    /**
+     * Obtém os histogramas dos valores das faturas e das linhas por mês e localização,
+     * para consultar percentis de qualquer período.
+     *
+     * @return A distribuição dos valores.
+     */
+    public DistribuicaoValores getDistribuicao() {
+        atualizarSeTaxasAlteradas();
+        return distribuicao;
+    }
 
-            double totalFaturaSemIVA = fatura.calcularTotalSemIVA();
-            double totalFaturaComIVA = fatura.calcularTotalComIVA(fatura);
-            double totalFaturaIVA = totalFaturaComIVA - totalFaturaSemIVA;
+    /**
+     * Obtém a contagem aproximada de clientes e produtos distintos por mês e localização.
+     *
+     * @return A contagem de distintos.
+     */
+    public ContagemDistintos getDistintos() {
+        return distintos;
+    }
+
+    /**
+     * Obtém os totais das faturas por dia e por mês, para consultar os totais de qualquer período.
+     *
+     * @return Os totais por período.
+     */
+    public AgregadosPeriodo getAgregadosPeriodo() {
+        atualizarSeTaxasAlteradas();
+        return agregadosPeriodo;
+    }
+
+    /**
+     * Executa uma consulta às faturas, devolvendo as próprias faturas encontradas.
+     *
+     * @param consulta A consulta.
+     * @return O resultado, com as faturas, os totais e o plano usado.
+     */
+    public ResultadoConsulta<Fatura> consultar(ConsultaFaturas consulta) {
+        return consultar(consulta, Function.identity());
+    }
+
+    /**
+     * Executa uma consulta às faturas, devolvendo um valor por cada fatura encontrada.
+     * O plano (agregado, índice ou varrimento paralelo) é escolhido por PlaneadorConsultas.
+     *
+     * @param consulta A consulta.
+     * @param projecao A função que obtém o valor devolvido por cada fatura.
+     * @param <T>      O tipo dos valores devolvidos.
+     * @return O resultado, com os valores, os totais e o plano usado.
+     */
+    public <T> ResultadoConsulta<T> consultar(ConsultaFaturas consulta, Function<Fatura, T> projecao) {
+        atualizarSeTaxasAlteradas();
+        return PlaneadorConsultas.executar(this, consulta, projecao);
+    }
 
-            valorTotalSemIVA += totalFaturaSemIVA;
-            valorTotalIVA += totalFaturaIVA;
-            valorTotalComIVA += totalFaturaComIVA;
+    /**
+     * Calcula o total com IVA de várias faturas em paralelo, usando o ForkJoinPool comum.
+     * O trabalho é dividido pelo número de linhas das faturas (ver PrecificacaoLote).
+     *
+     * @param faturas As faturas a precificar.
+     * @return Os totais com IVA, pela ordem de iteração da coleção.
+     */
+    public double[] calcularTotaisComIVA(Collection<Fatura> faturas) {
+        Fatura[] lote = faturas.toArray(new Fatura[0]);
+        double[] totais = new double[lote.length];
+        if (lote.length > 0) {
+            ForkJoinPool.commonPool().invoke(new PrecificacaoLote(lote, totais));
         }
+        return totais;
+    }
 
-        //Exibindo as estatisticas
-        System.out.println("=== Estatísticas ===");
-        System.out.println("Número de Faturas: " + numeroFaturas);
-        System.out.println("Número de Produtos: " + numeroProdutos);
-        System.out.printf("Valor Total Sem IVA: %.2f\n", valorTotalSemIVA);
-        System.out.printf("Valor Total do IVA: %.2f\n", valorTotalIVA);
-        System.out.printf("Valor Total Com IVA: %.2f\n\n", valorTotalComIVA);
+    /**
+     * Verifica se os agregados incrementais coincidem com um recálculo completo das faturas.
+     *
+     * @return true se os agregados estiverem consistentes.
+     */
+    protected boolean verificarEstatisticas() {
+        lockDados.writeLock().lock();
+        try {
+            return estatisticas.verificar(listaFaturas);
+        } finally {
+            lockDados.writeLock().unlock();
+        }
     }
 
     public ArrayList<Cliente> getListaClientes() {
@@ -1103,7 +2297,14 @@ public class SistemaPOOFS implements Serializable {
     }
 
     public void setListaClientes(ArrayList<Cliente> listaClientes) {
-        this.listaClientes = listaClientes;
+        lockDados.writeLock().lock();
+        try {
+            this.listaClientes = listaClientes;
+            reconstruirMapas();
+            dadosAlterados();
+        } finally {
+            lockDados.writeLock().unlock();
+        }
     }
 
     public ArrayList<Fatura> getListaFaturas() {
@@ -1111,7 +2312,17 @@ public class SistemaPOOFS implements Serializable {
     }
 
     public void setListaFaturas(ArrayList<Fatura> listaFaturas) {
-        this.listaFaturas = listaFaturas;
+        lockDados.writeLock().lock();
+        try {
+            this.listaFaturas = listaFaturas;
+            recalcularAgregados();
+            reconstruirDistintos();
+            reconstruirMapas();
+            reservarNumerosExistentes();
+            dadosAlterados();
+        } finally {
+            lockDados.writeLock().unlock();
+        }
     }
 
     /**
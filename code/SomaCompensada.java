@@ -0,0 +1,57 @@
+/**
+ * Acumulador de somas de valores decimais com compensação de Neumaier (variante de Kahan),
+ * que guarda separadamente o erro de arredondamento de cada adição.
+ * Permite somar muitos valores (positivos e negativos) sem acumular erro e juntar
+ * somas parciais calculadas em threads diferentes.
+ */
+public class SomaCompensada {
+
+    /**
+     * Soma acumulada.
+     */
+    private double soma;
+
+    /**
+     * Compensação dos erros de arredondamento acumulados.
+     */
+    private double compensacao;
+
+    /**
+     * Adiciona um valor à soma.
+     *
+     * @param valor O valor a adicionar.
+     */
+    public void adicionar(double valor) {
+        double t = soma + valor;
+        if (Math.abs(soma) >= Math.abs(valor)) {
+            compensacao += (soma - t) + valor;
+        } else {
+            compensacao += (valor - t) + soma;
+        }
+        soma = t;
+    }
+
+    /**
+     * Junta uma soma parcial a esta soma.
+     *
+     * @param outra A soma parcial a juntar.
+     */
+    public void adicionar(SomaCompensada outra) {
+        adicionar(outra.soma);
+        adicionar(outra.compensacao);
+    }
+
+    /**
+     * Obtém o valor da soma, já com a compensação aplicada.
+     *
+     * @return O valor da soma.
+     */
+    public double getValor() {
+        return soma + compensacao;
+    }
+
+    @Override
+    public String toString() {
+        return Double.toString(getValor());
+    }
+}
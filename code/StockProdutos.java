@@ -0,0 +1,175 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Stock dos produtos do catálogo, indexado pelo código do produto. Cada linha de uma fatura reserva
+ * a quantidade do produto quando é acrescentada e liberta-a quando é removida (ver ServicoPOOFS);
+ * só libertam as linhas que de facto reservaram (ver Fatura.linhaReservada).
+ *
+ * Os contadores estão em segmentos (AtomicLongArray) criados à medida que são precisos, pelo que as
+ * reservas de produtos diferentes nunca esperam umas pelas outras e as do mesmo produto são feitas
+ * com compare-and-set, sem locks. Uma reserva de várias linhas (ver reservarTodos) é tudo-ou-nada:
+ * se uma linha não tiver stock, as linhas já reservadas são libertadas.
+ *
+ * Os produtos cujo stock nunca foi definido não são controlados: as reservas são sempre aceites.
+ */
+public class StockProdutos implements Serializable {
+
+    /**
+     * Fixado no valor anterior ao método controlado, para que os dados já gravados continuem a ser lidos.
+     */
+    private static final long serialVersionUID = 7511046438215344754L;
+
+    /**
+     * Valor de um produto cujo stock não é controlado.
+     */
+    public static final long SEM_CONTROLO = Long.MIN_VALUE;
+
+    /**
+     * Número de bits do índice dentro de um segmento (segmentos de 4096 produtos).
+     */
+    private static final int BITS_SEGMENTO = 12;
+
+    /**
+     * Número de produtos por segmento.
+     */
+    private static final int TAMANHO_SEGMENTO = 1 << BITS_SEGMENTO;
+
+    /**
+     * Número máximo de segmentos (códigos até 2^26 - 1).
+     */
+    private static final int NUMERO_SEGMENTOS = 1 << 14;
+
+    /**
+     * Os segmentos, criados no primeiro stock definido para um dos seus códigos.
+     */
+    private final AtomicReferenceArray<AtomicLongArray> segmentos = new AtomicReferenceArray<>(NUMERO_SEGMENTOS);
+
+    /**
+     * Obtém o segmento de um código.
+     *
+     * @param codigo O código do produto.
+     * @param criar  true para criar o segmento se ainda não existir.
+     * @return O segmento, ou null se não existir e não for para criar.
+     */
+    private AtomicLongArray segmento(int codigo, boolean criar) {
+        int indice = codigo >>> BITS_SEGMENTO;
+        if (codigo < 0 || indice >= NUMERO_SEGMENTOS) {
+            throw new IllegalArgumentException("Código de produto fora do intervalo do stock: " + codigo);
+        }
+        AtomicLongArray segmento = segmentos.get(indice);
+        if (segmento == null && criar) {
+            long[] valores = new long[TAMANHO_SEGMENTO];
+            Arrays.fill(valores, SEM_CONTROLO);
+            segmentos.compareAndSet(indice, null, new AtomicLongArray(valores));
+            segmento = segmentos.get(indice);
+        }
+        return segmento;
+    }
+
+    /**
+     * Define o stock disponível de um produto (que passa a ser controlado).
+     *
+     * @param codigo     O código do produto.
+     * @param quantidade A quantidade disponível.
+     * @throws IllegalArgumentException Se a quantidade for negativa.
+     */
+    public void definir(int codigo, long quantidade) {
+        if (quantidade < 0) {
+            throw new IllegalArgumentException("O stock não pode ser negativo.");
+        }
+        segmento(codigo, true).set(codigo & (TAMANHO_SEGMENTO - 1), quantidade);
+    }
+
+    /**
+     * Obtém o stock disponível de um produto.
+     *
+     * @param codigo O código do produto.
+     * @return A quantidade disponível, ou SEM_CONTROLO se o stock do produto não é controlado.
+     */
+    public long disponivel(int codigo) {
+        AtomicLongArray segmento = segmento(codigo, false);
+        return segmento == null ? SEM_CONTROLO : segmento.get(codigo & (TAMANHO_SEGMENTO - 1));
+    }
+
+    /**
+     * Indica se o stock de um produto é controlado. Um produto controlado nunca deixa de o ser, pelo que,
+     * se o for antes de uma reserva, a reserva desconta a quantidade do stock.
+     *
+     * @param codigo O código do produto.
+     * @return true se o stock do produto foi definido.
+     */
+    public boolean controlado(int codigo) {
+        return disponivel(codigo) != SEM_CONTROLO;
+    }
+
+    /**
+     * Reserva uma quantidade de um produto, se houver stock suficiente.
+     *
+     * @param codigo     O código do produto.
+     * @param quantidade A quantidade (não negativa).
+     * @return true se a quantidade foi reservada (ou o stock não é controlado).
+     */
+    public boolean reservar(int codigo, long quantidade) {
+        AtomicLongArray segmento = segmento(codigo, false);
+        if (segmento == null) {
+            return true;
+        }
+        int i = codigo & (TAMANHO_SEGMENTO - 1);
+        while (true) {
+            long atual = segmento.get(i);
+            if (atual == SEM_CONTROLO) {
+                return true;
+            }
+            if (atual < quantidade) {
+                return false;
+            }
+            if (segmento.compareAndSet(i, atual, atual - quantidade)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserva as quantidades de vários produtos de uma só vez: se algum não tiver stock suficiente,
+     * as reservas já feitas são libertadas e nenhuma fica feita.
+     *
+     * @param codigos     Os códigos dos produtos.
+     * @param quantidades As quantidades, pela mesma ordem.
+     * @return -1 se tudo foi reservado, ou a posição do primeiro produto sem stock suficiente.
+     */
+    public int reservarTodos(int[] codigos, long[] quantidades) {
+        for (int i = 0; i < codigos.length; i++) {
+            if (!reservar(codigos[i], quantidades[i])) {
+                for (int j = 0; j < i; j++) {
+                    ajustar(codigos[j], quantidades[j]);
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Soma uma quantidade ao stock de um produto sem verificar o stock disponível
+     * (para libertar uma reserva, repor stock ou repetir reservas já feitas).
+     *
+     * @param codigo     O código do produto.
+     * @param quantidade A quantidade a somar (negativa para retirar).
+     */
+    public void ajustar(int codigo, long quantidade) {
+        AtomicLongArray segmento = segmento(codigo, false);
+        if (segmento == null) {
+            return;
+        }
+        int i = codigo & (TAMANHO_SEGMENTO - 1);
+        while (true) {
+            long atual = segmento.get(i);
+            if (atual == SEM_CONTROLO || segmento.compareAndSet(i, atual, atual + quantidade)) {
+                return;
+            }
+        }
+    }
+}
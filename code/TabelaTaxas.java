@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Tabela imutável de taxas de IVA em vigor a partir de uma determinada data.
+ * Guarda, para cada tipo de produto, as taxas aplicáveis em cada localização
+ * (Index: 0 (Continente), 1 (Madeira), 2 (Açores)).
+ * As instâncias são partilhadas por todos os produtos e nunca são alteradas depois de criadas.
+ */
+public final class TabelaTaxas {
+
+    /** Índice do tipo de produto alimentar de taxa reduzida. */
+    public static final int TAXA_REDUZIDA = 0;
+
+    /** Índice do tipo de produto alimentar de taxa intermédia. */
+    public static final int TAXA_INTERMEDIA = 1;
+
+    /** Índice do tipo de produto alimentar de taxa normal. */
+    public static final int TAXA_NORMAL = 2;
+
+    /** Índice do tipo de produto de farmácia com prescrição. */
+    public static final int FARMACIA_COM_PRESCRICAO = 3;
+
+    /** Índice do tipo de produto de farmácia sem prescrição. */
+    public static final int FARMACIA_SEM_PRESCRICAO = 4;
+
+    /** Número de tipos de produto com taxas próprias. */
+    public static final int NUMERO_TIPOS = 5;
+
+    /** Número de localizações (Continente, Madeira, Açores). */
+    public static final int NUMERO_REGIOES = 3;
+
+    /**
+     * Nomes dos tipos de produto, tal como aparecem no ficheiro de configuração.
+     */
+    static final String[] NOMES_TIPOS = {"reduzida", "intermedia", "normal", "comPrescricao", "semPrescricao"};
+
+    /**
+     * Instante (em milissegundos) a partir do qual a tabela está em vigor.
+     */
+    private final long inicioVigor;
+
+    /**
+     * Taxas por tipo de produto e por localização.
+     */
+    private final double[][] taxas;
+
+    /**
+     * Cria uma tabela de taxas. As taxas são copiadas para que a tabela seja imutável.
+     *
+     * @param inicioVigor Instante (em milissegundos) a partir do qual a tabela está em vigor.
+     * @param taxas       Taxas por tipo de produto e por localização.
+     */
+    TabelaTaxas(long inicioVigor, double[][] taxas) {
+        if (taxas.length != NUMERO_TIPOS) {
+            throw new IllegalArgumentException("Tabela de taxas incompleta.");
+        }
+        this.inicioVigor = inicioVigor;
+        this.taxas = new double[NUMERO_TIPOS][];
+        for (int tipo = 0; tipo < NUMERO_TIPOS; tipo++) {
+            if (taxas[tipo] == null || taxas[tipo].length != NUMERO_REGIOES) {
+                throw new IllegalArgumentException("Taxas em falta para o tipo " + NOMES_TIPOS[tipo] + ".");
+            }
+            this.taxas[tipo] = taxas[tipo].clone();
+        }
+    }
+
+    /**
+     * Devolve a tabela com as taxas padrão, em vigor desde sempre.
+     *
+     * @return A tabela de taxas padrão.
+     */
+    static TabelaTaxas padrao() {
+        return new TabelaTaxas(Long.MIN_VALUE, new double[][]{
+                {6, 5, 4},       // Taxa Reduzida
+                {13, 12, 9},     // Taxa Intermédia
+                {23, 22, 16},    // Taxa Normal
+                {6, 5, 4},       // Farmácia Com Prescrição
+                {23, 23, 23}     // Farmácia Sem Prescrição
+        });
+    }
+
+    /**
+     * Obtém a taxa de IVA de um tipo de produto numa localização.
+     *
+     * @param tipo   O tipo de produto (ex.: TAXA_REDUZIDA).
+     * @param regiao O índice da localização do cliente.
+     * @return A taxa de IVA (%).
+     */
+    public double taxa(int tipo, int regiao) {
+        return taxas[tipo][regiao];
+    }
+
+    /**
+     * Obtém as taxas de um tipo de produto para as três localizações.
+     * O array devolvido é uma cópia (é guardado nos produtos, que o expõem com getListaTaxas),
+     * pelo que alterá-lo não altera a tabela.
+     *
+     * @param tipo O tipo de produto.
+     * @return As taxas por localização.
+     */
+    public double[] taxasPara(int tipo) {
+        return taxas[tipo].clone();
+    }
+
+    /**
+     * Obtém o instante a partir do qual a tabela está em vigor.
+     *
+     * @return O início de vigor, em milissegundos.
+     */
+    public long getInicioVigor() {
+        return inicioVigor;
+    }
+
+    /**
+     * Indica se a tabela tem as mesmas taxas que outra.
+     *
+     * @param outra A outra tabela.
+     * @return true se as taxas forem iguais.
+     */
+    boolean mesmasTaxas(TabelaTaxas outra) {
+        return Arrays.deepEquals(taxas, outra.taxas);
+    }
+
+    /**
+     * Calcula um código de dispersão do conteúdo da tabela (data e taxas).
+     *
+     * @return O código de dispersão.
+     */
+    long assinatura() {
+        return 31L * Long.hashCode(inicioVigor) + Arrays.deepHashCode(taxas);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Tabela de Taxas (em vigor desde ");
+        sb.append(inicioVigor == Long.MIN_VALUE ? "sempre" : new Date(inicioVigor).toString()).append("): {");
+        for (int tipo = 0; tipo < NUMERO_TIPOS; tipo++) {
+            if (tipo > 0) sb.append(", ");
+            sb.append(NOMES_TIPOS[tipo]).append('=').append(Arrays.toString(taxas[tipo]));
+        }
+        return sb.append('}').toString();
+    }
+}
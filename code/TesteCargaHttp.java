@@ -0,0 +1,119 @@
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Teste de carga local do servidor HTTP: inicia um servidor com um sistema vazio (a gravar para um
+ * ficheiro temporário), cria alguns clientes e depois submete faturas a partir de vários clientes HTTP
+ * em simultâneo, intercalando leituras de faturas. No fim mostra o débito e os percentis da latência.
+ *
+ * Utilização: java TesteCargaHttp [numeroPedidos] [concorrencia] (por omissão 20 000 pedidos e 32 clientes).
+ */
+public class TesteCargaHttp {
+
+    /**
+     * Número de clientes criados antes da carga.
+     */
+    private static final int NUMERO_CLIENTES = 100;
+
+    /**
+     * A cada quantos pedidos de um cliente HTTP é feita uma leitura de fatura em vez de uma criação.
+     */
+    private static final int PERIODO_LEITURAS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int numeroPedidos = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int concorrencia = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        File arquivo = File.createTempFile("poofs-carga", ".obj");
+        arquivo.deleteOnExit();
+        new File(arquivo.getPath() + ".tmp").deleteOnExit();
+        DiarioAlteracoes.ficheiroDe(arquivo).deleteOnExit();
+        new File(DiarioAlteracoes.ficheiroDe(arquivo).getPath() + ".tmp").deleteOnExit();
+
+        SistemaPOOFS sistema = new SistemaPOOFS();
+        sistema.criarCatalogoInicial();
+        StringBuilder codigos = new StringBuilder();
+        for (Produto produto : sistema.listaProdutos) {
+            if (codigos.length() > 0) codigos.append(',');
+            codigos.append(produto.getCodigo());
+        }
+        String[] localizacoes = {"Continente", "Madeira", "Açores"};
+
+        ExecutorService executor = ServidorHttpPOOFS.criarExecutor();
+        try (ServidorHttpPOOFS servidor = new ServidorHttpPOOFS(sistema, 0, arquivo)) {
+            servidor.iniciar();
+            String base = "http://localhost:" + servidor.getPorta();
+            HttpClient http = HttpClient.newBuilder().executor(executor).build();
+
+            for (int i = 0; i < NUMERO_CLIENTES; i++) {
+                enviar(http, base + "/clientes", "nome=Cliente%20Carga&nif=" + (500000000 + i) + "&localizacao=" + localizacoes[i % 3]);
+            }
+
+            // Aquecimento
+            for (int i = 0; i < 500; i++) {
+                enviar(http, base + "/faturas", "nif=" + (500000000 + i % NUMERO_CLIENTES) + "&produtos=" + codigos);
+            }
+
+            AtomicInteger proximo = new AtomicInteger();
+            AtomicInteger erros = new AtomicInteger();
+            List<Future<HistogramaLog>> resultados = new ArrayList<>();
+            long inicio = System.nanoTime();
+            for (int c = 0; c < concorrencia; c++) {
+                resultados.add(executor.submit(() -> {
+                    HistogramaLog latencias = new HistogramaLog();    // em milissegundos
+                    int i;
+                    while ((i = proximo.getAndIncrement()) < numeroPedidos) {
+                        long t0 = System.nanoTime();
+                        int estado;
+                        if (i % PERIODO_LEITURAS == 0) {
+                            HttpRequest pedido = HttpRequest.newBuilder(URI.create(base + "/faturas/" + (1 + i % 500))).GET().build();
+                            estado = http.send(pedido, HttpResponse.BodyHandlers.discarding()).statusCode();
+                        } else {
+                            estado = enviar(http, base + "/faturas", "nif=" + (500000000 + i % NUMERO_CLIENTES) + "&produtos=" + codigos);
+                        }
+                        latencias.registar((System.nanoTime() - t0) / 1e6);
+                        if (estado >= 300) erros.incrementAndGet();
+                    }
+                    return latencias;
+                }));
+            }
+
+            HistogramaLog latencias = new HistogramaLog();
+            for (Future<HistogramaLog> resultado : resultados) {
+                latencias.juntar(resultado.get());
+            }
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+
+            System.out.printf("Pedidos: %d  Concorrência: %d  Erros: %d%n", numeroPedidos, concorrencia, erros.get());
+            System.out.printf("Débito: %.0f pedidos/s%n", numeroPedidos / segundos);
+            System.out.printf("Latência (ms): p50 %.2f  p95 %.2f  p99 %.2f  máx %.2f%n",
+                    latencias.percentil(50), latencias.percentil(95), latencias.percentil(99), latencias.percentil(100));
+            System.out.println("Faturas no sistema: " + sistema.getEstatisticas().getNumeroFaturas());
+            System.out.print("Etapas do pipeline:" + System.lineSeparator() + servidor.getPipeline());
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("Ficheiro gravado: " + arquivo.length() + " bytes");
+    }
+
+    /**
+     * Envia um pedido POST com um formulário.
+     *
+     * @return O código de estado da resposta.
+     */
+    private static int enviar(HttpClient http, String url, String formulario) throws Exception {
+        HttpRequest pedido = HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(formulario))
+                .build();
+        return http.send(pedido, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
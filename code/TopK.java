@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Ranking das K chaves (códigos de produto ou NIFs) com maior valor acumulado.
+ *
+ * Para fluxos sem fim definido, cada instância mantém um Count-Min Sketch com os valores de todas as chaves
+ * e apenas os K melhores candidatos, usando memória fixa; os valores são aproximados e o erro máximo é
+ * reportado em cada entrada. Quando os totais cabem em memória, {@link #exatos(Map, int)} obtém o ranking
+ * exato com um heap limitado a K elementos.
+ */
+public class TopK {
+
+    /**
+     * Largura do Count-Min Sketch (epsilon = e / largura, cerca de 0,13%).
+     */
+    private static final int LARGURA_SKETCH = 2048;
+
+    /**
+     * Profundidade do Count-Min Sketch (delta = e^-5, cerca de 0,7%).
+     */
+    private static final int PROFUNDIDADE_SKETCH = 5;
+
+    /**
+     * Entrada de um ranking: a chave, o seu valor e o erro máximo desse valor.
+     */
+    public static class Entrada {
+        private final long chave;
+        private final double valor;
+        private final double erroMaximo;
+
+        public Entrada(long chave, double valor, double erroMaximo) {
+            this.chave = chave;
+            this.valor = valor;
+            this.erroMaximo = erroMaximo;
+        }
+
+        public long getChave() {
+            return chave;
+        }
+
+        public double getValor() {
+            return valor;
+        }
+
+        /**
+         * Obtém o erro máximo do valor (0 para rankings exatos).
+         * O valor real está entre valor - erroMaximo e valor.
+         *
+         * @return O erro máximo.
+         */
+        public double getErroMaximo() {
+            return erroMaximo;
+        }
+
+        @Override
+        public String toString() {
+            return chave + ": " + String.format("%.2f", valor) +
+                    (erroMaximo > 0 ? " (erro máx. " + String.format("%.2f", erroMaximo) + ")" : "");
+        }
+    }
+
+    /**
+     * Número de entradas do ranking.
+     */
+    private final int k;
+
+    /**
+     * Sketch com a estimativa dos valores de todas as chaves.
+     */
+    private CountMinSketch sketch;
+
+    /**
+     * Os K melhores candidatos e a sua estimativa atual.
+     */
+    private final HashMap<Long, Double> candidatos = new HashMap<>();
+
+    /**
+     * Cria um ranking aproximado em fluxo com K entradas.
+     *
+     * @param k Número de entradas do ranking.
+     */
+    public TopK(int k) {
+        this.k = k;
+        this.sketch = new CountMinSketch(LARGURA_SKETCH, PROFUNDIDADE_SKETCH);
+    }
+
+    /**
+     * Adiciona um valor a uma chave e atualiza os candidatos.
+     * Como K é pequeno, o candidato mínimo é procurado percorrendo os K candidatos.
+     *
+     * @param chave A chave.
+     * @param valor O valor a adicionar (não negativo).
+     */
+    public synchronized void adicionar(long chave, double valor) {
+        sketch.adicionar(chave, valor);
+        double estimativa = sketch.estimar(chave);
+
+        if (candidatos.containsKey(chave) || candidatos.size() < k) {
+            candidatos.put(chave, estimativa);
+            return;
+        }
+
+        Map.Entry<Long, Double> minimo = null;
+        for (Map.Entry<Long, Double> candidato : candidatos.entrySet()) {
+            if (minimo == null || candidato.getValue() < minimo.getValue()) {
+                minimo = candidato;
+            }
+        }
+        if (estimativa > minimo.getValue()) {
+            candidatos.remove(minimo.getKey());
+            candidatos.put(chave, estimativa);
+        }
+    }
+
+    /**
+     * Limpa o ranking e o sketch.
+     */
+    public synchronized void limpar() {
+        sketch = new CountMinSketch(LARGURA_SKETCH, PROFUNDIDADE_SKETCH);
+        candidatos.clear();
+    }
+
+    /**
+     * Obtém o ranking aproximado atual, por ordem decrescente de valor.
+     * O erro máximo é garantido com probabilidade 1 - delta (ver {@link #probabilidadeFalha()}).
+     *
+     * @return As entradas do ranking.
+     */
+    public synchronized List<Entrada> resultado() {
+        double erro = sketch.erroMaximo();
+        List<Entrada> entradas = new ArrayList<>();
+        for (Map.Entry<Long, Double> candidato : candidatos.entrySet()) {
+            entradas.add(new Entrada(candidato.getKey(), sketch.estimar(candidato.getKey()), erro));
+        }
+        entradas.sort((a, b) -> Double.compare(b.getValor(), a.getValor()));
+        return entradas;
+    }
+
+    /**
+     * Obtém a probabilidade de algum valor do ranking exceder o erro máximo reportado.
+     *
+     * @return A probabilidade de falha (delta).
+     */
+    public synchronized double probabilidadeFalha() {
+        return sketch.probabilidadeFalha();
+    }
+
+    /**
+     * Obtém o ranking exato das K chaves com maior valor, usando um heap mínimo limitado a K elementos
+     * (O(n log K) em vez de ordenar todas as chaves).
+     *
+     * @param totais Os totais de cada chave.
+     * @param k      Número de entradas do ranking.
+     * @return As entradas do ranking, por ordem decrescente de valor.
+     */
+    public static List<Entrada> exatos(Map<Long, Double> totais, int k) {
+        PriorityQueue<Map.Entry<Long, Double>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<Long, Double> total : totais.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(total);
+            } else if (k > 0 && total.getValue() > heap.peek().getValue()) {
+                heap.poll();
+                heap.add(total);
+            }
+        }
+
+        List<Entrada> entradas = new ArrayList<>();
+        for (Map.Entry<Long, Double> total : heap) {
+            entradas.add(new Entrada(total.getKey(), total.getValue(), 0));
+        }
+        entradas.sort((a, b) -> Double.compare(b.getValor(), a.getValor()));
+        return entradas;
+    }
+}
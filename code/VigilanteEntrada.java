@@ -0,0 +1,380 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Importação contínua das faturas deixadas num diretório de entrada (por exemplo, pelas lojas).
+ *
+ * Uma thread em segundo plano vigia o diretório com um WatchService e importa cada ficheiro .txt
+ * novo (ver SistemaPOOFS.lerFicheiroFaturas e registarImportacao) quando deixa de ser escrito, isto é,
+ * quando o tamanho e a data de modificação não mudam durante o tempo de estabilização. Os ficheiros
+ * escritos com outra extensão e depois renomeados para .txt são importados logo que o tempo passa.
+ *
+ * Depois de importado, o ficheiro é movido para o subdiretório "processados"; se não puder ser lido
+ * ou não tiver nenhuma fatura, é movido para "erros". Os ficheiros que já estavam no diretório
+ * quando a vigilância começa também são importados.
+ */
+public class VigilanteEntrada implements AutoCloseable {
+
+    /**
+     * Tempo de estabilização padrão, em milissegundos.
+     */
+    public static final long ESTABILIZACAO_PADRAO_MS = 1000;
+
+    /**
+     * O sistema para onde as faturas são importadas.
+     */
+    private final SistemaPOOFS sistema;
+
+    /**
+     * O diretório de entrada.
+     */
+    private final Path entrada;
+
+    /**
+     * O diretório para onde são movidos os ficheiros importados.
+     */
+    private final Path processados;
+
+    /**
+     * O diretório para onde são movidos os ficheiros que não puderam ser importados.
+     */
+    private final Path erros;
+
+    /**
+     * Tempo, em milissegundos, durante o qual um ficheiro não pode mudar para ser importado.
+     */
+    private final long estabilizacaoMs;
+
+    /**
+     * O serviço que avisa das alterações no diretório de entrada.
+     */
+    private final WatchService vigia;
+
+    /**
+     * Os ficheiros à espera de deixarem de ser escritos (só usado pela thread de vigilância).
+     */
+    private final Map<Path, Candidato> candidatos = new HashMap<>();
+
+    /**
+     * Número de ficheiros importados.
+     */
+    private final AtomicLong ficheirosProcessados = new AtomicLong();
+
+    /**
+     * Número de ficheiros movidos para os erros.
+     */
+    private final AtomicLong ficheirosComErro = new AtomicLong();
+
+    /**
+     * Número de faturas importadas.
+     */
+    private final AtomicLong faturasImportadas = new AtomicLong();
+
+    /**
+     * Tempo entre a última escrita do último ficheiro e o fim da sua importação, em milissegundos (-1 se ainda não houve).
+     */
+    private volatile long latenciaUltimaMs = -1;
+
+    /**
+     * Maior latência observada, em milissegundos.
+     */
+    private volatile long latenciaMaximaMs;
+
+    /**
+     * Thread que vigia o diretório e importa os ficheiros.
+     */
+    private final Thread thread;
+
+    /**
+     * Indica se a vigilância foi terminada.
+     */
+    private volatile boolean terminada;
+
+    /**
+     * Estado de um ficheiro que ainda pode estar a ser escrito.
+     */
+    private static class Candidato {
+
+        /** O tamanho na última verificação (-1 antes da primeira). */
+        long tamanho = -1;
+
+        /** A data de modificação na última verificação. */
+        long modificado;
+
+        /** Instante (System.currentTimeMillis) desde o qual o ficheiro não muda. */
+        long estavelDesde;
+    }
+
+    /**
+     * Construtor que cria os subdiretórios "processados" e "erros" e inicia a thread de vigilância.
+     *
+     * @param sistema         O sistema para onde as faturas são importadas.
+     * @param entrada         O diretório de entrada.
+     * @param estabilizacaoMs Tempo, em milissegundos, durante o qual um ficheiro não pode mudar para ser importado.
+     * @throws IOException              Se não for possível vigiar o diretório ou criar os subdiretórios.
+     * @throws IllegalArgumentException Se o diretório não existir ou o tempo não for positivo.
+     */
+    public VigilanteEntrada(SistemaPOOFS sistema, File entrada, long estabilizacaoMs) throws IOException {
+        if (!entrada.isDirectory()) {
+            throw new IllegalArgumentException("Diretório não encontrado: " + entrada);
+        }
+        if (estabilizacaoMs <= 0) {
+            throw new IllegalArgumentException("O tempo de estabilização deve ser maior que zero.");
+        }
+        this.sistema = sistema;
+        this.entrada = entrada.toPath();
+        this.processados = Files.createDirectories(this.entrada.resolve("processados"));
+        this.erros = Files.createDirectories(this.entrada.resolve("erros"));
+        this.estabilizacaoMs = estabilizacaoMs;
+        this.vigia = this.entrada.getFileSystem().newWatchService();
+        this.entrada.register(vigia, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::executar, "vigilante-entrada");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Ciclo da thread de vigilância: junta os ficheiros criados ou alterados aos candidatos e importa
+     * os que já não mudam há tempo suficiente.
+     */
+    private void executar() {
+        procurarExistentes();
+        while (!terminada) {
+            WatchKey chave;
+            try {
+                chave = candidatos.isEmpty()
+                        ? vigia.take()
+                        : vigia.poll(Math.max(10, estabilizacaoMs / 4), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            if (chave != null) {
+                for (WatchEvent<?> evento : chave.pollEvents()) {
+                    if (evento.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Perderam-se eventos: procura de novo todos os ficheiros
+                        procurarExistentes();
+                    } else {
+                        adicionarCandidato(entrada.resolve((Path) evento.context()));
+                    }
+                }
+                if (!chave.reset()) {
+                    System.out.println("Erro: o diretório de entrada deixou de estar acessível: " + entrada);
+                    return;
+                }
+            }
+            verificarCandidatos();
+        }
+    }
+
+    /**
+     * Junta aos candidatos todos os ficheiros .txt que estão no diretório de entrada.
+     */
+    private void procurarExistentes() {
+        File[] ficheiros = entrada.toFile().listFiles();
+        if (ficheiros != null) {
+            for (File ficheiro : ficheiros) {
+                adicionarCandidato(ficheiro.toPath());
+            }
+        }
+    }
+
+    /**
+     * Junta um ficheiro aos candidatos, se for um ficheiro de faturas.
+     *
+     * @param ficheiro O ficheiro.
+     */
+    private void adicionarCandidato(Path ficheiro) {
+        String nome = ficheiro.getFileName().toString();
+        if (!nome.startsWith(".") && nome.toLowerCase().endsWith(".txt")) {
+            candidatos.putIfAbsent(ficheiro, new Candidato());
+        }
+    }
+
+    /**
+     * Verifica os candidatos e importa os que não mudaram durante o tempo de estabilização.
+     */
+    private void verificarCandidatos() {
+        long agora = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Candidato>> iterador = candidatos.entrySet().iterator();
+        while (iterador.hasNext() && !terminada) {
+            Map.Entry<Path, Candidato> registo = iterador.next();
+            Candidato candidato = registo.getValue();
+            BasicFileAttributes atributos;
+            try {
+                atributos = Files.readAttributes(registo.getKey(), BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                iterador.remove();
+                continue;
+            } catch (IOException e) {
+                continue;
+            }
+            if (!atributos.isRegularFile()) {
+                iterador.remove();
+                continue;
+            }
+            long modificado = atributos.lastModifiedTime().toMillis();
+            if (atributos.size() != candidato.tamanho || modificado != candidato.modificado) {
+                candidato.tamanho = atributos.size();
+                candidato.modificado = modificado;
+                candidato.estavelDesde = agora;
+            } else if (agora - candidato.estavelDesde >= estabilizacaoMs) {
+                iterador.remove();
+                importar(registo.getKey(), modificado);
+            }
+        }
+    }
+
+    /**
+     * Importa um ficheiro e move-o para os processados ou para os erros.
+     *
+     * @param caminho    O ficheiro.
+     * @param modificado A data da última modificação do ficheiro.
+     */
+    private void importar(Path caminho, long modificado) {
+        String nome = caminho.getFileName().toString();
+        boolean falhou;
+        try {
+            ImportacaoFaturas.Ficheiro ficheiro = sistema.lerFicheiroFaturas(caminho.toFile());
+            falhou = ficheiro.getErro() != null || ficheiro.getNumeroFaturas() == 0;
+            if (!falhou) {
+                sistema.registarImportacao(ficheiro);
+                faturasImportadas.addAndGet(ficheiro.getImportadas());
+            }
+            ficheiro.getMensagens().forEach(mensagem -> System.out.println(nome + ": " + mensagem));
+            System.out.println(ficheiro);
+        } catch (RuntimeException e) {
+            falhou = true;
+            System.out.println(nome + ": Erro ao importar faturas: " + e.getMessage());
+        }
+        (falhou ? ficheirosComErro : ficheirosProcessados).incrementAndGet();
+        mover(caminho, falhou ? erros : processados);
+
+        long latencia = System.currentTimeMillis() - modificado;
+        latenciaUltimaMs = latencia;
+        latenciaMaximaMs = Math.max(latenciaMaximaMs, latencia);
+    }
+
+    /**
+     * Move um ficheiro para um diretório. Se já existir um ficheiro com o mesmo nome, acrescenta
+     * o instante atual ao nome.
+     *
+     * @param caminho O ficheiro.
+     * @param destino O diretório de destino.
+     */
+    private void mover(Path caminho, Path destino) {
+        String nome = caminho.getFileName().toString();
+        Path alvo = destino.resolve(nome);
+        if (Files.exists(alvo)) {
+            int ponto = nome.lastIndexOf('.');
+            alvo = destino.resolve(nome.substring(0, ponto) + "-" + System.currentTimeMillis() + nome.substring(ponto));
+        }
+        try {
+            Files.move(caminho, alvo);
+        } catch (IOException e) {
+            System.out.println("Erro ao mover " + nome + " para " + destino.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Espera até a vigilância terminar (ver close).
+     *
+     * @throws InterruptedException Se a thread atual for interrompida.
+     */
+    public void aguardar() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Obtém o número de ficheiros importados.
+     *
+     * @return O número de ficheiros.
+     */
+    public long getFicheirosProcessados() {
+        return ficheirosProcessados.get();
+    }
+
+    /**
+     * Obtém o número de ficheiros que não puderam ser importados.
+     *
+     * @return O número de ficheiros.
+     */
+    public long getFicheirosComErro() {
+        return ficheirosComErro.get();
+    }
+
+    /**
+     * Obtém o número de faturas importadas.
+     *
+     * @return O número de faturas.
+     */
+    public long getFaturasImportadas() {
+        return faturasImportadas.get();
+    }
+
+    /**
+     * Obtém o tempo entre a última escrita do último ficheiro importado e o fim da sua importação.
+     *
+     * @return A latência em milissegundos, ou -1 se ainda nenhum ficheiro foi importado.
+     */
+    public long getLatenciaUltimaMs() {
+        return latenciaUltimaMs;
+    }
+
+    /**
+     * Obtém a maior latência de importação observada.
+     *
+     * @return A latência em milissegundos.
+     */
+    public long getLatenciaMaximaMs() {
+        return latenciaMaximaMs;
+    }
+
+    /**
+     * Termina a vigilância, esperando que a importação em curso (se houver) termine.
+     */
+    @Override
+    public void close() {
+        terminada = true;
+        try {
+            vigia.close();
+        } catch (IOException e) {
+            System.out.println("Erro ao terminar a vigilância: " + e.getMessage());
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Retorna as métricas da vigilância.
+     *
+     * @return Uma string com as métricas.
+     */
+    @Override
+    public String toString() {
+        return "VigilanteEntrada: {" +
+                "entrada=" + entrada +
+                ", ficheirosProcessados=" + ficheirosProcessados.get() +
+                ", ficheirosComErro=" + ficheirosComErro.get() +
+                ", faturasImportadas=" + faturasImportadas.get() +
+                ", latenciaUltimaMs=" + latenciaUltimaMs +
+                ", latenciaMaximaMs=" + latenciaMaximaMs +
+                '}';
+    }
+}